@@ -15,19 +15,66 @@ import java.util.*;
 import java.util.Date;
 import java.util.List;
 import com.datamanager.util.DatabaseUtil;
+import com.datamanager.util.DatabaseWriter;
 import com.datamanager.util.SecurityUtil;
 import com.datamanager.util.BackupUtil;
 import com.datamanager.util.BrowserExtensionUtil;
 import com.datamanager.util.PasswordHealthUtil;
+import com.datamanager.util.PasswordHealthAggregates;
+import com.datamanager.util.PasswordHealthReport;
 import com.datamanager.util.DataTransferUtil;
 import com.datamanager.util.SecureNotesUtil;
+import com.datamanager.util.FullTextSearch;
+import com.datamanager.util.ContactsUtil;
+import com.datamanager.util.SearchPage;
+import com.datamanager.util.NoteSearchIndex;
+import com.datamanager.util.CryptoContext;
+import com.datamanager.util.TotpVerifier;
 
 public class DashboardFrame extends JFrame {
+    public static final String DELETE_PASSWORD_SQL =
+        "DELETE FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+    public static final String VIEW_PASSWORD_SQL =
+        "SELECT encrypted_password FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+    public static final String LOAD_PASSWORDS_SQL =
+        "SELECT id, website, username, auto_fill_enabled FROM passwords WHERE user_id = ?";
+    public static final String LOAD_CONTACTS_SQL =
+        "SELECT name, phone, email, company, category, is_favorite FROM contacts WHERE user_id = ?";
+    public static final String LOAD_CONTACT_SQL = "SELECT * FROM contacts WHERE user_id = ? AND name = ?";
+    public static final String UPDATE_CONTACT_SQL =
+        "UPDATE contacts SET name = ?, phone = ?, email = ?, " +
+        "address = ?, birthday = ?, company = ?, job_title = ?, " +
+        "website = ?, notes = ?, category = ?, is_favorite = ? " +
+        "WHERE user_id = ? AND name = ?";
+    public static final String DELETE_CONTACT_SQL = "DELETE FROM contacts WHERE user_id = ? AND name = ?";
+    public static final String LOAD_PREFERENCES_SQL =
+        "SELECT dark_mode FROM user_preferences WHERE user_id = ?";
+    public static final String COUNT_AUTO_FILL_SQL =
+        "SELECT COUNT(*) FROM passwords WHERE user_id = ? AND auto_fill_enabled = 1";
+    public static final String LOAD_REPORT_SETTINGS_SQL =
+        "SELECT email, report_frequency FROM users WHERE id = ?";
+    public static final String REPORT_HISTORY_SQL =
+        "SELECT report_date, overall_score, weak_passwords, reused_passwords, old_passwords, breached_passwords " +
+        "FROM password_health_reports WHERE user_id = ? ORDER BY report_date DESC LIMIT 10";
+    public static final String REPORT_DETAILS_SQL =
+        "SELECT report_data FROM password_health_reports " +
+        "WHERE user_id = ? AND strftime('%Y-%m-%d %H:%M', report_date) = ? " +
+        "LIMIT 1";
+    public static final String LOAD_URL_PATTERN_SQL =
+        "SELECT id, url_pattern FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+    public static final String FIND_PASSWORD_ID_SQL =
+        "SELECT id FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+    
     private JTabbedPane tabbedPane;
     private final int userId;
     private DefaultTableModel passwordTableModel;
     private DefaultTableModel contactsTableModel;
+    private JLabel contactsSearchStatus;
     private DefaultListModel<String> taskListModel;
+    private JLabel storedPasswordsValue;
+    private JLabel averageStrengthValue;
+    private JLabel weakPasswordsValue;
+    private JLabel reusedPasswordsValue;
 
     public DashboardFrame(int userId) {
         this.userId = userId;
@@ -93,6 +140,7 @@ public class DashboardFrame extends JFrame {
         loadTasks();
         loadContacts();
         loadNotes();
+        NoteSearchIndex.preload(userId);
     }
 
     private JPanel createDashboardPanel() {
@@ -189,21 +237,23 @@ public class DashboardFrame extends JFrame {
                 return;
             }
             
-            try (Connection conn = DatabaseUtil.getConnection()) {
-                String encryptedPassword = SecurityUtil.encryptPassword(password, "your-encryption-key");
-                String query = "INSERT INTO passwords (user_id, website, username, encrypted_password) VALUES (?, ?, ?, ?)";
+            String encryptedPassword = SecurityUtil.encryptPassword(password, "your-encryption-key");
+            int strengthScore = PasswordHealthAggregates.strengthScore(password);
+            String reuseDigest = PasswordHealthAggregates.reuseDigest(password);
+            submitWrite(conn -> {
+                String query = "INSERT INTO passwords (user_id, website, username, encrypted_password, " +
+                               "strength_score, reuse_digest) VALUES (?, ?, ?, ?, ?, ?)";
                 
                 try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                     pstmt.setInt(1, userId);
                     pstmt.setString(2, website);
                     pstmt.setString(3, username);
                     pstmt.setString(4, encryptedPassword);
-                    pstmt.executeUpdate();
-                    loadPasswords();
+                    pstmt.setInt(5, strengthScore);
+                    pstmt.setString(6, reuseDigest);
+                    return pstmt.executeUpdate();
                 }
-            } catch (SQLException ex) {
-                showError("Error saving password: " + ex.getMessage());
-            }
+            }, "Error saving password", inserted -> loadPasswords());
         }
     }
 
@@ -222,18 +272,15 @@ public class DashboardFrame extends JFrame {
             String website = (String) passwordTableModel.getValueAt(selectedRow, 0);
             String username = (String) passwordTableModel.getValueAt(selectedRow, 1);
             
-            try (Connection conn = DatabaseUtil.getConnection()) {
-                String query = "DELETE FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+            submitWrite(conn -> {
+                String query = DELETE_PASSWORD_SQL;
                 try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                     pstmt.setInt(1, userId);
                     pstmt.setString(2, website);
                     pstmt.setString(3, username);
-                    pstmt.executeUpdate();
-                    loadPasswords();
+                    return pstmt.executeUpdate();
                 }
-            } catch (SQLException ex) {
-                showError("Error deleting password: " + ex.getMessage());
-            }
+            }, "Error deleting password", deleted -> loadPasswords());
         }
     }
 
@@ -246,8 +293,8 @@ public class DashboardFrame extends JFrame {
         String website = (String) passwordTableModel.getValueAt(selectedRow, 0);
         String username = (String) passwordTableModel.getValueAt(selectedRow, 1);
         
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT encrypted_password FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = VIEW_PASSWORD_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 pstmt.setString(2, website);
@@ -271,8 +318,8 @@ public class DashboardFrame extends JFrame {
 
     private void loadPasswords() {
         passwordTableModel.setRowCount(0);
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT id, website, username, auto_fill_enabled FROM passwords WHERE user_id = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_PASSWORDS_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 ResultSet rs = pstmt.executeQuery();
@@ -298,8 +345,9 @@ public class DashboardFrame extends JFrame {
 
     private void loadContacts() {
         contactsTableModel.setRowCount(0);
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT name, phone, email, company, category, is_favorite FROM contacts WHERE user_id = ?";
+        contactsSearchStatus.setText("");
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_CONTACTS_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 ResultSet rs = pstmt.executeQuery();
@@ -326,6 +374,24 @@ public class DashboardFrame extends JFrame {
             "Error",
             JOptionPane.ERROR_MESSAGE);
     }
+    
+    /**
+     * Queue a write on the database writer and continue on the EDT once it has been committed
+     * @param operation The write to apply
+     * @param errorMessage Prefix for the error dialog if the write fails
+     * @param onSuccess Called on the EDT with the operation's result
+     */
+    private <T> void submitWrite(DatabaseWriter.WriteOperation<T> operation, String errorMessage,
+                                 java.util.function.Consumer<T> onSuccess) {
+        DatabaseWriter.submit(operation).whenComplete((result, error) ->
+            SwingUtilities.invokeLater(() -> {
+                if (error != null) {
+                    showError(errorMessage + ": " + error.getMessage());
+                } else if (onSuccess != null) {
+                    onSuccess.accept(result);
+                }
+            }));
+    }
 
     private JPanel createTaskPanel() {
         return new TaskPanel(this, userId);
@@ -343,6 +409,8 @@ public class DashboardFrame extends JFrame {
         searchPanel.add(searchButton);
         JButton resetButton = new JButton("Show All");
         searchPanel.add(resetButton);
+        contactsSearchStatus = new JLabel();
+        searchPanel.add(contactsSearchStatus);
         panel.add(searchPanel, BorderLayout.NORTH);
         
         // Contacts table with more columns
@@ -515,7 +583,21 @@ public class DashboardFrame extends JFrame {
                 return;
             }
             
-            try (Connection conn = DatabaseUtil.getConnection()) {
+            // Handle birthday
+            java.sql.Date birthdayDate = null;
+            if (birthday != null && !birthday.trim().isEmpty()) {
+                try {
+                    birthdayDate = java.sql.Date.valueOf(birthday);
+                } catch (IllegalArgumentException e) {
+                    JOptionPane.showMessageDialog(this,
+                        "Birthday format incorrect. It will be ignored.",
+                        "Warning",
+                        JOptionPane.WARNING_MESSAGE);
+                }
+            }
+            java.sql.Date sqlDate = birthdayDate;
+            
+            submitWrite(conn -> {
                 String query = "INSERT INTO contacts (user_id, name, phone, email, address, birthday, " +
                                "company, job_title, website, notes, category, is_favorite) " +
                                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
@@ -527,18 +609,8 @@ public class DashboardFrame extends JFrame {
                     pstmt.setString(4, email);
                     pstmt.setString(5, address);
                     
-                    // Handle birthday
-                    if (birthday != null && !birthday.trim().isEmpty()) {
-                        try {
-                            java.sql.Date sqlDate = java.sql.Date.valueOf(birthday);
-                            pstmt.setDate(6, sqlDate);
-                        } catch (IllegalArgumentException e) {
-                            pstmt.setNull(6, java.sql.Types.DATE);
-                            JOptionPane.showMessageDialog(this,
-                                "Birthday format incorrect. It will be ignored.",
-                                "Warning",
-                                JOptionPane.WARNING_MESSAGE);
-                        }
+                    if (sqlDate != null) {
+                        pstmt.setDate(6, sqlDate);
                     } else {
                         pstmt.setNull(6, java.sql.Types.DATE);
                     }
@@ -550,17 +622,16 @@ public class DashboardFrame extends JFrame {
                     pstmt.setString(11, category);
                     pstmt.setInt(12, isFavorite ? 1 : 0);
                     
-                    pstmt.executeUpdate();
-                    loadContacts();
-                    
-                    JOptionPane.showMessageDialog(this,
-                        "Contact added successfully!",
-                        "Success",
-                        JOptionPane.INFORMATION_MESSAGE);
+                    return pstmt.executeUpdate();
                 }
-            } catch (SQLException ex) {
-                showError("Error adding contact: " + ex.getMessage());
-            }
+            }, "Error adding contact", inserted -> {
+                loadContacts();
+                
+                JOptionPane.showMessageDialog(this,
+                    "Contact added successfully!",
+                    "Success",
+                    JOptionPane.INFORMATION_MESSAGE);
+            });
         }
     }
     
@@ -572,8 +643,8 @@ public class DashboardFrame extends JFrame {
         
         String name = (String) contactsTableModel.getValueAt(selectedRow, 0);
         
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT * FROM contacts WHERE user_id = ? AND name = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_CONTACT_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 pstmt.setString(2, name);
@@ -721,43 +792,47 @@ public class DashboardFrame extends JFrame {
                             return;
                         }
                         
-                        String updateQuery = "UPDATE contacts SET name = ?, phone = ?, email = ?, " +
-                                           "address = ?, birthday = ?, company = ?, job_title = ?, " +
-                                           "website = ?, notes = ?, category = ?, is_favorite = ? " +
-                                           "WHERE user_id = ? AND name = ?";
+                        String updateQuery = UPDATE_CONTACT_SQL;
                                            
-                        try (PreparedStatement updateStmt = conn.prepareStatement(updateQuery)) {
-                            updateStmt.setString(1, newName);
-                            updateStmt.setString(2, newPhone);
-                            updateStmt.setString(3, newEmail);
-                            updateStmt.setString(4, newAddress);
-                            
-                            // Handle birthday
-                            if (newBirthday != null && !newBirthday.trim().isEmpty()) {
-                                try {
-                                    java.sql.Date sqlDate = java.sql.Date.valueOf(newBirthday);
+                        // Handle birthday
+                        java.sql.Date birthdayDate = null;
+                        if (newBirthday != null && !newBirthday.trim().isEmpty()) {
+                            try {
+                                birthdayDate = java.sql.Date.valueOf(newBirthday);
+                            } catch (IllegalArgumentException e) {
+                                JOptionPane.showMessageDialog(this,
+                                    "Birthday format incorrect. It will be ignored.",
+                                    "Warning",
+                                    JOptionPane.WARNING_MESSAGE);
+                            }
+                        }
+                        java.sql.Date sqlDate = birthdayDate;
+                        
+                        submitWrite(writeConn -> {
+                            try (PreparedStatement updateStmt = writeConn.prepareStatement(updateQuery)) {
+                                updateStmt.setString(1, newName);
+                                updateStmt.setString(2, newPhone);
+                                updateStmt.setString(3, newEmail);
+                                updateStmt.setString(4, newAddress);
+                                
+                                if (sqlDate != null) {
                                     updateStmt.setDate(5, sqlDate);
-                                } catch (IllegalArgumentException e) {
+                                } else {
                                     updateStmt.setNull(5, java.sql.Types.DATE);
-                                    JOptionPane.showMessageDialog(this,
-                                        "Birthday format incorrect. It will be ignored.",
-                                        "Warning",
-                                        JOptionPane.WARNING_MESSAGE);
                                 }
-                            } else {
-                                updateStmt.setNull(5, java.sql.Types.DATE);
+                                
+                                updateStmt.setString(6, newCompany);
+                                updateStmt.setString(7, newJobTitle);
+                                updateStmt.setString(8, newWebsite);
+                                updateStmt.setString(9, newNotes);
+                                updateStmt.setString(10, newCategory);
+                                updateStmt.setInt(11, newIsFavorite ? 1 : 0);
+                                updateStmt.setInt(12, userId);
+                                updateStmt.setString(13, name); // Original name for WHERE clause
+                                
+                                return updateStmt.executeUpdate();
                             }
-                            
-                            updateStmt.setString(6, newCompany);
-                            updateStmt.setString(7, newJobTitle);
-                            updateStmt.setString(8, newWebsite);
-                            updateStmt.setString(9, newNotes);
-                            updateStmt.setString(10, newCategory);
-                            updateStmt.setInt(11, newIsFavorite ? 1 : 0);
-                            updateStmt.setInt(12, userId);
-                            updateStmt.setString(13, name); // Original name for WHERE clause
-                            
-                            int updated = updateStmt.executeUpdate();
+                        }, "Error updating contact", updated -> {
                             if (updated > 0) {
                                 loadContacts();
                                 JOptionPane.showMessageDialog(this,
@@ -767,7 +842,7 @@ public class DashboardFrame extends JFrame {
                             } else {
                                 showError("Contact not found or could not be updated.");
                             }
-                        }
+                        });
                     }
                 }
             }
@@ -791,27 +866,26 @@ public class DashboardFrame extends JFrame {
             JOptionPane.WARNING_MESSAGE);
             
         if (confirm == JOptionPane.YES_OPTION) {
-            try (Connection conn = DatabaseUtil.getConnection()) {
-                String query = "DELETE FROM contacts WHERE user_id = ? AND name = ?";
+            submitWrite(conn -> {
+                String query = DELETE_CONTACT_SQL;
                 
                 try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                     pstmt.setInt(1, userId);
                     pstmt.setString(2, name);
                     
-                    int deleted = pstmt.executeUpdate();
-                    if (deleted > 0) {
-                        loadContacts();
-                        JOptionPane.showMessageDialog(this,
-                            "Contact deleted successfully!",
-                            "Success",
-                            JOptionPane.INFORMATION_MESSAGE);
-                    } else {
-                        showError("Contact not found or could not be deleted.");
-                    }
+                    return pstmt.executeUpdate();
                 }
-            } catch (SQLException ex) {
-                showError("Error deleting contact: " + ex.getMessage());
-            }
+            }, "Error deleting contact", deleted -> {
+                if (deleted > 0) {
+                    loadContacts();
+                    JOptionPane.showMessageDialog(this,
+                        "Contact deleted successfully!",
+                        "Success",
+                        JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    showError("Contact not found or could not be deleted.");
+                }
+            });
         }
     }
 
@@ -856,12 +930,38 @@ public class DashboardFrame extends JFrame {
                         JOptionPane.WARNING_MESSAGE);
                         
                     if (confirm == JOptionPane.YES_OPTION) {
-                        BackupUtil.restoreBackup(selectedFile.getPath(), userId);
-                        loadUserData();
-                        JOptionPane.showMessageDialog(this,
-                            "Data restored successfully!",
-                            "Restore Success",
-                            JOptionPane.INFORMATION_MESSAGE);
+                        ProgressMonitor monitor = new ProgressMonitor(this, "Restoring backup...", "", 0, 100);
+                        monitor.setMillisToDecideToPopup(200);
+                        restoreButton.setEnabled(false);
+                        
+                        // Restore in background so the progress dialog can repaint
+                        new Thread(() -> {
+                            Exception error = null;
+                            try {
+                                BackupUtil.restoreBackup(selectedFile.getPath(), userId,
+                                    (table, rows, percent) -> SwingUtilities.invokeLater(() -> {
+                                        monitor.setNote(rows + " rows restored (" + table + ")");
+                                        monitor.setProgress(percent);
+                                    }));
+                            } catch (Exception ex) {
+                                error = ex;
+                            }
+                            
+                            Exception restoreError = error;
+                            SwingUtilities.invokeLater(() -> {
+                                monitor.close();
+                                restoreButton.setEnabled(true);
+                                if (restoreError != null) {
+                                    showError("Error restoring backup: " + restoreError.getMessage());
+                                    return;
+                                }
+                                loadUserData();
+                                JOptionPane.showMessageDialog(this,
+                                    "Data restored successfully!",
+                                    "Restore Success",
+                                    JOptionPane.INFORMATION_MESSAGE);
+                            });
+                        }, "BackupRestore").start();
                     }
                 } catch (Exception ex) {
                     showError("Error restoring backup: " + ex.getMessage());
@@ -869,6 +969,40 @@ public class DashboardFrame extends JFrame {
             }
         });
         
+        JButton snapshotButton = new JButton("Create Snapshot");
+        snapshotButton.addActionListener(e -> {
+            snapshotButton.setEnabled(false);
+            snapshotButton.setText("Creating Snapshot...");
+            
+            // The copy is throttled and may take a while on a large database
+            Thread snapshotThread = new Thread(() -> {
+                String snapshotFile = null;
+                Exception error = null;
+                try {
+                    snapshotFile = BackupUtil.createSnapshotBackup(userId);
+                } catch (Exception ex) {
+                    error = ex;
+                }
+                
+                String createdFile = snapshotFile;
+                Exception snapshotError = error;
+                SwingUtilities.invokeLater(() -> {
+                    snapshotButton.setEnabled(true);
+                    snapshotButton.setText("Create Snapshot");
+                    if (snapshotError != null) {
+                        showError("Error creating snapshot: " + snapshotError.getMessage());
+                        return;
+                    }
+                    JOptionPane.showMessageDialog(this,
+                        "Snapshot created successfully: " + createdFile,
+                        "Snapshot Success",
+                        JOptionPane.INFORMATION_MESSAGE);
+                });
+            }, "SnapshotBackup");
+            snapshotThread.setPriority(Thread.MIN_PRIORITY);
+            snapshotThread.start();
+        });
+        
         gbc.gridx = 0;
         gbc.gridy = 0;
         panel.add(backupButton, gbc);
@@ -876,6 +1010,9 @@ public class DashboardFrame extends JFrame {
         gbc.gridy = 1;
         panel.add(restoreButton, gbc);
         
+        gbc.gridy = 2;
+        panel.add(snapshotButton, gbc);
+        
         // Add description labels
         gbc.gridx = 1;
         gbc.gridy = 0;
@@ -884,6 +1021,9 @@ public class DashboardFrame extends JFrame {
         gbc.gridy = 1;
         panel.add(new JLabel(" - Restore your data from a backup file"), gbc);
         
+        gbc.gridy = 2;
+        panel.add(new JLabel(" - Copy the whole database while you keep working"), gbc);
+        
         return panel;
     }
 
@@ -894,32 +1034,24 @@ public class DashboardFrame extends JFrame {
         }
         
         contactsTableModel.setRowCount(0);
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT name, phone, email, company, category, is_favorite FROM contacts " +
-                           "WHERE user_id = ? AND (name LIKE ? OR phone LIKE ? OR email LIKE ? OR " +
-                           "company LIKE ? OR category LIKE ? OR notes LIKE ?)";
-            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
-                searchTerm = "%" + searchTerm + "%";
-                pstmt.setInt(1, userId);
-                pstmt.setString(2, searchTerm);
-                pstmt.setString(3, searchTerm);
-                pstmt.setString(4, searchTerm);
-                pstmt.setString(5, searchTerm);
-                pstmt.setString(6, searchTerm);
-                pstmt.setString(7, searchTerm);
-                
-                ResultSet rs = pstmt.executeQuery();
-                
-                while (rs.next()) {
-                    contactsTableModel.addRow(new Object[]{
-                        rs.getString("name"),
-                        rs.getString("phone"),
-                        rs.getString("email"),
-                        rs.getString("company"),
-                        rs.getString("category"),
-                        rs.getInt("is_favorite") == 1 ? "★" : ""
-                    });
-                }
+        contactsSearchStatus.setText("");
+        
+        try {
+            SearchPage<Map<String, Object>> page =
+                ContactsUtil.searchContacts(userId, searchTerm, 0, FullTextSearch.DEFAULT_PAGE_SIZE);
+            for (Map<String, Object> contact : page.getHits()) {
+                contactsTableModel.addRow(new Object[]{
+                    contact.get("name"),
+                    contact.get("phone"),
+                    contact.get("email"),
+                    contact.get("company"),
+                    contact.get("category"),
+                    (Boolean) contact.get("favorite") ? "★" : ""
+                });
+            }
+            if (page.hasMore()) {
+                contactsSearchStatus.setText("Showing the best " + page.getHits().size() +
+                                             " matches; refine the search to see others");
             }
         } catch (SQLException ex) {
             showError("Error searching contacts: " + ex.getMessage());
@@ -934,8 +1066,8 @@ public class DashboardFrame extends JFrame {
         
         String name = (String) contactsTableModel.getValueAt(selectedRow, 0);
         
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT * FROM contacts WHERE user_id = ? AND name = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_CONTACT_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 pstmt.setString(2, name);
@@ -1135,22 +1267,26 @@ public class DashboardFrame extends JFrame {
                     return;
                 }
                 
-                try (Connection conn = DatabaseUtil.getConnection()) {
-                    String encryptedPassword = SecurityUtil.encryptPassword(generatedPassword, "your-encryption-key");
-                    String query = "INSERT INTO passwords (user_id, website, username, encrypted_password) VALUES (?, ?, ?, ?)";
+                String encryptedPassword = SecurityUtil.encryptPassword(generatedPassword, "your-encryption-key");
+                int strengthScore = PasswordHealthAggregates.strengthScore(generatedPassword);
+                String reuseDigest = PasswordHealthAggregates.reuseDigest(generatedPassword);
+                submitWrite(conn -> {
+                    String query = "INSERT INTO passwords (user_id, website, username, encrypted_password, " +
+                                   "strength_score, reuse_digest) VALUES (?, ?, ?, ?, ?, ?)";
                     
                     try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                         pstmt.setInt(1, userId);
                         pstmt.setString(2, website);
                         pstmt.setString(3, username);
                         pstmt.setString(4, encryptedPassword);
-                        pstmt.executeUpdate();
-                        loadPasswords();
-                        JOptionPane.showMessageDialog(this, "Password saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                        pstmt.setInt(5, strengthScore);
+                        pstmt.setString(6, reuseDigest);
+                        return pstmt.executeUpdate();
                     }
-                } catch (SQLException ex) {
-                    showError("Error saving password: " + ex.getMessage());
-                }
+                }, "Error saving password", inserted -> {
+                    loadPasswords();
+                    JOptionPane.showMessageDialog(this, "Password saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                });
             }
         });
         
@@ -1381,21 +1517,16 @@ public class DashboardFrame extends JFrame {
         JPanel statsPanel = new JPanel(new GridLayout(2, 2, 10, 10));
         
         // Create stored passwords stats card
-        JPanel passwordsCard = createStatsCard("Stored Passwords", "0");
+        storedPasswordsValue = createStatsCard(statsPanel, "Stored Passwords", "0");
         
         // Create average strength card
-        JPanel strengthCard = createStatsCard("Average Strength", "0%");
+        averageStrengthValue = createStatsCard(statsPanel, "Average Strength", "0%");
         
         // Create weak passwords card
-        JPanel weakPasswordsCard = createStatsCard("Weak Passwords", "0");
+        weakPasswordsValue = createStatsCard(statsPanel, "Weak Passwords", "0");
         
         // Create reused passwords card
-        JPanel reusedPasswordsCard = createStatsCard("Reused Passwords", "0");
-        
-        statsPanel.add(passwordsCard);
-        statsPanel.add(strengthCard);
-        statsPanel.add(weakPasswordsCard);
-        statsPanel.add(reusedPasswordsCard);
+        reusedPasswordsValue = createStatsCard(statsPanel, "Reused Passwords", "0");
         
         panel.add(statsPanel, BorderLayout.NORTH);
         
@@ -1427,10 +1558,17 @@ public class DashboardFrame extends JFrame {
         
         panel.add(actionPanel, BorderLayout.SOUTH);
         
+        // The aggregates are kept up to date on write, so the cards can be filled straight away
+        loadSecurityOverview(false);
+        
         return panel;
     }
     
-    private JPanel createStatsCard(String title, String value) {
+    /**
+     * Add a stats card to the panel
+     * @return The label showing the card's value
+     */
+    private JLabel createStatsCard(JPanel statsPanel, String title, String value) {
         JPanel card = new JPanel(new BorderLayout());
         card.setBorder(BorderFactory.createCompoundBorder(
             BorderFactory.createLineBorder(Color.LIGHT_GRAY), 
@@ -1445,18 +1583,62 @@ public class DashboardFrame extends JFrame {
         
         card.add(titleLabel, BorderLayout.NORTH);
         card.add(valueLabel, BorderLayout.CENTER);
+        statsPanel.add(card);
         
-        return card;
+        return valueLabel;
     }
     
     private void updateSecurityOverview() {
-        // This would query the database and update the security overview
-        // For now, we'll just show a message indicating it's a placeholder
-        JOptionPane.showMessageDialog(this,
-            "This feature would analyze all stored passwords and update the security metrics.\n" +
-            "For now, this is just a placeholder to demonstrate the UI.",
-            "Placeholder",
-            JOptionPane.INFORMATION_MESSAGE);
+        loadSecurityOverview(true);
+    }
+    
+    /**
+     * Fill the security overview cards from the maintained aggregates
+     * @param rescan Whether to decrypt every password first and correct the aggregates
+     */
+    private void loadSecurityOverview(boolean rescan) {
+        new Thread(() -> {
+            PasswordHealthReport report = null;
+            boolean consistent = true;
+            Exception error = null;
+            try {
+                if (rescan) {
+                    consistent = PasswordHealthAggregates.verify(userId);
+                }
+                report = PasswordHealthAggregates.getReport(userId);
+            } catch (Exception ex) {
+                error = ex;
+            }
+            
+            PasswordHealthReport loaded = report;
+            boolean wasConsistent = consistent;
+            Exception loadError = error;
+            SwingUtilities.invokeLater(() -> {
+                if (loadError != null) {
+                    showError("Error analyzing passwords: " + loadError.getMessage());
+                    return;
+                }
+                if (loaded == null) {
+                    // No stats row yet, e.g. a new account or an empty vault
+                    storedPasswordsValue.setText("0");
+                    averageStrengthValue.setText("0%");
+                    weakPasswordsValue.setText("0");
+                    reusedPasswordsValue.setText("0");
+                } else {
+                    storedPasswordsValue.setText(String.valueOf(loaded.getTotalPasswords()));
+                    averageStrengthValue.setText(loaded.getAverageStrength() + "%");
+                    weakPasswordsValue.setText(String.valueOf(loaded.getWeakPasswords()));
+                    reusedPasswordsValue.setText(String.valueOf(loaded.getReusedPasswords()));
+                }
+                if (rescan) {
+                    JOptionPane.showMessageDialog(this,
+                        wasConsistent ? "All passwords analyzed. The security metrics were up to date."
+                                      : "All passwords analyzed. The security metrics have been corrected.",
+                        "Analysis Complete",
+                        JOptionPane.INFORMATION_MESSAGE);
+                }
+            });
+        }, "SecurityOverview").start();
     }
     
     private int analyzePasswordStrength(String password) {
@@ -1804,35 +1986,20 @@ public class DashboardFrame extends JFrame {
     }
     
     private void saveDarkModePreference(boolean darkMode) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            // Check if user_preferences table exists, if not create it
-            try (Statement stmt = conn.createStatement()) {
-                stmt.execute(
-                    "CREATE TABLE IF NOT EXISTS user_preferences (" +
-                    "user_id INTEGER PRIMARY KEY, " +
-                    "dark_mode INTEGER, " +
-                    "FOREIGN KEY (user_id) REFERENCES users(id)" +
-                    ")"
-                );
-            }
-            
+        submitWrite(conn -> {
             // Save the dark mode preference
             String query = "INSERT OR REPLACE INTO user_preferences (user_id, dark_mode) VALUES (?, ?)";
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 pstmt.setInt(2, darkMode ? 1 : 0);
-                pstmt.executeUpdate();
+                return pstmt.executeUpdate();
             }
-        } catch (SQLException ex) {
-            showError("Error saving theme preference: " + ex.getMessage());
-        } catch (Exception ex) {
-            showError("Error applying theme: " + ex.getMessage());
-        }
+        }, "Error saving theme preference", null);
     }
     
     private void loadUserPreferences() {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT dark_mode FROM user_preferences WHERE user_id = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_PREFERENCES_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 
@@ -1892,8 +2059,8 @@ public class DashboardFrame extends JFrame {
         
         // Count available passwords
         int passwordCount = 0;
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT COUNT(*) FROM passwords WHERE user_id = ? AND auto_fill_enabled = 1";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = COUNT_AUTO_FILL_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 ResultSet rs = pstmt.executeQuery();
@@ -1987,8 +2154,8 @@ public class DashboardFrame extends JFrame {
         settingsFormPanel.add(frequencyCombo);
         
         // Load current settings
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT email, report_frequency FROM users WHERE id = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_REPORT_SETTINGS_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 ResultSet rs = pstmt.executeQuery();
@@ -2048,7 +2215,7 @@ public class DashboardFrame extends JFrame {
         reportsPanel.setBorder(BorderFactory.createTitledBorder("Report History"));
         
         // Table for report history
-        String[] columnNames = {"Date", "Score", "Weak Passwords", "Reused Passwords", "Old Passwords"};
+        String[] columnNames = {"Date", "Score", "Weak Passwords", "Reused Passwords", "Old Passwords", "Breached Passwords"};
         DefaultTableModel reportsTableModel = new DefaultTableModel(columnNames, 0) {
             @Override
             public boolean isCellEditable(int row, int column) {
@@ -2060,9 +2227,8 @@ public class DashboardFrame extends JFrame {
         JScrollPane reportsScroll = new JScrollPane(reportsTable);
         
         // Load report history
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT report_date, overall_score, weak_passwords, reused_passwords, old_passwords " +
-                         "FROM password_health_reports WHERE user_id = ? ORDER BY report_date DESC LIMIT 10";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = REPORT_HISTORY_SQL;
             
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
@@ -2077,7 +2243,8 @@ public class DashboardFrame extends JFrame {
                         rs.getInt("overall_score") + "%",
                         rs.getInt("weak_passwords"),
                         rs.getInt("reused_passwords"),
-                        rs.getInt("old_passwords")
+                        rs.getInt("old_passwords"),
+                        rs.getObject("breached_passwords") != null ? rs.getInt("breached_passwords") : "-"
                     });
                 }
             }
@@ -2131,9 +2298,8 @@ public class DashboardFrame extends JFrame {
                             JOptionPane.INFORMATION_MESSAGE);
                         
                         // Reload report history
-                        try (Connection conn = DatabaseUtil.getConnection()) {
-                            String query = "SELECT report_date, overall_score, weak_passwords, reused_passwords, old_passwords " +
-                                         "FROM password_health_reports WHERE user_id = ? ORDER BY report_date DESC LIMIT 10";
+                        try (Connection conn = DatabaseUtil.getReadConnection()) {
+                            String query = REPORT_HISTORY_SQL;
                             
                             reportsTableModel.setRowCount(0);
                             
@@ -2150,7 +2316,8 @@ public class DashboardFrame extends JFrame {
                                         rs.getInt("overall_score") + "%",
                                         rs.getInt("weak_passwords"),
                                         rs.getInt("reused_passwords"),
-                                        rs.getInt("old_passwords")
+                                        rs.getInt("old_passwords"),
+                                        rs.getObject("breached_passwords") != null ? rs.getInt("breached_passwords") : "-"
                                     });
                                 }
                             }
@@ -2175,10 +2342,8 @@ public class DashboardFrame extends JFrame {
             
             String reportDate = (String) reportsTableModel.getValueAt(selectedRow, 0);
             
-            try (Connection conn = DatabaseUtil.getConnection()) {
-                String query = "SELECT report_data FROM password_health_reports " +
-                             "WHERE user_id = ? AND strftime('%Y-%m-%d %H:%M', report_date) = ? " +
-                             "LIMIT 1";
+            try (Connection conn = DatabaseUtil.getReadConnection()) {
+                String query = REPORT_DETAILS_SQL;
                 
                 try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                     pstmt.setInt(1, userId);
@@ -2242,12 +2407,12 @@ public class DashboardFrame extends JFrame {
         String website = (String) passwordTableModel.getValueAt(selectedRow, 0);
         String username = (String) passwordTableModel.getValueAt(selectedRow, 1);
         
-        try (Connection conn = DatabaseUtil.getConnection()) {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
             // Get current URL pattern
             String currentPattern = null;
             int passwordId = -1;
             
-            String query = "SELECT id, url_pattern FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+            String query = LOAD_URL_PATTERN_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 pstmt.setString(2, website);
@@ -2293,8 +2458,8 @@ public class DashboardFrame extends JFrame {
     }
     
     private void updateAutoFillSetting(String website, String username, boolean enabled) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT id FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = FIND_PASSWORD_ID_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 pstmt.setString(2, website);
@@ -2832,6 +2997,10 @@ public class DashboardFrame extends JFrame {
     public void dispose() {
         // Stop the browser extension server when closing the application
         BrowserExtensionUtil.stopExtensionServer();
+        // Decrypted note text and derived keys must not outlive the session
+        NoteSearchIndex.clear();
+        CryptoContext.clear();
+        TotpVerifier.clear();
         super.dispose();
     }
 
@@ -3357,7 +3526,7 @@ public class DashboardFrame extends JFrame {
     }
     
     /**
-     * Searches notes by title, category, or tags
+     * Searches notes by title, category, tags or body text
      */
     private void searchNotes(String searchText) {
         try {
@@ -4,10 +4,20 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.sql.*;
+import java.util.concurrent.ExecutionException;
 import com.datamanager.util.DatabaseUtil;
+import com.datamanager.util.DatabaseWriter;
+import com.datamanager.util.KdfCalibration;
 import com.datamanager.util.SecurityUtil;
 
 public class LoginFrame extends JFrame {
+    private static final int USER_NOT_FOUND = -1;
+    private static final int INVALID_PASSWORD = -2;
+    public static final String LOGIN_SQL = "SELECT id, password_hash, salt FROM users WHERE username = ?";
+    public static final String REHASH_PASSWORD_SQL =
+        "UPDATE users SET password_hash = ?, salt = ? WHERE id = ? AND password_hash = ?";
+    public static final String FIND_USERNAME_SQL = "SELECT id FROM users WHERE username = ?";
+
     private JTextField usernameField;
     private JPasswordField passwordField;
     private JButton loginButton;
@@ -63,6 +73,11 @@ public class LoginFrame extends JFrame {
 
         add(mainPanel);
         setVisible(true);
+
+        // Measure the hashing cost on first run while the user is still typing
+        Thread calibration = new Thread(KdfCalibration::getIterations, "KdfCalibration");
+        calibration.setDaemon(true);
+        calibration.start();
     }
 
     private void handleLogin() {
@@ -73,30 +88,82 @@ public class LoginFrame extends JFrame {
             return;
         }
 
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT id, password_hash, salt FROM users WHERE username = ?";
+        // Hashing is deliberately slow, so keep it off the EDT
+        setBusy(true);
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() throws SQLException {
+                return authenticate(username, password);
+            }
+
+            @Override
+            protected void done() {
+                setBusy(false);
+                try {
+                    int result = get();
+                    if (result == USER_NOT_FOUND) {
+                        showError("User not found!");
+                    } else if (result == INVALID_PASSWORD) {
+                        showError("Invalid username or password!");
+                    } else {
+                        new DashboardFrame(result);
+                        dispose();
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    showError("Database error: " + cause.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Check the credentials and upgrade the stored hash if it is weaker than the current cost
+     * @return The user ID, or USER_NOT_FOUND / INVALID_PASSWORD
+     */
+    private int authenticate(String username, String password) throws SQLException {
+        int userId;
+        String storedHash;
+        String salt;
+
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOGIN_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setString(1, username);
                 ResultSet rs = pstmt.executeQuery();
 
-                if (rs.next()) {
-                    String storedHash = rs.getString("password_hash");
-                    String salt = rs.getString("salt");
-                    int userId = rs.getInt("id");
+                if (!rs.next()) {
+                    return USER_NOT_FOUND;
+                }
+                userId = rs.getInt("id");
+                storedHash = rs.getString("password_hash");
+                salt = rs.getString("salt");
+            }
+        }
 
-                    if (SecurityUtil.verifyPassword(password, salt, storedHash)) {
-                        new DashboardFrame(userId);
-                        dispose();
-                    } else {
-                        showError("Invalid username or password!");
+        if (!SecurityUtil.verifyPassword(password, salt, storedHash)) {
+            return INVALID_PASSWORD;
+        }
+
+        if (SecurityUtil.needsRehash(storedHash)) {
+            String newSalt = SecurityUtil.generateSalt();
+            String newHash = SecurityUtil.hashPassword(password, newSalt);
+            if (newHash != null) {
+                DatabaseWriter.execute(conn -> {
+                    // Only replace the hash we verified against
+                    String update = REHASH_PASSWORD_SQL;
+                    try (PreparedStatement pstmt = conn.prepareStatement(update)) {
+                        pstmt.setString(1, newHash);
+                        pstmt.setString(2, newSalt);
+                        pstmt.setInt(3, userId);
+                        pstmt.setString(4, storedHash);
+                        return pstmt.executeUpdate();
                     }
-                } else {
-                    showError("User not found!");
-                }
+                });
             }
-        } catch (SQLException ex) {
-            showError("Database error: " + ex.getMessage());
         }
+
+        return userId;
     }
 
     private void handleRegistration() {
@@ -107,36 +174,68 @@ public class LoginFrame extends JFrame {
             return;
         }
 
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            // Check if username already exists
-            String checkQuery = "SELECT id FROM users WHERE username = ?";
+        setBusy(true);
+        new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() throws SQLException {
+                return register(username, password);
+            }
+
+            @Override
+            protected void done() {
+                setBusy(false);
+                try {
+                    if (!get()) {
+                        showError("Username already exists!");
+                        return;
+                    }
+
+                    JOptionPane.showMessageDialog(LoginFrame.this,
+                        "Registration successful! Please login.",
+                        "Success",
+                        JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    showError("Database error: " + cause.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Create a new user
+     * @return false if the username is taken
+     */
+    private boolean register(String username, String password) throws SQLException {
+        // Create new user
+        String salt = SecurityUtil.generateSalt();
+        String passwordHash = SecurityUtil.hashPassword(password, salt);
+
+        // Check and insert in the same write so two registrations can't race
+        return DatabaseWriter.execute(conn -> {
+            String checkQuery = FIND_USERNAME_SQL;
             try (PreparedStatement checkStmt = conn.prepareStatement(checkQuery)) {
                 checkStmt.setString(1, username);
                 if (checkStmt.executeQuery().next()) {
-                    showError("Username already exists!");
-                    return;
+                    return false;
                 }
             }
 
-            // Create new user
-            String salt = SecurityUtil.generateSalt();
-            String passwordHash = SecurityUtil.hashPassword(password, salt);
-
             String insertQuery = "INSERT INTO users (username, password_hash, salt) VALUES (?, ?, ?)";
             try (PreparedStatement pstmt = conn.prepareStatement(insertQuery)) {
                 pstmt.setString(1, username);
                 pstmt.setString(2, passwordHash);
                 pstmt.setString(3, salt);
                 pstmt.executeUpdate();
-                
-                JOptionPane.showMessageDialog(this,
-                    "Registration successful! Please login.",
-                    "Success",
-                    JOptionPane.INFORMATION_MESSAGE);
+                return true;
             }
-        } catch (SQLException ex) {
-            showError("Database error: " + ex.getMessage());
-        }
+        });
+    }
+
+    private void setBusy(boolean busy) {
+        loginButton.setEnabled(!busy);
+        registerButton.setEnabled(!busy);
+        setCursor(busy ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : Cursor.getDefaultCursor());
     }
 
     private boolean validateInput(String username, String password) {
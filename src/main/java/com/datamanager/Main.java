@@ -6,8 +6,11 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 import com.datamanager.util.DatabaseUtil;
+import com.datamanager.util.MailOutbox;
+import com.datamanager.util.PasswordHealthAggregates;
 import com.datamanager.util.PasswordHealthUtil;
 import com.datamanager.util.BrowserExtensionUtil;
+import com.datamanager.util.SmtpMailTransport;
 
 public class Main {
     private static Timer reportScheduler;
@@ -18,11 +21,17 @@ public class Main {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
             
             // Initialize database
-            DatabaseUtil.getConnection();
+            DatabaseUtil.initialize();
+            
+            // Score passwords stored before the health metrics existed
+            PasswordHealthAggregates.startBackfill();
             
             // Start the browser extension server
             BrowserExtensionUtil.startExtensionServer();
             
+            // Start delivering queued mail
+            MailOutbox.start(SmtpMailTransport.fromSettings());
+            
             // Schedule password health reports (check daily at 1 AM)
             schedulePasswordHealthReports();
             
@@ -75,6 +84,7 @@ public class Main {
             reportScheduler.cancel();
         }
         
+        MailOutbox.stop();
         BrowserExtensionUtil.stopExtensionServer();
         DatabaseUtil.closeConnection();
     }
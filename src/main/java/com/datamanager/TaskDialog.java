@@ -491,15 +491,17 @@ public class TaskDialog extends JDialog {
             String color = "#" + Integer.toHexString((int)(Math.random() * 0xFFFFFF));
             TaskCategory category = new TaskCategory(0, userId, name.trim(), color);
             
-            try {
-                category = taskDAO.addCategory(category);
-                categoryCombo.addItem(category);
-                categoryCombo.setSelectedItem(category);
-            } catch (SQLException e) {
-                JOptionPane.showMessageDialog(this, 
-                    "Error creating category: " + e.getMessage(), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            taskDAO.addCategory(category).whenComplete((created, error) ->
+                SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        JOptionPane.showMessageDialog(this,
+                            "Error creating category: " + error.getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    categoryCombo.addItem(created);
+                    categoryCombo.setSelectedItem(created);
+                }));
         }
     }
     
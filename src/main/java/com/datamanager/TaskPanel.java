@@ -20,6 +20,7 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class TaskPanel extends JPanel {
     private final int userId;
@@ -300,16 +301,8 @@ public class TaskPanel extends JPanel {
         
         if (dialog.isConfirmed()) {
             Task newTask = dialog.getTask();
-            try {
-                taskDAO.addTask(newTask);
-                refreshTasks();
-                JOptionPane.showMessageDialog(parentFrame, 
-                    "Task added successfully!", 
-                    "Success", JOptionPane.INFORMATION_MESSAGE);
-            } catch (SQLException e) {
-                showError("Error adding task: " + e.getMessage());
-            }
-        }
+            onWriteComplete(taskDAO.addTask(newTask), "Error adding task", "Task added successfully!");
+}
     }
     
     private void editTask(int selectedRow) {
@@ -358,15 +351,7 @@ public class TaskPanel extends JPanel {
         dialog.setVisible(true);
         
         if (dialog.isConfirmed()) {
-            try {
-                taskDAO.updateTask(selectedTask);
-                refreshTasks();
-                JOptionPane.showMessageDialog(parentFrame, 
-                    "Task updated successfully!", 
-                    "Success", JOptionPane.INFORMATION_MESSAGE);
-            } catch (SQLException e) {
-                showError("Error updating task: " + e.getMessage());
-            }
+            onWriteComplete(taskDAO.updateTask(selectedTask), "Error updating task", "Task updated successfully!");
         }
     }
     
@@ -421,15 +406,8 @@ public class TaskPanel extends JPanel {
             JOptionPane.WARNING_MESSAGE);
             
         if (confirm == JOptionPane.YES_OPTION) {
-            try {
-                taskDAO.deleteTask(selectedTask.getId(), userId);
-                refreshTasks();
-                JOptionPane.showMessageDialog(parentFrame, 
-                    "Task deleted successfully!", 
-                    "Success", JOptionPane.INFORMATION_MESSAGE);
-            } catch (SQLException e) {
-                showError("Error deleting task: " + e.getMessage());
-            }
+            onWriteComplete(taskDAO.deleteTask(selectedTask.getId(), userId), "Error deleting task",
+                            "Task deleted successfully!");
         }
     }
     
@@ -479,15 +457,7 @@ public class TaskPanel extends JPanel {
         selectedTask.setProgress(100);
         selectedTask.setCompletionDate(new Date());
         
-        try {
-            taskDAO.updateTask(selectedTask);
-            refreshTasks();
-            JOptionPane.showMessageDialog(parentFrame, 
-                "Task marked as complete!", 
-                "Success", JOptionPane.INFORMATION_MESSAGE);
-        } catch (SQLException e) {
-            showError("Error updating task: " + e.getMessage());
-        }
+        onWriteComplete(taskDAO.updateTask(selectedTask), "Error updating task", "Task marked as complete!");
     }
     
     private void exportTasks() {
@@ -738,6 +708,23 @@ public class TaskPanel extends JPanel {
                cal1.get(Calendar.DAY_OF_MONTH) == cal2.get(Calendar.DAY_OF_MONTH);
     }
     
+    /**
+     * Refresh the list and confirm once a queued write has been committed, or report its error
+     */
+    private void onWriteComplete(CompletableFuture<?> write, String errorMessage, String successMessage) {
+        write.whenComplete((result, error) ->
+            SwingUtilities.invokeLater(() -> {
+                if (error != null) {
+                    showError(errorMessage + ": " + error.getMessage());
+                    return;
+                }
+                refreshTasks();
+                JOptionPane.showMessageDialog(parentFrame,
+                    successMessage,
+                    "Success", JOptionPane.INFORMATION_MESSAGE);
+            }));
+    }
+    
     private void showError(String message) {
         JOptionPane.showMessageDialog(parentFrame,
             message,
@@ -1,11 +1,25 @@
 package com.datamanager;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import javax.swing.JOptionPane;
+import com.datamanager.util.BreachCorpus;
 import com.datamanager.util.DatabaseUtil;
 import com.datamanager.util.BrowserExtensionUtil;
 import com.datamanager.util.PasswordHealthUtil;
+import com.datamanager.util.QueryPlanChecker;
+import com.datamanager.util.SecurityUtil;
+import com.datamanager.util.TotpVerifier;
 
 /**
  * Test class for new features in the Personal Data Manager.
@@ -137,7 +151,7 @@ public class TestFeatures {
     public static void setupSampleUrlPatterns(int userId) {
         try {
             System.out.println("Setting up sample URL patterns for user ID: " + userId);
-            Connection conn = DatabaseUtil.getConnection();
+            DatabaseUtil.initialize();
             
             // You would add code here to set up URL patterns for existing passwords
             // This is just a placeholder
@@ -158,11 +172,262 @@ public class TestFeatures {
         }
     }
     
+    /**
+     * Test method for the query plans of the per-user lookups.
+     * Reports every registered query that falls back to a full table scan.
+     */
+    public static void testQueryPlans() {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            System.out.println("Checking query plans for " + QueryPlanChecker.getQueryCount() + " queries");
+            
+            List<String> problems = QueryPlanChecker.findFullScans(conn);
+            
+            if (problems.isEmpty()) {
+                System.out.println("All query plans use an index.");
+                JOptionPane.showMessageDialog(null, 
+                    "All " + QueryPlanChecker.getQueryCount() + " query plans use an index.",
+                    "Query Plans OK", 
+                    JOptionPane.INFORMATION_MESSAGE);
+            } else {
+                for (String problem : problems) {
+                    System.err.println("Full scan: " + problem);
+                }
+                JOptionPane.showMessageDialog(null, 
+                    problems.size() + " queries scan a full table:\n" + String.join("\n", problems),
+                    "Query Plan Regression", 
+                    JOptionPane.ERROR_MESSAGE);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error checking query plans: " + e.getMessage());
+            e.printStackTrace();
+            
+            JOptionPane.showMessageDialog(null, 
+                "Error: " + e.getMessage(),
+                "Test Error", 
+                JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    /**
+     * Benchmark for SecurityUtil.decryptAll.
+     * Decrypts a synthetic vault sequentially and then on pools of increasing size.
+     * @param valueCount The number of encrypted values to decrypt
+     */
+    public static void benchmarkDecryptAll(int valueCount) {
+        try {
+            System.out.println("Benchmarking decryptAll with " + valueCount + " values");
+            
+            List<String> encryptedValues = new ArrayList<>(valueCount);
+            for (int i = 0; i < valueCount; i++) {
+                encryptedValues.add(SecurityUtil.encryptData("benchmark-password-" + i, "your-encryption-key"));
+            }
+            
+            StringBuilder results = new StringBuilder();
+            long start = System.nanoTime();
+            for (String encryptedValue : encryptedValues) {
+                SecurityUtil.decryptData(encryptedValue, "your-encryption-key");
+            }
+            long sequentialNanos = System.nanoTime() - start;
+            results.append(String.format("Sequential decryptData: %d ms%n", sequentialNanos / 1_000_000));
+            
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    long[] checksum = new long[1];
+                    // Warm up once, then measure
+                    SecurityUtil.decryptAll(encryptedValues, "your-encryption-key", pool, (index, plaintext) -> { });
+                    start = System.nanoTime();
+                    SecurityUtil.decryptAll(encryptedValues, "your-encryption-key", pool,
+                        (index, plaintext) -> checksum[0] += plaintext.length);
+                    long nanos = System.nanoTime() - start;
+                    results.append(String.format("decryptAll, %d thread(s): %d ms (%.1fx)%n",
+                        threads, nanos / 1_000_000, (double) sequentialNanos / nanos));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            
+            System.out.print(results);
+            JOptionPane.showMessageDialog(null, 
+                results.toString(),
+                "Decryption Benchmark", 
+                JOptionPane.INFORMATION_MESSAGE);
+        } catch (Exception e) {
+            System.err.println("Error running decryption benchmark: " + e.getMessage());
+            e.printStackTrace();
+            
+            JOptionPane.showMessageDialog(null, 
+                "Error: " + e.getMessage(),
+                "Test Error", 
+                JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    /**
+     * Check that verifying a TOTP code allocates nothing once the verifier is warmed up
+     * @param verifications The number of verifications to measure
+     */
+    public static void benchmarkTotpVerification(int verifications) {
+        try {
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            
+            String secret = SecurityUtil.generateTotpSecret();
+            TotpVerifier verifier = new TotpVerifier(secret, TotpVerifier.DEFAULT_WINDOW, TotpVerifier.NO_MATCH);
+            long counter = TotpVerifier.currentCounter();
+            String validCode = SecurityUtil.generateTotpCode(secret);
+            String wrongCode = validCode.equals("000000") ? "000001" : "000000";
+            
+            // Warm up so the JIT has compiled the verification path
+            long matches = 0;
+            for (int i = 0; i < 200000; i++) {
+                matches += verifier.match(validCode, counter) == counter ? 1 : 0;
+                verifier.match(wrongCode, counter);
+            }
+            
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < verifications; i++) {
+                matches += verifier.match(validCode, counter) == counter ? 1 : 0;
+                verifier.match(wrongCode, counter);
+            }
+            long nanos = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            
+            // A replayed code must be rejected
+            boolean firstAccepted = verifier.accept(validCode, counter) == counter;
+            boolean replayRejected = verifier.accept(validCode, counter) == TotpVerifier.NO_MATCH;
+            
+            String results = String.format(
+                "Verifications: %d (valid and invalid code each)%n" +
+                "Matches: %d%n" +
+                "Time per verification: %d ns%n" +
+                "Bytes allocated: %d (%.3f per verification)%n" +
+                "First use accepted: %b, replay rejected: %b%n",
+                verifications, matches, nanos / (2L * verifications),
+                allocated, (double) allocated / (2L * verifications),
+                firstAccepted, replayRejected);
+            
+            System.out.print(results);
+            JOptionPane.showMessageDialog(null, 
+                results,
+                "TOTP Verification Benchmark", 
+                allocated == 0 && firstAccepted && replayRejected
+                    ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+        } catch (Exception e) {
+            System.err.println("Error running TOTP benchmark: " + e.getMessage());
+            e.printStackTrace();
+            
+            JOptionPane.showMessageDialog(null, 
+                "Error: " + e.getMessage(),
+                "Test Error", 
+                JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    /**
+     * Build a breach corpus from generated hashes in a temporary directory and time lookups in it
+     * @param hashCount The number of hashes in the corpus
+     * @param lookups The number of lookups to time, half of them hits
+     */
+    public static void benchmarkBreachCorpus(int hashCount, int lookups) {
+        File workDir = null;
+        try {
+            workDir = Files.createTempDirectory("breach-corpus").toFile();
+            
+            // The corpus is distributed sorted by hash
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            TreeMap<String, Integer> hashes = new TreeMap<>();
+            for (int i = 0; i < hashCount; i++) {
+                byte[] hash = sha1.digest(("breached-" + i).getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (byte b : hash) {
+                    hex.append(String.format("%02X", b));
+                }
+                hashes.put(hex.toString(), i % 1000 + 1);
+            }
+            File hashList = new File(workDir, "hashes.txt");
+            try (PrintWriter writer = new PrintWriter(hashList, "US-ASCII")) {
+                for (Map.Entry<String, Integer> entry : hashes.entrySet()) {
+                    writer.println(entry.getKey() + ":" + entry.getValue());
+                }
+            }
+            
+            File corpusDir = new File(workDir, "corpus");
+            long start = System.nanoTime();
+            long imported = BreachCorpus.importHashes(hashList, corpusDir);
+            long importNanos = System.nanoTime() - start;
+            
+            BreachCorpus corpus = new BreachCorpus(corpusDir);
+            int shards = corpus.refresh();
+            
+            String[] passwords = new String[lookups];
+            for (int i = 0; i < lookups; i++) {
+                passwords[i] = (i % 2 == 0 ? "breached-" : "unknown-") + (i * 7919L % hashCount);
+            }
+            for (String password : passwords) {
+                corpus.getBreachCount(password);
+            }
+            
+            int hits = 0;
+            int wrong = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int count = corpus.getBreachCount(passwords[i]);
+                long n = i * 7919L % hashCount;
+                hits += count > 0 ? 1 : 0;
+                wrong += count != (i % 2 == 0 ? (int) (n % 1000) + 1 : 0) ? 1 : 0;
+            }
+            long lookupNanos = System.nanoTime() - start;
+            
+            String results = String.format(
+                "Hashes imported: %d into %d shards in %d ms%n" +
+                "Lookups: %d (%d hits)%n" +
+                "Time per lookup: %.2f us%n" +
+                "Wrong counts: %d%n",
+                imported, shards, importNanos / 1_000_000, lookups, hits,
+                lookupNanos / 1000.0 / lookups, wrong);
+            
+            System.out.print(results);
+            JOptionPane.showMessageDialog(null, 
+                results,
+                "Breach Corpus Benchmark", 
+                wrong == 0 ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+        } catch (Exception e) {
+            System.err.println("Error running breach corpus benchmark: " + e.getMessage());
+            e.printStackTrace();
+            
+            JOptionPane.showMessageDialog(null, 
+                "Error: " + e.getMessage(),
+                "Test Error", 
+                JOptionPane.ERROR_MESSAGE);
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+    
+    private static void deleteRecursively(File file) {
+        if (file == null) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Could not delete " + file);
+        }
+    }
+    
     public static void main(String[] args) {
         // Quick test from command line
         try {
             // Initialize database connection
-            DatabaseUtil.getConnection();
+            DatabaseUtil.initialize();
             
             // Create GUI for testing
             javax.swing.JFrame frame = new javax.swing.JFrame("Feature Test");
@@ -226,12 +491,28 @@ public class TestFeatures {
                 }
             });
             
+            javax.swing.JButton queryPlansButton = new javax.swing.JButton("Check Query Plans");
+            queryPlansButton.addActionListener(e -> testQueryPlans());
+            
+            javax.swing.JButton decryptBenchmarkButton = new javax.swing.JButton("Benchmark Bulk Decryption");
+            decryptBenchmarkButton.addActionListener(e -> benchmarkDecryptAll(100000));
+            
+            javax.swing.JButton totpBenchmarkButton = new javax.swing.JButton("Benchmark TOTP Verification");
+            totpBenchmarkButton.addActionListener(e -> benchmarkTotpVerification(1000000));
+            
+            javax.swing.JButton breachCorpusButton = new javax.swing.JButton("Benchmark Breach Corpus");
+            breachCorpusButton.addActionListener(e -> benchmarkBreachCorpus(1000000, 1000000));
+            
             panel.add(userIdLabel);
             panel.add(userIdField);
             panel.add(healthReportButton);
             panel.add(browserExtensionButton);
             panel.add(updateSettingsButton);
             panel.add(setupPatternsButton);
+            panel.add(queryPlansButton);
+            panel.add(decryptBenchmarkButton);
+            panel.add(totpBenchmarkButton);
+            panel.add(breachCorpusButton);
             
             frame.add(panel);
             frame.setVisible(true);
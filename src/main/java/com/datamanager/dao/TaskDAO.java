@@ -3,21 +3,50 @@ package com.datamanager.dao;
 import com.datamanager.model.Task;
 import com.datamanager.model.TaskCategory;
 import com.datamanager.util.DatabaseUtil;
+import com.datamanager.util.DatabaseWriter;
+import com.datamanager.util.FullTextSearch;
+import com.datamanager.util.SearchPage;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class TaskDAO {
     
+    public static final String GET_CATEGORIES_SQL =
+        "SELECT id, user_id, name, color FROM task_categories WHERE user_id = ?";
+    public static final String GET_TASKS_SQL =
+        "SELECT t.*, c.name as category_name FROM tasks t " +
+        "LEFT JOIN task_categories c ON t.category_id = c.id " +
+        "WHERE t.user_id = ? ORDER BY t.due_date ASC";
+    public static final String FIND_TAG_SQL = "SELECT id FROM task_tags WHERE user_id = ? AND name = ?";
+    public static final String UPDATE_TASK_SQL =
+        "UPDATE tasks SET title = ?, description = ?, category_id = ?, priority = ?, " +
+        "status = ?, due_date = ?, completion_date = ?, is_recurring = ?, " +
+        "recurrence_type = ?, recurrence_value = ?, estimated_minutes = ?, " +
+        "actual_minutes = ?, progress = ? WHERE id = ? AND user_id = ?";
+    public static final String DELETE_TAG_LINKS_SQL = "DELETE FROM task_to_tag WHERE task_id = ?";
+    public static final String DELETE_REMINDERS_SQL = "DELETE FROM task_reminders WHERE task_id = ?";
+    public static final String DELETE_TASK_SQL = "DELETE FROM tasks WHERE id = ? AND user_id = ?";
+    public static final String GET_SUBTASK_IDS_SQL = "SELECT id FROM tasks WHERE parent_task_id = ?";
+    public static final String SEARCH_TASKS_SQL =
+        "SELECT t.*, c.name as category_name FROM tasks_fts f " +
+        "JOIN tasks t ON t.id = f.rowid " +
+        "LEFT JOIN task_categories c ON t.category_id = c.id " +
+        "WHERE tasks_fts MATCH ? AND t.user_id = ? " +
+        "ORDER BY f.rank LIMIT ? OFFSET ?";
+    
     public List<TaskCategory> getCategories(int userId) throws SQLException {
         List<TaskCategory> categories = new ArrayList<>();
-        String query = "SELECT id, user_id, name, color FROM task_categories WHERE user_id = ?";
+        String query = GET_CATEGORIES_SQL;
         
-        try (Connection conn = DatabaseUtil.getConnection();
+        try (Connection conn = DatabaseUtil.getReadConnection();
              PreparedStatement stmt = conn.prepareStatement(query)) {
             
             stmt.setInt(1, userId);
@@ -37,42 +66,44 @@ public class TaskDAO {
         return categories;
     }
     
-    public TaskCategory addCategory(TaskCategory category) throws SQLException {
+    /**
+     * Queue a new category
+     * @return A future with the category, its ID set, once it has been committed
+     */
+    public CompletableFuture<TaskCategory> addCategory(TaskCategory category) {
         String query = "INSERT INTO task_categories (user_id, name, color) VALUES (?, ?, ?)";
         
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-            
-            stmt.setInt(1, category.getUserId());
-            stmt.setString(2, category.getName());
-            stmt.setString(3, category.getColor());
-            
-            int affectedRows = stmt.executeUpdate();
-            if (affectedRows == 0) {
-                throw new SQLException("Creating category failed, no rows affected.");
-            }
-            
-            try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    category.setId(generatedKeys.getInt(1));
-                } else {
-                    throw new SQLException("Creating category failed, no ID obtained.");
+        return DatabaseWriter.submit(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+                
+                stmt.setInt(1, category.getUserId());
+                stmt.setString(2, category.getName());
+                stmt.setString(3, category.getColor());
+                
+                int affectedRows = stmt.executeUpdate();
+                if (affectedRows == 0) {
+                    throw new SQLException("Creating category failed, no rows affected.");
+                }
+                
+                try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        category.setId(generatedKeys.getInt(1));
+                    } else {
+                        throw new SQLException("Creating category failed, no ID obtained.");
+                    }
                 }
             }
-        }
-        
-        return category;
+            return category;
+        });
     }
     
     public List<Task> getTasks(int userId) throws SQLException {
         Map<Integer, Task> tasksMap = new HashMap<>();
         
         // Query to get all tasks with category names
-        String query = "SELECT t.*, c.name as category_name FROM tasks t " +
-                       "LEFT JOIN task_categories c ON t.category_id = c.id " +
-                       "WHERE t.user_id = ? ORDER BY t.due_date ASC";
+        String query = GET_TASKS_SQL;
         
-        try (Connection conn = DatabaseUtil.getConnection();
+        try (Connection conn = DatabaseUtil.getReadConnection();
              PreparedStatement stmt = conn.prepareStatement(query)) {
             
             stmt.setInt(1, userId);
@@ -108,16 +139,29 @@ public class TaskDAO {
         return rootTasks;
     }
     
+    /**
+     * Build the tag lookup for a set of tasks
+     * @param taskCount The number of task ids bound to the IN list
+     */
+    public static String loadTaskTagsSql(int taskCount) {
+        String placeholders = String.join(", ", Collections.nCopies(taskCount, "?"));
+        return "SELECT tt.task_id, tg.name FROM task_to_tag tt " +
+               "JOIN task_tags tg ON tt.tag_id = tg.id " +
+               "WHERE tt.task_id IN (" + placeholders + ")";
+    }
+    
     private void loadTaskTags(Map<Integer, Task> tasksMap) throws SQLException {
-        String query = "SELECT tt.task_id, tg.name FROM task_to_tag tt " +
-                      "JOIN task_tags tg ON tt.tag_id = tg.id " +
-                      "WHERE tt.task_id IN (" + String.join(",", tasksMap.keySet().stream().map(String::valueOf).toArray(String[]::new)) + ")";
-        
         if (tasksMap.isEmpty()) return;
         
-        try (Connection conn = DatabaseUtil.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(query)) {
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(loadTaskTagsSql(tasksMap.size()))) {
+            
+            int paramIndex = 1;
+            for (int taskId : tasksMap.keySet()) {
+                stmt.setInt(paramIndex++, taskId);
+            }
+            
+            ResultSet rs = stmt.executeQuery();
             
             while (rs.next()) {
                 int taskId = rs.getInt("task_id");
@@ -194,73 +238,80 @@ public class TaskDAO {
         return task;
     }
     
-    public Task addTask(Task task) throws SQLException {
+    /**
+     * Queue a new task together with its tags and subtasks
+     * @return A future with the task, its ID set, once it has been committed
+     */
+    public CompletableFuture<Task> addTask(Task task) {
+        return DatabaseWriter.submit(conn -> insertTask(conn, task));
+    }
+    
+    private Task insertTask(Connection conn, Task task) throws SQLException {
         String query = "INSERT INTO tasks (user_id, title, description, category_id, priority, " +
                       "status, due_date, creation_date, is_recurring, recurrence_type, recurrence_value, " +
                       "estimated_minutes, progress, parent_task_id) " +
                       "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-            
+        try (PreparedStatement stmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+                
             stmt.setInt(1, task.getUserId());
             stmt.setString(2, task.getTitle());
             stmt.setString(3, task.getDescription());
-            
+                
             if (task.getCategoryId() != null) {
                 stmt.setInt(4, task.getCategoryId());
             } else {
                 stmt.setNull(4, java.sql.Types.INTEGER);
             }
-            
+                
             stmt.setInt(5, task.getPriority());
             stmt.setInt(6, task.getStatus());
-            
+                
             if (task.getDueDate() != null) {
                 stmt.setTimestamp(7, new Timestamp(task.getDueDate().getTime()));
             } else {
                 stmt.setNull(7, java.sql.Types.TIMESTAMP);
             }
-            
+                
             if (task.getCreationDate() != null) {
                 stmt.setTimestamp(8, new Timestamp(task.getCreationDate().getTime()));
             } else {
                 stmt.setTimestamp(8, new Timestamp(new Date().getTime()));
             }
-            
+                
             stmt.setBoolean(9, task.isRecurring());
-            
+                
             if (task.getRecurrenceType() != null) {
                 stmt.setInt(10, task.getRecurrenceType());
             } else {
                 stmt.setNull(10, java.sql.Types.INTEGER);
             }
-            
+                
             if (task.getRecurrenceValue() != null) {
                 stmt.setInt(11, task.getRecurrenceValue());
             } else {
                 stmt.setNull(11, java.sql.Types.INTEGER);
             }
-            
+                
             if (task.getEstimatedMinutes() != null) {
                 stmt.setInt(12, task.getEstimatedMinutes());
             } else {
                 stmt.setNull(12, java.sql.Types.INTEGER);
             }
-            
+                
             stmt.setInt(13, task.getProgress());
-            
+                
             if (task.getParentTaskId() != null) {
                 stmt.setInt(14, task.getParentTaskId());
             } else {
                 stmt.setNull(14, java.sql.Types.INTEGER);
             }
-            
+                
             int affectedRows = stmt.executeUpdate();
             if (affectedRows == 0) {
                 throw new SQLException("Creating task failed, no rows affected.");
             }
-            
+                
             try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
                 if (generatedKeys.next()) {
                     task.setId(generatedKeys.getInt(1));
@@ -268,28 +319,27 @@ public class TaskDAO {
                     throw new SQLException("Creating task failed, no ID obtained.");
                 }
             }
-            
+                
             // Add tags if present
             if (task.getTags() != null && !task.getTags().isEmpty()) {
                 saveTaskTags(conn, task);
             }
-            
+                
             // Add subtasks if present
             if (task.getSubtasks() != null && !task.getSubtasks().isEmpty()) {
                 for (Task subtask : task.getSubtasks()) {
                     subtask.setParentTaskId(task.getId());
-                    addTask(subtask);
+                    insertTask(conn, subtask);
                 }
             }
         }
-        
         return task;
     }
     
     private void saveTaskTags(Connection conn, Task task) throws SQLException {
         // First, ensure all tags exist in the database
         String insertTagQuery = "INSERT OR IGNORE INTO task_tags (user_id, name) VALUES (?, ?)";
-        String getTagIdQuery = "SELECT id FROM task_tags WHERE user_id = ? AND name = ?";
+        String getTagIdQuery = FIND_TAG_SQL;
         String linkTagQuery = "INSERT INTO task_to_tag (task_id, tag_id) VALUES (?, ?)";
         
         try (PreparedStatement insertTagStmt = conn.prepareStatement(insertTagQuery);
@@ -319,79 +369,82 @@ public class TaskDAO {
         }
     }
     
-    public void updateTask(Task task) throws SQLException {
-        String query = "UPDATE tasks SET title = ?, description = ?, category_id = ?, priority = ?, " +
-                      "status = ?, due_date = ?, completion_date = ?, is_recurring = ?, " +
-                      "recurrence_type = ?, recurrence_value = ?, estimated_minutes = ?, " +
-                      "actual_minutes = ?, progress = ? WHERE id = ? AND user_id = ?";
-        
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-            
-            stmt.setString(1, task.getTitle());
-            stmt.setString(2, task.getDescription());
-            
-            if (task.getCategoryId() != null) {
-                stmt.setInt(3, task.getCategoryId());
-            } else {
-                stmt.setNull(3, java.sql.Types.INTEGER);
-            }
-            
-            stmt.setInt(4, task.getPriority());
-            stmt.setInt(5, task.getStatus());
-            
-            if (task.getDueDate() != null) {
-                stmt.setTimestamp(6, new Timestamp(task.getDueDate().getTime()));
-            } else {
-                stmt.setNull(6, java.sql.Types.TIMESTAMP);
-            }
-            
-            if (task.getCompletionDate() != null) {
-                stmt.setTimestamp(7, new Timestamp(task.getCompletionDate().getTime()));
-            } else {
-                stmt.setNull(7, java.sql.Types.TIMESTAMP);
-            }
-            
-            stmt.setBoolean(8, task.isRecurring());
-            
-            if (task.getRecurrenceType() != null) {
-                stmt.setInt(9, task.getRecurrenceType());
-            } else {
-                stmt.setNull(9, java.sql.Types.INTEGER);
-            }
-            
-            if (task.getRecurrenceValue() != null) {
-                stmt.setInt(10, task.getRecurrenceValue());
-            } else {
-                stmt.setNull(10, java.sql.Types.INTEGER);
-            }
-            
-            if (task.getEstimatedMinutes() != null) {
-                stmt.setInt(11, task.getEstimatedMinutes());
-            } else {
-                stmt.setNull(11, java.sql.Types.INTEGER);
-            }
-            
-            if (task.getActualMinutes() != null) {
-                stmt.setInt(12, task.getActualMinutes());
-            } else {
-                stmt.setNull(12, java.sql.Types.INTEGER);
+    /**
+     * Queue an update of a task and its tags
+     * @return A future that completes once the update has been committed
+     */
+    public CompletableFuture<Void> updateTask(Task task) {
+        String query = UPDATE_TASK_SQL;
+        
+        return DatabaseWriter.submit(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                
+                stmt.setString(1, task.getTitle());
+                stmt.setString(2, task.getDescription());
+                
+                if (task.getCategoryId() != null) {
+                    stmt.setInt(3, task.getCategoryId());
+                } else {
+                    stmt.setNull(3, java.sql.Types.INTEGER);
+                }
+                
+                stmt.setInt(4, task.getPriority());
+                stmt.setInt(5, task.getStatus());
+                
+                if (task.getDueDate() != null) {
+                    stmt.setTimestamp(6, new Timestamp(task.getDueDate().getTime()));
+                } else {
+                    stmt.setNull(6, java.sql.Types.TIMESTAMP);
+                }
+                
+                if (task.getCompletionDate() != null) {
+                    stmt.setTimestamp(7, new Timestamp(task.getCompletionDate().getTime()));
+                } else {
+                    stmt.setNull(7, java.sql.Types.TIMESTAMP);
+                }
+                
+                stmt.setBoolean(8, task.isRecurring());
+                
+                if (task.getRecurrenceType() != null) {
+                    stmt.setInt(9, task.getRecurrenceType());
+                } else {
+                    stmt.setNull(9, java.sql.Types.INTEGER);
+                }
+                
+                if (task.getRecurrenceValue() != null) {
+                    stmt.setInt(10, task.getRecurrenceValue());
+                } else {
+                    stmt.setNull(10, java.sql.Types.INTEGER);
+                }
+                
+                if (task.getEstimatedMinutes() != null) {
+                    stmt.setInt(11, task.getEstimatedMinutes());
+                } else {
+                    stmt.setNull(11, java.sql.Types.INTEGER);
+                }
+                
+                if (task.getActualMinutes() != null) {
+                    stmt.setInt(12, task.getActualMinutes());
+                } else {
+                    stmt.setNull(12, java.sql.Types.INTEGER);
+                }
+                
+                stmt.setInt(13, task.getProgress());
+                stmt.setInt(14, task.getId());
+                stmt.setInt(15, task.getUserId());
+                
+                stmt.executeUpdate();
+                
+                // Update tags
+                updateTaskTags(conn, task);
             }
-            
-            stmt.setInt(13, task.getProgress());
-            stmt.setInt(14, task.getId());
-            stmt.setInt(15, task.getUserId());
-            
-            stmt.executeUpdate();
-            
-            // Update tags
-            updateTaskTags(conn, task);
-        }
+            return null;
+        });
     }
     
     private void updateTaskTags(Connection conn, Task task) throws SQLException {
         // Remove existing tag links
-        String deleteTagLinks = "DELETE FROM task_to_tag WHERE task_id = ?";
+        String deleteTagLinks = DELETE_TAG_LINKS_SQL;
         try (PreparedStatement stmt = conn.prepareStatement(deleteTagLinks)) {
             stmt.setInt(1, task.getId());
             stmt.executeUpdate();
@@ -403,44 +456,53 @@ public class TaskDAO {
         }
     }
     
-    public void deleteTask(int taskId, int userId) throws SQLException {
+    /**
+     * Queue the deletion of a task, its subtasks, tag links and reminders
+     * @return A future that completes once the deletion has been committed
+     */
+    public CompletableFuture<Void> deleteTask(int taskId, int userId) {
+        return DatabaseWriter.submit(conn -> {
+            deleteTaskTree(conn, taskId, userId);
+            return null;
+        });
+    }
+    
+    private void deleteTaskTree(Connection conn, int taskId, int userId) throws SQLException {
         // First delete all subtasks recursively
-        List<Integer> subtaskIds = getSubtaskIds(taskId);
+        List<Integer> subtaskIds = getSubtaskIds(conn, taskId);
         for (int subtaskId : subtaskIds) {
-            deleteTask(subtaskId, userId);
+            deleteTaskTree(conn, subtaskId, userId);
         }
-        
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            // Delete tag links
-            String deleteTagLinks = "DELETE FROM task_to_tag WHERE task_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(deleteTagLinks)) {
-                stmt.setInt(1, taskId);
-                stmt.executeUpdate();
-            }
             
-            // Delete reminders
-            String deleteReminders = "DELETE FROM task_reminders WHERE task_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(deleteReminders)) {
-                stmt.setInt(1, taskId);
-                stmt.executeUpdate();
-            }
+        // Delete tag links
+        String deleteTagLinks = DELETE_TAG_LINKS_SQL;
+        try (PreparedStatement stmt = conn.prepareStatement(deleteTagLinks)) {
+            stmt.setInt(1, taskId);
+            stmt.executeUpdate();
+        }
             
-            // Delete the task
-            String deleteTask = "DELETE FROM tasks WHERE id = ? AND user_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(deleteTask)) {
-                stmt.setInt(1, taskId);
-                stmt.setInt(2, userId);
-                stmt.executeUpdate();
-            }
+        // Delete reminders
+        String deleteReminders = DELETE_REMINDERS_SQL;
+        try (PreparedStatement stmt = conn.prepareStatement(deleteReminders)) {
+            stmt.setInt(1, taskId);
+            stmt.executeUpdate();
+        }
+            
+        // Delete the task
+        String deleteTask = DELETE_TASK_SQL;
+        try (PreparedStatement stmt = conn.prepareStatement(deleteTask)) {
+            stmt.setInt(1, taskId);
+            stmt.setInt(2, userId);
+            stmt.executeUpdate();
         }
     }
     
-    private List<Integer> getSubtaskIds(int parentTaskId) throws SQLException {
+    private List<Integer> getSubtaskIds(Connection conn, int parentTaskId) throws SQLException {
         List<Integer> subtaskIds = new ArrayList<>();
-        String query = "SELECT id FROM tasks WHERE parent_task_id = ?";
+        String query = GET_SUBTASK_IDS_SQL;
         
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
+        // Read on the writer connection so subtasks added earlier in the same group are seen
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
             
             stmt.setInt(1, parentTaskId);
             ResultSet rs = stmt.executeQuery();
@@ -454,41 +516,35 @@ public class TaskDAO {
     }
     
     public List<Task> searchTasks(int userId, String searchTerm) throws SQLException {
-        Map<Integer, Task> tasksMap = new HashMap<>();
-        
-        String query = "SELECT t.*, c.name as category_name FROM tasks t " +
-                       "LEFT JOIN task_categories c ON t.category_id = c.id " +
-                       "WHERE t.user_id = ? AND (t.title LIKE ? OR t.description LIKE ?) " +
-                       "ORDER BY t.due_date ASC";
-        
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-            
-            stmt.setInt(1, userId);
-            stmt.setString(2, "%" + searchTerm + "%");
-            stmt.setString(3, "%" + searchTerm + "%");
-            
-            ResultSet rs = stmt.executeQuery();
-            
-            while (rs.next()) {
-                Task task = extractTaskFromResultSet(rs);
-                tasksMap.put(task.getId(), task);
-            }
+        return searchTasks(userId, searchTerm, 0, FullTextSearch.DEFAULT_PAGE_SIZE).getHits();
+    }
+    
+    /**
+     * Ranked prefix search over task titles, descriptions and tags
+     * @param userId The user whose tasks to search
+     * @param searchTerm The text typed by the user
+     * @param offset The number of hits to skip
+     * @param limit The page size
+     * @return One page of matching tasks, best match first
+     */
+    public SearchPage<Task> searchTasks(int userId, String searchTerm, int offset, int limit) throws SQLException {
+        FullTextSearch.checkPage(offset, limit);
+        String match = FullTextSearch.toPrefixQuery(searchTerm);
+        if (match == null) {
+            return SearchPage.empty(offset);
         }
         
-        // Also search in tags
-        String tagQuery = "SELECT t.*, c.name as category_name FROM tasks t " +
-                         "LEFT JOIN task_categories c ON t.category_id = c.id " +
-                         "JOIN task_to_tag tt ON t.id = tt.task_id " +
-                         "JOIN task_tags tg ON tt.tag_id = tg.id " +
-                         "WHERE t.user_id = ? AND tg.name LIKE ? " +
-                         "ORDER BY t.due_date ASC";
+        Map<Integer, Task> tasksMap = new LinkedHashMap<>();
         
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(tagQuery)) {
+        String query = SEARCH_TASKS_SQL;
+        
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             
-            stmt.setInt(1, userId);
-            stmt.setString(2, "%" + searchTerm + "%");
+            stmt.setString(1, match);
+            stmt.setInt(2, userId);
+            stmt.setInt(3, FullTextSearch.fetchSize(limit));
+            stmt.setInt(4, offset);
             
             ResultSet rs = stmt.executeQuery();
             
@@ -501,33 +557,40 @@ public class TaskDAO {
         // Load tags for each task
         loadTaskTags(tasksMap);
         
-        return new ArrayList<>(tasksMap.values());
+        return new SearchPage<>(new ArrayList<>(tasksMap.values()), offset, limit);
     }
     
-    public List<Task> filterTasks(int userId, Integer categoryId, Integer status, Integer priority) throws SQLException {
-        Map<Integer, Task> tasksMap = new HashMap<>();
-        
+    /**
+     * Build the task filter query for the filters that are set
+     */
+    public static String filterTasksSql(boolean byCategory, boolean byStatus, boolean byPriority) {
         StringBuilder queryBuilder = new StringBuilder();
         queryBuilder.append("SELECT t.*, c.name as category_name FROM tasks t ");
         queryBuilder.append("LEFT JOIN task_categories c ON t.category_id = c.id ");
         queryBuilder.append("WHERE t.user_id = ? ");
         
-        if (categoryId != null) {
+        if (byCategory) {
             queryBuilder.append("AND t.category_id = ? ");
         }
         
-        if (status != null) {
+        if (byStatus) {
             queryBuilder.append("AND t.status = ? ");
         }
         
-        if (priority != null) {
+        if (byPriority) {
             queryBuilder.append("AND t.priority = ? ");
         }
         
         queryBuilder.append("ORDER BY t.due_date ASC");
+        return queryBuilder.toString();
+    }
+    
+    public List<Task> filterTasks(int userId, Integer categoryId, Integer status, Integer priority) throws SQLException {
+        Map<Integer, Task> tasksMap = new HashMap<>();
+        String query = filterTasksSql(categoryId != null, status != null, priority != null);
         
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(queryBuilder.toString())) {
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             
             int paramIndex = 1;
             stmt.setInt(paramIndex++, userId);
@@ -0,0 +1,63 @@
+package com.datamanager.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Access to the app_settings key/value table
+ */
+public class AppSettings {
+    
+    static final String GET_SETTING_SQL = "SELECT setting_value FROM app_settings WHERE setting_key = ?";
+    
+    /**
+     * Get a setting
+     * @param key The setting key
+     * @return The stored value, or null if the setting has not been stored
+     */
+    public static String get(String key) throws SQLException {
+        String query = GET_SETTING_SQL;
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setString(1, key);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+    
+    /**
+     * Get an integer setting
+     * @param key The setting key
+     * @param defaultValue The value to use when the setting is missing or not a number
+     */
+    public static int getInt(String key, int defaultValue) throws SQLException {
+        String value = get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for setting " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Store a setting, replacing any previous value
+     * @param key The setting key
+     * @param value The value to store
+     */
+    public static void set(String key, String value) throws SQLException {
+        DatabaseWriter.execute(conn -> {
+            String query = "INSERT OR REPLACE INTO app_settings (setting_key, setting_value) VALUES (?, ?)";
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setString(1, key);
+                pstmt.setString(2, value);
+                return pstmt.executeUpdate();
+            }
+        });
+    }
+}
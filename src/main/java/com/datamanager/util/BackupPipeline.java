@@ -0,0 +1,362 @@
+package com.datamanager.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Building blocks for BackupUtil's parallel backup and restore.
+ *
+ * On backup each table is read and compressed by its own worker into a staged entry: either a
+ * gzip temp file, or chunks in the BackupRepository. The archive is then assembled by copying
+ * the staged entries in table order, so the single-threaded zip writer never compresses table
+ * data. On restore each entry is parsed by its own worker into a bounded queue of row batches
+ * that the database writer drains in archive order.
+ */
+class BackupPipeline {
+    static final String GZIP_SUFFIX = ".gz";
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUED_BATCHES = 4;
+    
+    /**
+     * Create a pool of daemon threads for one backup or restore
+     * @param name The thread name prefix
+     * @param tasks The number of tasks that will be submitted
+     */
+    static ExecutorService newExecutor(String name, int tasks) {
+        int threads = Math.max(1, Math.min(tasks, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Wait for a worker and rethrow its failure with its original type
+     */
+    static <T> T await(Future<T> future) throws IOException, SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for backup worker", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Backup worker failed", cause);
+        }
+    }
+    
+    /**
+     * Find a table entry in any of the forms backups have been written in
+     * @param name The entry name without the .chunks or .gz suffix
+     */
+    static ZipEntry findEntry(ZipFile zipFile, String name) {
+        ZipEntry entry = zipFile.getEntry(name + BackupRepository.CHUNKS_SUFFIX);
+        if (entry == null) {
+            entry = zipFile.getEntry(name + GZIP_SUFFIX);
+        }
+        return entry != null ? entry : zipFile.getEntry(name);
+    }
+    
+    /**
+     * Open the content of a table entry
+     * @param in The raw entry data, as read from the archive
+     */
+    static InputStream openContent(ZipFile zipFile, ZipEntry entry, InputStream in) throws IOException {
+        if (entry.getName().endsWith(BackupRepository.CHUNKS_SUFFIX)) {
+            return new BackupRepository(new File(zipFile.getName()).getAbsoluteFile().getParentFile()).openChunks(in);
+        }
+        if (entry.getName().endsWith(GZIP_SUFFIX)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+    
+    /**
+     * A CSV entry written by a worker thread, waiting to be copied into the archive
+     */
+    interface StagedEntry extends Closeable {
+        /**
+         * The writer for the CSV text; closing the entry closes it
+         */
+        Writer getWriter();
+        
+        /**
+         * Copy the finished entry into the archive
+         */
+        void copyTo(ZipOutputStream zos) throws IOException;
+        
+        /**
+         * Release what the entry holds once it has been copied or abandoned
+         */
+        void delete();
+    }
+    
+    /**
+     * A CSV entry compressed into a temp file, copied into the archive as a STORED .gz entry
+     */
+    static class CompressedEntry implements StagedEntry {
+        final String name;
+        final File file;
+        private final CRC32 crc = new CRC32();
+        private final Writer writer;
+        
+        /**
+         * @param directory Where to create the temp file
+         * @param name The entry name without the .gz suffix
+         * @param compressionLevel The deflate level, 0-9 or -1 for the default
+         */
+        CompressedEntry(File directory, String name, int compressionLevel) throws IOException {
+            this.name = name + GZIP_SUFFIX;
+            this.file = File.createTempFile("backup_", ".gz.tmp", directory);
+            
+            OutputStream out = new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), crc);
+            this.writer = new BufferedWriter(
+                new OutputStreamWriter(new LeveledGZIPOutputStream(out, compressionLevel), StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+        }
+        
+        @Override
+        public Writer getWriter() {
+            return writer;
+        }
+        
+        /**
+         * Finish compressing; the entry is then ready to copy
+         */
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+        
+        /**
+         * Copy the compressed data into the archive without compressing it again
+         */
+        @Override
+        public void copyTo(ZipOutputStream zos) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(crc.getValue());
+            
+            zos.putNextEntry(entry);
+            Files.copy(file.toPath(), zos);
+            zos.closeEntry();
+        }
+        
+        @Override
+        public void delete() {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                System.err.println("Error deleting temporary backup file: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Parses one archive entry on a worker thread and hands its records to the consuming thread
+     * in batches. The queue is bounded, so a parser that runs ahead waits for the consumer.
+     */
+    static class ParsedEntry implements Runnable {
+        final String tableName;
+        final ZipFile zipFile;
+        final ZipEntry entry;
+        private final boolean legacyEscapes;
+        private final int batchSize;
+        private final BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        
+        // Consumer state
+        private Batch current;
+        private int index;
+        private long recordNumber;
+        
+        /**
+         * @param zipFile The archive
+         * @param entry The entry to parse, plain, gzip-compressed or chunked
+         * @param tableName The table the entry belongs to
+         * @param legacyEscapes Whether the entry may use the \, comma escape
+         * @param batchSize The number of records per batch
+         */
+        ParsedEntry(ZipFile zipFile, ZipEntry entry, String tableName, boolean legacyEscapes, int batchSize) {
+            this.zipFile = zipFile;
+            this.entry = entry;
+            this.tableName = tableName;
+            this.legacyEscapes = legacyEscapes;
+            this.batchSize = batchSize;
+        }
+        
+        @Override
+        public void run() {
+            try (CountingInputStream counted = new CountingInputStream(zipFile.getInputStream(entry));
+                 CsvReader reader = new CsvReader(new InputStreamReader(
+                     openContent(zipFile, entry, counted), StandardCharsets.UTF_8), legacyEscapes)) {
+                List<String[]> records = new ArrayList<>(batchSize);
+                String[] record;
+                while ((record = reader.readRecord()) != null) {
+                    records.add(record);
+                    if (records.size() == batchSize) {
+                        batches.put(new Batch(records, counted.count, null));
+                        records = new ArrayList<>(batchSize);
+                    }
+                }
+                batches.put(new Batch(records, counted.count, null));
+                batches.put(new Batch(null, counted.count, null));
+            } catch (InterruptedException e) {
+                // The restore was abandoned
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                try {
+                    batches.put(new Batch(null, 0, e));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        /**
+         * Get the next record, waiting for the parser if necessary
+         * @return The record, or null at the end of the entry
+         */
+        String[] next() throws IOException {
+            while (current == null || index == current.records.size()) {
+                if (current != null && current.records == null) {
+                    return null;
+                }
+                try {
+                    current = batches.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + entry.getName(), e);
+                }
+                index = 0;
+                if (current.error != null) {
+                    throw new IOException("Error reading " + entry.getName() + ": " + current.error.getMessage(),
+                                          current.error);
+                }
+                if (current.records == null) {
+                    return null;
+                }
+            }
+            recordNumber++;
+            return current.records.get(index++);
+        }
+        
+        /**
+         * The 1-based number of the record last returned by {@link #next}
+         */
+        long getRecordNumber() {
+            return recordNumber;
+        }
+        
+        /**
+         * The number of archive bytes the parser had consumed when it produced the current batch
+         */
+        long getBytesRead() {
+            return current != null ? current.bytesRead : 0;
+        }
+    }
+    
+    /**
+     * A batch of parsed records; null records mark the end of the entry
+     */
+    private static class Batch {
+        final List<String[]> records;
+        final long bytesRead;
+        final Exception error;
+        
+        Batch(List<String[]> records, long bytesRead, Exception error) {
+            this.records = records;
+            this.bytesRead = bytesRead;
+            this.error = error;
+        }
+    }
+    
+    /**
+     * GZIPOutputStream with a configurable compression level
+     */
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+    
+    /**
+     * Counts the bytes read through it, for progress reporting
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        volatile long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
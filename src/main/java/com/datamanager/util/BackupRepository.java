@@ -0,0 +1,421 @@
+package com.datamanager.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Content-addressed store for backup data.
+ *
+ * Table CSV streams are cut into chunks at content-defined boundaries found with a gear rolling
+ * hash, so an edit only changes the chunks around it and the rest of the stream splits exactly
+ * as before. Each chunk is stored once, deflated, under the SHA-256 of its content in
+ * chunks/ab/abcd..., and a backup archive then holds just the list of chunk hashes of each
+ * table. Chunks no archive refers to any more are deleted by {@link #collectGarbage}.
+ */
+class BackupRepository {
+    static final String CHUNKS_SUFFIX = ".chunks";
+    static final String CHUNKS_DIR = "chunks";
+    
+    // Backups hold the read lock while they add chunks or read them; garbage collection holds
+    // the write lock, so it never deletes a chunk an unfinished archive is about to refer to
+    static final ReentrantReadWriteLock LOCK = new ReentrantReadWriteLock();
+    
+    private static final int MIN_CHUNK_SIZE = 2 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // Tests the top bits of the gear hash, which depend on the last 64 bytes; the low bits only
+    // see the last few. 13 bits give 8 KB on average after the minimum size.
+    private static final long BOUNDARY_MASK = -1L << (64 - 13);
+    private static final int HASH_LENGTH = 64; // Hex characters of a SHA-256
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long[] GEAR = gearTable();
+    
+    private final File backupDir;
+    private final File chunksDir;
+    
+    /**
+     * @param backupDir The directory holding the backup archives
+     */
+    BackupRepository(File backupDir) {
+        this.backupDir = backupDir;
+        this.chunksDir = new File(backupDir, CHUNKS_DIR);
+    }
+    
+    /**
+     * Start a table entry whose CSV text is stored as chunks
+     * @param name The entry name without the .chunks suffix
+     * @param compressionLevel The deflate level, 0-9 or -1 for the default
+     */
+    ChunkedEntry newEntry(String name, int compressionLevel) throws IOException {
+        return new ChunkedEntry(name, compressionLevel);
+    }
+    
+    /**
+     * Read the content of a chunked entry
+     * @param chunkList The entry data: one chunk hash per line
+     */
+    InputStream openChunks(InputStream chunkList) throws IOException {
+        return new ChunkInputStream(chunkList);
+    }
+    
+    /**
+     * Delete every chunk that no archive in the backup directory refers to, and temp files left
+     * by interrupted backups. Call it after deleting archives.
+     * @return The number of files deleted
+     */
+    int collectGarbage() throws IOException {
+        LOCK.writeLock().lock();
+        try {
+            Set<String> referenced = new HashSet<>();
+            File[] archives = backupDir.listFiles((dir, name) -> name.endsWith(".zip"));
+            if (archives != null) {
+                for (File archive : archives) {
+                    collectReferences(archive, referenced);
+                }
+            }
+            
+            int deleted = 0;
+            if (!chunksDir.isDirectory()) {
+                return deleted;
+            }
+            try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunksDir.toPath())) {
+                for (Path prefix : prefixes) {
+                    if (!Files.isDirectory(prefix)) continue;
+                    try (DirectoryStream<Path> chunks = Files.newDirectoryStream(prefix)) {
+                        for (Path chunk : chunks) {
+                            if (!referenced.contains(chunk.getFileName().toString())) {
+                                Files.deleteIfExists(chunk);
+                                deleted++;
+                            }
+                        }
+                    }
+                }
+            }
+            return deleted;
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+    
+    private static void collectReferences(File archive, Set<String> referenced) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(CHUNKS_SUFFIX)) continue;
+                
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    byte[] line = new byte[HASH_LENGTH + 1];
+                    while (readLine(in, line)) {
+                        referenced.add(new String(line, 0, HASH_LENGTH, StandardCharsets.US_ASCII));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Deleting chunks an unreadable archive may need would make it unrecoverable
+            throw new IOException("Cannot read " + archive.getName() + ", not collecting garbage", e);
+        }
+    }
+    
+    /**
+     * Read one chunk hash line
+     * @return false at the end of the list
+     */
+    private static boolean readLine(InputStream in, byte[] line) throws IOException {
+        int read = 0;
+        while (read < line.length) {
+            int n = in.read(line, read, line.length - read);
+            if (n < 0) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new IOException("Truncated chunk list");
+            }
+            read += n;
+        }
+        if (line[HASH_LENGTH] != '\n') {
+            throw new IOException("Malformed chunk list");
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            // The hash becomes a file name, so nothing but lowercase hex may get through
+            byte c = line[i];
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                throw new IOException("Malformed chunk list");
+            }
+        }
+        return true;
+    }
+    
+    private File chunkFile(String hash) {
+        return new File(new File(chunksDir, hash.substring(0, 2)), hash);
+    }
+    
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+    
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+    
+    /**
+     * Random values for the gear hash. The seed is fixed: changing it would move every chunk
+     * boundary and defeat deduplication against existing backups.
+     */
+    private static long[] gearTable() {
+        long[] table = new long[256];
+        long state = 0x5DEECE66DL;
+        for (int i = 0; i < table.length; i++) {
+            // SplitMix64
+            long z = (state += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+    
+    /**
+     * Cuts the bytes written to it into chunks and stores the ones the repository lacks
+     */
+    class ChunkedEntry extends OutputStream implements BackupPipeline.StagedEntry {
+        private final String name;
+        private final Writer writer;
+        private final Deflater deflater;
+        private final MessageDigest digest;
+        private final byte[] chunk = new byte[MAX_CHUNK_SIZE];
+        private final byte[] deflated = new byte[MAX_CHUNK_SIZE];
+        private final List<String> hashes = new ArrayList<>();
+        private int length = 0;
+        private long gear = 0;
+        private boolean closed = false;
+        
+        ChunkedEntry(String name, int compressionLevel) throws IOException {
+            this.name = name + CHUNKS_SUFFIX;
+            this.digest = newDigest();
+            this.deflater = new Deflater(compressionLevel);
+            this.writer = new BufferedWriter(new OutputStreamWriter(this, StandardCharsets.UTF_8), MAX_CHUNK_SIZE);
+        }
+        
+        @Override
+        public Writer getWriter() {
+            return writer;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            chunk[length++] = (byte) b;
+            if (length <= MIN_CHUNK_SIZE) {
+                // No boundary falls before the minimum size, so hashing starts after it
+                return;
+            }
+            gear = (gear << 1) + GEAR[b & 0xFF];
+            if (length == MAX_CHUNK_SIZE || (gear & BOUNDARY_MASK) == 0) {
+                storeChunk();
+            }
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                if (length < MIN_CHUNK_SIZE) {
+                    int n = Math.min(end - off, MIN_CHUNK_SIZE - length);
+                    System.arraycopy(b, off, chunk, length, n);
+                    length += n;
+                    off += n;
+                    continue;
+                }
+                write(b[off++]);
+            }
+        }
+        
+        /**
+         * Store the last chunk; the entry is then ready to copy
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                writer.close();
+            } finally {
+                try {
+                    if (length > 0) {
+                        storeChunk();
+                    }
+                } finally {
+                    deflater.end();
+                }
+            }
+        }
+        
+        @Override
+        public void flush() {
+            // Chunks are only stored whole
+        }
+        
+        /**
+         * Write the chunk hashes as the archive entry
+         */
+        @Override
+        public void copyTo(ZipOutputStream zos) throws IOException {
+            zos.putNextEntry(new ZipEntry(name));
+            for (String hash : hashes) {
+                zos.write(hash.getBytes(StandardCharsets.US_ASCII));
+                zos.write('\n');
+            }
+            zos.closeEntry();
+        }
+        
+        @Override
+        public void delete() {
+            // Chunks may be shared with other backups; unreferenced ones are garbage collected
+        }
+        
+        private void storeChunk() throws IOException {
+            digest.update(chunk, 0, length);
+            String hash = toHex(digest.digest());
+            hashes.add(hash);
+            
+            File file = chunkFile(hash);
+            if (!file.exists()) {
+                deflater.reset();
+                deflater.setInput(chunk, 0, length);
+                deflater.finish();
+                
+                file.getParentFile().mkdirs();
+                File temp = new File(file.getParentFile(), hash + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), MAX_CHUNK_SIZE)) {
+                    while (!deflater.finished()) {
+                        out.write(deflated, 0, deflater.deflate(deflated));
+                    }
+                }
+                try {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // Another backup stored the same chunk first
+                    Files.deleteIfExists(temp.toPath());
+                }
+            }
+            
+            length = 0;
+            gear = 0;
+        }
+    }
+    
+    /**
+     * Reads the chunks of an entry one after another, checking each against its hash
+     */
+    private class ChunkInputStream extends InputStream {
+        private final InputStream chunkList;
+        private final byte[] line = new byte[HASH_LENGTH + 1];
+        private final byte[] chunk = new byte[MAX_CHUNK_SIZE];
+        private final Inflater inflater = new Inflater();
+        private final MessageDigest digest;
+        private int position = 0;
+        private int limit = 0;
+        
+        ChunkInputStream(InputStream chunkList) throws IOException {
+            this.chunkList = chunkList;
+            this.digest = newDigest();
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !nextChunk()) {
+                return -1;
+            }
+            return chunk[position++] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !nextChunk()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            chunkList.close();
+        }
+        
+        private boolean nextChunk() throws IOException {
+            // The list is read one line per chunk, so bytes read from it track progress
+            if (!readLine(chunkList, line)) {
+                return false;
+            }
+            String hash = new String(line, 0, HASH_LENGTH, StandardCharsets.US_ASCII);
+            File file = chunkFile(hash);
+            if (!file.isFile()) {
+                throw new IOException("Backup repository is missing chunk " + hash);
+            }
+            
+            inflater.reset();
+            inflater.setInput(Files.readAllBytes(file.toPath()));
+            try {
+                limit = 0;
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(chunk, limit, chunk.length - limit);
+                    if (n == 0 && (inflater.needsInput() || limit == chunk.length)) {
+                        throw new IOException("Chunk " + hash + " is corrupt");
+                    }
+                    limit += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Chunk " + hash + " is corrupt", e);
+            }
+            position = 0;
+            
+            digest.update(chunk, 0, limit);
+            if (!hash.equals(toHex(digest.digest()))) {
+                throw new IOException("Chunk " + hash + " does not match its hash");
+            }
+            return true;
+        }
+    }
+}
@@ -1,106 +1,687 @@
 package com.datamanager.util;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.*;
+import com.datamanager.util.BackupPipeline.ParsedEntry;
+import com.datamanager.util.BackupPipeline.StagedEntry;
+import org.sqlite.ProgressHandler;
 
+/**
+ * Zip backups of a user's passwords, tasks and contacts, one CSV entry per table.
+ *
+ * Backups are streamed: rows go from the ResultSet through a buffered UTF-8 writer into a
+ * compressed entry, so memory use does not grow with the size of a table. Each table is read on
+ * its own connection and compressed on its own worker thread, and the finished entries are
+ * copied into one archive; restore parses every entry in parallel and feeds the rows to the
+ * single database writer in order (see BackupPipeline). The fetch size and compression level
+ * can be tuned with the backup_fetch_size and backup_compression_level settings.
+ *
+ * Backups are incremental. The first backup of a user is a full one; later backups are deltas
+ * holding only the rows logged in change_log since the previous backup, plus the ids of deleted
+ * rows. Every archive carries a manifest naming its parent, so restoring a delta replays the
+ * full backup and every delta up to the chosen one. After backup_max_deltas deltas the next
+ * backup starts a new chain with a full one.
+ *
+ * By default table data is kept in a deduplicating BackupRepository next to the archives, and
+ * each archive only lists the chunks of its tables, so backups of mostly unchanged data take
+ * little extra space. Only the newest backup_keep_count backups of a user are kept, along with
+ * the backups they build on. Set backup_format to "archive" for self-contained
+ * archives instead.
+ *
+ * Snapshot backups are a second mode: a page-level copy of the whole database taken with
+ * VACUUM INTO while the app keeps running, throttled by snapshot_duty_percent and then
+ * compressed into the archive.
+ */
 public class BackupUtil {
     private static final String BACKUP_DIR = "backups";
+    private static final int DEFAULT_FETCH_SIZE = 500;
+    private static final int DEFAULT_MAX_DELTAS = 24;
+    private static final int DEFAULT_KEEP_BACKUPS = 48;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int RESTORE_BATCH_SIZE = 1000;
+    static final String[] TABLES = {"passwords", "tasks", "contacts"};
+    
+    private static final String MANIFEST_ENTRY = "manifest.properties";
+    private static final String DELETED_SUFFIX = ".deleted.csv";
+    private static final String TYPE_FULL = "full";
+    private static final String TYPE_DELTA = "delta";
+    private static final String TYPE_SNAPSHOT = "snapshot";
+    private static final String FORMAT_ARCHIVE = "archive";
+    
+    // Snapshots copy the whole database file with VACUUM INTO
+    private static final String SNAPSHOT_ENTRY = "personal_data.db";
+    private static final int DEFAULT_SNAPSHOT_DUTY_PERCENT = 50;
+    private static final int MIN_SNAPSHOT_DUTY_PERCENT = 10;
+    private static final int THROTTLE_CHECK_INSTRUCTIONS = 10000;
+    
+    static final String PRUNE_CHANGE_LOG_SQL = "DELETE FROM change_log WHERE user_id = ? AND seq <= ?";
     
     public static String createBackup(int userId) throws IOException, SQLException {
+        int fetchSize = AppSettings.getInt("backup_fetch_size", DEFAULT_FETCH_SIZE);
+        int compressionLevel = AppSettings.getInt("backup_compression_level", Deflater.DEFAULT_COMPRESSION);
+        return createBackup(userId, fetchSize, compressionLevel);
+    }
+    
+    /**
+     * Create a backup with explicit streaming settings
+     * @param userId The user whose data to back up
+     * @param fetchSize The number of rows the driver should fetch at a time
+     * @param compressionLevel The zip compression level, 0-9 or -1 for the default
+     * @return The path of the backup file
+     */
+    public static String createBackup(int userId, int fetchSize, int compressionLevel)
+            throws IOException, SQLException {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        
         // Create backup directory if it doesn't exist
         File backupDir = new File(BACKUP_DIR);
         if (!backupDir.exists()) {
             backupDir.mkdirs();
         }
         
+        // Continue the user's chain unless it is missing or long enough to start over
+        Manifest parent = loadLastManifest(userId);
+        // Store tables in the deduplicating repository unless self-contained archives are wanted
+        boolean chunked = !FORMAT_ARCHIVE.equals(AppSettings.get("backup_format"));
+        BackupRepository repository = chunked ? new BackupRepository(backupDir) : null;
+        int maxDeltas = AppSettings.getInt("backup_max_deltas", DEFAULT_MAX_DELTAS);
+        boolean full = parent == null || parent.chainLength >= maxDeltas;
+        
         // Generate backup filename with timestamp
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-        String backupFile = String.format("%s/backup_%d_%s.zip", BACKUP_DIR, userId, timestamp);
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss_SSS"));
+        String backupFile = String.format("%s/backup_%d_%s%s.zip", BACKUP_DIR, userId, timestamp,
+                                          full ? "" : "_delta");
         
-        try (Connection conn = DatabaseUtil.getConnection();
-             ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(backupFile))) {
-            
-            // Backup passwords
-            backupTable(conn, zos, "passwords", userId);
+        Manifest manifest = new Manifest();
+        manifest.type = full ? TYPE_FULL : TYPE_DELTA;
+        manifest.userId = userId;
+        manifest.parent = full ? null : parent.file.getName();
+        manifest.chainLength = full ? 0 : parent.chainLength + 1;
+        
+        // Tables are read on separate connections, so each sees its own snapshot. Every snapshot
+        // is at least as new as this position; rows changed after it are simply included again
+        // by the next delta, which restore applies idempotently.
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            manifest.changeSeq = currentChangeSeq(conn);
+        }
+        long afterSeq = full ? 0 : parent.changeSeq;
+        
+        // Read and compress every table concurrently
+        ExecutorService executor = BackupPipeline.newExecutor("BackupReader", TABLES.length);
+        List<Future<List<StagedEntry>>> staged = new ArrayList<>(TABLES.length);
+        BackupRepository.LOCK.readLock().lock();
+        try {
+            for (String table : TABLES) {
+                staged.add(executor.submit(() -> stageTable(backupDir, repository, table, userId, full, afterSeq,
+                                                            manifest.changeSeq, fetchSize, compressionLevel)));
+            }
             
-            // Backup tasks
-            backupTable(conn, zos, "tasks", userId);
+            // Assemble the archive in table order as the staged entries become ready
+            try (ZipOutputStream zos = new ZipOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(backupFile), WRITE_BUFFER_SIZE))) {
+                zos.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+                manifest.toProperties().store(zos, "Backup manifest");
+                zos.closeEntry();
+                
+                for (Future<List<StagedEntry>> future : staged) {
+                    for (StagedEntry entry : BackupPipeline.await(future)) {
+                        entry.copyTo(zos);
+                        entry.delete();
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            deleteStaged(staged);
+            BackupRepository.LOCK.readLock().unlock();
+        }
+        
+        AppSettings.set(lastBackupKey(userId), new File(backupFile).getPath());
+        if (full) {
+            pruneChangeLog(userId, manifest.changeSeq);
+        }
+        if (chunked) {
+            applyRetention(backupDir, userId, AppSettings.getInt("backup_keep_count", DEFAULT_KEEP_BACKUPS));
+        }
+        
+        return backupFile;
+    }
+    
+    /**
+     * Take a consistent copy of the whole database while the app keeps running and compress it
+     * into a backup archive. Unlike {@link #createBackup} this covers every table, including
+     * notes, reports and users, for all users.
+     * @param userId The user requesting the snapshot, recorded in the manifest
+     * @return The path of the backup file
+     */
+    public static String createSnapshotBackup(int userId) throws IOException, SQLException {
+        int dutyPercent = AppSettings.getInt("snapshot_duty_percent", DEFAULT_SNAPSHOT_DUTY_PERCENT);
+        int compressionLevel = AppSettings.getInt("backup_compression_level", Deflater.DEFAULT_COMPRESSION);
+        
+        // Create backup directory if it doesn't exist
+        File backupDir = new File(BACKUP_DIR);
+        if (!backupDir.exists()) {
+            backupDir.mkdirs();
+        }
+        
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss_SSS"));
+        String backupFile = String.format("%s/snapshot_%s.zip", BACKUP_DIR, timestamp);
+        File snapshot = new File(backupDir, "snapshot_" + timestamp + ".db.tmp");
+        
+        Manifest manifest = new Manifest();
+        manifest.type = TYPE_SNAPSHOT;
+        manifest.userId = userId;
+        
+        try {
+            copyDatabase(snapshot, Math.max(MIN_SNAPSHOT_DUTY_PERCENT, Math.min(100, dutyPercent)));
             
-            // Backup contacts
-            backupTable(conn, zos, "contacts", userId);
+            try (ZipOutputStream zos = new ZipOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(backupFile), WRITE_BUFFER_SIZE))) {
+                zos.setLevel(compressionLevel);
+                
+                zos.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+                manifest.toProperties().store(zos, "Backup manifest");
+                zos.closeEntry();
+                
+                zos.putNextEntry(new ZipEntry(SNAPSHOT_ENTRY));
+                Files.copy(snapshot.toPath(), zos);
+                zos.closeEntry();
+            }
+        } finally {
+            Files.deleteIfExists(snapshot.toPath());
         }
         
         return backupFile;
     }
     
-    private static void backupTable(Connection conn, ZipOutputStream zos, String tableName, int userId) 
+    /**
+     * Copy the database with VACUUM INTO on a connection of its own. In WAL mode the copy reads
+     * one snapshot and never blocks the writer; the progress handler pauses it regularly so it
+     * only takes its share of CPU and disk.
+     */
+    private static void copyDatabase(File target, int dutyPercent) throws SQLException {
+        try (Connection conn = DatabaseUtil.openUnpooledConnection()) {
+            boolean throttled = false;
+            if (dutyPercent < 100) {
+                try {
+                    ProgressHandler.setHandler(conn, THROTTLE_CHECK_INSTRUCTIONS, new SnapshotThrottle(dutyPercent));
+                    throttled = true;
+                } catch (SQLException e) {
+                    System.err.println("Snapshot throttling unavailable, copying at full speed: " + e.getMessage());
+                }
+            }
+            
+            try (PreparedStatement pstmt = conn.prepareStatement("VACUUM INTO ?")) {
+                pstmt.setString(1, target.getPath());
+                pstmt.executeUpdate();
+            } finally {
+                if (throttled) {
+                    ProgressHandler.clearHandler(conn);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Read one table on the calling worker thread and compress it into staged entries
+     * @param repository The repository to store chunks in, or null for self-contained entries
+     * @return The staged entries, in archive order
+     */
+    private static List<StagedEntry> stageTable(File backupDir, BackupRepository repository, String tableName,
+            int userId, boolean full, long afterSeq, long upToSeq, int fetchSize, int compressionLevel)
+            throws IOException, SQLException {
+        List<StagedEntry> entries = new ArrayList<>(2);
+        boolean staged = false;
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            StagedEntry rows = newStagedEntry(backupDir, repository, tableName + ".csv", compressionLevel);
+            entries.add(rows);
+            
+            if (full) {
+                try (StagedEntry entry = rows) {
+                    backupTable(conn, entry.getWriter(), tableName, userId, fetchSize);
+                }
+            } else {
+                StagedEntry deleted = newStagedEntry(backupDir, repository, tableName + DELETED_SUFFIX,
+                                                     compressionLevel);
+                entries.add(deleted);
+                
+                // Read the changed and deleted rows from one snapshot
+                conn.setAutoCommit(false);
+                try (StagedEntry changedEntry = rows; StagedEntry deletedEntry = deleted) {
+                    backupChangedRows(conn, changedEntry.getWriter(), deletedEntry.getWriter(), tableName, userId,
+                                      afterSeq, upToSeq, fetchSize);
+                }
+            }
+            staged = true;
+            return entries;
+        } finally {
+            if (!staged) {
+                for (StagedEntry entry : entries) {
+                    entry.close();
+                    entry.delete();
+                }
+            }
+        }
+    }
+    
+    private static StagedEntry newStagedEntry(File backupDir, BackupRepository repository, String name,
+            int compressionLevel) throws IOException {
+        if (repository != null) {
+            return repository.newEntry(name, compressionLevel);
+        }
+        return new BackupPipeline.CompressedEntry(backupDir, name, compressionLevel);
+    }
+    
+    /**
+     * Delete staged files a failed backup left behind, waiting for workers still running
+     */
+    private static void deleteStaged(List<Future<List<StagedEntry>>> staged) {
+        for (Future<List<StagedEntry>> future : staged) {
+            try {
+                for (StagedEntry entry : BackupPipeline.await(future)) {
+                    entry.delete();
+                }
+            } catch (IOException | SQLException | RuntimeException e) {
+                // The worker cleaned up after itself
+            }
+        }
+    }
+    
+    static String backupTableSql(String tableName) {
+        return String.format("SELECT * FROM %s WHERE user_id = ?", tableName);
+    }
+    
+    static String changedRowsSql(String tableName) {
+        return String.format(
+            // CROSS JOIN keeps the change log as the outer loop, so the cost follows the changes
+            "SELECT t.* FROM change_log c CROSS JOIN %s t ON t.id = c.row_id " +
+            "WHERE c.user_id = ? AND c.table_name = ? AND c.seq > ? AND c.seq <= ? AND t.user_id = ? " +
+            "GROUP BY t.id",
+            tableName);
+    }
+    
+    static String deletedRowsSql(String tableName) {
+        return String.format(
+            "SELECT DISTINCT c.row_id AS id FROM change_log c " +
+            "WHERE c.user_id = ? AND c.table_name = ? AND c.seq > ? AND c.seq <= ? " +
+            "AND NOT EXISTS (SELECT 1 FROM %s t WHERE t.id = c.row_id AND t.user_id = ?)",
+            tableName);
+    }
+    
+    static String deleteUserDataSql(String tableName) {
+        return String.format("DELETE FROM %s WHERE user_id = ?", tableName);
+    }
+    
+    static String deleteRowSql(String tableName) {
+        return String.format("DELETE FROM %s WHERE id = ? AND user_id = ?", tableName);
+    }
+    
+    private static void backupTable(Connection conn, Writer writer, String tableName, int userId, int fetchSize) 
             throws SQLException, IOException {
-        String query = String.format("SELECT * FROM %s WHERE user_id = ?", tableName);
-        StringBuilder data = new StringBuilder();
+        String query = backupTableSql(tableName);
         
         try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setFetchSize(fetchSize);
             pstmt.setInt(1, userId);
-            ResultSet rs = pstmt.executeQuery();
-            ResultSetMetaData metaData = rs.getMetaData();
-            int columnCount = metaData.getColumnCount();
-            
-            // Add column headers
+            writeRows(pstmt.executeQuery(), writer);
+        }
+    }
+    
+    /**
+     * Write the rows of a table that changed after one change log position, up to another,
+     * and the ids of the rows deleted in that range
+     */
+    private static void backupChangedRows(Connection conn, Writer writer, Writer deletedWriter, String tableName,
+            int userId, long afterSeq, long upToSeq, int fetchSize) throws SQLException, IOException {
+        String changedQuery = changedRowsSql(tableName);
+        String deletedQuery = deletedRowsSql(tableName);
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(changedQuery)) {
+            pstmt.setFetchSize(fetchSize);
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, tableName);
+            pstmt.setLong(3, afterSeq);
+            pstmt.setLong(4, upToSeq);
+            pstmt.setInt(5, userId);
+            writeRows(pstmt.executeQuery(), writer);
+        }
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(deletedQuery)) {
+            pstmt.setFetchSize(fetchSize);
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, tableName);
+            pstmt.setLong(3, afterSeq);
+            pstmt.setLong(4, upToSeq);
+            pstmt.setInt(5, userId);
+            writeRows(pstmt.executeQuery(), deletedWriter);
+        }
+    }
+    
+    /**
+     * Write a header line and one CSV line per row
+     */
+    private static void writeRows(ResultSet rs, Writer writer) throws SQLException, IOException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        
+        // Add column headers
+        for (int i = 1; i <= columnCount; i++) {
+            if (i > 1) {
+                writer.write(',');
+            }
+            writer.write(metaData.getColumnName(i));
+        }
+        writer.write('\n');
+        
+        // Add data rows
+        while (rs.next()) {
             for (int i = 1; i <= columnCount; i++) {
-                data.append(metaData.getColumnName(i)).append(",");
+                if (i > 1) {
+                    writer.write(',');
+                }
+                writeValue(writer, rs.getString(i));
+            }
+            writer.write('\n');
+        }
+    }
+    
+    /**
+     * Write a value for CSV. Values with line breaks or quotes are quoted with doubled quotes;
+     * other values keep the \, comma escape older restores expect. Nulls are written as empty
+     * fields.
+     */
+    private static void writeValue(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        
+        if (needsQuoting(value)) {
+            writer.write('"');
+            int start = 0;
+            int quote;
+            while ((quote = value.indexOf('"', start)) >= 0) {
+                writer.write(value, start, quote + 1 - start);
+                writer.write('"');
+                start = quote + 1;
+            }
+            writer.write(value, start, value.length() - start);
+            writer.write('"');
+            return;
+        }
+        
+        int start = 0;
+        int comma;
+        while ((comma = value.indexOf(',', start)) >= 0) {
+            writer.write(value, start, comma - start);
+            writer.write("\\,");
+            start = comma + 1;
+        }
+        writer.write(value, start, value.length() - start);
+    }
+    
+    private static boolean needsQuoting(String value) {
+        if (value.isEmpty()) {
+            // An empty string must not read back as null
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        // A trailing backslash would escape the separator after it
+        return value.charAt(value.length() - 1) == '\\';
+    }
+    
+    /**
+     * The highest sequence number handed out by the change log. Read from sqlite_sequence rather
+     * than MAX(seq), which goes back to zero once pruning has emptied the log.
+     */
+    private static long currentChangeSeq(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT seq FROM sqlite_sequence WHERE name = 'change_log'")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+    
+    /**
+     * Drop change log entries that are already covered by a full backup
+     */
+    private static void pruneChangeLog(int userId, long upToSeq) throws SQLException {
+        DatabaseWriter.execute(conn -> {
+            String query = PRUNE_CHANGE_LOG_SQL;
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setInt(1, userId);
+                pstmt.setLong(2, upToSeq);
+                return pstmt.executeUpdate();
             }
-            data.setLength(data.length() - 1); // Remove last comma
-            data.append("\n");
+        });
+    }
+    
+    /**
+     * Delete the user's repository backups beyond the newest keepCount, except those a kept
+     * delta still builds on, then delete the chunks no remaining backup refers to
+     * @param keepCount The number of backups to keep; 0 keeps them all
+     */
+    private static void applyRetention(File backupDir, int userId, int keepCount) {
+        if (keepCount <= 0) {
+            return;
+        }
+        
+        try {
+            String prefix = "backup_" + userId + "_";
+            File[] files = backupDir.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".zip"));
+            if (files == null || files.length <= keepCount) {
+                return;
+            }
+            
+            // Names sort by timestamp, newest first. Self-contained archives count too: after a
+            // switch of backup_format a delta of either kind can build on a parent of the other.
+            List<File> backups = new ArrayList<>(Arrays.asList(files));
+            backups.sort(Collections.reverseOrder());
             
-            // Add data rows
-            while (rs.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    String value = rs.getString(i);
-                    data.append(value != null ? value.replace(",", "\\,") : "").append(",");
+            List<File> kept = new ArrayList<>();
+            for (File backup : backups.subList(0, keepCount)) {
+                for (File file : resolveChain(backup)) {
+                    if (!kept.contains(file)) {
+                        kept.add(file);
+                    }
                 }
-                data.setLength(data.length() - 1); // Remove last comma
-                data.append("\n");
             }
+            
+            int deletedBackups = 0;
+            for (File backup : backups) {
+                if (!kept.contains(backup) && backup.delete()) {
+                    deletedBackups++;
+                }
+            }
+            if (deletedBackups > 0) {
+                int deletedChunks = new BackupRepository(backupDir).collectGarbage();
+                System.out.println("Backup retention removed " + deletedBackups + " backups and " +
+                                   deletedChunks + " chunks");
+            }
+        } catch (IOException e) {
+            // The new backup is complete; old ones are simply kept until the next run
+            System.err.println("Error applying backup retention: " + e.getMessage());
+        }
+    }
+    
+    private static String lastBackupKey(int userId) {
+        return "backup_last_file_" + userId;
+    }
+    
+    /**
+     * Read the manifest of the user's most recent backup, or null if there is none to build on
+     */
+    private static Manifest loadLastManifest(int userId) throws SQLException {
+        String lastFile = AppSettings.get(lastBackupKey(userId));
+        if (lastFile == null || !new File(lastFile).isFile()) {
+            return null;
         }
         
-        // Add table data to zip file
-        ZipEntry entry = new ZipEntry(tableName + ".csv");
-        zos.putNextEntry(entry);
-        zos.write(data.toString().getBytes());
-        zos.closeEntry();
+        try {
+            Manifest manifest = readManifest(new File(lastFile));
+            return manifest != null && manifest.userId == userId ? manifest : null;
+        } catch (IOException e) {
+            System.err.println("Error reading last backup, starting a full backup: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Read the manifest of a backup archive
+     * @return The manifest, or null for backups made before manifests were written
+     */
+    private static Manifest readManifest(File backupFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(backupFile)) {
+            ZipEntry entry = zipFile.getEntry(MANIFEST_ENTRY);
+            if (entry == null) {
+                return null;
+            }
+            
+            Properties properties = new Properties();
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                properties.load(in);
+            }
+            return Manifest.fromProperties(backupFile, properties);
+        }
+    }
+    
+    /**
+     * Find the archives to replay for a backup, full backup first
+     */
+    private static List<File> resolveChain(File backupFile) throws IOException {
+        List<File> chain = new ArrayList<>();
+        File current = backupFile;
+        
+        while (true) {
+            if (!current.isFile()) {
+                throw new IOException("Backup chain is broken, missing " + current.getName());
+            }
+            if (chain.contains(current)) {
+                throw new IOException("Backup chain loops at " + current.getName());
+            }
+            chain.add(current);
+            
+            Manifest manifest = readManifest(current);
+            if (manifest == null || !TYPE_DELTA.equals(manifest.type)) {
+                break;
+            }
+            current = new File(current.getParentFile(), manifest.parent);
+        }
+        
+        Collections.reverse(chain);
+        return chain;
     }
     
     public static void restoreBackup(String backupFile, int userId) throws IOException, SQLException {
-        try (Connection conn = DatabaseUtil.getConnection();
-             ZipFile zipFile = new ZipFile(backupFile)) {
+        restoreBackup(backupFile, userId, null);
+    }
+    
+    /**
+     * Restore a backup, replaying a delta's full backup and earlier deltas first
+     * @param backupFile The archive chosen by the user
+     * @param userId The user whose data to replace
+     * @param listener Receives progress while rows are restored; may be null
+     */
+    public static void restoreBackup(String backupFile, int userId, RestoreProgressListener listener) 
+            throws IOException, SQLException {
+        List<File> chain = resolveChain(new File(backupFile));
+        Manifest first = readManifest(chain.get(0));
+        if (first != null && TYPE_SNAPSHOT.equals(first.type)) {
+            throw new IOException("This is a whole-database snapshot. Restore it by closing the application and " +
+                                  "replacing personal_data.db with the file inside the archive.");
+        }
+        List<ZipFile> archives = new ArrayList<>(chain.size());
+        ExecutorService executor = null;
+        
+        BackupRepository.LOCK.readLock().lock();
+        try {
+            // The entries in the order they are applied: each table of the full backup, then
+            // each table of every delta followed by its deletions
+            List<ParsedEntry> entries = new ArrayList<>();
+            for (int i = 0; i < chain.size(); i++) {
+                ZipFile archive = new ZipFile(chain.get(i));
+                archives.add(archive);
+                for (String table : TABLES) {
+                    ZipEntry rows = BackupPipeline.findEntry(archive, table + ".csv");
+                    if (rows != null) {
+                        entries.add(new ParsedEntry(archive, rows, table, true, RESTORE_BATCH_SIZE));
+                    }
+                    ZipEntry deleted = i > 0 ? BackupPipeline.findEntry(archive, table + DELETED_SUFFIX) : null;
+                    if (deleted != null) {
+                        entries.add(new ParsedEntry(archive, deleted, table, false, RESTORE_BATCH_SIZE));
+                    }
+                }
+            }
+            RestoreProgress progress = new RestoreProgress(entries, listener);
             
-            // Begin transaction
-            conn.setAutoCommit(false);
-            try {
-                // Delete existing data
-                deleteUserData(conn, userId);
-                
-                // Restore each table
-                restoreTable(conn, zipFile, "passwords", userId);
-                restoreTable(conn, zipFile, "tasks", userId);
-                restoreTable(conn, zipFile, "contacts", userId);
-                
-                conn.commit();
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.setAutoCommit(true);
+            // Parse every entry concurrently. Parsers start in the order the writer needs them,
+            // so the entry being applied always has a running parser.
+            executor = BackupPipeline.newExecutor("BackupParser", entries.size());
+            for (ParsedEntry entry : entries) {
+                executor.execute(entry);
+            }
+            
+            // The writer applies the restore atomically; any failure rolls it back
+            DatabaseWriter.execute(conn -> {
+                try {
+                    // Delete existing data
+                    deleteUserData(conn, userId);
+                    
+                    // Restore each table from the full backup, then replay the deltas in order
+                    for (ParsedEntry entry : entries) {
+                        if (entry.entry.getName().startsWith(entry.tableName + DELETED_SUFFIX)) {
+                            restoreDeletions(conn, entry, userId, progress);
+                        } else {
+                            restoreTable(conn, entry, userId, entry.zipFile != archives.get(0), progress);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new SQLException("Error reading backup file: " + e.getMessage(), e);
+                }
+                return null;
+            });
+        } finally {
+            if (executor != null) {
+                // Stops parsers that are still waiting to hand over batches after a failure
+                executor.shutdownNow();
+            }
+            BackupRepository.LOCK.readLock().unlock();
+            for (ZipFile archive : archives) {
+                archive.close();
             }
         }
+        
+        // Backups made before the health aggregates restore passwords without scores
+        try {
+            PasswordHealthAggregates.scoreUnscored(userId);
+        } catch (GeneralSecurityException e) {
+            System.err.println("Error scoring restored passwords: " + e.getMessage());
+            e.printStackTrace();
+        }
     }
     
     private static void deleteUserData(Connection conn, int userId) throws SQLException {
-        String[] tables = {"passwords", "tasks", "contacts"};
-        for (String table : tables) {
-            String query = String.format("DELETE FROM %s WHERE user_id = ?", table);
+        for (String table : TABLES) {
+            String query = deleteUserDataSql(table);
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 pstmt.executeUpdate();
@@ -108,37 +689,221 @@ public class BackupUtil {
         }
     }
     
-    private static void restoreTable(Connection conn, ZipFile zipFile, String tableName, int userId) 
-            throws IOException, SQLException {
-        ZipEntry entry = zipFile.getEntry(tableName + ".csv");
-        if (entry == null) return;
+    private static void restoreTable(Connection conn, ParsedEntry entry, int userId, boolean replaceExisting,
+            RestoreProgress progress) throws IOException, SQLException {
+        String tableName = entry.tableName;
         
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(entry)))) {
-            // Read column headers
-            String headerLine = reader.readLine();
-            if (headerLine == null) return;
+        // Read column headers
+        String[] columns = entry.next();
+        if (columns == null) return;
+        for (String column : columns) {
+            if (column == null || !column.matches("\\w+")) {
+                throw new IOException("Invalid column name in " + entry.entry.getName() + ": " + column);
+            }
+        }
+        int idColumn = Arrays.asList(columns).indexOf("id");
+        
+        // Prepare insert statement
+        StringBuilder insertQuery = new StringBuilder("INSERT INTO " + tableName + " (");
+        insertQuery.append(String.join(",", columns)).append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            insertQuery.append(i > 0 ? ",?" : "?");
+        }
+        insertQuery.append(")");
+        
+        // A changed row replaces the version restored from an earlier archive. Deleting first
+        // rather than INSERT OR REPLACE keeps the search index triggers in step.
+        String deleteQuery = deleteRowSql(tableName);
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(insertQuery.toString());
+             PreparedStatement deleteStmt = conn.prepareStatement(deleteQuery)) {
+            int batched = 0;
+            String[] values;
+            while ((values = entry.next()) != null) {
+                if (values.length == 1 && values[0] == null) continue; // Blank line
+                if (values.length > columns.length) {
+                    throw new IOException("Record " + entry.getRecordNumber() + " of " + entry.entry.getName() +
+                                          " has " + values.length + " fields, expected " + columns.length);
+                }
+                
+                // Set every column, since batched parameters carry over between rows
+                for (int i = 0; i < columns.length; i++) {
+                    pstmt.setString(i + 1, i < values.length ? values[i] : null);
+                }
+                pstmt.addBatch();
+                
+                if (replaceExisting && idColumn >= 0 && idColumn < values.length) {
+                    deleteStmt.setString(1, values[idColumn]);
+                    deleteStmt.setInt(2, userId);
+                    deleteStmt.addBatch();
+                }
+                
+                if (++batched == RESTORE_BATCH_SIZE) {
+                    // Replaced rows must be gone before their new versions go in
+                    deleteStmt.executeBatch();
+                    pstmt.executeBatch();
+                    progress.update(tableName, batched, entry.getBytesRead());
+                    batched = 0;
+                }
+            }
             
-            String[] columns = headerLine.split(",");
+            deleteStmt.executeBatch();
+            pstmt.executeBatch();
+            progress.update(tableName, batched, entry.getBytesRead());
+            progress.entryDone(entry.entry);
+        }
+    }
+    
+    /**
+     * Delete the rows a delta archive records as deleted
+     */
+    private static void restoreDeletions(Connection conn, ParsedEntry entry, int userId, RestoreProgress progress) 
+            throws IOException, SQLException {
+        String query = deleteRowSql(entry.tableName);
+        try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+            // Skip the header line
+            entry.next();
             
-            // Prepare insert statement
-            StringBuilder insertQuery = new StringBuilder("INSERT INTO " + tableName + " (");
-            insertQuery.append(String.join(",", columns)).append(") VALUES (");
-            for (int i = 0; i < columns.length; i++) {
-                insertQuery.append(i > 0 ? ",?" : "?");
+            int batched = 0;
+            String[] values;
+            while ((values = entry.next()) != null) {
+                if (values[0] == null) continue;
+                pstmt.setLong(1, Long.parseLong(values[0].trim()));
+                pstmt.setInt(2, userId);
+                pstmt.addBatch();
+                
+                if (++batched == RESTORE_BATCH_SIZE) {
+                    pstmt.executeBatch();
+                    batched = 0;
+                }
+            }
+            pstmt.executeBatch();
+            progress.entryDone(entry.entry);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid row id in " + entry.entry.getName(), e);
+        }
+    }
+    
+    /**
+     * Receives progress while a backup is restored. Called on the database writer thread.
+     */
+    public interface RestoreProgressListener {
+        /**
+         * @param tableName The table being restored
+         * @param rowsRestored The number of rows restored so far, over all tables and archives
+         * @param percentComplete An estimate based on the amount of backup data read
+         */
+        void onProgress(String tableName, long rowsRestored, int percentComplete);
+    }
+    
+    /**
+     * Tracks rows restored and backup data read against the total size of the archives
+     */
+    private static class RestoreProgress {
+        private final RestoreProgressListener listener;
+        private long totalBytes = 0;
+        private long finishedBytes = 0;
+        private long rows = 0;
+        
+        RestoreProgress(List<ParsedEntry> entries, RestoreProgressListener listener) {
+            this.listener = listener;
+            for (ParsedEntry entry : entries) {
+                totalBytes += entrySize(entry.entry);
+            }
+        }
+        
+        void update(String tableName, int rowsAdded, long entryBytesRead) {
+            rows += rowsAdded;
+            if (listener != null) {
+                long done = Math.min(totalBytes, finishedBytes + entryBytesRead);
+                listener.onProgress(tableName, rows, totalBytes > 0 ? (int) (done * 100 / totalBytes) : 100);
+            }
+        }
+        
+        void entryDone(ZipEntry entry) {
+            finishedBytes += entrySize(entry);
+        }
+        
+        private static long entrySize(ZipEntry entry) {
+            // The size as read from the archive: compressed for .gz entries, plain for older ones
+            return entry != null ? Math.max(0, entry.getSize()) : 0;
+        }
+    }
+    
+    /**
+     * Pauses a running statement so it works for only dutyPercent of the wall-clock time.
+     * Interrupting the thread aborts the statement.
+     */
+    private static class SnapshotThrottle extends ProgressHandler {
+        private static final long SLICE_NANOS = 20_000_000L;
+        
+        private final int dutyPercent;
+        private long sliceStart = System.nanoTime();
+        
+        SnapshotThrottle(int dutyPercent) {
+            this.dutyPercent = dutyPercent;
+        }
+        
+        @Override
+        protected int progress() {
+            long worked = System.nanoTime() - sliceStart;
+            if (worked < SLICE_NANOS) {
+                return 0;
             }
-            insertQuery.append(")");
             
-            try (PreparedStatement pstmt = conn.prepareStatement(insertQuery.toString())) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] values = line.split(",(?=([^\\\\]|\\\\[^,])*$)");
-                    for (int i = 0; i < values.length; i++) {
-                        String value = values[i].replace("\\,", ",");
-                        pstmt.setString(i + 1, value.isEmpty() ? null : value);
-                    }
-                    pstmt.executeUpdate();
-                }
+            try {
+                Thread.sleep(worked * (100 - dutyPercent) / dutyPercent / 1_000_000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 1;
+            }
+            sliceStart = System.nanoTime();
+            return 0;
+        }
+    }
+    
+    /**
+     * The manifest stored in every backup archive
+     */
+    private static class Manifest {
+        File file;
+        String type;
+        int userId;
+        String parent;
+        int chainLength;
+        long changeSeq;
+        
+        Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("format_version", "2");
+            properties.setProperty("type", type);
+            properties.setProperty("user_id", String.valueOf(userId));
+            properties.setProperty("chain_length", String.valueOf(chainLength));
+            properties.setProperty("change_seq", String.valueOf(changeSeq));
+            properties.setProperty("created", LocalDateTime.now().toString());
+            if (parent != null) {
+                properties.setProperty("parent", parent);
+            }
+            return properties;
+        }
+        
+        static Manifest fromProperties(File file, Properties properties) throws IOException {
+            Manifest manifest = new Manifest();
+            manifest.file = file;
+            manifest.type = properties.getProperty("type", TYPE_FULL);
+            manifest.parent = properties.getProperty("parent");
+            try {
+                manifest.userId = Integer.parseInt(properties.getProperty("user_id", "0"));
+                manifest.chainLength = Integer.parseInt(properties.getProperty("chain_length", "0"));
+                manifest.changeSeq = Long.parseLong(properties.getProperty("change_seq", "0"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest in " + file.getName(), e);
+            }
+            
+            if (TYPE_DELTA.equals(manifest.type) && manifest.parent == null) {
+                throw new IOException("Delta backup " + file.getName() + " does not name its parent");
             }
+            return manifest;
         }
     }
 } 
\ No newline at end of file
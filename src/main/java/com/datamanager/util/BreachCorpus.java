@@ -0,0 +1,590 @@
+package com.datamanager.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Offline lookup of breached passwords in a local copy of a SHA-1 hash corpus, such as the
+ * Pwned Passwords list.
+ *
+ * The corpus is split by the first byte of the hash into 256 shard files, 00.shard to FF.shard.
+ * Each shard holds its hashes sorted, as fixed-width records of the remaining hash bytes and the
+ * number of times the password was seen, behind a fan-out table indexed by the second hash byte.
+ * {@link #refresh()} keeps only the fan-out tables in memory, so a full corpus of many gigabytes
+ * costs about 1 KB per shard; a lookup reads the one bucket of records sharing the hash's first
+ * two bytes and binary searches it, without touching the network. Shard files are opened per
+ * lookup rather than mapped, since Windows refuses to replace a mapped file. Shards are replaced
+ * by dropping new files into the corpus directory; {@link #refresh()} loads whatever changed. {@link #importHashes}
+ * builds or updates shards from the sorted "HASH:COUNT" text format the corpus is distributed in.
+ *
+ * Layout: magic, version, record count, 257 fan-out offsets, then the records, each 18 hash
+ * bytes followed by a 4-byte count.
+ */
+public class BreachCorpus {
+    static final byte[] MAGIC = "NHCEPWND".getBytes(StandardCharsets.US_ASCII);
+    
+    private static final int VERSION = 1;
+    private static final int SHARD_COUNT = 256;
+    private static final int HASH_LENGTH = 20;
+    private static final int SUFFIX_LENGTH = HASH_LENGTH - 2;
+    private static final int RECORD_LENGTH = SUFFIX_LENGTH + 4;
+    private static final int FANOUT_LENGTH = SHARD_COUNT + 1;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + FANOUT_LENGTH * 4;
+    private static final String SHARD_EXTENSION = ".shard";
+    private static final String DEFAULT_DIRECTORY = "breach-corpus";
+    
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    });
+    
+    private static BreachCorpus defaultCorpus;
+    
+    private final File directory;
+    private final AtomicReferenceArray<Shard> shards = new AtomicReferenceArray<>(SHARD_COUNT);
+    
+    /**
+     * Open a corpus directory. No shard is loaded until {@link #refresh()} is called.
+     * @param directory The directory holding the shard files
+     */
+    public BreachCorpus(File directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * The corpus in the directory set by the breach_corpus_dir setting, refreshed
+     * @return The corpus; it may hold no shards
+     */
+    public static synchronized BreachCorpus getDefault() {
+        String path = null;
+        try {
+            path = AppSettings.get("breach_corpus_dir");
+        } catch (SQLException e) {
+            System.err.println("Error reading breach corpus setting: " + e.getMessage());
+        }
+        File directory = new File(path != null && !path.isEmpty() ? path : DEFAULT_DIRECTORY);
+        
+        if (defaultCorpus == null || !defaultCorpus.directory.equals(directory)) {
+            defaultCorpus = new BreachCorpus(directory);
+        }
+        defaultCorpus.refresh();
+        return defaultCorpus;
+    }
+    
+    /**
+     * Load new and replaced shard files and drop the ones that were removed. Shards that fail to
+     * load are skipped until their file changes again.
+     * @return The number of shards available
+     */
+    public synchronized int refresh() {
+        int available = 0;
+        for (int prefix = 0; prefix < SHARD_COUNT; prefix++) {
+            File file = shardFile(directory, prefix);
+            Shard current = shards.get(prefix);
+            
+            if (!file.isFile()) {
+                shards.set(prefix, null);
+                continue;
+            }
+            if (current != null && current.isCurrent(file)) {
+                available += current.records >= 0 ? 1 : 0;
+                continue;
+            }
+            
+            Shard shard;
+            try {
+                shard = Shard.load(file);
+            } catch (IOException e) {
+                System.err.println("Skipping breach corpus shard " + file + ": " + e.getMessage());
+                shard = Shard.invalid(file);
+            }
+            shards.set(prefix, shard);
+            available += shard.records >= 0 ? 1 : 0;
+        }
+        return available;
+    }
+    
+    /**
+     * Whether any shard is loaded
+     */
+    public boolean isAvailable() {
+        for (int prefix = 0; prefix < SHARD_COUNT; prefix++) {
+            Shard shard = shards.get(prefix);
+            if (shard != null && shard.records >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * How often a password appears in the corpus
+     * @param password The password
+     * @return The breach count, or 0 if the password is not in the corpus
+     * @throws IOException If the password's shard could not be read
+     */
+    public int getBreachCount(String password) throws IOException {
+        return getBreachCount(password.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * How often a password appears in the corpus
+     * @param password The UTF-8 bytes of the password; the array is not modified
+     * @return The breach count, or 0 if the password is not in the corpus
+     * @throws IOException If the password's shard could not be read
+     */
+    public int getBreachCount(byte[] password) throws IOException {
+        MessageDigest sha1 = SHA1.get();
+        return getHashCount(sha1.digest(password));
+    }
+    
+    /**
+     * How often a SHA-1 hash appears in the corpus
+     * @param hash The 20-byte SHA-1 hash
+     * @return The breach count, or 0 if the hash is not in the corpus or its shard is missing
+     * @throws IOException If the hash's shard could not be read
+     */
+    public int getHashCount(byte[] hash) throws IOException {
+        Shard shard = shards.get(hash[0] & 0xff);
+        return shard != null ? shard.find(hash) : 0;
+    }
+    
+    /**
+     * Build shards from a hash list and move them into a corpus directory. The list is either one
+     * file of "HASH:COUNT" lines, or a directory of range files named by their 5-character hash
+     * prefix and holding "SUFFIX:COUNT" lines. Hashes must be in ascending order, as they are
+     * distributed. The list is merged into the shards already in the directory: a listed hash
+     * replaces the stored count, and stored hashes the list does not contain are kept, so a few
+     * range files update their part of a shard.
+     * @param source The hash list
+     * @param directory The corpus directory
+     * @return The number of hashes imported
+     */
+    public static long importHashes(File source, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        
+        File[] files;
+        if (source.isDirectory()) {
+            files = source.listFiles(File::isFile);
+            if (files == null) {
+                throw new IOException("Could not list " + source);
+            }
+            Arrays.sort(files);
+        } else {
+            files = new File[] {source};
+        }
+        
+        long imported = 0;
+        byte[] hash = new byte[HASH_LENGTH];
+        byte[] previous = null;
+        ShardWriter writer = null;
+        try {
+            for (File file : files) {
+                String rangePrefix = source.isDirectory() ? rangePrefix(file) : "";
+                if (rangePrefix == null) {
+                    continue;
+                }
+                
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII), 1 << 16)) {
+                    String line;
+                    int lineNumber = 0;
+                    while ((line = reader.readLine()) != null) {
+                        lineNumber++;
+                        line = line.trim();
+                        if (line.isEmpty()) {
+                            continue;
+                        }
+                        
+                        int count = parseLine(rangePrefix, line, hash);
+                        if (count < 0) {
+                            throw new IOException(file.getName() + ":" + lineNumber + ": not a hash: " + line);
+                        }
+                        if (previous != null && compare(previous, hash) >= 0) {
+                            throw new IOException(file.getName() + ":" + lineNumber + ": hashes are not in ascending order");
+                        }
+                        
+                        int prefix = hash[0] & 0xff;
+                        if (writer == null || writer.prefix != prefix) {
+                            if (writer != null) {
+                                writer.finish();
+                            }
+                            writer = new ShardWriter(directory, prefix);
+                        }
+                        writer.add(hash, count);
+                        previous = previous == null ? hash.clone() : copy(hash, previous);
+                        imported++;
+                    }
+                }
+            }
+            if (writer != null) {
+                writer.finish();
+                writer = null;
+            }
+        } finally {
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+        return imported;
+    }
+    
+    private static File shardFile(File directory, int prefix) {
+        return new File(directory, String.format("%02X", prefix) + SHARD_EXTENSION);
+    }
+    
+    /**
+     * The hash prefix a range file covers, or null if the file is not a range file
+     */
+    private static String rangePrefix(File file) {
+        String name = file.getName();
+        int dot = name.indexOf('.');
+        String prefix = dot >= 0 ? name.substring(0, dot) : name;
+        return prefix.length() == 5 && isHex(prefix) ? prefix : null;
+    }
+    
+    /**
+     * Parse one "HASH:COUNT" line into a hash
+     * @return The count, 1 if the line has none, or -1 if the line is not a hash
+     */
+    private static int parseLine(String rangePrefix, String line, byte[] hash) {
+        int colon = line.indexOf(':');
+        String hex = rangePrefix + (colon >= 0 ? line.substring(0, colon) : line);
+        if (hex.length() != HASH_LENGTH * 2 || !isHex(hex)) {
+            return -1;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            hash[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        
+        if (colon < 0) {
+            return 1;
+        }
+        try {
+            return Math.max(Integer.parseInt(line.substring(colon + 1).trim()), 1);
+        } catch (NumberFormatException e) {
+            // Counts above the int range only matter as "very often"
+            return line.substring(colon + 1).trim().matches("\\d+") ? Integer.MAX_VALUE : -1;
+        }
+    }
+    
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static byte[] copy(byte[] from, byte[] to) {
+        System.arraycopy(from, 0, to, 0, from.length);
+        return to;
+    }
+    
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * One shard file. Only its fan-out table is kept in memory; lookups read the records of one
+     * bucket from the file.
+     */
+    private static class Shard {
+        final File file;
+        final long length;
+        final long lastModified;
+        final int records;
+        final int[] fanout;
+        
+        private Shard(File file, int records, int[] fanout) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.records = records;
+            this.fanout = fanout;
+        }
+        
+        /**
+         * A placeholder for a file that could not be loaded, so it is not retried until it changes
+         */
+        static Shard invalid(File file) {
+            return new Shard(file, -1, null);
+        }
+        
+        /**
+         * Read and check the header of a shard file
+         */
+        static Shard load(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                    throw new IOException("unexpected size " + size);
+                }
+                
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+                readFully(channel, buffer, 0);
+                byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("not a breach corpus shard");
+                }
+                int version = buffer.get() & 0xff;
+                if (version != VERSION) {
+                    throw new IOException("unsupported version " + version);
+                }
+                int records = buffer.getInt();
+                if (records < 0 || HEADER_LENGTH + (long) records * RECORD_LENGTH != size) {
+                    throw new IOException("truncated or corrupt");
+                }
+                
+                int[] fanout = new int[FANOUT_LENGTH];
+                for (int i = 0; i < FANOUT_LENGTH; i++) {
+                    fanout[i] = buffer.getInt();
+                    if (fanout[i] < (i > 0 ? fanout[i - 1] : 0) || fanout[i] > records) {
+                        throw new IOException("corrupt fan-out table");
+                    }
+                }
+                if (fanout[SHARD_COUNT] != records) {
+                    throw new IOException("corrupt fan-out table");
+                }
+                return new Shard(file, records, fanout);
+            }
+        }
+        
+        boolean isCurrent(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+        
+        /**
+         * Read the records that share the hash's second byte and binary search them. The file is
+         * opened per lookup, so it is never held open for long.
+         */
+        int find(byte[] hash) throws IOException {
+            if (records <= 0) {
+                return 0;
+            }
+            int second = hash[1] & 0xff;
+            int first = fanout[second];
+            int count = fanout[second + 1] - first;
+            if (count == 0) {
+                return 0;
+            }
+            
+            ByteBuffer bucket = ByteBuffer.allocate(count * RECORD_LENGTH);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() != length) {
+                    throw new IOException("Breach corpus shard " + file + " changed since it was loaded");
+                }
+                readFully(channel, bucket, HEADER_LENGTH + (long) first * RECORD_LENGTH);
+            }
+            
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int offset = mid * RECORD_LENGTH;
+                int diff = 0;
+                for (int i = 0; i < SUFFIX_LENGTH && diff == 0; i++) {
+                    diff = (bucket.get(offset + i) & 0xff) - (hash[i + 2] & 0xff);
+                }
+                if (diff < 0) {
+                    low = mid + 1;
+                } else if (diff > 0) {
+                    high = mid - 1;
+                } else {
+                    return bucket.getInt(offset + SUFFIX_LENGTH);
+                }
+            }
+            return 0;
+        }
+        
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("truncated or corrupt");
+                }
+            }
+            buffer.flip();
+        }
+    }
+    
+    /**
+     * Writes one shard to a temporary file and moves it into place once complete, so a running
+     * app never loads a half-written shard. The records of the shard being replaced are merged
+     * with the added ones.
+     */
+    private static class ShardWriter {
+        final int prefix;
+        private final File target;
+        private final File temp;
+        private final DataOutputStream out;
+        private final int[] secondByteCounts = new int[SHARD_COUNT];
+        private int records;
+        private final Shard existing;
+        private final DataInputStream existingRecords;
+        private final byte[] existingHash = new byte[HASH_LENGTH];
+        private int existingCount;
+        private int existingIndex;
+        private int existingBucket;
+        private boolean existingPending;
+        
+        ShardWriter(File directory, int prefix) throws IOException {
+            this.prefix = prefix;
+            this.target = shardFile(directory, prefix);
+            this.temp = new File(directory, target.getName() + ".tmp");
+            try {
+                this.existing = target.isFile() ? Shard.load(target) : null;
+            } catch (IOException e) {
+                throw new IOException("Could not merge into " + target + ": " + e.getMessage() +
+                                      "; delete it to import the shard anew", e);
+            }
+            existingHash[0] = (byte) prefix;
+            if (existing != null) {
+                // The stored records are streamed in order alongside the added ones
+                existingRecords = new DataInputStream(new BufferedInputStream(new FileInputStream(target), 1 << 16));
+                existingRecords.readFully(new byte[HEADER_LENGTH]);
+            } else {
+                existingRecords = null;
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            // The header is filled in by finish()
+            out.write(new byte[HEADER_LENGTH]);
+        }
+        
+        void add(byte[] hash, int count) throws IOException {
+            // Keep the stored records that sort before the hash; a stored record of the same hash
+            // is replaced
+            while (nextExisting()) {
+                int diff = compare(existingHash, hash);
+                if (diff > 0) {
+                    break;
+                }
+                existingPending = false;
+                if (diff == 0) {
+                    break;
+                }
+                write(existingHash, existingCount);
+            }
+            write(hash, count);
+        }
+        
+        /**
+         * Read the next stored record into existingHash and existingCount, unless the last one
+         * read has not been written yet
+         * @return false once every stored record has been written
+         */
+        private boolean nextExisting() throws IOException {
+            if (existingPending) {
+                return true;
+            }
+            if (existing == null || existingIndex >= existing.records) {
+                return false;
+            }
+            // The second byte is the fan-out bucket holding the record
+            while (existing.fanout[existingBucket + 1] <= existingIndex) {
+                existingBucket++;
+            }
+            existingHash[1] = (byte) existingBucket;
+            existingRecords.readFully(existingHash, 2, SUFFIX_LENGTH);
+            existingCount = existingRecords.readInt();
+            existingIndex++;
+            existingPending = true;
+            return true;
+        }
+        
+        private void write(byte[] hash, int count) throws IOException {
+            if ((long) HEADER_LENGTH + (long) (records + 1) * RECORD_LENGTH > Integer.MAX_VALUE) {
+                throw new IOException("Shard " + target.getName() + " is too large");
+            }
+            secondByteCounts[hash[1] & 0xff]++;
+            out.write(hash, 2, SUFFIX_LENGTH);
+            out.writeInt(count);
+            records++;
+        }
+        
+        void finish() throws IOException {
+            while (nextExisting()) {
+                existingPending = false;
+                write(existingHash, existingCount);
+            }
+            if (existingRecords != null) {
+                // Closed before the move, which Windows refuses while the file is open
+                existingRecords.close();
+            }
+            out.close();
+            
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                raf.write(MAGIC);
+                raf.writeByte(VERSION);
+                raf.writeInt(records);
+                int offset = 0;
+                for (int i = 0; i < FANOUT_LENGTH; i++) {
+                    raf.writeInt(offset);
+                    if (i < SHARD_COUNT) {
+                        offset += secondByteCounts[i];
+                    }
+                }
+                raf.getFD().sync();
+            }
+            
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Already failing; the temporary file is removed below
+            }
+            try {
+                if (existingRecords != null) {
+                    existingRecords.close();
+                }
+            } catch (IOException e) {
+                // Only read from
+            }
+            if (temp.exists() && !temp.delete()) {
+                System.err.println("Could not delete " + temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.datamanager.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+
+/**
+ * A browser's saved logins, read straight from its profile directory.
+ *
+ * Implementations decrypt one login at a time and hand it to a {@link Consumer}, so an import
+ * never holds the whole password store in memory. Only profiles on Linux without a primary
+ * password or keyring secret can be read.
+ */
+public interface BrowserCredentialSource {
+    
+    /**
+     * The browser's display name
+     */
+    String getName();
+    
+    /**
+     * The profile directory being read
+     */
+    File getProfileDirectory();
+    
+    /**
+     * Read every saved login
+     * @param consumer Receives each login as soon as it has been decrypted
+     * @return The number of logins that were skipped because they could not be decrypted
+     * @throws IOException If the profile's files are missing or malformed
+     */
+    int read(Consumer consumer) throws IOException, GeneralSecurityException, SQLException;
+    
+    /**
+     * Receives decrypted logins
+     */
+    interface Consumer {
+        void accept(String url, String username, String password);
+    }
+    
+    /**
+     * Find the default profile of a browser for the current user
+     * @param browserType "chrome" or "firefox"
+     * @return The source, or null if the browser has no profile on this machine
+     * @throws IllegalArgumentException If the browser is not supported
+     */
+    static BrowserCredentialSource forBrowser(String browserType) throws IOException {
+        if ("chrome".equalsIgnoreCase(browserType)) {
+            File profile = ChromeCredentialSource.findDefaultProfile();
+            return profile != null ? new ChromeCredentialSource(profile) : null;
+        } else if ("firefox".equalsIgnoreCase(browserType)) {
+            File profile = FirefoxCredentialSource.findDefaultProfile();
+            return profile != null ? new FirefoxCredentialSource(profile) : null;
+        }
+        throw new IllegalArgumentException("Unsupported browser type: " + browserType);
+    }
+}
@@ -1,5 +1,6 @@
 package com.datamanager.util;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -19,6 +20,15 @@ import org.json.simple.JSONArray;
  */
 public class BrowserExtensionUtil {
     
+    static final String CREDENTIALS_FOR_URL_SQL =
+        "SELECT id, website, username, encrypted_password, url_pattern " +
+        "FROM passwords " +
+        "WHERE auto_fill_enabled = 1 AND " +
+        "(website = ? OR ? LIKE url_pattern OR url_pattern IS NULL)";
+    static final String UPDATE_LAST_USED_SQL = "UPDATE passwords SET last_used = ? WHERE id = ?";
+    static final String UPDATE_URL_PATTERN_SQL = "UPDATE passwords SET url_pattern = ? WHERE id = ?";
+    static final String UPDATE_AUTO_FILL_SQL = "UPDATE passwords SET auto_fill_enabled = ? WHERE id = ?";
+    
     private static final int SERVER_PORT = 45678; // Local port for extension communication
     private static boolean serverRunning = false;
     private static SimpleHttpServer server;
@@ -108,33 +118,33 @@ public class BrowserExtensionUtil {
     private static String getCredentialsForUrl(String url) {
         JSONArray credentialsArray = new JSONArray();
         
-        try (Connection conn = DatabaseUtil.getConnection()) {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
             // Find credentials that match URL patterns
-            String query = "SELECT id, website, username, encrypted_password, url_pattern " +
-                         "FROM passwords " +
-                         "WHERE auto_fill_enabled = 1 AND " +
-                         "(website = ? OR ? LIKE url_pattern OR url_pattern IS NULL)";
+            String query = CREDENTIALS_FOR_URL_SQL;
             
             try (PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setString(1, url);
                 stmt.setString(2, url);
                 
+                List<String> encryptedPasswords = new ArrayList<>();
                 ResultSet rs = stmt.executeQuery();
                 while (rs.next()) {
                     JSONObject credential = new JSONObject();
                     credential.put("id", rs.getInt("id"));
                     credential.put("website", rs.getString("website"));
                     credential.put("username", rs.getString("username"));
-                    
-                    // Decrypt password
-                    String encryptedPassword = rs.getString("encrypted_password");
-                    String decryptedPassword = SecurityUtil.decryptPassword(encryptedPassword, "your-encryption-key");
-                    credential.put("password", decryptedPassword);
+                    encryptedPasswords.add(rs.getString("encrypted_password"));
                     
                     credentialsArray.add(credential);
                 }
+                
+                // Decrypt passwords
+                SecurityUtil.decryptAll(encryptedPasswords, "your-encryption-key", (index, plaintext) -> {
+                    JSONObject credential = (JSONObject) credentialsArray.get(index);
+                    credential.put("password", plaintext != null ? new String(plaintext) : null);
+                });
             }
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             e.printStackTrace();
             return "{\"status\":\"error\",\"message\":\"Database error\"}";
         }
@@ -150,16 +160,18 @@ public class BrowserExtensionUtil {
      * Updates the last used timestamp for a credential
      */
     private static void updateCredentialUsage(int credentialId) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "UPDATE passwords SET last_used = ? WHERE id = ?";
+        DatabaseWriter.submit(conn -> {
+            String query = UPDATE_LAST_USED_SQL;
             try (PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
                 stmt.setInt(2, credentialId);
                 stmt.executeUpdate();
             }
-        } catch (SQLException e) {
+            return null;
+        }).exceptionally(e -> {
             e.printStackTrace();
-        }
+            return null;
+        });
     }
     
     /**
@@ -181,32 +193,36 @@ public class BrowserExtensionUtil {
      * Updates the URL pattern for a password entry
      */
     public static void updateUrlPattern(int passwordId, String urlPattern) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "UPDATE passwords SET url_pattern = ? WHERE id = ?";
+        DatabaseWriter.submit(conn -> {
+            String query = UPDATE_URL_PATTERN_SQL;
             try (PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setString(1, urlPattern);
                 stmt.setInt(2, passwordId);
                 stmt.executeUpdate();
             }
-        } catch (SQLException e) {
+            return null;
+        }).exceptionally(e -> {
             e.printStackTrace();
-        }
+            return null;
+        });
     }
     
     /**
      * Toggles auto-fill for a password entry
      */
     public static void toggleAutoFill(int passwordId, boolean enabled) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "UPDATE passwords SET auto_fill_enabled = ? WHERE id = ?";
+        DatabaseWriter.submit(conn -> {
+            String query = UPDATE_AUTO_FILL_SQL;
             try (PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setInt(1, enabled ? 1 : 0);
                 stmt.setInt(2, passwordId);
                 stmt.executeUpdate();
             }
-        } catch (SQLException e) {
+            return null;
+        }).exceptionally(e -> {
             e.printStackTrace();
-        }
+            return null;
+        });
     }
     
     /**
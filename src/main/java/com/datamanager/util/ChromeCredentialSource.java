@@ -0,0 +1,144 @@
+package com.datamanager.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reads the saved logins of a Chrome or Chromium profile on Linux.
+ *
+ * Logins live in the profile's "Login Data" SQLite database. Passwords prefixed with "v10" are
+ * AES-128-CBC encrypted under a key derived from the fixed password "peanuts", which Chrome
+ * uses when no desktop keyring is available. "v11" passwords are encrypted with a secret held
+ * in the keyring and are skipped.
+ */
+class ChromeCredentialSource implements BrowserCredentialSource {
+    private static final String[] CONFIG_DIRECTORIES = {"google-chrome", "chromium", "google-chrome-beta"};
+    private static final byte[] V10_PREFIX = "v10".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] V11_PREFIX = "v11".getBytes(StandardCharsets.US_ASCII);
+    
+    private final File profileDirectory;
+    
+    /**
+     * @param profileDirectory The profile, e.g. ~/.config/google-chrome/Default
+     */
+    ChromeCredentialSource(File profileDirectory) {
+        this.profileDirectory = profileDirectory;
+    }
+    
+    /**
+     * Find the Default profile of the first installed Chrome or Chromium
+     * @return The profile directory, or null if there is none
+     */
+    static File findDefaultProfile() {
+        String configHome = System.getenv("XDG_CONFIG_HOME");
+        File config = configHome != null && !configHome.isEmpty()
+                ? new File(configHome) : new File(System.getProperty("user.home"), ".config");
+        
+        for (String name : CONFIG_DIRECTORIES) {
+            File profile = new File(new File(config, name), "Default");
+            if (new File(profile, "Login Data").isFile()) {
+                return profile;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public String getName() {
+        return "Chrome";
+    }
+    
+    @Override
+    public File getProfileDirectory() {
+        return profileDirectory;
+    }
+    
+    @Override
+    public int read(Consumer consumer) throws IOException, GeneralSecurityException, SQLException {
+        File loginData = new File(profileDirectory, "Login Data");
+        if (!loginData.isFile()) {
+            throw new IOException("No Chrome login database in " + profileDirectory);
+        }
+        
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        SecretKey key = v10Key();
+        IvParameterSpec iv = new IvParameterSpec(fill(16, (byte) ' '));
+        int skipped = 0;
+        
+        // immutable stops SQLite from taking locks, so the database can be read while Chrome has it open
+        String url = "jdbc:sqlite:file:" + loginData.toURI().getRawPath() + "?immutable=1";
+        try (Connection conn = DriverManager.getConnection(url);
+             PreparedStatement stmt = conn.prepareStatement(
+                 "SELECT origin_url, username_value, password_value FROM logins WHERE blacklisted_by_user = 0")) {
+            ResultSet rs = stmt.executeQuery();
+            
+            while (rs.next()) {
+                byte[] value = rs.getBytes("password_value");
+                String password;
+                if (value == null || value.length == 0) {
+                    continue;
+                } else if (startsWith(value, V10_PREFIX)) {
+                    try {
+                        cipher.init(Cipher.DECRYPT_MODE, key, iv);
+                        byte[] plain = cipher.doFinal(value, V10_PREFIX.length, value.length - V10_PREFIX.length);
+                        password = new String(plain, StandardCharsets.UTF_8);
+                        Arrays.fill(plain, (byte) 0);
+                    } catch (GeneralSecurityException e) {
+                        skipped++;
+                        continue;
+                    }
+                } else if (startsWith(value, V11_PREFIX)) {
+                    // Needs the secret from the desktop keyring
+                    skipped++;
+                    continue;
+                } else {
+                    // Very old profiles stored passwords unencrypted
+                    password = new String(value, StandardCharsets.UTF_8);
+                }
+                
+                consumer.accept(rs.getString("origin_url"), rs.getString("username_value"), password);
+            }
+        }
+        
+        return skipped;
+    }
+    
+    private static SecretKey v10Key() throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec("peanuts".toCharArray(), "saltysalt".getBytes(StandardCharsets.US_ASCII),
+                                         1, 128);
+        byte[] keyBytes = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+    
+    private static byte[] fill(int length, byte value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+    
+    private static boolean startsWith(byte[] value, byte[] prefix) {
+        if (value.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (value[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
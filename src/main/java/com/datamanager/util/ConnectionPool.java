@@ -0,0 +1,353 @@
+package com.datamanager.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of SQLite connections made up of one writer and a fixed number of readers.
+ *
+ * Handles handed out by the pool are thread-confined: a thread that already holds a writer or
+ * reader handle gets the same physical connection back when it asks again, so nested calls
+ * (a DAO method calling another DAO method) never deadlock on the pool. Closing a handle returns
+ * the connection to the pool instead of closing the underlying SQLite connection.
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+    private final Slot writerSlot = new Slot();
+    private final BlockingQueue<Slot> idleReaders;
+    private final ThreadLocal<ReaderLease> readerLease = new ThreadLocal<>();
+    private volatile int generation = 0;
+
+    // Pool metrics
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * Creates a pool for the given JDBC URL
+     * @param url The SQLite JDBC URL
+     * @param readerCount The number of reader connections to keep
+     */
+    public ConnectionPool(String url, int readerCount) {
+        if (readerCount < 1) {
+            throw new IllegalArgumentException("Reader pool needs at least one connection");
+        }
+        this.url = url;
+        this.idleReaders = new ArrayBlockingQueue<>(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            idleReaders.add(new Slot());
+        }
+    }
+
+    /**
+     * Checks out the writer connection. Blocks while another thread holds it.
+     */
+    public Connection getWriter() throws SQLException {
+        checkouts.incrementAndGet();
+        if (!writerLock.tryLock()) {
+            long start = System.nanoTime();
+            waits.incrementAndGet();
+            writerLock.lock();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        try {
+            ensureOpen(writerSlot, false);
+        } catch (SQLException e) {
+            writerLock.unlock();
+            throw e;
+        }
+        return wrap(writerSlot.connection, this::releaseWriter);
+    }
+
+    /**
+     * Checks out a reader connection. A thread that currently holds the writer gets the writer
+     * back so it can see its own uncommitted changes.
+     */
+    public Connection getReader() throws SQLException {
+        if (writerLock.isHeldByCurrentThread()) {
+            return getWriter();
+        }
+
+        checkouts.incrementAndGet();
+        ReaderLease lease = readerLease.get();
+        if (lease != null) {
+            lease.depth++;
+            return wrap(lease.slot.connection, this::releaseReader);
+        }
+
+        Slot slot = idleReaders.poll();
+        if (slot == null) {
+            long start = System.nanoTime();
+            waits.incrementAndGet();
+            try {
+                slot = idleReaders.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            }
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        try {
+            ensureOpen(slot, true);
+        } catch (SQLException e) {
+            idleReaders.add(slot);
+            throw e;
+        }
+
+        lease = new ReaderLease(slot);
+        readerLease.set(lease);
+        return wrap(slot.connection, this::releaseReader);
+    }
+
+    /**
+     * Closes all physical connections. Connections currently checked out are closed when they are
+     * returned; the pool reopens connections lazily on the next checkout.
+     */
+    public void close() {
+        generation++;
+
+        writerLock.lock();
+        try {
+            closeQuietly(writerSlot);
+        } finally {
+            writerLock.unlock();
+        }
+
+        for (Slot slot : idleReaders) {
+            synchronized (slot) {
+                closeQuietly(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pool metrics
+     */
+    public Stats getStats() {
+        return new Stats(checkouts.get(), waits.get(), waitNanos.get() / 1_000_000L, reconnects.get());
+    }
+
+    /**
+     * Hook for opening a physical connection; also applies the per-connection PRAGMAs.
+     */
+    protected Connection openConnection(boolean reader) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = 5000");
+            if (reader) {
+                stmt.execute("PRAGMA query_only = 1");
+            } else {
+                // WAL is crash-safe with NORMAL; only the last commits can be lost on power failure
+                stmt.execute("PRAGMA synchronous = NORMAL");
+                stmt.execute("PRAGMA wal_autocheckpoint = 2000");
+                stmt.execute("PRAGMA journal_size_limit = 67108864");
+            }
+        }
+        return conn;
+    }
+
+    private void ensureOpen(Slot slot, boolean reader) throws SQLException {
+        synchronized (slot) {
+            if (slot.connection != null && slot.generation == generation && !slot.connection.isClosed()) {
+                return;
+            }
+            if (slot.connection != null) {
+                reconnects.incrementAndGet();
+                closeQuietly(slot);
+            }
+            slot.connection = openConnection(reader);
+            slot.generation = generation;
+        }
+    }
+
+    private void releaseWriter() {
+        try {
+            if (writerLock.getHoldCount() == 1) {
+                resetState(writerSlot);
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private void releaseReader() {
+        ReaderLease lease = readerLease.get();
+        if (lease == null) {
+            // Readers served by the writer are released through releaseWriter, so this handle
+            // was checked out by another thread
+            throw new IllegalStateException("reader handle closed on a different thread");
+        }
+
+        if (--lease.depth > 0) {
+            return;
+        }
+
+        readerLease.remove();
+        resetState(lease.slot);
+        idleReaders.add(lease.slot);
+    }
+
+    /**
+     * Puts a connection back into autocommit mode, rolling back anything left open, and closes it
+     * if the pool was closed while it was checked out.
+     */
+    private void resetState(Slot slot) {
+        synchronized (slot) {
+            if (slot.connection == null) {
+                return;
+            }
+            try {
+                if (slot.generation != generation) {
+                    closeQuietly(slot);
+                } else if (!slot.connection.isClosed() && !slot.connection.getAutoCommit()) {
+                    slot.connection.rollback();
+                    slot.connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                System.err.println("Error resetting pooled connection: " + e.getMessage());
+                closeQuietly(slot);
+            }
+        }
+    }
+
+    private static void closeQuietly(Slot slot) {
+        if (slot.connection == null) {
+            return;
+        }
+        try {
+            slot.connection.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing pooled connection: " + e.getMessage());
+        }
+        slot.connection = null;
+    }
+
+    private static Connection wrap(Connection physical, Runnable release) {
+        return (Connection) Proxy.newProxyInstance(
+            ConnectionPool.class.getClassLoader(),
+            new Class<?>[] { Connection.class },
+            new HandleInvocationHandler(physical, release));
+    }
+
+    /**
+     * A pooled physical connection
+     */
+    private static class Slot {
+        Connection connection;
+        int generation;
+    }
+
+    /**
+     * Tracks how many nested reader handles the current thread holds
+     */
+    private static class ReaderLease {
+        final Slot slot;
+        int depth = 1;
+
+        ReaderLease(Slot slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Forwards calls to the physical connection and turns close() into a return to the pool
+     */
+    private static class HandleInvocationHandler implements InvocationHandler {
+        private final Connection physical;
+        private final Runnable release;
+        private boolean released;
+
+        HandleInvocationHandler(Connection physical, Runnable release) {
+            this.physical = physical;
+            this.release = release;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        // Marked only once released, so a close rejected on the wrong thread
+                        // can still be repeated by the owner
+                        release.run();
+                        released = true;
+                    }
+                    return null;
+                case "isClosed":
+                    return released || physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + physical + (released ? ", released]" : "]");
+                default:
+                    break;
+            }
+
+            if (released) {
+                throw new SQLException("Connection handle has already been returned to the pool");
+            }
+
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Snapshot of pool metrics
+     */
+    public static class Stats {
+        private final long checkouts;
+        private final long waits;
+        private final long waitMillis;
+        private final long reconnects;
+
+        Stats(long checkouts, long waits, long waitMillis, long reconnects) {
+            this.checkouts = checkouts;
+            this.waits = waits;
+            this.waitMillis = waitMillis;
+            this.reconnects = reconnects;
+        }
+
+        public long getCheckouts() {
+            return checkouts;
+        }
+
+        public long getWaits() {
+            return waits;
+        }
+
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        @Override
+        public String toString() {
+            return "checkouts=" + checkouts + ", waits=" + waits +
+                   ", waitMillis=" + waitMillis + ", reconnects=" + reconnects;
+        }
+    }
+}
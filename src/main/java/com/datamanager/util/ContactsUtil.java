@@ -0,0 +1,60 @@
+package com.datamanager.util;
+
+import java.sql.*;
+import java.util.*;
+
+public class ContactsUtil {
+    static final String SEARCH_CONTACTS_SQL =
+        "SELECT c.name, c.phone, c.email, c.company, c.category, c.is_favorite " +
+        "FROM contacts_fts f JOIN contacts c ON c.id = f.rowid " +
+        "WHERE contacts_fts MATCH ? AND c.user_id = ? " +
+        "ORDER BY f.rank LIMIT ? OFFSET ?";
+    
+    /**
+     * Search contacts for a user
+     */
+    public static List<Map<String, Object>> searchContacts(int userId, String searchTerm) throws SQLException {
+        return searchContacts(userId, searchTerm, 0, FullTextSearch.DEFAULT_PAGE_SIZE).getHits();
+    }
+    
+    /**
+     * Ranked prefix search over contact names, phone numbers, emails, companies, categories and notes
+     * @param userId The user whose contacts to search
+     * @param searchTerm The text typed by the user
+     * @param offset The number of hits to skip
+     * @param limit The page size
+     * @return One page of matching contacts, best match first
+     */
+    public static SearchPage<Map<String, Object>> searchContacts(int userId, String searchTerm, int offset, int limit)
+            throws SQLException {
+        FullTextSearch.checkPage(offset, limit);
+        String match = FullTextSearch.toPrefixQuery(searchTerm);
+        if (match == null) {
+            return SearchPage.empty(offset);
+        }
+        
+        List<Map<String, Object>> contacts = new ArrayList<>();
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = SEARCH_CONTACTS_SQL;
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setString(1, match);
+                pstmt.setInt(2, userId);
+                pstmt.setInt(3, FullTextSearch.fetchSize(limit));
+                pstmt.setInt(4, offset);
+                ResultSet rs = pstmt.executeQuery();
+                
+                while (rs.next()) {
+                    Map<String, Object> contact = new HashMap<>();
+                    contact.put("name", rs.getString("name"));
+                    contact.put("phone", rs.getString("phone"));
+                    contact.put("email", rs.getString("email"));
+                    contact.put("company", rs.getString("company"));
+                    contact.put("category", rs.getString("category"));
+                    contact.put("favorite", rs.getInt("is_favorite") == 1);
+                    contacts.add(contact);
+                }
+            }
+        }
+        return new SearchPage<>(contacts, offset, limit);
+    }
+}
@@ -0,0 +1,198 @@
+package com.datamanager.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM encryption with a key derived once per session.
+ *
+ * The on-disk format is the one SecurityUtil has always written: a 12-byte random IV followed
+ * by the ciphertext and a 16-byte tag, Base64-encoded when stored as text. The key is the first
+ * 16 bytes of SHA-256 over the key string. Each thread gets its own Cipher instance, so a context
+ * can be shared by the UI, the browser extension server and background report jobs.
+ *
+ * A second key, derived from the same digest, keys the reuse digests that let password health
+ * aggregates group equal passwords without decrypting them.
+ */
+public class CryptoContext {
+    public static final int IV_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+    
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String DIGEST_ALGORITHM = "HmacSHA256";
+    private static final byte[] DIGEST_KEY_LABEL = "password-reuse-digest".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Map<String, CryptoContext> contexts = new ConcurrentHashMap<>();
+    
+    private final SecretKeySpec key;
+    private final SecretKeySpec digestKey;
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance(DIGEST_ALGORITHM);
+            mac.init(getDigestKey());
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    });
+    
+    private CryptoContext(String encryptionKey) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(encryptionKey.getBytes());
+        byte[] keyBytes = Arrays.copyOf(digest, 16); // AES key length: 16 bytes
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        
+        Mac derive = Mac.getInstance(DIGEST_ALGORITHM);
+        derive.init(new SecretKeySpec(digest, DIGEST_ALGORITHM));
+        byte[] digestKeyBytes = derive.doFinal(DIGEST_KEY_LABEL);
+        this.digestKey = new SecretKeySpec(digestKeyBytes, DIGEST_ALGORITHM);
+        Arrays.fill(digestKeyBytes, (byte) 0);
+        Arrays.fill(digest, (byte) 0);
+        Arrays.fill(keyBytes, (byte) 0);
+    }
+    
+    private SecretKeySpec getDigestKey() {
+        return digestKey;
+    }
+    
+    /**
+     * Get the context for an encryption key, deriving the AES key on first use
+     * @param encryptionKey The encryption key string
+     */
+    public static CryptoContext forKey(String encryptionKey) throws GeneralSecurityException {
+        CryptoContext context = contexts.get(encryptionKey);
+        if (context == null) {
+            context = new CryptoContext(encryptionKey);
+            CryptoContext existing = contexts.putIfAbsent(encryptionKey, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+    
+    /**
+     * Forget all derived keys, e.g. on logout
+     */
+    public static void clear() {
+        contexts.clear();
+    }
+    
+    /**
+     * The size of the encrypted form of a plaintext
+     * @param plaintextLength The plaintext length in bytes
+     */
+    public static int encryptedLength(int plaintextLength) {
+        return IV_LENGTH + plaintextLength + TAG_LENGTH;
+    }
+    
+    /**
+     * Encrypt a string and encode the result as Base64
+     */
+    public String encryptToBase64(String data) throws GeneralSecurityException {
+        return Base64.getEncoder().encodeToString(encrypt(data.getBytes()));
+    }
+    
+    /**
+     * Decode a Base64 string and decrypt it
+     */
+    public String decryptFromBase64(String encryptedData) throws GeneralSecurityException {
+        return new String(decrypt(Base64.getDecoder().decode(encryptedData)));
+    }
+    
+    /**
+     * Encrypt bytes
+     * @param plaintext The data to encrypt
+     * @return The IV followed by the ciphertext and tag
+     */
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        byte[] combined = new byte[encryptedLength(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(combined));
+        return combined;
+    }
+    
+    /**
+     * Decrypt bytes produced by {@link #encrypt(byte[])}
+     */
+    public byte[] decrypt(byte[] combined) throws GeneralSecurityException {
+        return decrypt(combined, 0, combined.length);
+    }
+    
+    /**
+     * Decrypt a slice of a buffer holding the IV, ciphertext and tag
+     * @param data The buffer
+     * @param offset The start of the encrypted value
+     * @param length The length of the encrypted value
+     */
+    public byte[] decrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+        checkEncryptedLength(length);
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, data, offset, IV_LENGTH));
+        return cipher.doFinal(data, offset + IV_LENGTH, length - IV_LENGTH);
+    }
+    
+    /**
+     * Encrypt all remaining bytes of the input into the output buffer
+     * @param input The plaintext; its position is advanced to its limit
+     * @param output Receives the IV, ciphertext and tag; needs {@link #encryptedLength} bytes
+     * @return The number of bytes written to the output
+     */
+    public int encrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        output.put(iv);
+        return IV_LENGTH + cipher.doFinal(input, output);
+    }
+    
+    /**
+     * Decrypt all remaining bytes of the input into the output buffer
+     * @param input The IV, ciphertext and tag; its position is advanced to its limit
+     * @param output Receives the plaintext
+     * @return The number of bytes written to the output
+     */
+    public int decrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        checkEncryptedLength(input.remaining());
+        byte[] iv = new byte[IV_LENGTH];
+        input.get(iv);
+        
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        return cipher.doFinal(input, output);
+    }
+    
+    /**
+     * A keyed digest of a plaintext, equal for equal plaintexts under the same key and
+     * meaningless without it
+     * @param plaintext The plaintext bytes, as encrypted by this context
+     * @return The HMAC-SHA256 digest, Base64-encoded
+     */
+    public String reuseDigest(byte[] plaintext) {
+        return Base64.getEncoder().encodeToString(macs.get().doFinal(plaintext));
+    }
+    
+    private static void checkEncryptedLength(int length) throws GeneralSecurityException {
+        if (length < IV_LENGTH + TAG_LENGTH) {
+            throw new GeneralSecurityException("Encrypted value is too short: " + length + " bytes");
+        }
+    }
+}
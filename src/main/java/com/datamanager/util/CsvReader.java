@@ -0,0 +1,151 @@
+package com.datamanager.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming CSV tokenizer.
+ *
+ * Reads one record at a time from a Reader without splitting lines first, so quoted fields may
+ * contain commas, doubled quotes and line breaks (RFC 4180). Backups written before fields were
+ * quoted escape commas as \, instead; with legacy escapes enabled an unquoted \, is read as a
+ * comma. Unquoted empty fields are returned as null, quoted empty fields as "".
+ */
+public class CsvReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Reader reader;
+    private final boolean legacyEscapes;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder field = new StringBuilder();
+    private final List<String> record = new ArrayList<>();
+    private int position = 0;
+    private int limit = 0;
+    private long charsRead = 0;
+    private long recordNumber = 0;
+    
+    /**
+     * Create a tokenizer
+     * @param reader The CSV text; it is read in blocks, so it needs no buffering of its own
+     * @param legacyEscapes Whether to read an unquoted \, as a comma
+     */
+    public CsvReader(Reader reader, boolean legacyEscapes) {
+        this.reader = reader;
+        this.legacyEscapes = legacyEscapes;
+    }
+    
+    /**
+     * Read the next record
+     * @return The fields of the record, or null at the end of the input. The array is new for
+     *         every record.
+     */
+    public String[] readRecord() throws IOException {
+        record.clear();
+        int c = read();
+        if (c < 0) {
+            return null;
+        }
+        recordNumber++;
+        
+        while (true) {
+            boolean quoted = false;
+            field.setLength(0);
+            
+            if (c == '"') {
+                quoted = true;
+                c = readQuoted();
+            } else {
+                while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                    if (c == '\\' && legacyEscapes) {
+                        c = read();
+                        if (c == ',') {
+                            field.append(',');
+                            c = read();
+                        } else {
+                            field.append('\\');
+                        }
+                        continue;
+                    }
+                    field.append((char) c);
+                    c = read();
+                }
+            }
+            
+            record.add(quoted || field.length() > 0 ? field.toString() : null);
+            
+            if (c == ',') {
+                c = read();
+                continue;
+            }
+            if (c == '\r') {
+                // Accept \r\n as well as \n
+                c = read();
+                if (c != '\n' && c >= 0) {
+                    position--;
+                    charsRead--;
+                }
+            }
+            return record.toArray(new String[0]);
+        }
+    }
+    
+    /**
+     * The number of characters consumed so far, for progress reporting
+     */
+    public long getCharsRead() {
+        return charsRead;
+    }
+    
+    /**
+     * The 1-based number of the record last returned, for error messages
+     */
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+    
+    /**
+     * Read a quoted field after its opening quote
+     * @return The character after the closing quote
+     */
+    private int readQuoted() throws IOException {
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw new IOException("Unterminated quoted field in record " + recordNumber);
+            }
+            if (c == '"') {
+                c = read();
+                if (c != '"') {
+                    // Closing quote; anything up to the next separator is kept as written
+                    while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                        field.append((char) c);
+                        c = read();
+                    }
+                    return c;
+                }
+            }
+            field.append((char) c);
+        }
+    }
+    
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        charsRead++;
+        return buffer[position++];
+    }
+}
@@ -2,27 +2,22 @@ package com.datamanager.util;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
+import javax.crypto.CipherInputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.swing.JOptionPane;
-import javax.swing.JPasswordField;
 
-import org.json.simple.JSONObject;
-import org.json.simple.JSONArray;
-import org.json.simple.parser.JSONParser;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
 
 /**
@@ -30,7 +25,16 @@ import org.json.simple.parser.ParseException;
  */
 public class DataTransferUtil {
     
-    private static final String ENCRYPTION_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final String LEGACY_MAGIC = "NHCEENC";
+    private static final String LEGACY_ENCRYPTION_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    
+    static final String LOAD_PASSWORD_ROWS_SQL =
+        "SELECT website, username, encrypted_password, url_pattern, " +
+        "last_used, strength_score, auto_fill_enabled FROM passwords WHERE user_id = ?";
+    
+    private static volatile ImportPipeline.Stats lastImportStats;
     
     /**
      * Exports password data to CSV format
@@ -41,50 +45,11 @@ public class DataTransferUtil {
      * @return true if export was successful
      */
     public static boolean exportToCSV(int userId, String filePath, boolean includePasswords) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            // Create file writer
-            try (FileWriter writer = new FileWriter(filePath)) {
-                // Write header
-                writer.write("Website,Username,Password,URL Pattern,Last Used,Strength Score,Auto Fill Enabled\n");
-                
-                // Get all passwords for the user
-                String query = "SELECT website, username, encrypted_password, url_pattern, " +
-                               "last_used, strength_score, auto_fill_enabled FROM passwords WHERE user_id = ?";
-                
-                try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                    stmt.setInt(1, userId);
-                    ResultSet rs = stmt.executeQuery();
-                    
-                    while (rs.next()) {
-                        String website = rs.getString("website");
-                        String username = rs.getString("username");
-                        String password = "********"; // Default masked password
-                        
-                        // Decrypt password if needed
-                        if (includePasswords) {
-                            String encryptedPassword = rs.getString("encrypted_password");
-                            password = SecurityUtil.decryptPassword(encryptedPassword, "your-encryption-key");
-                        }
-                        
-                        String urlPattern = rs.getString("url_pattern");
-                        String lastUsed = rs.getString("last_used");
-                        int strengthScore = rs.getInt("strength_score");
-                        boolean autoFillEnabled = rs.getInt("auto_fill_enabled") == 1;
-                        
-                        // Escape fields and write to CSV
-                        writer.write(escapeCSV(website) + "," +
-                                     escapeCSV(username) + "," +
-                                     escapeCSV(password) + "," +
-                                     escapeCSV(urlPattern) + "," +
-                                     escapeCSV(lastUsed) + "," +
-                                     strengthScore + "," +
-                                     autoFillEnabled + "\n");
-                    }
-                }
-                
-                System.out.println("CSV export successful: " + filePath);
-                return true;
-            }
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             Writer writer = new BufferedWriter(new FileWriter(filePath), WRITE_BUFFER_SIZE)) {
+            writeCSV(conn, userId, includePasswords, writer);
+            System.out.println("CSV export successful: " + filePath);
+            return true;
         } catch (SQLException | IOException e) {
             System.err.println("Error exporting to CSV: " + e.getMessage());
             e.printStackTrace();
@@ -92,6 +57,23 @@ public class DataTransferUtil {
         }
     }
     
+    private static void writeCSV(Connection conn, int userId, boolean includePasswords, Writer writer)
+            throws SQLException, IOException {
+        // Write header
+        writer.write("Website,Username,Password,URL Pattern,Last Used,Strength Score,Auto Fill Enabled\n");
+        
+        forEachPassword(conn, userId, includePasswords, (row, password) -> {
+            // Escape fields and write to CSV
+            writer.write(escapeCSV(row.website) + "," +
+                         escapeCSV(row.username) + "," +
+                         escapeCSV(password) + "," +
+                         escapeCSV(row.urlPattern) + "," +
+                         escapeCSV(row.lastUsed) + "," +
+                         row.strengthScore + "," +
+                         row.autoFillEnabled + "\n");
+        });
+    }
+    
     /**
      * Exports password data to JSON format
      * 
@@ -101,52 +83,14 @@ public class DataTransferUtil {
      * @return true if export was successful
      */
     public static boolean exportToJSON(int userId, String filePath, boolean includePasswords) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            JSONObject root = new JSONObject();
-            JSONArray passwordsArray = new JSONArray();
-            
-            // Get all passwords for the user
-            String query = "SELECT website, username, encrypted_password, url_pattern, " +
-                           "last_used, strength_score, auto_fill_enabled FROM passwords WHERE user_id = ?";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setInt(1, userId);
-                ResultSet rs = stmt.executeQuery();
-                
-                while (rs.next()) {
-                    JSONObject passwordEntry = new JSONObject();
-                    passwordEntry.put("website", rs.getString("website"));
-                    passwordEntry.put("username", rs.getString("username"));
-                    
-                    // Add password if needed
-                    if (includePasswords) {
-                        String encryptedPassword = rs.getString("encrypted_password");
-                        String decryptedPassword = SecurityUtil.decryptPassword(encryptedPassword, "your-encryption-key");
-                        passwordEntry.put("password", decryptedPassword);
-                    } else {
-                        passwordEntry.put("password", "********");
-                    }
-                    
-                    passwordEntry.put("url_pattern", rs.getString("url_pattern"));
-                    passwordEntry.put("last_used", rs.getString("last_used"));
-                    passwordEntry.put("strength_score", rs.getInt("strength_score"));
-                    passwordEntry.put("auto_fill_enabled", rs.getInt("auto_fill_enabled") == 1);
-                    
-                    passwordsArray.add(passwordEntry);
-                }
-            }
-            
-            root.put("passwords", passwordsArray);
-            root.put("export_date", new java.util.Date().toString());
-            root.put("format_version", "1.0");
-            
-            // Write JSON to file
-            try (FileWriter writer = new FileWriter(filePath)) {
-                writer.write(root.toJSONString());
-                System.out.println("JSON export successful: " + filePath);
-                return true;
-            }
-            
+        // Entries are written as they are read, so the whole export is never held in memory
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             Writer writer = new BufferedWriter(
+                 new OutputStreamWriter(new FileOutputStream(filePath), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE)) {
+            writeJSON(conn, userId, includePasswords, writer);
+            System.out.println("JSON export successful: " + filePath);
+            return true;
+        
         } catch (SQLException | IOException e) {
             System.err.println("Error exporting to JSON: " + e.getMessage());
             e.printStackTrace();
@@ -154,6 +98,100 @@ public class DataTransferUtil {
         }
     }
     
+    private static void writeJSON(Connection conn, int userId, boolean includePasswords, Writer writer)
+            throws SQLException, IOException {
+        writer.write("{\"format_version\":\"1.0\",\"export_date\":");
+        writeJsonString(writer, new java.util.Date().toString());
+        writer.write(",\"passwords\":[");
+        
+        boolean[] first = {true};
+        forEachPassword(conn, userId, includePasswords, (row, password) -> {
+            writer.write(first[0] ? "\n{\"website\":" : ",\n{\"website\":");
+            first[0] = false;
+            writeJsonString(writer, row.website);
+            writer.write(",\"username\":");
+            writeJsonString(writer, row.username);
+            writer.write(",\"password\":");
+            writeJsonString(writer, password);
+            writer.write(",\"url_pattern\":");
+            writeJsonString(writer, row.urlPattern);
+            writer.write(",\"last_used\":");
+            writeJsonString(writer, row.lastUsed);
+            writer.write(",\"strength_score\":");
+            writer.write(Integer.toString(row.strengthScore));
+            writer.write(",\"auto_fill_enabled\":");
+            writer.write(row.autoFillEnabled ? "true" : "false");
+            writer.write('}');
+        });
+        
+        writer.write("\n]}\n");
+    }
+    
+    /**
+     * Write a JSON string literal, or null
+     */
+    private static void writeJsonString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        writer.write(JSONValue.escape(value));
+        writer.write('"');
+    }
+    
+    /**
+     * Hand each password row of a user to the writer in order, together with its decrypted
+     * password or a mask. Rows are read a page at a time and each page's passwords are
+     * decrypted in parallel with SecurityUtil.decryptAll, so memory use does not grow with the
+     * number of rows.
+     */
+    private static void forEachPassword(Connection conn, int userId, boolean includePasswords,
+                                        PasswordRowWriter rowWriter) throws SQLException, IOException {
+        String query = LOAD_PASSWORD_ROWS_SQL;
+        
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setFetchSize(EXPORT_PAGE_SIZE);
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            
+            List<PasswordRow> page = new ArrayList<>(EXPORT_PAGE_SIZE);
+            boolean more = true;
+            while (more) {
+                page.clear();
+                while (page.size() < EXPORT_PAGE_SIZE && (more = rs.next())) {
+                    PasswordRow row = new PasswordRow();
+                    row.website = rs.getString("website");
+                    row.username = rs.getString("username");
+                    row.encryptedPassword = rs.getString("encrypted_password");
+                    row.urlPattern = rs.getString("url_pattern");
+                    row.lastUsed = rs.getString("last_used");
+                    row.strengthScore = rs.getInt("strength_score");
+                    row.autoFillEnabled = rs.getInt("auto_fill_enabled") == 1;
+                    page.add(row);
+                }
+                writePage(page, includePasswords, rowWriter);
+            }
+        }
+    }
+    
+    private static void writePage(List<PasswordRow> page, boolean includePasswords,
+                                  PasswordRowWriter rowWriter) throws IOException {
+        if (!includePasswords) {
+            for (PasswordRow row : page) {
+                rowWriter.write(row, "********"); // Default masked password
+            }
+            return;
+        }
+        
+        List<String> encryptedPasswords = new ArrayList<>(page.size());
+        for (PasswordRow row : page) {
+            encryptedPasswords.add(row.encryptedPassword);
+        }
+        SecurityUtil.decryptAll(encryptedPasswords, "your-encryption-key", (index, plaintext) ->
+            rowWriter.write(page.get(index), plaintext != null ? new String(plaintext) : null));
+    }
+    
     /**
      * Creates an encrypted export file with customizable format
      * 
@@ -164,71 +202,40 @@ public class DataTransferUtil {
      * @return true if export was successful
      */
     public static boolean createEncryptedExport(int userId, String filePath, char[] password, String exportFormat) {
-        try {
-            // First create a temporary export file
-            String tempFilePath = filePath + ".tmp";
-            boolean exportSuccess = false;
-            
-            if ("json".equalsIgnoreCase(exportFormat)) {
-                exportSuccess = exportToJSON(userId, tempFilePath, true);
-            } else if ("csv".equalsIgnoreCase(exportFormat)) {
-                exportSuccess = exportToCSV(userId, tempFilePath, true);
-            } else {
-                throw new IllegalArgumentException("Unsupported export format: " + exportFormat);
-            }
-            
-            if (!exportSuccess) {
-                return false;
-            }
-            
-            // Read the temporary file
-            byte[] fileData = Files.readAllBytes(Paths.get(tempFilePath));
-            
-            // Generate encryption key from password
-            byte[] passwordBytes = new String(password).getBytes(StandardCharsets.UTF_8);
-            byte[] keyBytes = new byte[16]; // 128-bit AES key
-            
-            // Simple key derivation (in a real app, use a proper KDF)
-            System.arraycopy(passwordBytes, 0, keyBytes, 0, Math.min(passwordBytes.length, keyBytes.length));
-            SecretKey key = new SecretKeySpec(keyBytes, "AES");
-            
-            // Generate random IV
-            byte[] iv = new byte[16];
-            new java.security.SecureRandom().nextBytes(iv);
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            
-            // Initialize Cipher for encryption
-            Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
-            
-            // Create output file
-            try (FileOutputStream fos = new FileOutputStream(filePath);
-                 BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-                
-                // Write format identifier
-                bos.write("NHCEENC".getBytes(StandardCharsets.UTF_8));
-                
-                // Write IV
-                bos.write(iv);
-                
-                // Write export format
-                bos.write(exportFormat.getBytes(StandardCharsets.UTF_8)[0]);
-                
-                // Encrypt and write the data
-                try (CipherOutputStream cos = new CipherOutputStream(bos, cipher)) {
-                    cos.write(fileData);
+        char format;
+        if ("json".equalsIgnoreCase(exportFormat)) {
+            format = 'j';
+        } else if ("csv".equalsIgnoreCase(exportFormat)) {
+            format = 'c';
+        } else {
+            System.err.println("Error creating encrypted export: Unsupported export format: " + exportFormat);
+            return false;
+        }
+        
+        // The export is encrypted as it is written, so no plaintext copy ever reaches the disk
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            int iterations = Math.max(SecurityUtil.MIN_ITERATIONS,
+                                      AppSettings.getInt("export_kdf_iterations", KdfCalibration.getIterations()));
+            
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    EncryptedExport.encrypt(new BufferedOutputStream(new FileOutputStream(filePath), WRITE_BUFFER_SIZE),
+                                            password, format, iterations),
+                    StandardCharsets.UTF_8), WRITE_BUFFER_SIZE)) {
+                if (format == 'j') {
+                    writeJSON(conn, userId, true, writer);
+                } else {
+                    writeCSV(conn, userId, true, writer);
                 }
             }
             
-            // Delete temporary file
-            Files.delete(Paths.get(tempFilePath));
-            
             System.out.println("Encrypted export successful: " + filePath);
             return true;
-            
+        
         } catch (Exception e) {
             System.err.println("Error creating encrypted export: " + e.getMessage());
             e.printStackTrace();
+            // Don't leave a partial export behind
+            new File(filePath).delete();
             return false;
         }
     }
@@ -242,73 +249,53 @@ public class DataTransferUtil {
      * @return The number of passwords imported
      */
     public static int importFromCSV(int userId, String filePath, String importMode) {
-        int importedCount = 0;
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            boolean isFirstLine = true;
-            
-            // Map for checking duplicates
-            Map<String, String> existingPasswords;
+        try {
+            return importCSV(userId, new FileReader(filePath), importMode);
+        } catch (FileNotFoundException e) {
+            System.err.println("Error importing from CSV: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        }
+    }
+    
+    private static int importCSV(int userId, Reader in, String importMode) {
+        try (CsvReader reader = new CsvReader(in, false)) {
+            ImportPipeline pipeline;
             try {
-                existingPasswords = getExistingPasswordMap(userId);
+                pipeline = startImport(userId, importMode, " (Imported)");
             } catch (SQLException e) {
                 System.err.println("Error checking existing passwords: " + e.getMessage());
                 e.printStackTrace();
                 return -1;
             }
             
-            while ((line = reader.readLine()) != null) {
-                // Skip header row
-                if (isFirstLine) {
-                    isFirstLine = false;
-                    continue;
-                }
-                
-                // Parse CSV line
-                String[] fields = parseCSVLine(line);
+            // Skip header row
+            reader.readRecord();
+            
+            String[] fields;
+            while ((fields = reader.readRecord()) != null) {
                 if (fields.length < 3) continue; // Skip incomplete lines
                 
-                String website = fields[0];
-                String username = fields[1];
-                String password = fields[2];
+                String website = orEmpty(fields[0]);
+                String username = orEmpty(fields[1]);
+                String password = orEmpty(fields[2]);
                 
                 // Skip masked passwords
                 if (password.equals("********")) continue;
                 
                 // Optional fields
                 String urlPattern = fields.length > 3 ? fields[3] : null;
-                String autoFillStr = fields.length > 6 ? fields[6] : "true";
+                String autoFillStr = fields.length > 6 && fields[6] != null ? fields[6] : "true";
                 boolean autoFill = Boolean.parseBoolean(autoFillStr) || "1".equals(autoFillStr);
                 
-                // Check for duplicates
-                String key = website + ":" + username;
-                if (existingPasswords.containsKey(key)) {
-                    if ("skip".equals(importMode)) {
-                        continue; // Skip this entry
-                    } else if ("replace".equals(importMode)) {
-                        // Delete existing entry
-                        try {
-                            deleteExistingPassword(userId, website, username);
-                        } catch (SQLException e) {
-                            System.err.println("Error replacing password: " + e.getMessage());
-                            continue; // Skip this entry and continue with next
-                        }
-                    } else if ("keep_both".equals(importMode)) {
-                        // Modify website to avoid collision
-                        website = website + " (Imported)";
-                    }
-                }
-                
-                // Insert password into database
-                if (insertPassword(userId, website, username, password, urlPattern, autoFill)) {
-                    importedCount++;
-                }
+                pipeline.add(website, username, password, urlPattern, autoFill);
             }
             
-            System.out.println("CSV import successful: " + importedCount + " passwords imported");
+            int importedCount = pipeline.finish();
+            System.out.println("CSV import successful: " + importedCount + " passwords imported (" +
+                               pipeline.getStats() + ")");
             return importedCount;
-            
+        
         } catch (IOException e) {
             System.err.println("Error importing from CSV: " + e.getMessage());
             e.printStackTrace();
@@ -325,23 +312,23 @@ public class DataTransferUtil {
      * @return The number of passwords imported
      */
     public static int importFromJSON(int userId, String filePath, String importMode) {
-        int importedCount = 0;
-        
         try {
-            // Parse the JSON file
-            JSONParser parser = new JSONParser();
-            JSONObject root = (JSONObject) parser.parse(new FileReader(filePath));
-            
-            // Get passwords array
-            JSONArray passwordsArray = (JSONArray) root.get("passwords");
-            if (passwordsArray == null) {
-                throw new ParseException(0, "Invalid JSON format. No 'passwords' array found.");
-            }
-            
-            // Map for checking duplicates
-            Map<String, String> existingPasswords;
+            return importJSON(userId, new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8),
+                              importMode);
+        } catch (FileNotFoundException e) {
+            System.err.println("Error importing from JSON: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        }
+    }
+    
+    private static int importJSON(int userId, Reader in, String importMode) {
+        // Entries are parsed one at a time and written in batches, so heap use stays bounded
+        // however large the file is
+        try (JsonArrayReader reader = new JsonArrayReader(in, "passwords")) {
+            ImportPipeline pipeline;
             try {
-                existingPasswords = getExistingPasswordMap(userId);
+                pipeline = startImport(userId, importMode, " (Imported)");
             } catch (SQLException e) {
                 System.err.println("Error checking existing passwords: " + e.getMessage());
                 e.printStackTrace();
@@ -349,56 +336,61 @@ public class DataTransferUtil {
             }
             
             // Process each password entry
-            for (Object obj : passwordsArray) {
-                JSONObject entry = (JSONObject) obj;
-                
-                String website = (String) entry.get("website");
-                String username = (String) entry.get("username");
-                String password = (String) entry.get("password");
+            Map<String, Object> entry;
+            while ((entry = reader.next()) != null) {
+                String website = jsonString(entry.get("website"));
+                String username = jsonString(entry.get("username"));
+                String password = jsonString(entry.get("password"));
                 
                 // Skip masked passwords
                 if (password == null || password.equals("********")) continue;
                 
                 // Optional fields
-                String urlPattern = (String) entry.get("url_pattern");
-                Boolean autoFill = entry.containsKey("auto_fill_enabled") ? 
-                    (Boolean) entry.get("auto_fill_enabled") : true;
+                String urlPattern = jsonString(entry.get("url_pattern"));
+                Object autoFillValue = entry.get("auto_fill_enabled");
+                boolean autoFill = !(autoFillValue instanceof Boolean) || (Boolean) autoFillValue;
                 
-                // Check for duplicates
-                String key = website + ":" + username;
-                if (existingPasswords.containsKey(key)) {
-                    if ("skip".equals(importMode)) {
-                        continue; // Skip this entry
-                    } else if ("replace".equals(importMode)) {
-                        // Delete existing entry
-                        try {
-                            deleteExistingPassword(userId, website, username);
-                        } catch (SQLException e) {
-                            System.err.println("Error replacing password: " + e.getMessage());
-                            continue; // Skip this entry and continue with next
-                        }
-                    } else if ("keep_both".equals(importMode)) {
-                        // Modify website to avoid collision
-                        website = website + " (Imported)";
-                    }
-                }
-                
-                // Insert password into database
-                if (insertPassword(userId, website, username, password, urlPattern, autoFill)) {
-                    importedCount++;
-                }
+                pipeline.add(website, username, password, urlPattern, autoFill);
             }
             
-            System.out.println("JSON import successful: " + importedCount + " passwords imported");
+            int importedCount = pipeline.finish();
+            System.out.println("JSON import successful: " + importedCount + " passwords imported (" +
+                               pipeline.getStats() + ")");
             return importedCount;
-            
-        } catch (IOException | ParseException e) {
+        
+        } catch (IOException | ParseException | ClassCastException e) {
             System.err.println("Error importing from JSON: " + e.getMessage());
             e.printStackTrace();
             return -1;
         }
     }
     
+    private static String jsonString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+    
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+    
+    /**
+     * Start an import pipeline and remember it so its counters can be inspected afterwards
+     */
+    private static ImportPipeline startImport(int userId, String importMode, String keepBothSuffix)
+            throws SQLException {
+        ImportPipeline pipeline = new ImportPipeline(userId, importMode, keepBothSuffix);
+        lastImportStats = pipeline.getStats();
+        return pipeline;
+    }
+    
+    /**
+     * Get the per-stage counters of the most recent import
+     * @return The counters, or null if nothing has been imported yet
+     */
+    public static ImportPipeline.Stats getLastImportStats() {
+        return lastImportStats;
+    }
+    
     /**
      * Imports passwords from an encrypted export file
      * 
@@ -410,59 +402,54 @@ public class DataTransferUtil {
      */
     public static int importFromEncryptedFile(int userId, String filePath, char[] password, String importMode) {
         try {
-            // Read the encrypted file
-            byte[] fileData = Files.readAllBytes(Paths.get(filePath));
+            char format;
+            EncryptedContent content;
             
-            // Check file header
-            byte[] header = new byte[7];
-            System.arraycopy(fileData, 0, header, 0, 7);
-            if (!new String(header, StandardCharsets.UTF_8).equals("NHCEENC")) {
-                throw new IOException("Invalid file format. Not a NHCE encrypted export.");
+            try (DataInputStream in = new DataInputStream(new FileInputStream(filePath))) {
+                byte[] magic = new byte[EncryptedExport.MAGIC.length];
+                in.readFully(magic);
+                
+                if (Arrays.equals(magic, EncryptedExport.MAGIC)) {
+                    EncryptedExport.Opened opened = EncryptedExport.open(in, password);
+                    format = opened.format;
+                    content = () -> opened.decrypt(openAt(filePath, EncryptedExport.HEADER_LENGTH));
+                } else if (new String(magic, 0, LEGACY_MAGIC.length(), StandardCharsets.US_ASCII).equals(LEGACY_MAGIC)) {
+                    // Exports written before authenticated encryption: AES-CBC under the zero-padded password
+                    byte[] iv = new byte[16];
+                    iv[0] = magic[LEGACY_MAGIC.length()];
+                    in.readFully(iv, 1, iv.length - 1);
+                    format = (char) in.readUnsignedByte();
+                    SecretKey key = legacyKey(password);
+                    content = () -> {
+                        try {
+                            Cipher cipher = Cipher.getInstance(LEGACY_ENCRYPTION_ALGORITHM);
+                            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+                            return new CipherInputStream(openAt(filePath, LEGACY_MAGIC.length() + iv.length + 1), cipher);
+                        } catch (GeneralSecurityException e) {
+                            throw new IOException("Error decrypting export", e);
+                        }
+                    };
+                } else {
+                    throw new IOException("Invalid file format. Not a NHCE encrypted export.");
+                }
             }
             
-            // Extract IV
-            byte[] iv = new byte[16];
-            System.arraycopy(fileData, 7, iv, 0, 16);
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            
-            // Get export format
-            char formatChar = (char) fileData[23];
-            String exportFormat = formatChar == 'j' ? "json" : "csv";
-            
-            // Generate decryption key from password
-            byte[] passwordBytes = new String(password).getBytes(StandardCharsets.UTF_8);
-            byte[] keyBytes = new byte[16]; // 128-bit AES key
-            
-            // Simple key derivation (in a real app, use a proper KDF)
-            System.arraycopy(passwordBytes, 0, keyBytes, 0, Math.min(passwordBytes.length, keyBytes.length));
-            SecretKey key = new SecretKeySpec(keyBytes, "AES");
-            
-            // Initialize Cipher for decryption
-            Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
-            
-            // Extract and decrypt the data
-            byte[] encryptedData = new byte[fileData.length - 24];
-            System.arraycopy(fileData, 24, encryptedData, 0, encryptedData.length);
-            byte[] decryptedData = cipher.doFinal(encryptedData);
-            
-            // Create temporary file with decrypted data
-            String tempFilePath = filePath + ".dec";
-            Files.write(Paths.get(tempFilePath), decryptedData);
+            // Decrypt the whole file once before importing anything, so a damaged file or a wrong
+            // password fails cleanly instead of after part of the file has been imported
+            try (InputStream check = content.open()) {
+                byte[] buffer = new byte[EncryptedExport.CHUNK_SIZE];
+                while (check.read(buffer) >= 0) {
+                    // Discard
+                }
+            }
             
-            // Import based on format
-            int result;
-            if ("json".equals(exportFormat)) {
-                result = importFromJSON(userId, tempFilePath, importMode);
+            Reader reader = new InputStreamReader(content.open(), StandardCharsets.UTF_8);
+            if (format == 'j') {
+                return importJSON(userId, reader, importMode);
             } else {
-                result = importFromCSV(userId, tempFilePath, importMode);
+                return importCSV(userId, reader, importMode);
             }
-            
-            // Delete temporary file
-            Files.delete(Paths.get(tempFilePath));
-            
-            return result;
-            
+        
         } catch (Exception e) {
             System.err.println("Error importing from encrypted file: " + e.getMessage());
             e.printStackTrace();
@@ -470,6 +457,27 @@ public class DataTransferUtil {
         }
     }
     
+    private static SecretKey legacyKey(char[] password) {
+        byte[] passwordBytes = new String(password).getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = new byte[16]; // 128-bit AES key
+        System.arraycopy(passwordBytes, 0, keyBytes, 0, Math.min(passwordBytes.length, keyBytes.length));
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+    
+    /**
+     * Open a file for reading from the given offset
+     */
+    private static InputStream openAt(String filePath, int offset) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+        try {
+            in.readFully(new byte[offset]);
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+    
     /**
      * Imports passwords directly from Chrome/Firefox browser
      * @param userId The user ID to import data for
@@ -478,252 +486,92 @@ public class DataTransferUtil {
      * @return The number of passwords imported
      */
     public static int importFromBrowser(int userId, String browserType, String importMode) {
-        int importedCount = 0;
-        
         try {
-            List<Map<String, String>> browserPasswords = new ArrayList<>();
-            
-            if ("chrome".equalsIgnoreCase(browserType)) {
-                browserPasswords = extractChromePasswords();
-            } else if ("firefox".equalsIgnoreCase(browserType)) {
-                browserPasswords = extractFirefoxPasswords();
-            } else {
-                throw new IllegalArgumentException("Unsupported browser type: " + browserType);
-            }
-            
-            // Check if any passwords were found
-            if (browserPasswords.isEmpty()) {
+            BrowserCredentialSource source = BrowserCredentialSource.forBrowser(browserType);
+            if (source == null) {
+                System.err.println("No " + browserType + " profile with saved passwords was found");
                 return 0;
             }
+            return importFromBrowser(userId, source, importMode);
+        
+        } catch (Exception e) {
+            System.err.println("Error importing from " + browserType + ": " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        }
+    }
+    
+    /**
+     * Imports the saved logins of a browser profile
+     * @param userId The user ID to import data for
+     * @param source The browser profile to read
+     * @param importMode How to handle duplicates (skip/replace/keep_both)
+     * @return The number of passwords imported
+     */
+    public static int importFromBrowser(int userId, BrowserCredentialSource source, String importMode) {
+        try {
+            ImportPipeline pipeline = startImport(userId, importMode,
+                                                  " (Imported from " + source.getName().toLowerCase() + ")");
             
-            // Map for checking duplicates
-            Map<String, String> existingPasswords = getExistingPasswordMap(userId);
-            
-            // Import each password
-            for (Map<String, String> entry : browserPasswords) {
-                String website = entry.get("url");
-                String username = entry.get("username");
-                String password = entry.get("password");
-                
+            // Logins go into the pipeline as they are decrypted
+            int skipped = source.read((url, username, password) -> {
                 // Skip entries with missing data
-                if (website == null || username == null || password == null || 
-                    website.isEmpty() || password.isEmpty()) {
-                    continue;
+                if (url == null || username == null || password == null || 
+                    url.isEmpty() || password.isEmpty()) {
+                    return;
                 }
                 
                 // Extract domain from URL
+                String website = url;
                 try {
-                    java.net.URL url = new java.net.URL(website);
-                    website = url.getHost();
+                    website = new java.net.URL(url).getHost();
                 } catch (Exception e) {
                     // If URL parsing fails, just use the original value
                 }
                 
-                // Check for duplicates
-                String key = website + ":" + username;
-                if (existingPasswords.containsKey(key)) {
-                    if ("skip".equals(importMode)) {
-                        continue; // Skip this entry
-                    } else if ("replace".equals(importMode)) {
-                        // Delete existing entry
-                        deleteExistingPassword(userId, website, username);
-                    } else if ("keep_both".equals(importMode)) {
-                        // Modify website to avoid collision
-                        website = website + " (Imported from " + browserType + ")";
-                    }
-                }
-                
-                // Insert password into database
-                if (insertPassword(userId, website, username, password, website, true)) {
-                    importedCount++;
-                }
+                pipeline.add(website, username, password, website, true);
+            });
+            
+            int importedCount = pipeline.finish();
+            System.out.println(source.getName() + " import successful: " + importedCount + " passwords imported (" +
+                               pipeline.getStats() + ")");
+            if (skipped > 0) {
+                System.err.println(skipped + " " + source.getName() + " logins could not be decrypted");
             }
-            
-            System.out.println(browserType + " import successful: " + importedCount + " passwords imported");
             return importedCount;
-            
+        
         } catch (Exception e) {
-            System.err.println("Error importing from " + browserType + ": " + e.getMessage());
+            System.err.println("Error importing from " + source.getName() + ": " + e.getMessage());
             e.printStackTrace();
             return -1;
         }
     }
     
     /**
-     * Extract passwords from Chrome
-     * @return List of password entries
-     */
-    private static List<Map<String, String>> extractChromePasswords() {
-        List<Map<String, String>> passwords = new ArrayList<>();
-        
-        // This is a stub implementation as actual Chrome password extraction
-        // requires platform-specific native code to access the encrypted storage
-        
-        // In a real implementation, this would:
-        // 1. Find the Chrome password database (Login Data file)
-        // 2. Use platform-specific methods to decrypt the passwords
-        // 3. Return the extracted passwords
-        
-        // Display a dialog explaining the limitation
-        JOptionPane.showMessageDialog(null,
-            "Direct Chrome password extraction requires platform-specific native code.\n\n" +
-            "In a production app, this would use:\n" +
-            "- Windows: DPAPI and CryptUnprotectData\n" +
-            "- macOS: Keychain Access APIs\n" +
-            "- Linux: Secret Service API\n\n" +
-            "As an alternative, please export your passwords from Chrome to CSV and import that file.",
-            "Chrome Import Information",
-            JOptionPane.INFORMATION_MESSAGE);
-            
-        return passwords;
-    }
-    
-    /**
-     * Extract passwords from Firefox
-     * @return List of password entries
-     */
-    private static List<Map<String, String>> extractFirefoxPasswords() {
-        List<Map<String, String>> passwords = new ArrayList<>();
-        
-        // This is a stub implementation as actual Firefox password extraction
-        // requires access to the encrypted storage
-        
-        // In a real implementation, this would:
-        // 1. Find the Firefox profiles directory
-        // 2. Locate the key4.db and logins.json files
-        // 3. Use NSS libraries to decrypt the passwords
-        // 4. Return the extracted passwords
-        
-        // Display a dialog explaining the limitation
-        JOptionPane.showMessageDialog(null,
-            "Direct Firefox password extraction requires Mozilla NSS libraries.\n\n" +
-            "In a production app, this would use:\n" +
-            "- Firefox's NSS libraries\n" +
-            "- Access to key4.db and logins.json\n" +
-            "- Master password if set\n\n" +
-            "As an alternative, please export your passwords from Firefox and import that file.",
-            "Firefox Import Information",
-            JOptionPane.INFORMATION_MESSAGE);
-            
-        return passwords;
-    }
-    
-    /**
-     * Helper method to insert a password into the database
-     */
-    private static boolean insertPassword(int userId, String website, String username, 
-                                        String password, String urlPattern, boolean autoFill) {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String encryptedPassword = SecurityUtil.encryptPassword(password, "your-encryption-key");
-            
-            String query = "INSERT INTO passwords (user_id, website, username, encrypted_password, " +
-                         "url_pattern, auto_fill_enabled, strength_score) VALUES (?, ?, ?, ?, ?, ?, ?)";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setInt(1, userId);
-                stmt.setString(2, website);
-                stmt.setString(3, username);
-                stmt.setString(4, encryptedPassword);
-                stmt.setString(5, urlPattern);
-                stmt.setInt(6, autoFill ? 1 : 0);
-                
-                // Calculate password strength
-                int strength = analyzePasswordStrength(password);
-                stmt.setInt(7, strength);
-                
-                stmt.executeUpdate();
-                return true;
-            }
-        } catch (SQLException e) {
-            System.err.println("Error inserting password: " + e.getMessage());
-            return false;
-        }
-    }
-    
-    /**
-     * Helper method to delete an existing password
+     * A password row read for export
      */
-    private static void deleteExistingPassword(int userId, String website, String username) throws SQLException {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "DELETE FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setInt(1, userId);
-                stmt.setString(2, website);
-                stmt.setString(3, username);
-                stmt.executeUpdate();
-            }
-        }
+    private static class PasswordRow {
+        String website;
+        String username;
+        String encryptedPassword;
+        String urlPattern;
+        String lastUsed;
+        int strengthScore;
+        boolean autoFillEnabled;
     }
     
     /**
-     * Helper method to get a map of existing passwords for duplicate checking
+     * Opens the decrypted content of an encrypted export from the start
      */
-    private static Map<String, String> getExistingPasswordMap(int userId) throws SQLException {
-        Map<String, String> map = new HashMap<>();
-        
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT website, username FROM passwords WHERE user_id = ?";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setInt(1, userId);
-                ResultSet rs = stmt.executeQuery();
-                
-                while (rs.next()) {
-                    String website = rs.getString("website");
-                    String username = rs.getString("username");
-                    map.put(website + ":" + username, "exists");
-                }
-            }
-        }
-        
-        return map;
+    private interface EncryptedContent {
+        InputStream open() throws IOException;
     }
     
     /**
-     * Helper method to analyze password strength (simplified version)
+     * Writes one exported password row
      */
-    private static int analyzePasswordStrength(String password) {
-        if (password == null || password.isEmpty()) {
-            return 0;
-        }
-        
-        int score = 0;
-        
-        // Length contributes up to 40 points
-        int lengthScore = Math.min(password.length() * 3, 40);
-        score += lengthScore;
-        
-        // Character variety contributes up to 40 points
-        int varietyScore = 0;
-        if (password.matches(".*[a-z].*")) varietyScore += 10; // Lowercase
-        if (password.matches(".*[A-Z].*")) varietyScore += 10; // Uppercase
-        if (password.matches(".*\\d.*")) varietyScore += 10;   // Digits
-        if (password.matches(".*[^a-zA-Z0-9].*")) varietyScore += 10; // Special chars
-        score += varietyScore;
-        
-        // Complexity contributes up to 20 points
-        int complexityScore = 0;
-        // Check for not using common patterns
-        if (!password.matches(".*123.*") && !password.matches(".*abc.*")) {
-            complexityScore += 5;
-        }
-        // Check for mixed character types
-        if (password.matches(".*[a-z].*[A-Z].*") || 
-            password.matches(".*[A-Z].*[a-z].*")) {
-            complexityScore += 5;
-        }
-        if (password.matches(".*[a-zA-Z].*\\d.*") || 
-            password.matches(".*\\d.*[a-zA-Z].*")) {
-            complexityScore += 5;
-        }
-        if (password.matches(".*[a-zA-Z0-9].*[^a-zA-Z0-9].*") || 
-            password.matches(".*[^a-zA-Z0-9].*[a-zA-Z0-9].*")) {
-            complexityScore += 5;
-        }
-        score += complexityScore;
-        
-        return score;
+    private interface PasswordRowWriter {
+        void write(PasswordRow row, String password) throws IOException;
     }
     
     /**
@@ -739,38 +587,4 @@ public class DataTransferUtil {
         
         return value;
     }
-    
-    /**
-     * Helper method to parse CSV lines respecting quotes
-     */
-    private static String[] parseCSVLine(String line) {
-        List<String> result = new ArrayList<>();
-        StringBuilder currentField = new StringBuilder();
-        boolean inQuotes = false;
-        
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-            
-            if (c == '\"') {
-                // If we see a quote inside quotes, check if it's an escaped quote
-                if (inQuotes && i + 1 < line.length() && line.charAt(i + 1) == '\"') {
-                    currentField.append('\"');
-                    i++; // Skip the next quote
-                } else {
-                    inQuotes = !inQuotes;
-                }
-            } else if (c == ',' && !inQuotes) {
-                // End of field
-                result.add(currentField.toString());
-                currentField.setLength(0);
-            } else {
-                currentField.append(c);
-            }
-        }
-        
-        // Add the last field
-        result.add(currentField.toString());
-        
-        return result.toArray(new String[0]);
-    }
 } 
\ No newline at end of file
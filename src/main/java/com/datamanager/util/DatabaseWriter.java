@@ -0,0 +1,183 @@
+package com.datamanager.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Single-writer queue for all database mutations.
+ *
+ * Writes are queued and applied by one background thread that owns the writer connection.
+ * Writes that arrive while a transaction is being applied are merged into the next grouped
+ * transaction; each write runs inside its own savepoint so a failing write does not undo the
+ * others in its group. Callers on the EDT should use {@link #submit} and continue in the
+ * returned future instead of waiting.
+ */
+public class DatabaseWriter {
+    private static final int MAX_GROUP_SIZE = 64;
+    private static final int CHECKPOINT_EVERY_GROUPS = 256;
+
+    private static final BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<>();
+    private static Thread writerThread;
+    private static int groupsSinceCheckpoint = 0;
+
+    /**
+     * A unit of work applied on the writer connection
+     */
+    public interface WriteOperation<T> {
+        T execute(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Queue a write and return a future that completes once the write has been committed
+     * @param operation The write to apply
+     * @return A future with the operation's result
+     */
+    public static <T> CompletableFuture<T> submit(WriteOperation<T> operation) {
+        PendingWrite<T> pending = new PendingWrite<>(operation);
+
+        // A write issued from inside another write joins the running transaction
+        if (Thread.currentThread() == writerThread) {
+            try (Connection conn = DatabaseUtil.getConnection()) {
+                pending.future.complete(operation.execute(conn));
+            } catch (SQLException | RuntimeException e) {
+                pending.future.completeExceptionally(e);
+            }
+            return pending.future;
+        }
+
+        ensureStarted();
+        queue.add(pending);
+        return pending.future;
+    }
+
+    /**
+     * Queue a write and wait until it has been committed
+     * @param operation The write to apply
+     * @return The operation's result
+     */
+    public static <T> T execute(WriteOperation<T> operation) throws SQLException {
+        try {
+            return submit(operation).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for database write", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Database write failed", cause);
+        }
+    }
+
+    private static synchronized void ensureStarted() {
+        if (writerThread != null && writerThread.isAlive()) {
+            return;
+        }
+        writerThread = new Thread(DatabaseWriter::runWriter, "DatabaseWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private static void runWriter() {
+        List<PendingWrite<?>> group = new ArrayList<>(MAX_GROUP_SIZE);
+        while (true) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(group, MAX_GROUP_SIZE - 1);
+
+            applyGroup(group);
+            group.clear();
+
+            if (queue.isEmpty() && ++groupsSinceCheckpoint >= CHECKPOINT_EVERY_GROUPS) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Apply a group of writes in one transaction
+     */
+    private static void applyGroup(List<PendingWrite<?>> group) {
+        List<Object> results = new ArrayList<>(group.size());
+
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (PendingWrite<?> pending : group) {
+                    Savepoint savepoint = conn.setSavepoint();
+                    try {
+                        results.add(pending.operation.execute(conn));
+                        conn.releaseSavepoint(savepoint);
+                    } catch (SQLException | RuntimeException e) {
+                        conn.rollback(savepoint);
+                        conn.releaseSavepoint(savepoint);
+                        pending.future.completeExceptionally(e);
+                        results.add(null);
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error committing database writes: " + e.getMessage());
+            for (PendingWrite<?> pending : group) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        // Only report success once the group is durable
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).complete(results.get(i));
+        }
+    }
+
+    /**
+     * Fold the WAL back into the database file while the writer is idle
+     */
+    private static void checkpoint() {
+        groupsSinceCheckpoint = 0;
+        try (Connection conn = DatabaseUtil.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA wal_checkpoint(PASSIVE)");
+        } catch (SQLException e) {
+            System.err.println("Error checkpointing database: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A queued write and the future its caller is waiting on
+     */
+    private static class PendingWrite<T> {
+        final WriteOperation<T> operation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        PendingWrite(WriteOperation<T> operation) {
+            this.operation = operation;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            future.complete((T) result);
+        }
+    }
+}
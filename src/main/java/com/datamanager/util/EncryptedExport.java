@@ -0,0 +1,350 @@
+package com.datamanager.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streaming authenticated encryption for export files.
+ *
+ * The key is derived from the export password with PBKDF2-HMAC-SHA256 over a random salt; the
+ * iteration count is stored in the header so it can be raised without breaking older files.
+ * The content is split into chunks that are each sealed with AES-GCM under a nonce made of a
+ * random per-file prefix, the chunk number and a flag marking the last chunk, with the header
+ * as additional data. Each chunk can therefore be checked and decrypted on its own, in
+ * constant memory, while reordered, dropped or truncated chunks and a changed header are all
+ * detected.
+ *
+ * Layout: magic, version, format, iterations, salt, nonce prefix, chunk size, then the chunks,
+ * each the ciphertext of chunkSize plaintext bytes (the last may be shorter) plus a 16-byte tag.
+ */
+class EncryptedExport {
+    static final byte[] MAGIC = "NHCEAEAD".getBytes(StandardCharsets.US_ASCII);
+    static final int CHUNK_SIZE = 64 * 1024;
+    
+    private static final int VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int TAG_LENGTH = 16;
+    static final int HEADER_LENGTH = MAGIC.length + 2 + 4 + SALT_LENGTH + NONCE_PREFIX_LENGTH + 4;
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    /**
+     * Start an encrypted export
+     * @param out Where to write the encrypted file; it is closed with the returned stream
+     * @param password The export password; the array is not modified
+     * @param format The content format, 'j' for JSON or 'c' for CSV
+     * @param iterations The PBKDF2 iteration count
+     * @return A stream that encrypts everything written to it. Close it to write the last chunk.
+     */
+    static OutputStream encrypt(OutputStream out, char[] password, char format, int iterations)
+            throws IOException, GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(salt);
+        RANDOM.nextBytes(noncePrefix);
+        
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(HEADER_LENGTH);
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.write(MAGIC);
+        header.writeByte(VERSION);
+        header.writeByte(format);
+        header.writeInt(iterations);
+        header.write(salt);
+        header.write(noncePrefix);
+        header.writeInt(CHUNK_SIZE);
+        
+        byte[] headerData = headerBytes.toByteArray();
+        out.write(headerData);
+        return new SealingOutputStream(out, deriveKey(password, salt, iterations), headerData, noncePrefix,
+                                       CHUNK_SIZE);
+    }
+    
+    /**
+     * Read the header of an encrypted export
+     * @param in The encrypted file, positioned after the magic
+     * @param password The export password; the array is not modified
+     * @return The decrypted content and its format
+     * @throws IOException If the header is malformed
+     */
+    static Opened open(InputStream in, char[] password) throws IOException, GeneralSecurityException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        data.readFully(header, MAGIC.length, HEADER_LENGTH - MAGIC.length);
+        
+        ByteBuffer fields = ByteBuffer.wrap(header, MAGIC.length, HEADER_LENGTH - MAGIC.length);
+        int version = fields.get();
+        char format = (char) fields.get();
+        int iterations = fields.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        fields.get(salt);
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        fields.get(noncePrefix);
+        int chunkSize = fields.getInt();
+        
+        if (version != VERSION) {
+            throw new IOException("Unsupported encrypted export version " + version);
+        }
+        // Bounds on values an attacker controls: a huge count would hang the import
+        if (iterations < SecurityUtil.MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+            throw new IOException("Invalid key derivation cost in encrypted export: " + iterations);
+        }
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size in encrypted export: " + chunkSize);
+        }
+        
+        return new Opened(format, deriveKey(password, salt, iterations), header, noncePrefix, chunkSize);
+    }
+    
+    private static SecretKeySpec deriveKey(char[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        // pbkdf2 wipes the array it is given
+        byte[] keyBytes = SecurityUtil.pbkdf2(Arrays.copyOf(password, password.length), salt, iterations);
+        try {
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+    
+    private static GCMParameterSpec nonce(byte[] noncePrefix, int chunkIndex, boolean last) {
+        byte[] nonce = new byte[CryptoContext.IV_LENGTH];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[7] = (byte) (chunkIndex >>> 24);
+        nonce[8] = (byte) (chunkIndex >>> 16);
+        nonce[9] = (byte) (chunkIndex >>> 8);
+        nonce[10] = (byte) chunkIndex;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+    
+    /**
+     * An encrypted export whose header has been read and whose key has been derived
+     */
+    static class Opened {
+        final char format;
+        private final SecretKeySpec key;
+        private final byte[] header;
+        private final byte[] noncePrefix;
+        private final int chunkSize;
+        
+        private Opened(char format, SecretKeySpec key, byte[] header, byte[] noncePrefix, int chunkSize) {
+            this.format = format;
+            this.key = key;
+            this.header = header;
+            this.noncePrefix = noncePrefix;
+            this.chunkSize = chunkSize;
+        }
+        
+        /**
+         * Decrypt the chunks that follow the header
+         * @param in The encrypted file, positioned after the header; it is closed with the returned stream
+         * @return A stream of the plaintext that fails with an IOException as soon as a chunk does
+         *         not authenticate, or if the file ends before its last chunk
+         */
+        InputStream decrypt(InputStream in) {
+            return new OpeningInputStream(in, key, header, noncePrefix, chunkSize);
+        }
+    }
+    
+    /**
+     * Buffers one chunk and seals it once the next byte shows it is not the last
+     */
+    private static class SealingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] header;
+        private final byte[] noncePrefix;
+        private final byte[] chunk;
+        private final byte[] sealed;
+        private int length = 0;
+        private int chunkIndex = 0;
+        private boolean closed = false;
+        
+        SealingOutputStream(OutputStream out, SecretKeySpec key, byte[] header, byte[] noncePrefix, int chunkSize)
+                throws GeneralSecurityException {
+            this.out = out;
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            this.key = key;
+            this.header = header;
+            this.noncePrefix = noncePrefix;
+            this.chunk = new byte[chunkSize];
+            this.sealed = new byte[chunkSize + TAG_LENGTH];
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (length == chunk.length) {
+                seal(false);
+            }
+            chunk[length++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == chunk.length) {
+                    seal(false);
+                }
+                int n = Math.min(len, chunk.length - length);
+                System.arraycopy(b, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            // Chunks are sealed whole; only pass on what has been sealed so far
+            out.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                seal(true);
+            } finally {
+                Arrays.fill(chunk, (byte) 0);
+                out.close();
+            }
+        }
+        
+        private void seal(boolean last) throws IOException {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, nonce(noncePrefix, chunkIndex++, last));
+                cipher.updateAAD(header);
+                int n = cipher.doFinal(chunk, 0, length, sealed, 0);
+                out.write(sealed, 0, n);
+                length = 0;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error encrypting export", e);
+            }
+        }
+    }
+    
+    /**
+     * Reads one sealed chunk ahead of the caller and releases its plaintext once it authenticates
+     */
+    private static class OpeningInputStream extends InputStream {
+        private final InputStream in;
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] header;
+        private final byte[] noncePrefix;
+        private final byte[] sealed;
+        private final byte[] chunk;
+        private int sealedLength = 0;
+        private int position = 0;
+        private int limit = 0;
+        private int chunkIndex = 0;
+        private boolean done = false;
+        
+        OpeningInputStream(InputStream in, SecretKeySpec key, byte[] header, byte[] noncePrefix, int chunkSize) {
+            this.in = in;
+            this.key = key;
+            this.header = header;
+            this.noncePrefix = noncePrefix;
+            this.sealed = new byte[chunkSize + TAG_LENGTH];
+            this.chunk = new byte[chunkSize];
+            try {
+                this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/GCM is not available", e);
+            }
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !nextChunk()) {
+                return -1;
+            }
+            return chunk[position++] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !nextChunk()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(chunk, (byte) 0);
+            in.close();
+        }
+        
+        private boolean nextChunk() throws IOException {
+            if (done) {
+                return false;
+            }
+            
+            // The first chunk is read here; every later one was read ahead by the previous call
+            if (chunkIndex == 0) {
+                sealedLength = readFully(0);
+            }
+            if (sealedLength < TAG_LENGTH) {
+                throw new EOFException("Encrypted export is truncated");
+            }
+            
+            // A chunk is the last one when nothing follows it
+            int current = sealedLength;
+            int next = current == sealed.length ? in.read() : -1;
+            boolean last = next < 0;
+            
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(noncePrefix, chunkIndex++, last));
+                cipher.updateAAD(header);
+                limit = cipher.doFinal(sealed, 0, current, chunk, 0);
+                position = 0;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encrypted export is corrupt, has been modified, or the password is wrong");
+            }
+            
+            if (last) {
+                done = true;
+            } else {
+                sealed[0] = (byte) next;
+                sealedLength = 1 + readFully(1);
+            }
+            // Only an empty export has an empty chunk
+            return limit > 0;
+        }
+        
+        private int readFully(int offset) throws IOException {
+            int read = offset;
+            while (read < sealed.length) {
+                int n = in.read(sealed, read, sealed.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return read - offset;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.datamanager.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads the saved logins of a Firefox profile that has no primary password.
+ *
+ * Firefox keeps its encryption keys in the key4.db SQLite database, each wrapped with PBES2
+ * (PBKDF2-HMAC-SHA256 and AES-256-CBC) under the SHA-1 of the profile's global salt and the
+ * primary password. The logins themselves are in logins.json, with the username and password
+ * each stored as a base64 DER structure naming the key, the cipher (3DES or AES-256-CBC) and
+ * the IV. The JSON is read one login at a time.
+ */
+class FirefoxCredentialSource implements BrowserCredentialSource {
+    private static final byte[] OID_PBES2 = oid(0x2A, 0x86, 0x48, 0x86, 0xF7, 0x0D, 0x01, 0x05, 0x0D);
+    private static final byte[] OID_PBKDF2 = oid(0x2A, 0x86, 0x48, 0x86, 0xF7, 0x0D, 0x01, 0x05, 0x0C);
+    private static final byte[] OID_HMAC_SHA256 = oid(0x2A, 0x86, 0x48, 0x86, 0xF7, 0x0D, 0x02, 0x09);
+    private static final byte[] OID_AES256_CBC = oid(0x60, 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x01, 0x2A);
+    private static final byte[] OID_DES_EDE3_CBC = oid(0x2A, 0x86, 0x48, 0x86, 0xF7, 0x0D, 0x03, 0x07);
+    private static final String PASSWORD_CHECK = "password-check";
+    
+    private final File profileDirectory;
+    
+    /**
+     * @param profileDirectory The profile, containing logins.json and key4.db
+     */
+    FirefoxCredentialSource(File profileDirectory) {
+        this.profileDirectory = profileDirectory;
+    }
+    
+    /**
+     * Find the profile Firefox starts with, using profiles.ini
+     * @return The profile directory, or null if no profile has saved logins
+     */
+    static File findDefaultProfile() throws IOException {
+        File firefox = new File(System.getProperty("user.home"), ".mozilla/firefox");
+        File ini = new File(firefox, "profiles.ini");
+        if (!ini.isFile()) {
+            return null;
+        }
+        
+        // The profile an installation last used comes first, then the one marked as the default
+        List<File> candidates = new ArrayList<>();
+        List<File> others = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(ini))) {
+            String section = "";
+            Map<String, String> values = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("[") && line.endsWith("]")) {
+                    addProfile(firefox, section, values, candidates, others);
+                    section = line.substring(1, line.length() - 1);
+                    values.clear();
+                } else if (line.contains("=")) {
+                    int split = line.indexOf('=');
+                    values.put(line.substring(0, split).trim(), line.substring(split + 1).trim());
+                }
+            }
+            addProfile(firefox, section, values, candidates, others);
+        }
+        
+        candidates.addAll(others);
+        for (File profile : candidates) {
+            if (new File(profile, "logins.json").isFile()) {
+                return profile;
+            }
+        }
+        return null;
+    }
+    
+    private static void addProfile(File firefox, String section, Map<String, String> values,
+                                   List<File> preferred, List<File> others) {
+        if (section.startsWith("Install") && values.containsKey("Default")) {
+            preferred.add(0, new File(firefox, values.get("Default")));
+        } else if (section.startsWith("Profile") && values.containsKey("Path")) {
+            String path = values.get("Path");
+            File profile = "0".equals(values.get("IsRelative")) ? new File(path) : new File(firefox, path);
+            if ("1".equals(values.get("Default"))) {
+                preferred.add(profile);
+            } else {
+                others.add(profile);
+            }
+        }
+    }
+    
+    @Override
+    public String getName() {
+        return "Firefox";
+    }
+    
+    @Override
+    public File getProfileDirectory() {
+        return profileDirectory;
+    }
+    
+    @Override
+    public int read(Consumer consumer) throws IOException, GeneralSecurityException, SQLException {
+        File logins = new File(profileDirectory, "logins.json");
+        if (!logins.isFile()) {
+            // Firefox only creates the file once a login is saved
+            return 0;
+        }
+        
+        Map<String, byte[]> keys = loadKeys(new File(profileDirectory, "key4.db"));
+        int skipped = 0;
+        
+        try (JsonArrayReader reader = new JsonArrayReader(
+                new InputStreamReader(new FileInputStream(logins), StandardCharsets.UTF_8), "logins")) {
+            Map<String, Object> entry;
+            while ((entry = reader.next()) != null) {
+                Object hostname = entry.get("hostname");
+                Object encryptedUsername = entry.get("encryptedUsername");
+                Object encryptedPassword = entry.get("encryptedPassword");
+                if (hostname == null || encryptedUsername == null || encryptedPassword == null) {
+                    skipped++;
+                    continue;
+                }
+                
+                try {
+                    String username = decryptLogin(encryptedUsername.toString(), keys);
+                    String password = decryptLogin(encryptedPassword.toString(), keys);
+                    consumer.accept(hostname.toString(), username, password);
+                } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+                    skipped++;
+                }
+            }
+        } catch (ParseException e) {
+            throw new IOException("Invalid logins.json: " + e, e);
+        }
+        
+        return skipped;
+    }
+    
+    /**
+     * Unwrap the login keys of key4.db, by key ID
+     */
+    private static Map<String, byte[]> loadKeys(File keyDatabase)
+            throws IOException, GeneralSecurityException, SQLException {
+        if (!keyDatabase.isFile()) {
+            throw new IOException("No key4.db in Firefox profile " + keyDatabase.getParent());
+        }
+        
+        Map<String, byte[]> keys = new HashMap<>();
+        String url = "jdbc:sqlite:file:" + keyDatabase.toURI().getRawPath() + "?immutable=1";
+        try (Connection conn = DriverManager.getConnection(url)) {
+            byte[] globalSalt;
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT item1, item2 FROM metadata WHERE id = 'password'")) {
+                ResultSet rs = stmt.executeQuery();
+                if (!rs.next()) {
+                    throw new IOException("key4.db has no password entry");
+                }
+                globalSalt = rs.getBytes("item1");
+                
+                // An empty primary password decrypts the check value. An unsupported format
+                // throws an IOException rather than passing for a primary password.
+                byte[] check;
+                try {
+                    check = decryptPbes2(rs.getBytes("item2"), globalSalt);
+                } catch (GeneralSecurityException e) {
+                    check = new byte[0];
+                }
+                if (!PASSWORD_CHECK.equals(new String(check, StandardCharsets.US_ASCII))) {
+                    throw new GeneralSecurityException("The Firefox profile is protected by a primary password");
+                }
+            }
+            
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT a11, a102 FROM nssPrivate")) {
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    byte[] id = rs.getBytes("a102");
+                    byte[] wrapped = rs.getBytes("a11");
+                    if (id != null && wrapped != null) {
+                        keys.put(Base64.getEncoder().encodeToString(id), decryptPbes2(wrapped, globalSalt));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+    
+    /**
+     * Decrypt a PBES2 structure from key4.db
+     * @throws IOException If the structure is malformed or uses another scheme, such as the
+     *         PBE-SHA1-3DES of older key4.db files
+     * @throws GeneralSecurityException If decryption fails, usually because of a primary password
+     */
+    private static byte[] decryptPbes2(byte[] data, byte[] globalSalt) throws IOException, GeneralSecurityException {
+        Der top = Der.parse(data);
+        Der algorithm = top.child(0);
+        if (!algorithm.child(0).isOid(OID_PBES2)) {
+            throw new IOException("Unsupported key4.db format: keys are not encrypted with PBES2");
+        }
+        
+        Der kdf = algorithm.child(1).child(0);
+        Der encryption = algorithm.child(1).child(1);
+        if (!kdf.child(0).isOid(OID_PBKDF2) || !encryption.child(0).isOid(OID_AES256_CBC)) {
+            throw new IOException("Unsupported key4.db format: PBES2 without PBKDF2 and AES-256-CBC");
+        }
+        
+        Der kdfParams = kdf.child(1);
+        byte[] salt = kdfParams.child(0).value();
+        int iterations = kdfParams.child(1).intValue();
+        int keyLength = 32;
+        String prf = "HmacSHA1";
+        for (int i = 2; i < kdfParams.size(); i++) {
+            Der param = kdfParams.child(i);
+            if (param.tag == Der.INTEGER) {
+                keyLength = param.intValue();
+            } else if (param.tag == Der.SEQUENCE && param.child(0).isOid(OID_HMAC_SHA256)) {
+                prf = "HmacSHA256";
+            }
+        }
+        
+        // NSS stores only the 14 bytes after the IV's own OCTET STRING header
+        byte[] iv = encryption.child(1).value();
+        if (iv.length == 14) {
+            byte[] full = new byte[16];
+            full[0] = (byte) Der.OCTET_STRING;
+            full[1] = 14;
+            System.arraycopy(iv, 0, full, 2, 14);
+            iv = full;
+        }
+        
+        byte[] passwordHash = MessageDigest.getInstance("SHA-1").digest(globalSalt);
+        byte[] key = pbkdf2(prf, passwordHash, salt, iterations, keyLength);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            return cipher.doFinal(top.child(1).value());
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+    
+    /**
+     * Decrypt a username or password from logins.json
+     */
+    private static String decryptLogin(String encoded, Map<String, byte[]> keys)
+            throws IOException, GeneralSecurityException {
+        Der top = Der.parse(Base64.getDecoder().decode(encoded));
+        byte[] key = keys.get(Base64.getEncoder().encodeToString(top.child(0).value()));
+        if (key == null) {
+            throw new GeneralSecurityException("Unknown key ID in logins.json");
+        }
+        
+        Der algorithm = top.child(1);
+        Cipher cipher;
+        SecretKeySpec keySpec;
+        if (algorithm.child(0).isOid(OID_DES_EDE3_CBC) && key.length >= 24) {
+            cipher = Cipher.getInstance("DESede/CBC/PKCS5Padding");
+            keySpec = new SecretKeySpec(key, 0, 24, "DESede");
+        } else if (algorithm.child(0).isOid(OID_AES256_CBC) && key.length >= 32) {
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            keySpec = new SecretKeySpec(key, 0, 32, "AES");
+        } else {
+            throw new GeneralSecurityException("Unsupported login encryption in logins.json");
+        }
+        
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(algorithm.child(1).value()));
+        return new String(cipher.doFinal(top.child(2).value()), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * PBKDF2 over a binary password, which PBEKeySpec cannot take
+     */
+    private static byte[] pbkdf2(String prf, byte[] password, byte[] salt, int iterations, int length)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(prf);
+        mac.init(new SecretKeySpec(password, prf));
+        byte[] result = new byte[length];
+        byte[] block = new byte[mac.getMacLength()];
+        
+        for (int blockIndex = 1, offset = 0; offset < length; blockIndex++) {
+            mac.update(salt);
+            mac.update(new byte[] {(byte) (blockIndex >>> 24), (byte) (blockIndex >>> 16),
+                                   (byte) (blockIndex >>> 8), (byte) blockIndex});
+            byte[] u = mac.doFinal();
+            System.arraycopy(u, 0, block, 0, block.length);
+            for (int i = 1; i < iterations; i++) {
+                u = mac.doFinal(u);
+                for (int j = 0; j < block.length; j++) {
+                    block[j] ^= u[j];
+                }
+            }
+            int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, result, offset, n);
+            offset += n;
+        }
+        return result;
+    }
+    
+    private static byte[] oid(int... bytes) {
+        byte[] oid = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            oid[i] = (byte) bytes[i];
+        }
+        return oid;
+    }
+    
+    /**
+     * Just enough of a DER reader for the structures NSS writes
+     */
+    private static class Der {
+        static final int INTEGER = 0x02;
+        static final int OCTET_STRING = 0x04;
+        static final int OID = 0x06;
+        static final int SEQUENCE = 0x30;
+        
+        final int tag;
+        private final byte[] data;
+        private final int start;
+        private final int end;
+        private List<Der> children;
+        
+        private Der(int tag, byte[] data, int start, int end) {
+            this.tag = tag;
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+        
+        static Der parse(byte[] data) throws IOException {
+            return read(data, 0, data.length);
+        }
+        
+        /**
+         * Read the element starting at offset, which must end by limit
+         */
+        private static Der read(byte[] data, int offset, int limit) throws IOException {
+            if (offset + 2 > limit) {
+                throw new IOException("Truncated DER data");
+            }
+            int tag = data[offset] & 0xFF;
+            int length = data[offset + 1] & 0xFF;
+            int start = offset + 2;
+            if (length > 0x80 && length <= 0x84) {
+                int lengthBytes = length - 0x80;
+                if (start + lengthBytes > limit) {
+                    throw new IOException("Truncated DER data");
+                }
+                length = 0;
+                for (int i = 0; i < lengthBytes; i++) {
+                    length = (length << 8) | (data[start++] & 0xFF);
+                }
+            } else if (length >= 0x80) {
+                throw new IOException("Unsupported DER length");
+            }
+            if (length < 0 || length > limit - start) {
+                throw new IOException("Truncated DER data");
+            }
+            return new Der(tag, data, start, start + length);
+        }
+        
+        Der child(int index) throws IOException {
+            List<Der> all = children();
+            if (index >= all.size()) {
+                throw new IOException("Missing DER element");
+            }
+            return all.get(index);
+        }
+        
+        int size() throws IOException {
+            return children().size();
+        }
+        
+        private List<Der> children() throws IOException {
+            if (children == null) {
+                if (tag != SEQUENCE) {
+                    throw new IOException("Expected a DER sequence");
+                }
+                children = new ArrayList<>();
+                int offset = start;
+                while (offset < end) {
+                    Der child = read(data, offset, end);
+                    children.add(child);
+                    offset = child.end;
+                }
+            }
+            return children;
+        }
+        
+        byte[] value() {
+            return Arrays.copyOfRange(data, start, end);
+        }
+        
+        int intValue() throws IOException {
+            if (tag != INTEGER || end - start > 4 || end == start) {
+                throw new IOException("Expected a small DER integer");
+            }
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                value = (value << 8) | (data[i] & 0xFF);
+            }
+            return value;
+        }
+        
+        boolean isOid(byte[] oid) {
+            return tag == OID && end - start == oid.length
+                && Arrays.equals(Arrays.copyOfRange(data, start, end), oid);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.datamanager.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for querying the FTS5 search indexes (tasks_fts, contacts_fts, secure_notes_fts).
+ *
+ * User input is never passed to MATCH directly: it is split into words and each word becomes a
+ * quoted prefix term, so "jo smi" finds "John Smith" and characters such as quotes, '-' or ':'
+ * cannot be misread as FTS5 query syntax.
+ */
+public class FullTextSearch {
+    
+    /**
+     * Page size used by the search screens
+     */
+    public static final int DEFAULT_PAGE_SIZE = 200;
+    
+    /**
+     * Build an FTS5 MATCH expression that requires a prefix match for every word in the input
+     * @param searchTerm The text typed by the user
+     * @return The MATCH expression, or null if the input contains no searchable words
+     */
+    public static String toPrefixQuery(String searchTerm) {
+        List<String> terms = new ArrayList<>();
+        for (String word : tokenize(searchTerm)) {
+            terms.add("\"" + word + "\"*");
+        }
+        return terms.isEmpty() ? null : String.join(" ", terms);
+    }
+    
+    /**
+     * Split text into words the same way the unicode61 tokenizer does: runs of letters and digits
+     * @param text The text to split, may be null
+     * @return The words in order of appearance
+     */
+    public static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+    
+    /**
+     * The LIMIT to use for a page query. One extra row is fetched so the page knows whether
+     * another page follows.
+     * @param limit The page size
+     */
+    public static int fetchSize(int limit) {
+        return limit + 1;
+    }
+    
+    /**
+     * Validate paging arguments
+     */
+    public static void checkPage(int offset, int limit) {
+        if (offset < 0 || limit < 1) {
+            throw new IllegalArgumentException("Invalid page: offset=" + offset + ", limit=" + limit);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.datamanager.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the scheduled password health reports.
+ *
+ * A run records a job for every user whose report is due, then works through the jobs on a
+ * bounded pool. Each job analyzes the user's passwords and saves the report together with its
+ * email in the {@link MailOutbox}, whose worker delivers it, so the run never waits for SMTP.
+ * Each attempt has a time limit after which it is retried with backoff, up to
+ * {@link #MAX_ATTEMPTS} times. Job states are saved as they change, so a run cut short by
+ * shutdown is resumed by the next one.
+ */
+public class HealthReportScheduler {
+    static final int MAX_ATTEMPTS = 3;
+    
+    private static final long TIMEOUT_MILLIS = 60_000;
+    private static final long RETRY_DELAY_MILLIS = 10_000;
+    
+    private static final String PENDING = "pending";
+    private static final String QUEUED = "queued";
+    private static final String SKIPPED = "skipped";
+    private static final String FAILED = "failed";
+    
+    static final String UPDATE_JOB_SQL =
+        "UPDATE health_report_jobs SET status = ?, attempts = ?, report_id = ?, last_error = ?, " +
+        "updated_at = ? WHERE run_id = ? AND user_id = ?";
+    static final String FIND_OPEN_RUN_SQL =
+        "SELECT id FROM health_report_runs WHERE finished_at IS NULL ORDER BY id DESC LIMIT 1";
+    static final String LOAD_OPEN_JOBS_SQL =
+        "SELECT user_id, email, attempts FROM health_report_jobs WHERE run_id = ? AND status = 'pending'";
+    static final String FIND_DUE_USERS_SQL =
+        "SELECT u.id, u.email, u.report_frequency, MAX(r.report_date) AS last_report FROM users u " +
+        "LEFT JOIN password_health_reports r ON r.user_id = u.id " +
+        "WHERE u.report_frequency IS NOT NULL AND u.email IS NOT NULL AND u.email <> '' GROUP BY u.id";
+    static final String FINISH_RUN_SQL = "UPDATE health_report_runs SET finished_at = ? WHERE id = ?";
+    
+    private static final ReentrantLock RUNNING = new ReentrantLock();
+    private static volatile Stats lastRunStats;
+    
+    private final long runId;
+    private final Stats stats;
+    private final CountDownLatch remaining;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    
+    private HealthReportScheduler(long runId, int jobCount, Stats stats) {
+        this.runId = runId;
+        this.stats = stats;
+        this.remaining = new CountDownLatch(jobCount);
+        // Analyzing a report is CPU bound, so there is no point in more workers than cores
+        int threads = Math.max(1, Math.min(jobCount, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "health-report-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "health-report-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Resume an interrupted run, or start one for every user whose report is due, and wait for
+     * it to finish. Does nothing if a run is already in progress.
+     */
+    public static void runDueReports() {
+        if (!RUNNING.tryLock()) {
+            System.out.println("Health reports are already running");
+            return;
+        }
+        
+        try {
+            long runId;
+            List<Job> jobs;
+            
+            Long openRun = findOpenRun();
+            if (openRun != null) {
+                runId = openRun;
+                jobs = loadOpenJobs(runId);
+                System.out.println("Resuming health report run " + runId + " with " + jobs.size() + " open jobs");
+            } else {
+                jobs = findDueUsers();
+                if (jobs.isEmpty()) {
+                    return;
+                }
+                runId = createRun(jobs);
+            }
+            
+            Stats stats = new Stats(jobs.size());
+            lastRunStats = stats;
+            if (!jobs.isEmpty()) {
+                new HealthReportScheduler(runId, jobs.size(), stats).run(jobs);
+            }
+            finishRun(runId);
+            System.out.println("Health report run " + runId + " finished: " + stats);
+        
+        } catch (SQLException e) {
+            System.err.println("Error running health reports: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Health report run interrupted; it will resume on the next run");
+        } finally {
+            RUNNING.unlock();
+        }
+    }
+    
+    /**
+     * Get the counters of the most recent run
+     * @return The counters, or null if no run has started yet
+     */
+    public static Stats getLastRunStats() {
+        return lastRunStats;
+    }
+    
+    private void run(List<Job> jobs) throws InterruptedException {
+        try {
+            for (Job job : jobs) {
+                submit(job);
+            }
+            remaining.await();
+        } finally {
+            workers.shutdownNow();
+            timer.shutdownNow();
+        }
+    }
+    
+    private void submit(Job job) {
+        Attempt attempt = new Attempt(job);
+        try {
+            attempt.future = workers.submit(attempt);
+        } catch (RejectedExecutionException e) {
+            // The run is shutting down; the job stays open for the next one
+        }
+    }
+    
+    /**
+     * One try at a job. Whichever of the worker and the timeout settles it first
+     * decides the outcome; a worker that finishes after its timeout discards its result.
+     */
+    private class Attempt implements Runnable {
+        private final Job job;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private volatile Future<?> future;
+        
+        Attempt(Job job) {
+            this.job = job;
+        }
+        
+        @Override
+        public void run() {
+            ScheduledFuture<?> timeout = timer.schedule(this::timeOut, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            boolean owned = false;
+            
+            try {
+                PasswordHealthReport report = PasswordHealthUtil.analyzePasswords(job.userId);
+                if (!(owned = settled.compareAndSet(false, true))) {
+                    return;
+                }
+                generated(report);
+                stats.completed(System.nanoTime() - start);
+                remaining.countDown();
+            } catch (Exception e) {
+                if (owned || settled.compareAndSet(false, true)) {
+                    failed(e);
+                }
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+        
+        private void timeOut() {
+            if (settled.compareAndSet(false, true)) {
+                Future<?> running = future;
+                if (running != null) {
+                    running.cancel(true);
+                }
+                stats.timeouts.incrementAndGet();
+                failed(new TimeoutException("Report generation timed out"));
+            }
+        }
+        
+        private void generated(PasswordHealthReport report) throws SQLException {
+            if (report == null) {
+                // Nothing to report on
+                DatabaseWriter.execute(conn -> {
+                    updateJob(conn, job.userId, SKIPPED, job.attempts, null, null);
+                    return null;
+                });
+                stats.skipped.incrementAndGet();
+                return;
+            }
+            
+            String subject = PasswordHealthUtil.getReportEmailSubject(report);
+            String body = PasswordHealthUtil.buildReportEmail(report);
+            DatabaseWriter.execute(conn -> {
+                long reportId = PasswordHealthUtil.saveReportToDatabase(job.userId, report, conn);
+                MailOutbox.enqueue(conn, job.email, subject, body, reportId);
+                updateJob(conn, job.userId, QUEUED, job.attempts, reportId, null);
+                return null;
+            });
+            MailOutbox.wake();
+            stats.queued.incrementAndGet();
+        }
+        
+        private void failed(Exception e) {
+            stats.failures.incrementAndGet();
+            int attempts = job.attempts + 1;
+            boolean retry = attempts < MAX_ATTEMPTS;
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            
+            try {
+                DatabaseWriter.execute(conn -> {
+                    updateJob(conn, job.userId, retry ? PENDING : FAILED, attempts, null, error);
+                    return null;
+                });
+            } catch (SQLException ex) {
+                System.err.println("Error saving health report progress: " + ex.getMessage());
+            }
+            job.attempts = attempts;
+            
+            if (retry) {
+                stats.retries.incrementAndGet();
+                long delay = RETRY_DELAY_MILLIS << (attempts - 1);
+                try {
+                    timer.schedule(() -> submit(job), delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    // The run is shutting down; the job stays open for the next one
+                }
+            } else {
+                System.err.println("Health report for user " + job.userId + " failed after " + attempts +
+                                   " attempts: " + error);
+                stats.failed.incrementAndGet();
+                remaining.countDown();
+            }
+        }
+    }
+    
+    private void updateJob(Connection conn, int userId, String status, int attempts, Long reportId,
+                           String error) throws SQLException {
+        String query = UPDATE_JOB_SQL;
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setString(1, status);
+            stmt.setInt(2, attempts);
+            stmt.setObject(3, reportId);
+            stmt.setString(4, error);
+            stmt.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+            stmt.setLong(6, runId);
+            stmt.setInt(7, userId);
+            stmt.executeUpdate();
+        }
+    }
+    
+    private static Long findOpenRun() throws SQLException {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = FIND_OPEN_RUN_SQL;
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                ResultSet rs = stmt.executeQuery();
+                return rs.next() ? rs.getLong("id") : null;
+            }
+        }
+    }
+    
+    private static List<Job> loadOpenJobs(long runId) throws SQLException {
+        List<Job> jobs = new ArrayList<>();
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_OPEN_JOBS_SQL;
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setLong(1, runId);
+                ResultSet rs = stmt.executeQuery();
+                
+                while (rs.next()) {
+                    Job job = new Job(rs.getInt("user_id"), rs.getString("email"));
+                    job.attempts = rs.getInt("attempts");
+                    jobs.add(job);
+                }
+            }
+        }
+        
+        return jobs;
+    }
+    
+    /**
+     * Check every user's report frequency against their last report in a single query
+     */
+    private static List<Job> findDueUsers() throws SQLException {
+        List<Job> jobs = new ArrayList<>();
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = FIND_DUE_USERS_SQL;
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                ResultSet rs = stmt.executeQuery();
+                
+                while (rs.next()) {
+                    if (PasswordHealthUtil.isReportDue(rs.getString("report_frequency"), rs.getTimestamp("last_report"))) {
+                        jobs.add(new Job(rs.getInt("id"), rs.getString("email")));
+                    }
+                }
+            }
+        }
+        
+        return jobs;
+    }
+    
+    private static long createRun(List<Job> jobs) throws SQLException {
+        return DatabaseWriter.execute(conn -> {
+            long runId;
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO health_report_runs (started_at) VALUES (?)", Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                stmt.executeUpdate();
+                ResultSet rs = stmt.getGeneratedKeys();
+                if (!rs.next()) {
+                    throw new SQLException("No ID returned for health report run");
+                }
+                runId = rs.getLong(1);
+            }
+            
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO health_report_jobs (run_id, user_id, email, status) VALUES (?, ?, ?, 'pending')")) {
+                for (Job job : jobs) {
+                    stmt.setLong(1, runId);
+                    stmt.setInt(2, job.userId);
+                    stmt.setString(3, job.email);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            return runId;
+        });
+    }
+    
+    private static void finishRun(long runId) throws SQLException {
+        DatabaseWriter.execute(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(FINISH_RUN_SQL)) {
+                stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                stmt.setLong(2, runId);
+                return stmt.executeUpdate();
+            }
+        });
+    }
+    
+    /**
+     * One user's report within a run. Only the attempt currently working on it touches it.
+     */
+    private static class Job {
+        final int userId;
+        final String email;
+        int attempts = 0;
+        
+        Job(int userId, String email) {
+            this.userId = userId;
+            this.email = email;
+        }
+    }
+    
+    /**
+     * Counters of one run. Latency is the time of successful attempts; throughput is jobs
+     * completed per second since the run started.
+     */
+    public static class Stats {
+        private final int jobs;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong lastCompletionNanos = new AtomicLong(startNanos);
+        
+        private Stats(int jobs) {
+            this.jobs = jobs;
+        }
+        
+        private void completed(long nanos) {
+            completed.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            lastCompletionNanos.set(System.nanoTime());
+        }
+        
+        public int getJobs() {
+            return jobs;
+        }
+        
+        /**
+         * Reports saved with their email queued
+         */
+        public long getQueued() {
+            return queued.get();
+        }
+        
+        /**
+         * Users with no passwords to report on
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+        
+        /**
+         * Users whose report gave up after the last attempt
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+        
+        /**
+         * Failed attempts, including timeouts
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+        
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+        
+        public long getRetries() {
+            return retries.get();
+        }
+        
+        public double getMeanLatencyMillis() {
+            long count = completed.get();
+            return count > 0 ? totalNanos.get() / 1e6 / count : 0;
+        }
+        
+        public double getMaxLatencyMillis() {
+            return maxNanos.get() / 1e6;
+        }
+        
+        /**
+         * Jobs completed per second between the start of the run and the last completion
+         */
+        public double getThroughput() {
+            long nanos = lastCompletionNanos.get() - startNanos;
+            return nanos > 0 ? completed.get() * 1e9 / nanos : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d jobs, %d queued, %d skipped, %d failed (%.1f/s, mean %.0f ms, max %.0f ms), " +
+                                 "%d failed attempts (%d timed out), %d retries",
+                                 jobs, getQueued(), getSkipped(), getFailed(), getThroughput(),
+                                 getMeanLatencyMillis(), getMaxLatencyMillis(), getFailures(), getTimeouts(),
+                                 getRetries());
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.datamanager.util;
+
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared engine behind the password imports in DataTransferUtil.
+ *
+ * Work is split into three stages. The caller parses its file and hands each record to
+ * {@link #add}, which resolves duplicates against the user's existing website:username keys,
+ * loaded once. Full batches are encrypted and scored in parallel on the common fork-join pool.
+ * Finished batches are then written in input order, one DatabaseWriter transaction per batch
+ * using prepared statement batches. Only a few batches are in flight at a time, so memory use
+ * does not grow with the size of the import.
+ */
+public class ImportPipeline {
+    static final int BATCH_SIZE = 500;
+    
+    private static final String ENCRYPTION_KEY = "your-encryption-key";
+    
+    static final String DELETE_EXISTING_SQL =
+        "DELETE FROM passwords WHERE user_id = ? AND website = ? AND username = ?";
+    static final String EXISTING_KEYS_SQL = "SELECT website, username FROM passwords WHERE user_id = ?";
+    
+    private final int userId;
+    private final String importMode;
+    private final String keepBothSuffix;
+    private final Set<String> existingKeys;
+    private final int maxInFlight;
+    private final Stats stats = new Stats();
+    
+    private List<ImportRecord> batch = new ArrayList<>(BATCH_SIZE);
+    private final Set<String> replacedInBatch = new HashSet<>();
+    private final Deque<EncryptingBatch> encrypting = new ArrayDeque<>();
+    private CompletableFuture<Integer> writing;
+    private long lastReturned;
+    private boolean interrupted;
+    
+    /**
+     * Start an import and load the user's existing keys
+     * @param userId The user to import passwords for
+     * @param importMode How to handle duplicates (skip/replace/keep_both)
+     * @param keepBothSuffix Appended to the website of a duplicate in keep_both mode
+     */
+    ImportPipeline(int userId, String importMode, String keepBothSuffix) throws SQLException {
+        this.userId = userId;
+        this.importMode = importMode;
+        this.keepBothSuffix = keepBothSuffix;
+        this.existingKeys = loadExistingKeys(userId);
+        this.maxInFlight = Math.max(2, ForkJoinPool.commonPool().getParallelism() * 2);
+        this.lastReturned = System.nanoTime();
+    }
+    
+    /**
+     * Queue a parsed password for import
+     * @return false if it was skipped as a duplicate
+     */
+    boolean add(String website, String username, String password, String urlPattern, boolean autoFill) {
+        long start = System.nanoTime();
+        stats.parseNanos.addAndGet(start - lastReturned);
+        stats.parsed.incrementAndGet();
+        
+        try {
+            // Check for duplicates
+            boolean replace = false;
+            String key = website + ":" + username;
+            if (existingKeys.contains(key)) {
+                if ("skip".equals(importMode)) {
+                    stats.skipped.incrementAndGet();
+                    return false;
+                } else if ("replace".equals(importMode)) {
+                    replace = true;
+                    if (!replacedInBatch.add(key)) {
+                        // Deletes run before inserts within a batch, so a second replacement of
+                        // the same entry must go in a later batch to remove the first one
+                        submitBatch();
+                        replacedInBatch.add(key);
+                    }
+                } else if ("keep_both".equals(importMode)) {
+                    // Modify website to avoid collision
+                    website = website + keepBothSuffix;
+                }
+            }
+            
+            batch.add(new ImportRecord(website, username, password, urlPattern, autoFill, replace));
+            if (batch.size() == BATCH_SIZE) {
+                submitBatch();
+            }
+            return true;
+        } finally {
+            lastReturned = System.nanoTime();
+        }
+    }
+    
+    /**
+     * Write everything still queued and wait for it
+     * @return The number of passwords inserted
+     * @throws InterruptedIOException If the thread was interrupted; the batches not written by
+     *         then are counted as failed
+     */
+    int finish() throws InterruptedIOException {
+        stats.parseNanos.addAndGet(System.nanoTime() - lastReturned);
+        submitBatch();
+        while (!encrypting.isEmpty()) {
+            writeNext();
+        }
+        awaitWrite();
+        if (interrupted) {
+            throw new InterruptedIOException("Import interrupted after " + stats.written.get() +
+                                             " passwords; " + stats.failed.get() + " were not imported");
+        }
+        return (int) stats.written.get();
+    }
+    
+    /**
+     * The counters of this import
+     */
+    public Stats getStats() {
+        return stats;
+    }
+    
+    private void submitBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<ImportRecord> toEncrypt = batch;
+        batch = new ArrayList<>(BATCH_SIZE);
+        replacedInBatch.clear();
+        if (interrupted) {
+            // The import is being abandoned
+            stats.failed.addAndGet(toEncrypt.size());
+            return;
+        }
+        
+        encrypting.addLast(new EncryptingBatch(toEncrypt,
+            CompletableFuture.supplyAsync(() -> encryptBatch(toEncrypt), ForkJoinPool.commonPool())));
+        while (encrypting.size() > maxInFlight) {
+            writeNext();
+        }
+    }
+    
+    /**
+     * Encrypt and score a batch on a pool thread, dropping the plaintexts
+     */
+    private List<ImportRecord> encryptBatch(List<ImportRecord> records) {
+        long start = System.nanoTime();
+        for (ImportRecord record : records) {
+            record.strength = PasswordHealthAggregates.strengthScore(record.password);
+            record.reuseDigest = PasswordHealthAggregates.reuseDigest(record.password);
+            record.encryptedPassword = SecurityUtil.encryptPassword(record.password, ENCRYPTION_KEY);
+            record.password = null;
+        }
+        stats.encrypted.addAndGet(records.size());
+        stats.encryptNanos.addAndGet(System.nanoTime() - start);
+        return records;
+    }
+    
+    /**
+     * Hand the oldest encrypted batch to the writer once the previous write has finished
+     */
+    private void writeNext() {
+        EncryptingBatch next = encrypting.removeFirst();
+        List<ImportRecord> records;
+        try {
+            records = next.encrypted.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while encrypting imported passwords");
+            stats.failed.addAndGet(next.records.size());
+            abandon();
+            return;
+        } catch (ExecutionException e) {
+            // None of the batch reaches the writer
+            stats.failed.addAndGet(next.records.size());
+            System.err.println("Error encrypting imported passwords: " + e.getCause().getMessage());
+            return;
+        }
+        
+        awaitWrite();
+        writing = DatabaseWriter.submit(conn -> insertBatch(conn, records));
+    }
+    
+    private void awaitWrite() {
+        if (writing == null) {
+            return;
+        }
+        try {
+            writing.get();
+        } catch (InterruptedException e) {
+            // The batch still commits or fails on the writer and counts itself
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while inserting passwords");
+            abandon();
+        } catch (ExecutionException e) {
+            // The batch was rolled back; carry on with the next one
+            System.err.println("Error inserting passwords: " + e.getCause().getMessage());
+        }
+        writing = null;
+    }
+    
+    /**
+     * Stop the import: the batches still being encrypted are counted as failed and later ones
+     * are not started
+     */
+    private void abandon() {
+        interrupted = true;
+        for (EncryptingBatch pending : encrypting) {
+            stats.failed.addAndGet(pending.records.size());
+        }
+        encrypting.clear();
+    }
+    
+    /**
+     * Insert a batch, deleting the entries it replaces first. Runs on the database writer.
+     */
+    private int insertBatch(Connection conn, List<ImportRecord> records) throws SQLException {
+        long start = System.nanoTime();
+        String deleteQuery = DELETE_EXISTING_SQL;
+        String insertQuery = "INSERT INTO passwords (user_id, website, username, encrypted_password, " +
+                             "url_pattern, auto_fill_enabled, strength_score, reuse_digest) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        int unencrypted = 0;
+        
+        try (PreparedStatement deleteStmt = conn.prepareStatement(deleteQuery);
+             PreparedStatement insertStmt = conn.prepareStatement(insertQuery)) {
+            boolean deletes = false;
+            int inserts = 0;
+            for (ImportRecord record : records) {
+                if (record.encryptedPassword == null) {
+                    // Encryption failed and was already reported
+                    stats.failed.incrementAndGet();
+                    unencrypted++;
+                    continue;
+                }
+                if (record.replace) {
+                    deleteStmt.setInt(1, userId);
+                    deleteStmt.setString(2, record.website);
+                    deleteStmt.setString(3, record.username);
+                    deleteStmt.addBatch();
+                    deletes = true;
+                }
+                
+                insertStmt.setInt(1, userId);
+                insertStmt.setString(2, record.website);
+                insertStmt.setString(3, record.username);
+                insertStmt.setString(4, record.encryptedPassword);
+                insertStmt.setString(5, record.urlPattern);
+                insertStmt.setInt(6, record.autoFill ? 1 : 0);
+                insertStmt.setInt(7, record.strength);
+                insertStmt.setString(8, record.reuseDigest);
+                insertStmt.addBatch();
+                inserts++;
+            }
+            
+            if (deletes) {
+                deleteStmt.executeBatch();
+            }
+            insertStmt.executeBatch();
+            stats.written.addAndGet(inserts);
+            return inserts;
+        } catch (SQLException e) {
+            // The records without a ciphertext are already counted
+            stats.failed.addAndGet(records.size() - unencrypted);
+            throw e;
+        } finally {
+            stats.writeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    private static Set<String> loadExistingKeys(int userId) throws SQLException {
+        Set<String> keys = new HashSet<>();
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = EXISTING_KEYS_SQL;
+            
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setInt(1, userId);
+                ResultSet rs = stmt.executeQuery();
+                
+                while (rs.next()) {
+                    keys.add(rs.getString("website") + ":" + rs.getString("username"));
+                }
+            }
+        }
+        
+        return keys;
+    }
+    
+    /**
+     * A password on its way through the pipeline
+     */
+    private static class ImportRecord {
+        final String website;
+        final String username;
+        final String urlPattern;
+        final boolean autoFill;
+        final boolean replace;
+        String password;
+        String encryptedPassword;
+        int strength;
+        String reuseDigest;
+        
+        ImportRecord(String website, String username, String password, String urlPattern, boolean autoFill,
+                     boolean replace) {
+            this.website = website;
+            this.username = username;
+            this.password = password;
+            this.urlPattern = urlPattern;
+            this.autoFill = autoFill;
+            this.replace = replace;
+        }
+    }
+    
+    /**
+     * A batch handed to the pool, kept with its records so they can be counted if it never
+     * reaches the writer
+     */
+    private static class EncryptingBatch {
+        final List<ImportRecord> records;
+        final CompletableFuture<List<ImportRecord>> encrypted;
+        
+        EncryptingBatch(List<ImportRecord> records, CompletableFuture<List<ImportRecord>> encrypted) {
+            this.records = records;
+            this.encrypted = encrypted;
+        }
+    }
+    
+    /**
+     * Per-stage counters of an import. Stage times are the time spent working in that stage;
+     * the encrypt time is summed over all pool threads.
+     */
+    public static class Stats {
+        private final AtomicLong parsed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong encrypted = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong parseNanos = new AtomicLong();
+        private final AtomicLong encryptNanos = new AtomicLong();
+        private final AtomicLong writeNanos = new AtomicLong();
+        
+        public long getParsed() {
+            return parsed.get();
+        }
+        
+        public long getSkipped() {
+            return skipped.get();
+        }
+        
+        public long getEncrypted() {
+            return encrypted.get();
+        }
+        
+        public long getWritten() {
+            return written.get();
+        }
+        
+        public long getFailed() {
+            return failed.get();
+        }
+        
+        /**
+         * Records parsed per second of parsing
+         */
+        public double getParseRate() {
+            return rate(parsed.get(), parseNanos.get());
+        }
+        
+        /**
+         * Records encrypted and scored per second of pool thread time
+         */
+        public double getEncryptRate() {
+            return rate(encrypted.get(), encryptNanos.get());
+        }
+        
+        /**
+         * Records written per second of writer time
+         */
+        public double getWriteRate() {
+            return rate(written.get(), writeNanos.get());
+        }
+        
+        private static double rate(long count, long nanos) {
+            return nanos > 0 ? count * 1e9 / nanos : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("parsed %d (%.0f/s), skipped %d, encrypted %d (%.0f/s per thread), " +
+                                 "written %d (%.0f/s), failed %d",
+                                 getParsed(), getParseRate(), getSkipped(), getEncrypted(), getEncryptRate(),
+                                 getWritten(), getWriteRate(), getFailed());
+        }
+    }
+}
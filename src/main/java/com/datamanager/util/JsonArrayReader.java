@@ -0,0 +1,154 @@
+package com.datamanager.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Pull parser for the objects of one array in a JSON document.
+ *
+ * json-simple's SAX-style parser stops whenever the content handler returns false and carries
+ * on from there when parse is called again with resume set. This reader stops it after every
+ * element of the named top-level array, so only the current element is ever held in memory.
+ * Primitive fields of an element are returned; nested objects and arrays are skipped.
+ */
+class JsonArrayReader implements ContentHandler, Closeable {
+    private final Reader reader;
+    private final String arrayName;
+    private final JSONParser parser = new JSONParser();
+    
+    private int depth = 0;
+    private boolean inArray = false;
+    private boolean foundArray = false;
+    private boolean atArrayKey = false;
+    private boolean started = false;
+    private boolean finished = false;
+    private Map<String, Object> element;
+    private Map<String, Object> completed;
+    private String key;
+    private long elementCount = 0;
+    
+    /**
+     * @param reader The JSON text; it is read in blocks, so it needs no buffering of its own
+     * @param arrayName The key of the array in the top-level object
+     */
+    JsonArrayReader(Reader reader, String arrayName) {
+        this.reader = reader;
+        this.arrayName = arrayName;
+    }
+    
+    /**
+     * Read the next element of the array
+     * @return The element's primitive fields, or null once the array has ended
+     * @throws ParseException If the text is not valid JSON or the array is missing
+     */
+    Map<String, Object> next() throws IOException, ParseException {
+        while (!finished && completed == null) {
+            parser.parse(reader, this, started);
+            started = true;
+        }
+        Map<String, Object> result = completed;
+        completed = null;
+        return result;
+    }
+    
+    /**
+     * The number of elements read so far
+     */
+    long getElementCount() {
+        return elementCount;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+    
+    @Override
+    public void startJSON() {
+    }
+    
+    @Override
+    public void endJSON() throws ParseException {
+        finished = true;
+        if (!foundArray) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN,
+                                     "Invalid JSON format. No '" + arrayName + "' array found.");
+        }
+    }
+    
+    @Override
+    public boolean startObject() {
+        depth++;
+        if (inArray && depth == 3) {
+            element = new HashMap<>();
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean endObject() {
+        depth--;
+        if (inArray && depth == 2) {
+            completed = element;
+            element = null;
+            elementCount++;
+            // Hand the element to the caller before parsing any further
+            return false;
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean startObjectEntry(String name) {
+        if (depth == 1) {
+            atArrayKey = arrayName.equals(name);
+        } else if (element != null && depth == 3) {
+            key = name;
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean endObjectEntry() {
+        if (depth == 1) {
+            atArrayKey = false;
+        } else if (depth == 3) {
+            key = null;
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean startArray() {
+        depth++;
+        if (depth == 2 && atArrayKey) {
+            inArray = true;
+            foundArray = true;
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean endArray() {
+        if (inArray && depth == 2) {
+            inArray = false;
+        }
+        depth--;
+        return true;
+    }
+    
+    @Override
+    public boolean primitive(Object value) {
+        if (element != null && depth == 3 && key != null) {
+            element.put(key, value);
+        }
+        return true;
+    }
+}
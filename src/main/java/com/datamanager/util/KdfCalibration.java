@@ -0,0 +1,91 @@
+package com.datamanager.util;
+
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+
+/**
+ * Chooses the PBKDF2 iteration count used for login hashes.
+ *
+ * On first run the cost is measured on the current machine so that hashing one password takes
+ * about {@link #TARGET_LOGIN_MILLIS}, and the result is stored in app_settings so every later
+ * start uses the same cost. Calibration takes a fraction of a second; callers on the EDT should
+ * trigger it from a background thread.
+ */
+public class KdfCalibration {
+    public static final long TARGET_LOGIN_MILLIS = 250;
+    
+    private static final String SETTING_KEY = "pbkdf2_iterations";
+    private static final int PROBE_ITERATIONS = 20000;
+    private static final int PROBE_RUNS = 3;
+    
+    private static volatile int iterations = 0;
+    
+    /**
+     * Get the iteration count for new hashes, calibrating it if no value has been stored yet
+     */
+    public static int getIterations() {
+        int current = iterations;
+        if (current == 0) {
+            current = loadOrCalibrate();
+        }
+        return current;
+    }
+    
+    /**
+     * Measure the iteration count that takes the target time on this machine
+     * @param targetMillis The time one hash should take
+     * @return The iteration count, never below the minimum in SecurityUtil
+     */
+    public static int calibrate(long targetMillis) {
+        char[] password = "calibration-password".toCharArray();
+        byte[] salt = new byte[16];
+        
+        try {
+            // The first run pays for class loading and JIT warm-up
+            SecurityUtil.pbkdf2(password, salt, PROBE_ITERATIONS);
+            
+            long bestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE_RUNS; i++) {
+                long start = System.nanoTime();
+                SecurityUtil.pbkdf2(password, salt, PROBE_ITERATIONS);
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            }
+            
+            long calibrated = targetMillis * 1_000_000L * PROBE_ITERATIONS / Math.max(1, bestNanos);
+            calibrated = (calibrated + 999) / 1000 * 1000;
+            return (int) Math.max(SecurityUtil.MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, calibrated));
+        } catch (GeneralSecurityException e) {
+            System.err.println("Error calibrating password hashing: " + e.getMessage());
+            return SecurityUtil.MIN_ITERATIONS;
+        }
+    }
+    
+    private static synchronized int loadOrCalibrate() {
+        if (iterations != 0) {
+            return iterations;
+        }
+        
+        int stored = 0;
+        try {
+            stored = AppSettings.getInt(SETTING_KEY, 0);
+        } catch (SQLException e) {
+            System.err.println("Error reading password hashing cost: " + e.getMessage());
+        }
+        
+        if (stored >= SecurityUtil.MIN_ITERATIONS) {
+            iterations = stored;
+            return stored;
+        }
+        
+        int calibrated = calibrate(TARGET_LOGIN_MILLIS);
+        System.out.println("Calibrated password hashing to " + calibrated + " PBKDF2 iterations");
+        try {
+            AppSettings.set(SETTING_KEY, String.valueOf(calibrated));
+        } catch (SQLException e) {
+            System.err.println("Error saving password hashing cost: " + e.getMessage());
+        }
+        
+        iterations = calibrated;
+        return calibrated;
+    }
+}
@@ -0,0 +1,339 @@
+package com.datamanager.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.MessagingException;
+
+/**
+ * Outgoing mail, queued in the mail_outbox table and delivered by one background worker.
+ *
+ * Callers enqueue a message inside their own write, so it is committed together with whatever
+ * it reports on, and return without waiting for SMTP. The worker sends due messages in batches
+ * over a single {@link MailTransport} connection, which it keeps open until the queue is
+ * empty. A message that fails is retried with exponential backoff and given up after
+ * {@link #MAX_ATTEMPTS}. Delivery is at least once: if the app stops between sending a batch
+ * and recording it, the batch is sent again.
+ */
+public class MailOutbox {
+    static final int MAX_ATTEMPTS = 8;
+    
+    private static final int BATCH_SIZE = 20;
+    private static final long RETRY_DELAY_MILLIS = 30_000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 3_600_000;
+    private static final long POLL_MILLIS = 60_000;
+    private static final long STOP_TIMEOUT_MILLIS = 5_000;
+    
+    static final String LOAD_DUE_SQL =
+        "SELECT id, recipient, subject, body, report_id, attempts FROM mail_outbox " +
+        "WHERE status = 'pending' AND next_attempt_at <= ? ORDER BY next_attempt_at LIMIT ?";
+    static final String MARK_SENT_SQL =
+        "UPDATE mail_outbox SET status = 'sent', attempts = ?, last_error = NULL, sent_at = ? WHERE id = ?";
+    static final String MARK_FAILED_SQL =
+        "UPDATE mail_outbox SET status = ?, attempts = ?, last_error = ?, next_attempt_at = ? WHERE id = ?";
+    
+    private static final Object lock = new Object();
+    private static final Stats stats = new Stats();
+    private static Worker worker;
+    private static boolean wakeRequested = false;
+    
+    /**
+     * Queue a message. Must be called from a {@link DatabaseWriter} operation; call {@link #wake()}
+     * once it has committed so the worker picks the message up straight away.
+     * @param conn The writer connection
+     * @param recipient The recipient address
+     * @param subject The subject line
+     * @param htmlContent The HTML body
+     * @param reportId The health report the message delivers, or null
+     * @return The ID of the queued message
+     */
+    public static long enqueue(Connection conn, String recipient, String subject, String htmlContent,
+                               Long reportId) throws SQLException {
+        String query = "INSERT INTO mail_outbox (recipient, subject, body, report_id, next_attempt_at, created_at) " +
+                       "VALUES (?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            stmt.setString(1, recipient);
+            stmt.setString(2, subject);
+            stmt.setString(3, htmlContent);
+            stmt.setObject(4, reportId);
+            stmt.setTimestamp(5, now);
+            stmt.setTimestamp(6, now);
+            stmt.executeUpdate();
+            
+            ResultSet rs = stmt.getGeneratedKeys();
+            if (!rs.next()) {
+                throw new SQLException("No ID returned for queued mail");
+            }
+            return rs.getLong(1);
+        }
+    }
+    
+    /**
+     * Start delivering queued mail, replacing a worker that is already running
+     * @param transport The transport to send through
+     */
+    public static void start(MailTransport transport) {
+        stop();
+        synchronized (lock) {
+            worker = new Worker(transport);
+            wakeRequested = true;
+            Thread thread = new Thread(worker, "MailOutbox");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Stop the worker after the message it is sending. Queued mail stays in the outbox.
+     */
+    public static void stop() {
+        Worker stopping;
+        synchronized (lock) {
+            stopping = worker;
+            worker = null;
+            if (stopping == null) {
+                return;
+            }
+            stopping.running = false;
+            lock.notifyAll();
+        }
+        
+        try {
+            stopping.finished.await(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Have the worker look for due mail now instead of at its next poll
+     */
+    public static void wake() {
+        synchronized (lock) {
+            wakeRequested = true;
+            lock.notifyAll();
+        }
+    }
+    
+    /**
+     * Counters since the app started
+     */
+    public static Stats getStats() {
+        return stats;
+    }
+    
+    private static class Worker implements Runnable {
+        private final MailTransport transport;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean running = true;
+        
+        Worker(MailTransport transport) {
+            this.transport = transport;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    List<OutgoingMail> batch;
+                    try {
+                        batch = loadDue();
+                    } catch (SQLException e) {
+                        System.err.println("Error reading mail outbox: " + e.getMessage());
+                        batch = new ArrayList<>();
+                    }
+                    
+                    if (batch.isEmpty()) {
+                        // Nothing due; don't hold the connection while idle
+                        transport.close();
+                        awaitWork();
+                        continue;
+                    }
+                    
+                    List<OutgoingMail> attempted = new ArrayList<>(batch.size());
+                    for (OutgoingMail mail : batch) {
+                        if (!running) {
+                            break;
+                        }
+                        long start = System.nanoTime();
+                        try {
+                            transport.send(mail.recipient, mail.subject, mail.body);
+                            mail.sent = true;
+                            stats.sent(System.nanoTime() - start);
+                        } catch (MessagingException e) {
+                            mail.error = e.getMessage() != null ? e.getMessage() : e.toString();
+                            stats.failedAttempts.incrementAndGet();
+                        }
+                        attempted.add(mail);
+                    }
+                    
+                    try {
+                        record(attempted);
+                    } catch (SQLException e) {
+                        // Sending the batch again right away would only duplicate it
+                        System.err.println("Error recording mail delivery: " + e.getMessage());
+                        e.printStackTrace();
+                        awaitWork();
+                    }
+                }
+            } finally {
+                transport.close();
+                finished.countDown();
+            }
+        }
+        
+        private void awaitWork() {
+            synchronized (lock) {
+                try {
+                    if (running && !wakeRequested) {
+                        lock.wait(POLL_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                wakeRequested = false;
+            }
+        }
+    }
+    
+    private static List<OutgoingMail> loadDue() throws SQLException {
+        List<OutgoingMail> batch = new ArrayList<>(BATCH_SIZE);
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = LOAD_DUE_SQL;
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                stmt.setInt(2, BATCH_SIZE);
+                ResultSet rs = stmt.executeQuery();
+                
+                while (rs.next()) {
+                    OutgoingMail mail = new OutgoingMail();
+                    mail.id = rs.getLong("id");
+                    mail.recipient = rs.getString("recipient");
+                    mail.subject = rs.getString("subject");
+                    mail.body = rs.getString("body");
+                    long reportId = rs.getLong("report_id");
+                    mail.reportId = rs.wasNull() ? null : reportId;
+                    mail.attempts = rs.getInt("attempts");
+                    batch.add(mail);
+                }
+            }
+        }
+        
+        return batch;
+    }
+    
+    /**
+     * Record the outcome of a batch in one write
+     */
+    private static void record(List<OutgoingMail> attempted) throws SQLException {
+        DatabaseWriter.execute(conn -> {
+            long now = System.currentTimeMillis();
+            try (PreparedStatement sent = conn.prepareStatement(MARK_SENT_SQL);
+                 PreparedStatement failed = conn.prepareStatement(MARK_FAILED_SQL)) {
+                for (OutgoingMail mail : attempted) {
+                    int attempts = mail.attempts + 1;
+                    if (mail.sent) {
+                        sent.setInt(1, attempts);
+                        sent.setTimestamp(2, new Timestamp(now));
+                        sent.setLong(3, mail.id);
+                        sent.addBatch();
+                        if (mail.reportId != null) {
+                            PasswordHealthUtil.markReportSent(mail.reportId, conn);
+                        }
+                    } else {
+                        boolean giveUp = attempts >= MAX_ATTEMPTS;
+                        if (giveUp) {
+                            System.err.println("Giving up on mail to " + mail.recipient + " after " + attempts +
+                                               " attempts: " + mail.error);
+                            stats.gaveUp.incrementAndGet();
+                        }
+                        failed.setString(1, giveUp ? "failed" : "pending");
+                        failed.setInt(2, attempts);
+                        failed.setString(3, mail.error);
+                        failed.setTimestamp(4, new Timestamp(now + retryDelay(attempts)));
+                        failed.setLong(5, mail.id);
+                        failed.addBatch();
+                    }
+                }
+                sent.executeBatch();
+                failed.executeBatch();
+            }
+            return null;
+        });
+    }
+    
+    /**
+     * The delay before the next attempt, doubling with each failure
+     */
+    static long retryDelay(int attempts) {
+        return Math.min(RETRY_DELAY_MILLIS << Math.min(attempts - 1, 20), MAX_RETRY_DELAY_MILLIS);
+    }
+    
+    private static class OutgoingMail {
+        long id;
+        String recipient;
+        String subject;
+        String body;
+        Long reportId;
+        int attempts;
+        boolean sent;
+        String error;
+    }
+    
+    /**
+     * Delivery counters
+     */
+    public static class Stats {
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong failedAttempts = new AtomicLong();
+        private final AtomicLong gaveUp = new AtomicLong();
+        private final AtomicLong totalSendNanos = new AtomicLong();
+        private final AtomicLong maxSendNanos = new AtomicLong();
+        
+        private void sent(long nanos) {
+            sent.incrementAndGet();
+            totalSendNanos.addAndGet(nanos);
+            maxSendNanos.accumulateAndGet(nanos, Math::max);
+        }
+        
+        public long getSent() {
+            return sent.get();
+        }
+        
+        public long getFailedAttempts() {
+            return failedAttempts.get();
+        }
+        
+        /**
+         * Messages dropped after the last attempt
+         */
+        public long getGaveUp() {
+            return gaveUp.get();
+        }
+        
+        public double getMeanSendMillis() {
+            long count = sent.get();
+            return count > 0 ? totalSendNanos.get() / 1e6 / count : 0;
+        }
+        
+        public double getMaxSendMillis() {
+            return maxSendNanos.get() / 1e6;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d sent (mean %.0f ms, max %.0f ms), %d failed attempts, %d given up",
+                                 getSent(), getMeanSendMillis(), getMaxSendMillis(), getFailedAttempts(), getGaveUp());
+        }
+    }
+}
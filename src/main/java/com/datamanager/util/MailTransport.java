@@ -0,0 +1,26 @@
+package com.datamanager.util;
+
+import javax.mail.MessagingException;
+
+/**
+ * Sends the messages delivered by {@link MailOutbox}.
+ *
+ * A transport may keep its connection open between messages; the outbox closes it whenever
+ * the queue runs empty. Only the outbox worker thread uses a transport.
+ */
+public interface MailTransport {
+    
+    /**
+     * Send an HTML message
+     * @param to The recipient address
+     * @param subject The subject line
+     * @param htmlContent The HTML body
+     * @throws MessagingException If the message was not accepted
+     */
+    void send(String to, String subject, String htmlContent) throws MessagingException;
+    
+    /**
+     * Close any open connection. The next send opens a new one.
+     */
+    void close();
+}
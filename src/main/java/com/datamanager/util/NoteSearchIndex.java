@@ -0,0 +1,216 @@
+package com.datamanager.util;
+
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.rtf.RTFEditorKit;
+
+/**
+ * In-memory inverted index over secure note bodies.
+ *
+ * Note bodies cannot be searched in SQL, so the first body search after login reads every note
+ * of the user once and indexes its words. Saves and deletes update the index incrementally, and
+ * logging out drops it. The index never leaves the process and is not written to disk.
+ */
+public class NoteSearchIndex {
+    
+    private static final Map<Integer, UserIndex> indexes = new ConcurrentHashMap<>();
+    
+    static final String LOAD_NOTES_SQL = "SELECT id, encrypted_content FROM secure_notes WHERE user_id = ?";
+    
+    /**
+     * Find the notes whose body contains a word starting with each word of the search term
+     * @param userId The user whose notes to search
+     * @param searchTerm The text typed by the user
+     * @return The matching note IDs, newest note first
+     */
+    public static List<Integer> search(int userId, String searchTerm) throws SQLException {
+        List<String> words = FullTextSearch.tokenize(searchTerm);
+        if (words.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        UserIndex index = indexes.computeIfAbsent(userId, UserIndex::new);
+        index.ensureBuilt();
+        return index.search(words);
+    }
+    
+    /**
+     * Build the index for a user in the background so the first search doesn't pay for it
+     * @param userId The user who just logged in
+     */
+    public static void preload(int userId) {
+        UserIndex index = indexes.computeIfAbsent(userId, UserIndex::new);
+        Thread loader = new Thread(() -> {
+            try {
+                index.ensureBuilt();
+            } catch (SQLException e) {
+                System.err.println("Error building note search index: " + e.getMessage());
+            }
+        }, "NoteSearchIndex");
+        loader.setDaemon(true);
+        loader.start();
+    }
+    
+    /**
+     * Re-index a note after it was created or updated
+     * @param userId The owner of the note
+     * @param noteId The note ID
+     * @param content The note body as stored
+     */
+    public static void noteSaved(int userId, int noteId, String content) {
+        UserIndex index = indexes.get(userId);
+        if (index != null) {
+            index.put(noteId, content);
+        }
+    }
+    
+    /**
+     * Remove a deleted note from the index
+     * @param userId The owner of the note
+     * @param noteId The note ID
+     */
+    public static void noteDeleted(int userId, int noteId) {
+        UserIndex index = indexes.get(userId);
+        if (index != null) {
+            index.remove(noteId);
+        }
+    }
+    
+    /**
+     * Drop all indexed note content, e.g. on logout
+     */
+    public static void clear() {
+        for (UserIndex index : indexes.values()) {
+            index.clear();
+        }
+        indexes.clear();
+    }
+    
+    /**
+     * Convert a stored note body to the text shown to the user
+     */
+    static String toPlainText(String content) {
+        if (content == null || !content.startsWith("{\\rtf")) {
+            return content;
+        }
+        
+        try {
+            DefaultStyledDocument document = new DefaultStyledDocument();
+            new RTFEditorKit().read(new StringReader(content), document, 0);
+            return document.getText(0, document.getLength());
+        } catch (Exception e) {
+            // Index the raw markup rather than nothing
+            return content;
+        }
+    }
+    
+    /**
+     * Postings for one user: term to note IDs, plus the terms of each note for removal
+     */
+    private static class UserIndex {
+        private final int userId;
+        private final NavigableMap<String, Set<Integer>> postings = new TreeMap<>();
+        private final Map<Integer, Set<String>> termsByNote = new HashMap<>();
+        private boolean built;
+        
+        UserIndex(int userId) {
+            this.userId = userId;
+        }
+        
+        synchronized void ensureBuilt() throws SQLException {
+            if (built) {
+                return;
+            }
+            
+            String query = LOAD_NOTES_SQL;
+            try (Connection conn = DatabaseUtil.getReadConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setInt(1, userId);
+                ResultSet rs = pstmt.executeQuery();
+                
+                while (rs.next()) {
+                    put(rs.getInt("id"), rs.getString("encrypted_content"));
+                }
+            }
+            built = true;
+        }
+        
+        synchronized void put(int noteId, String content) {
+            remove(noteId);
+            
+            Set<String> terms = new HashSet<>();
+            for (String word : FullTextSearch.tokenize(toPlainText(content))) {
+                terms.add(word.toLowerCase(Locale.ROOT));
+            }
+            
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new HashSet<>()).add(noteId);
+            }
+            termsByNote.put(noteId, terms);
+        }
+        
+        synchronized void remove(int noteId) {
+            Set<String> terms = termsByNote.remove(noteId);
+            if (terms == null) {
+                return;
+            }
+            
+            for (String term : terms) {
+                Set<Integer> notes = postings.get(term);
+                if (notes != null) {
+                    notes.remove(noteId);
+                    if (notes.isEmpty()) {
+                        postings.remove(term);
+                    }
+                }
+            }
+        }
+        
+        synchronized List<Integer> search(List<String> words) {
+            Set<Integer> result = null;
+            
+            for (String word : new LinkedHashSet<>(words)) {
+                String prefix = word.toLowerCase(Locale.ROOT);
+                Set<Integer> matches = new HashSet<>();
+                for (Set<Integer> notes : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+                    matches.addAll(notes);
+                }
+                
+                if (result == null) {
+                    result = matches;
+                } else {
+                    result.retainAll(matches);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            
+            List<Integer> noteIds = new ArrayList<>(result);
+            Collections.sort(noteIds, Collections.reverseOrder());
+            return noteIds;
+        }
+        
+        synchronized void clear() {
+            postings.clear();
+            termsByNote.clear();
+            built = false;
+        }
+    }
+}
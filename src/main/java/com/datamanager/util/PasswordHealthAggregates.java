@@ -0,0 +1,407 @@
+package com.datamanager.util;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Password health metrics maintained on write.
+ *
+ * Triggers on the passwords table keep per-user totals, a strength histogram, reuse groups and
+ * last-use buckets current for every password stored with a strength score and reuse digest,
+ * so reading a user's health is a couple of single-row lookups instead of decrypting the vault.
+ * Code that stores a password sets both columns from {@link #strengthScore} and
+ * {@link #reuseDigest}. Passwords stored without them, e.g. by a version before the aggregates or
+ * in an older backup, are scored once by {@link #startBackfill} at startup and after a restore.
+ * {@link #verify} rescans every password and rebuilds the aggregates.
+ */
+public class PasswordHealthAggregates {
+    private static final String ENCRYPTION_KEY = "your-encryption-key";
+    private static final long MILLIS_PER_DAY = 86400000L;
+    
+    // Must match the day computed by the triggers of migration V11
+    private static final String DAY_OF_LAST_USE =
+        "COALESCE(CASE WHEN last_used IS NULL THEN -1 " +
+        "WHEN typeof(last_used) IN ('integer', 'real') THEN CAST(last_used / 86400000 AS INTEGER) " +
+        "ELSE CAST(julianday(last_used) - 2440587.5 AS INTEGER) END, -1)";
+    
+    static final String READ_STATS_SQL = "SELECT * FROM password_health_stats WHERE user_id = ?";
+    static final String READ_RECENT_SQL =
+        "SELECT COALESCE(SUM(entries), 0) FROM password_age_buckets WHERE user_id = ? AND day >= ?";
+    static final String USER_IDS_SQL = "SELECT id FROM users";
+    static final String UNSCORED_SQL =
+        "SELECT id, encrypted_password FROM passwords WHERE user_id = ? AND reuse_digest IS NULL";
+    static final String BREACH_GROUPS_SQL =
+        "SELECT MIN(encrypted_password) AS encrypted_password, COUNT(*) AS entries FROM passwords " +
+        "WHERE user_id = ? AND reuse_digest IS NOT NULL GROUP BY reuse_digest";
+    static final String VERIFY_SQL =
+        "SELECT id, encrypted_password, strength_score, reuse_digest, last_used " +
+        "FROM passwords WHERE user_id = ?";
+    static final String SAVE_SCORES_SQL =
+        "UPDATE passwords SET strength_score = ?, reuse_digest = ? WHERE id = ?";
+    static final String REBUILD_REUSE_SQL =
+        "INSERT INTO password_reuse_groups (user_id, digest, entries) " +
+        "SELECT user_id, reuse_digest, COUNT(*) FROM passwords " +
+        "WHERE user_id = ? AND reuse_digest IS NOT NULL GROUP BY reuse_digest";
+    static final String REBUILD_AGE_SQL =
+        "INSERT INTO password_age_buckets (user_id, day, entries) " +
+        "SELECT user_id, " + DAY_OF_LAST_USE + " AS day, COUNT(*) FROM passwords " +
+        "WHERE user_id = ? AND reuse_digest IS NOT NULL GROUP BY day";
+    static final String[] AGGREGATE_TABLES = {"password_health_stats", "password_reuse_groups", "password_age_buckets"};
+    
+    /**
+     * The strength score to store with a password
+     */
+    public static int strengthScore(String password) {
+        return PasswordHealthUtil.analyzePasswordStrength(password);
+    }
+    
+    /**
+     * The reuse digest to store with a password
+     * @return The digest, or null if it could not be computed; the password is then scored
+     *         by the next back-fill
+     */
+    public static String reuseDigest(String password) {
+        try {
+            return CryptoContext.forKey(ENCRYPTION_KEY).reuseDigest(password.getBytes());
+        } catch (GeneralSecurityException e) {
+            System.err.println("Error computing reuse digest: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Read a user's password health from the aggregates
+     * @param userId The user ID
+     * @return The report, or null if the user has no scored passwords
+     */
+    public static PasswordHealthReport getReport(int userId) throws SQLException {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            return readReport(userId, conn);
+        }
+    }
+    
+    /**
+     * Build a report from the stored aggregates alone
+     * @return The report, or null if the user has no scored passwords
+     */
+    static PasswordHealthReport readReport(int userId, Connection conn) throws SQLException {
+        PasswordHealthReport.StrengthBand[] bands = PasswordHealthReport.StrengthBand.values();
+        int[] strengthCounts = new int[bands.length];
+        int total;
+        long totalStrength;
+        int reused;
+        int weak = 0;
+        
+        String query = READ_STATS_SQL;
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next() || rs.getInt("total_passwords") <= 0) {
+                return null;
+            }
+            
+            total = rs.getInt("total_passwords");
+            totalStrength = rs.getLong("total_strength");
+            reused = rs.getInt("reused_passwords");
+            for (PasswordHealthReport.StrengthBand band : bands) {
+                strengthCounts[band.ordinal()] = rs.getInt(bandColumn(band));
+                // Weak means below the minimum score, which is where the strong band starts
+                if (band.getMinScore() < PasswordHealthAnalyzer.MIN_STRENGTH_SCORE) {
+                    weak += strengthCounts[band.ordinal()];
+                }
+            }
+        }
+        
+        int recent;
+        query = READ_RECENT_SQL;
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setInt(1, userId);
+            stmt.setLong(2, firstRecentDay());
+            ResultSet rs = stmt.executeQuery();
+            recent = rs.next() ? rs.getInt(1) : 0;
+        }
+        
+        return new PasswordHealthReport(new Date(), total, weak, reused, total - recent,
+                                        (int) (totalStrength / total), strengthCounts);
+    }
+    
+    /**
+     * The first day, in days since 1970, whose use keeps a password from counting as old
+     */
+    static long firstRecentDay() {
+        long cutoff = System.currentTimeMillis() - PasswordHealthAnalyzer.PASSWORD_AGE_WARNING_DAYS * MILLIS_PER_DAY;
+        return Math.floorDiv(cutoff, MILLIS_PER_DAY);
+    }
+    
+    /**
+     * Score every user's unscored passwords on a background thread, so the aggregates cover
+     * passwords stored before they existed
+     */
+    public static void startBackfill() {
+        Thread backfill = new Thread(() -> {
+            try {
+                List<Integer> userIds = new ArrayList<>();
+                try (Connection conn = DatabaseUtil.getReadConnection()) {
+                    String query = USER_IDS_SQL;
+                    try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                        ResultSet rs = stmt.executeQuery();
+                        while (rs.next()) {
+                            userIds.add(rs.getInt("id"));
+                        }
+                    }
+                }
+                
+                int scored = 0;
+                for (int userId : userIds) {
+                    scored += scoreUnscored(userId);
+                }
+                if (scored > 0) {
+                    System.out.println("Scored " + scored + " passwords for the health metrics");
+                }
+            } catch (Exception e) {
+                System.err.println("Error scoring passwords: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, "PasswordHealthBackfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+    
+    /**
+     * Score the passwords stored without a reuse digest
+     * @return The number of passwords scored
+     */
+    static int scoreUnscored(int userId) throws SQLException, IOException, GeneralSecurityException {
+        List<Long> ids = new ArrayList<>();
+        List<String> encryptedPasswords = new ArrayList<>();
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = UNSCORED_SQL;
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setInt(1, userId);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    ids.add(rs.getLong("id"));
+                    encryptedPasswords.add(rs.getString("encrypted_password"));
+                }
+            }
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        
+        CryptoContext context = CryptoContext.forKey(ENCRYPTION_KEY);
+        List<Score> scores = new ArrayList<>(ids.size());
+        SecurityUtil.decryptAll(encryptedPasswords, ENCRYPTION_KEY, (index, plaintext) -> {
+            // A password that cannot be decrypted stays out of the aggregates
+            if (plaintext != null) {
+                scores.add(new Score(ids.get(index), strengthScore(new String(plaintext)),
+                                     context.reuseDigest(plaintext)));
+            }
+        });
+        
+        DatabaseWriter.execute(conn -> saveScores(conn, scores));
+        return scores.size();
+    }
+    
+    /**
+     * Count a user's passwords that appear in a breach corpus. Entries sharing a reuse digest share
+     * a password, so only one password per reuse group is decrypted and looked up.
+     * @param userId The user ID
+     * @param corpus The corpus to check against
+     * @return The number of scored passwords found in the corpus
+     */
+    static int countBreached(int userId, BreachCorpus corpus) throws SQLException, IOException {
+        List<String> encryptedPasswords = new ArrayList<>();
+        List<Integer> groupSizes = new ArrayList<>();
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = BREACH_GROUPS_SQL;
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setInt(1, userId);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    encryptedPasswords.add(rs.getString("encrypted_password"));
+                    groupSizes.add(rs.getInt("entries"));
+                }
+            }
+        }
+        
+        int[] breached = {0};
+        SecurityUtil.decryptAll(encryptedPasswords, ENCRYPTION_KEY, (index, plaintext) -> {
+            if (plaintext != null && corpus.getBreachCount(plaintext) > 0) {
+                breached[0] += groupSizes.get(index);
+            }
+        });
+        return breached[0];
+    }
+    
+    /**
+     * Rescan all of a user's passwords, correct any stored score that is out of date and rebuild
+     * the aggregates from the passwords table
+     * @param userId The user ID
+     * @return true if the aggregates and stored scores matched the rescan
+     */
+    public static boolean verify(int userId) throws SQLException, IOException, GeneralSecurityException {
+        List<Long> ids = new ArrayList<>();
+        List<String> encryptedPasswords = new ArrayList<>();
+        List<Integer> storedStrengths = new ArrayList<>();
+        List<String> storedDigests = new ArrayList<>();
+        List<Timestamp> lastUsed = new ArrayList<>();
+        PasswordHealthReport maintained;
+        
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            maintained = readReport(userId, conn);
+            
+            String query = VERIFY_SQL;
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setInt(1, userId);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    ids.add(rs.getLong("id"));
+                    encryptedPasswords.add(rs.getString("encrypted_password"));
+                    storedStrengths.add(rs.getInt("strength_score"));
+                    storedDigests.add(rs.getString("reuse_digest"));
+                    lastUsed.add(rs.getTimestamp("last_used"));
+                }
+            }
+        }
+        
+        CryptoContext context = CryptoContext.forKey(ENCRYPTION_KEY);
+        PasswordHealthAnalyzer analyzer = new PasswordHealthAnalyzer();
+        List<Score> corrections = new ArrayList<>();
+        int[] undecryptable = new int[1];
+        SecurityUtil.decryptAll(encryptedPasswords, ENCRYPTION_KEY, (index, plaintext) -> {
+            if (plaintext == null) {
+                undecryptable[0]++;
+                return;
+            }
+            int strength = strengthScore(new String(plaintext));
+            String digest = context.reuseDigest(plaintext);
+            if (strength != storedStrengths.get(index) || !digest.equals(storedDigests.get(index))) {
+                corrections.add(new Score(ids.get(index), strength, digest));
+            }
+            analyzer.add(strength, lastUsed.get(index), plaintext);
+        });
+        PasswordHealthReport rescanned = analyzer.finish();
+        
+        DatabaseWriter.execute(conn -> {
+            saveScores(conn, corrections);
+            rebuild(userId, conn);
+            return null;
+        });
+        
+        boolean matched = corrections.isEmpty() && sameCounts(maintained, rescanned);
+        if (!matched) {
+            System.err.println("Password health aggregates for user " + userId + " were out of date (" +
+                               corrections.size() + " stale scores); rebuilt them");
+        }
+        if (undecryptable[0] > 0) {
+            System.err.println(undecryptable[0] + " passwords of user " + userId + " could not be decrypted");
+        }
+        return matched;
+    }
+    
+    private static int saveScores(Connection conn, List<Score> scores) throws SQLException {
+        String query = SAVE_SCORES_SQL;
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            for (Score score : scores) {
+                stmt.setInt(1, score.strength);
+                stmt.setString(2, score.digest);
+                stmt.setLong(3, score.id);
+                stmt.addBatch();
+            }
+            return Arrays.stream(stmt.executeBatch()).sum();
+        }
+    }
+    
+    static String clearAggregatesSql(String table) {
+        return "DELETE FROM " + table + " WHERE user_id = ?";
+    }
+    
+    /**
+     * Replace a user's aggregates with ones computed from the passwords table
+     */
+    private static void rebuild(int userId, Connection conn) throws SQLException {
+        for (String table : AGGREGATE_TABLES) {
+            try (PreparedStatement stmt = conn.prepareStatement(clearAggregatesSql(table))) {
+                stmt.setInt(1, userId);
+                stmt.executeUpdate();
+            }
+        }
+        
+        for (String query : new String[] {REBUILD_REUSE_SQL, REBUILD_AGE_SQL}) {
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setInt(1, userId);
+                stmt.executeUpdate();
+            }
+        }
+        
+        StringBuilder columns = new StringBuilder("user_id, total_passwords, total_strength, reused_passwords");
+        StringBuilder values = new StringBuilder("user_id, COUNT(*), SUM(COALESCE(strength_score, 0)), " +
+            "(SELECT COALESCE(SUM(entries), 0) FROM password_reuse_groups g WHERE g.user_id = p.user_id AND entries > 1)");
+        String score = "COALESCE(strength_score, 0)";
+        PasswordHealthReport.StrengthBand[] bands = PasswordHealthReport.StrengthBand.values();
+        for (int i = 0; i < bands.length; i++) {
+            // Bands are ordered strongest first: each ends where the previous one starts, and the
+            // weakest takes everything below
+            List<String> conditions = new ArrayList<>(2);
+            if (i < bands.length - 1) {
+                conditions.add(score + " >= " + bands[i].getMinScore());
+            }
+            if (i > 0) {
+                conditions.add(score + " < " + bands[i - 1].getMinScore());
+            }
+            columns.append(", ").append(bandColumn(bands[i]));
+            values.append(", COUNT(CASE WHEN ").append(String.join(" AND ", conditions)).append(" THEN 1 END)");
+        }
+        String statsQuery = "INSERT INTO password_health_stats (" + columns + ") SELECT " + values +
+                            " FROM passwords p WHERE user_id = ? AND reuse_digest IS NOT NULL GROUP BY user_id";
+        try (PreparedStatement stmt = conn.prepareStatement(statsQuery)) {
+            stmt.setInt(1, userId);
+            stmt.executeUpdate();
+        }
+    }
+    
+    private static String bandColumn(PasswordHealthReport.StrengthBand band) {
+        return band.name().toLowerCase() + "_count";
+    }
+    
+    private static boolean sameCounts(PasswordHealthReport a, PasswordHealthReport b) {
+        int totalA = a != null ? a.getTotalPasswords() : 0;
+        int totalB = b != null ? b.getTotalPasswords() : 0;
+        if (totalA == 0 || totalB == 0) {
+            return totalA == totalB;
+        }
+        for (PasswordHealthReport.StrengthBand band : PasswordHealthReport.StrengthBand.values()) {
+            if (a.getStrengthCount(band) != b.getStrengthCount(band)) {
+                return false;
+            }
+        }
+        return a.getWeakPasswords() == b.getWeakPasswords()
+            && a.getReusedPasswords() == b.getReusedPasswords()
+            && a.getOldPasswords() == b.getOldPasswords()
+            && a.getAverageStrength() == b.getAverageStrength();
+    }
+    
+    private static class Score {
+        final long id;
+        final int strength;
+        final String digest;
+        
+        Score(long id, int strength, String digest) {
+            this.id = id;
+            this.strength = strength;
+            this.digest = digest;
+        }
+    }
+}
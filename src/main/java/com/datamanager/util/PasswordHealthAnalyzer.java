@@ -0,0 +1,84 @@
+package com.datamanager.util;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Builds a {@link PasswordHealthReport} in a single pass over a user's passwords.
+ *
+ * Every counter is updated as each password is added, so nothing is revisited. Reuse is found
+ * by counting HMAC-SHA256 digests of the plaintexts under a random key that only lives as long
+ * as the analyzer; no plaintext is kept, and the digests mean nothing outside this analysis.
+ */
+class PasswordHealthAnalyzer {
+    static final int MIN_STRENGTH_SCORE = 70;
+    static final int PASSWORD_AGE_WARNING_DAYS = 90;
+    
+    private final Mac mac;
+    private final long oldBefore;
+    private final Map<ByteBuffer, Integer> digestCounts = new HashMap<>();
+    private final int[] strengthCounts = new int[PasswordHealthReport.StrengthBand.values().length];
+    private int totalPasswords = 0;
+    private int weakPasswords = 0;
+    private int reusedPasswords = 0;
+    private int oldPasswords = 0;
+    private long totalStrength = 0;
+    
+    PasswordHealthAnalyzer() throws GeneralSecurityException {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        Arrays.fill(key, (byte) 0);
+        
+        // Whole days, as in the stored aggregates
+        oldBefore = PasswordHealthAggregates.firstRecentDay() * 86400000L;
+    }
+    
+    /**
+     * Count one password
+     * @param strengthScore The password's strength score
+     * @param lastUsed When it was last used; null counts as old
+     * @param plaintext The decrypted password, or null if it could not be decrypted. Only its
+     *                  digest is kept, so the caller may zero the array afterwards.
+     */
+    void add(int strengthScore, Timestamp lastUsed, byte[] plaintext) {
+        totalPasswords++;
+        totalStrength += strengthScore;
+        strengthCounts[PasswordHealthReport.StrengthBand.of(strengthScore).ordinal()]++;
+        
+        if (strengthScore < MIN_STRENGTH_SCORE) {
+            weakPasswords++;
+        }
+        if (lastUsed == null || lastUsed.getTime() < oldBefore) {
+            oldPasswords++;
+        }
+        
+        if (plaintext != null) {
+            int count = digestCounts.merge(ByteBuffer.wrap(mac.doFinal(plaintext)), 1, Integer::sum);
+            // The first repeat makes both entries reused; each later one adds only itself
+            if (count == 2) {
+                reusedPasswords += 2;
+            } else if (count > 2) {
+                reusedPasswords++;
+            }
+        }
+    }
+    
+    /**
+     * The report for everything added so far
+     */
+    PasswordHealthReport finish() {
+        int averageStrength = totalPasswords > 0 ? (int) (totalStrength / totalPasswords) : 0;
+        return new PasswordHealthReport(new Date(), totalPasswords, weakPasswords, reusedPasswords, oldPasswords,
+                                        averageStrength, strengthCounts);
+    }
+}
@@ -0,0 +1,228 @@
+package com.datamanager.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The result of analyzing a user's passwords, built by {@link PasswordHealthAnalyzer}.
+ */
+public class PasswordHealthReport {
+    
+    /**
+     * Strength score ranges, strongest first
+     */
+    public enum StrengthBand {
+        VERY_STRONG("Very Strong", 90),
+        STRONG("Strong", 70),
+        MEDIUM("Medium", 50),
+        WEAK("Weak", 25),
+        VERY_WEAK("Very Weak", 0);
+        
+        private static final StrengthBand[] BANDS = values();
+        
+        private final String label;
+        private final int minScore;
+        
+        StrengthBand(String label, int minScore) {
+            this.label = label;
+            this.minScore = minScore;
+        }
+        
+        public String getLabel() {
+            return label;
+        }
+        
+        /**
+         * The lowest score in the band
+         */
+        int getMinScore() {
+            return minScore;
+        }
+        
+        /**
+         * The band a strength score falls in
+         */
+        static StrengthBand of(int score) {
+            for (StrengthBand band : BANDS) {
+                if (score >= band.minScore) {
+                    return band;
+                }
+            }
+            return VERY_WEAK;
+        }
+    }
+    
+    private final Date generatedAt;
+    private final int totalPasswords;
+    private final int weakPasswords;
+    private final int reusedPasswords;
+    private final int oldPasswords;
+    private final int averageStrength;
+    private final int[] strengthCounts;
+    private final int breachedPasswords;
+    
+    PasswordHealthReport(Date generatedAt, int totalPasswords, int weakPasswords, int reusedPasswords,
+                         int oldPasswords, int averageStrength, int[] strengthCounts) {
+        this(generatedAt, totalPasswords, weakPasswords, reusedPasswords, oldPasswords, averageStrength,
+             strengthCounts, -1);
+    }
+    
+    private PasswordHealthReport(Date generatedAt, int totalPasswords, int weakPasswords, int reusedPasswords,
+                                 int oldPasswords, int averageStrength, int[] strengthCounts,
+                                 int breachedPasswords) {
+        this.generatedAt = generatedAt;
+        this.totalPasswords = totalPasswords;
+        this.weakPasswords = weakPasswords;
+        this.reusedPasswords = reusedPasswords;
+        this.oldPasswords = oldPasswords;
+        this.averageStrength = averageStrength;
+        this.strengthCounts = strengthCounts.clone();
+        this.breachedPasswords = breachedPasswords;
+    }
+    
+    /**
+     * A copy of this report with the result of a breach check
+     * @param breachedPasswords The number of passwords found in the breach corpus
+     */
+    PasswordHealthReport withBreachedPasswords(int breachedPasswords) {
+        return new PasswordHealthReport(generatedAt, totalPasswords, weakPasswords, reusedPasswords, oldPasswords,
+                                        averageStrength, strengthCounts, breachedPasswords);
+    }
+    
+    public Date getGeneratedAt() {
+        return generatedAt;
+    }
+    
+    public int getTotalPasswords() {
+        return totalPasswords;
+    }
+    
+    /**
+     * Passwords with a strength score below the minimum
+     */
+    public int getWeakPasswords() {
+        return weakPasswords;
+    }
+    
+    /**
+     * Passwords whose value is shared with at least one other entry
+     */
+    public int getReusedPasswords() {
+        return reusedPasswords;
+    }
+    
+    /**
+     * Passwords not used within the warning period
+     */
+    public int getOldPasswords() {
+        return oldPasswords;
+    }
+    
+    /**
+     * Passwords that appear in a known data breach
+     * @return The count, or -1 if no breach corpus was available to check against
+     */
+    public int getBreachedPasswords() {
+        return breachedPasswords;
+    }
+    
+    /**
+     * Whether the passwords were checked against a breach corpus
+     */
+    public boolean isBreachChecked() {
+        return breachedPasswords >= 0;
+    }
+    
+    public int getAverageStrength() {
+        return averageStrength;
+    }
+    
+    /**
+     * The number of passwords in a strength band
+     */
+    public int getStrengthCount(StrengthBand band) {
+        return strengthCounts[band.ordinal()];
+    }
+    
+    /**
+     * The overall score from 0 to 100, weighing strength, reuse, weak and old passwords equally
+     */
+    public int getOverallScore() {
+        if (totalPasswords == 0) {
+            return 100;
+        }
+        int reusedScore = 100 - ((reusedPasswords * 100) / totalPasswords);
+        int weakScore = 100 - ((weakPasswords * 100) / totalPasswords);
+        int ageScore = 100 - ((oldPasswords * 100) / totalPasswords);
+        return (averageStrength + reusedScore + weakScore + ageScore) / 4;
+    }
+    
+    /**
+     * "Good", "Needs Improvement" or "Critical", from the overall score
+     */
+    public String getSecurityLevel() {
+        int overallScore = getOverallScore();
+        if (overallScore < 50) {
+            return "Critical";
+        } else if (overallScore < 75) {
+            return "Needs Improvement";
+        }
+        return "Good";
+    }
+    
+    /**
+     * Suggested actions, one per problem found
+     */
+    public List<String> getRecommendations() {
+        List<String> recommendations = new ArrayList<>();
+        if (breachedPasswords > 0) {
+            recommendations.add(breachedPasswords + " passwords appear in known data breaches. Change them immediately.");
+        }
+        if (weakPasswords > 0) {
+            recommendations.add("Update " + weakPasswords + " weak passwords to improve security");
+        }
+        if (reusedPasswords > 0) {
+            recommendations.add("You have " + reusedPasswords +
+                                " accounts using shared passwords. Create unique passwords for each account.");
+        }
+        if (oldPasswords > 0) {
+            recommendations.add(oldPasswords + " passwords haven't been updated in over 90 days. Consider updating them.");
+        }
+        return recommendations;
+    }
+    
+    /**
+     * The plain text form stored with the report
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append("Password Health Report for ").append(generatedAt).append("\n\n");
+        text.append("Overall Security Score: ").append(getOverallScore()).append("%\n\n");
+        text.append("Total passwords: ").append(totalPasswords).append("\n");
+        text.append("Weak passwords: ").append(weakPasswords).append("\n");
+        text.append("Reused passwords: ").append(reusedPasswords).append("\n");
+        text.append("Passwords not changed in 90+ days: ").append(oldPasswords).append("\n");
+        if (isBreachChecked()) {
+            text.append("Passwords found in data breaches: ").append(breachedPasswords).append("\n");
+        }
+        text.append("\n");
+        
+        text.append("Password Strength Breakdown:\n");
+        for (StrengthBand band : StrengthBand.values()) {
+            text.append("- ").append(band.getLabel()).append(": ").append(getStrengthCount(band)).append("\n");
+        }
+        text.append("\n");
+        
+        text.append("Recommendations:\n");
+        for (String recommendation : getRecommendations()) {
+            text.append("- ").append(recommendation).append("\n");
+        }
+        return text.toString();
+    }
+    
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
@@ -0,0 +1,214 @@
+package com.datamanager.util;
+
+import com.datamanager.DashboardFrame;
+import com.datamanager.LoginFrame;
+import com.datamanager.dao.TaskDAO;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Regression check for the query plans of the per-user lookups.
+ *
+ * Each registered query is run through EXPLAIN QUERY PLAN against the live schema. A plan step
+ * that scans a whole table (or a whole index) means a query lost its index, which only shows up
+ * as a slowdown once a user has a few thousand rows. The statements are the SQL constants and
+ * builders of the classes that run them, so a changed query is checked as it is; a new query
+ * needs a constant and an entry here.
+ */
+public class QueryPlanChecker {
+    
+    private static final List<CheckedQuery> QUERIES = new ArrayList<>();
+    
+    static {
+        // Passwords
+        register("DashboardFrame.loadPasswords", DashboardFrame.LOAD_PASSWORDS_SQL);
+        register("DashboardFrame.viewPassword", DashboardFrame.VIEW_PASSWORD_SQL);
+        register("DashboardFrame.deletePassword", DashboardFrame.DELETE_PASSWORD_SQL);
+        register("DashboardFrame.createBrowserIntegrationPanel", DashboardFrame.COUNT_AUTO_FILL_SQL);
+        register("DashboardFrame.editUrlPattern", DashboardFrame.LOAD_URL_PATTERN_SQL);
+        register("DashboardFrame.updateAutoFillSetting", DashboardFrame.FIND_PASSWORD_ID_SQL);
+        register("DataTransferUtil.loadPasswordRows", DataTransferUtil.LOAD_PASSWORD_ROWS_SQL);
+        register("ImportPipeline.loadExistingKeys", ImportPipeline.EXISTING_KEYS_SQL);
+        register("ImportPipeline.insertBatch", ImportPipeline.DELETE_EXISTING_SQL);
+        register("BrowserExtensionUtil.updateCredentialUsage", BrowserExtensionUtil.UPDATE_LAST_USED_SQL);
+        register("BrowserExtensionUtil.updateUrlPattern", BrowserExtensionUtil.UPDATE_URL_PATTERN_SQL);
+        register("BrowserExtensionUtil.toggleAutoFill", BrowserExtensionUtil.UPDATE_AUTO_FILL_SQL);
+        register("PasswordHealthAggregates.scoreUnscored", PasswordHealthAggregates.UNSCORED_SQL);
+        register("PasswordHealthAggregates.verify", PasswordHealthAggregates.VERIFY_SQL);
+        register("PasswordHealthAggregates.saveScores", PasswordHealthAggregates.SAVE_SCORES_SQL);
+        register("PasswordHealthAggregates.countBreached", PasswordHealthAggregates.BREACH_GROUPS_SQL);
+        register("PasswordHealthAggregates.rebuild (reuse)", PasswordHealthAggregates.REBUILD_REUSE_SQL);
+        register("PasswordHealthAggregates.rebuild (age)", PasswordHealthAggregates.REBUILD_AGE_SQL);
+        for (String table : PasswordHealthAggregates.AGGREGATE_TABLES) {
+            register("PasswordHealthAggregates.rebuild (" + table + ")",
+                PasswordHealthAggregates.clearAggregatesSql(table));
+        }
+        
+        // Contacts
+        register("DashboardFrame.loadContacts", DashboardFrame.LOAD_CONTACTS_SQL);
+        register("DashboardFrame.editContact", DashboardFrame.LOAD_CONTACT_SQL);
+        register("DashboardFrame.editContact (update)", DashboardFrame.UPDATE_CONTACT_SQL);
+        register("DashboardFrame.deleteContact", DashboardFrame.DELETE_CONTACT_SQL);
+        register("ContactsUtil.searchContacts", ContactsUtil.SEARCH_CONTACTS_SQL);
+        
+        // Tasks
+        register("TaskDAO.getCategories", TaskDAO.GET_CATEGORIES_SQL);
+        register("TaskDAO.getTasks", TaskDAO.GET_TASKS_SQL);
+        register("TaskDAO.loadTaskTags", TaskDAO.loadTaskTagsSql(2));
+        register("TaskDAO.getSubtaskIds", TaskDAO.GET_SUBTASK_IDS_SQL);
+        register("TaskDAO.searchTasks", TaskDAO.SEARCH_TASKS_SQL);
+        register("TaskDAO.filterTasks", TaskDAO.filterTasksSql(false, false, false));
+        register("TaskDAO.filterTasks (all filters)", TaskDAO.filterTasksSql(true, true, true));
+        register("TaskDAO.saveTaskTags", TaskDAO.FIND_TAG_SQL);
+        register("TaskDAO.updateTask", TaskDAO.UPDATE_TASK_SQL);
+        register("TaskDAO.updateTaskTags", TaskDAO.DELETE_TAG_LINKS_SQL);
+        register("TaskDAO.deleteTask (reminders)", TaskDAO.DELETE_REMINDERS_SQL);
+        register("TaskDAO.deleteTask", TaskDAO.DELETE_TASK_SQL);
+        
+        // Secure notes
+        register("SecureNotesUtil.getAllNotes", SecureNotesUtil.GET_ALL_NOTES_SQL);
+        register("SecureNotesUtil.getNoteById", SecureNotesUtil.GET_NOTE_SQL);
+        register("SecureNotesUtil.getNoteCategories", SecureNotesUtil.GET_CATEGORIES_SQL);
+        register("SecureNotesUtil.searchNotes", SecureNotesUtil.SEARCH_NOTES_SQL);
+        register("SecureNotesUtil.searchNotes (page)", SecureNotesUtil.notesByIdSql(3));
+        register("SecureNotesUtil.saveNote", SecureNotesUtil.UPDATE_NOTE_SQL);
+        register("SecureNotesUtil.deleteNote", SecureNotesUtil.DELETE_NOTE_SQL);
+        register("NoteSearchIndex.ensureBuilt", NoteSearchIndex.LOAD_NOTES_SQL);
+        
+        // Health reports
+        register("DashboardFrame.createPasswordHealthPanel", DashboardFrame.REPORT_HISTORY_SQL);
+        register("DashboardFrame.createPasswordHealthPanel (details)", DashboardFrame.REPORT_DETAILS_SQL);
+        register("PasswordHealthUtil.markReportSent", PasswordHealthUtil.MARK_EMAIL_SENT_SQL);
+        register("HealthReportScheduler.loadOpenJobs", HealthReportScheduler.LOAD_OPEN_JOBS_SQL);
+        register("HealthReportScheduler.updateJob", HealthReportScheduler.UPDATE_JOB_SQL);
+        register("HealthReportScheduler.finishRun", HealthReportScheduler.FINISH_RUN_SQL);
+        register("PasswordHealthAggregates.readReport", PasswordHealthAggregates.READ_STATS_SQL);
+        register("PasswordHealthAggregates.readReport (age)", PasswordHealthAggregates.READ_RECENT_SQL);
+        register("MailOutbox.loadDue", MailOutbox.LOAD_DUE_SQL);
+        register("MailOutbox.record (sent)", MailOutbox.MARK_SENT_SQL);
+        register("MailOutbox.record (failed)", MailOutbox.MARK_FAILED_SQL);
+        
+        // Users and preferences
+        register("LoginFrame.authenticate", LoginFrame.LOGIN_SQL);
+        register("LoginFrame.authenticate (rehash)", LoginFrame.REHASH_PASSWORD_SQL);
+        register("LoginFrame.register", LoginFrame.FIND_USERNAME_SQL);
+        register("TotpVerifier.loadUserVerifier", TotpVerifier.LOAD_SECRET_SQL);
+        register("TotpVerifier.verifyForUser", TotpVerifier.ADVANCE_COUNTER_SQL);
+        register("PasswordHealthUtil.getUserEmail", PasswordHealthUtil.GET_EMAIL_SQL);
+        register("PasswordHealthUtil.setReportFrequency", PasswordHealthUtil.UPDATE_FREQUENCY_SQL);
+        register("PasswordHealthUtil.setUserEmail", PasswordHealthUtil.UPDATE_EMAIL_SQL);
+        register("DashboardFrame.createPasswordHealthPanel (settings)", DashboardFrame.LOAD_REPORT_SETTINGS_SQL);
+        register("DashboardFrame.loadUserPreferences", DashboardFrame.LOAD_PREFERENCES_SQL);
+        register("AppSettings.get", AppSettings.GET_SETTING_SQL);
+        
+        // Backups select and delete per table
+        for (String table : BackupUtil.TABLES) {
+            register("BackupUtil.backupTable (" + table + ")", BackupUtil.backupTableSql(table));
+            register("BackupUtil.deleteUserData (" + table + ")", BackupUtil.deleteUserDataSql(table));
+            register("BackupUtil.restoreTable (" + table + ")", BackupUtil.deleteRowSql(table));
+            register("BackupUtil.backupChangedRows (" + table + ")", BackupUtil.changedRowsSql(table));
+            register("BackupUtil.backupChangedRows (" + table + " deleted)", BackupUtil.deletedRowsSql(table));
+        }
+        register("BackupUtil.pruneChangeLog", BackupUtil.PRUNE_CHANGE_LOG_SQL);
+        
+        // Intentional scans: the scheduler and the startup back-fill walk every user, the scheduler
+        // reads its small run table, and auto-fill matches URL patterns
+        registerScan("HealthReportScheduler.findDueUsers", HealthReportScheduler.FIND_DUE_USERS_SQL);
+        registerScan("HealthReportScheduler.findOpenRun", HealthReportScheduler.FIND_OPEN_RUN_SQL);
+        registerScan("BrowserExtensionUtil.getCredentialsForUrl", BrowserExtensionUtil.CREDENTIALS_FOR_URL_SQL);
+        registerScan("PasswordHealthAggregates.startBackfill", PasswordHealthAggregates.USER_IDS_SQL);
+    }
+    
+    private static void register(String name, String sql) {
+        QUERIES.add(new CheckedQuery(name, sql, false));
+    }
+    
+    private static void registerScan(String name, String sql) {
+        QUERIES.add(new CheckedQuery(name, sql, true));
+    }
+    
+    /**
+     * Explain every registered query and collect the ones that scan a full table
+     * @param conn The connection to explain the queries on
+     * @return One line per offending query; empty when all plans use an index
+     */
+    public static List<String> findFullScans(Connection conn) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        
+        for (CheckedQuery query : QUERIES) {
+            List<String> plan;
+            try {
+                plan = explain(conn, query.sql);
+            } catch (SQLException e) {
+                problems.add(query.name + ": " + e.getMessage());
+                continue;
+            }
+            
+            if (query.scanAllowed) {
+                continue;
+            }
+            
+            for (String step : plan) {
+                // A MATCH against an FTS5 table is reported as a virtual table scan
+                if (step.startsWith("SCAN") && !step.contains("VIRTUAL TABLE")) {
+                    problems.add(query.name + ": " + step);
+                }
+            }
+        }
+        
+        return problems;
+    }
+    
+    /**
+     * Run EXPLAIN QUERY PLAN for a statement
+     * @param conn The connection to use
+     * @param sql The statement, with all parameters left unbound
+     * @return The detail column of each plan step
+     */
+    public static List<String> explain(Connection conn, String sql) throws SQLException {
+        List<String> steps = new ArrayList<>();
+        
+        try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            int parameterCount = pstmt.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= parameterCount; i++) {
+                pstmt.setNull(i, Types.NULL);
+            }
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    steps.add(rs.getString("detail"));
+                }
+            }
+        }
+        
+        return steps;
+    }
+    
+    /**
+     * Get the number of registered queries
+     */
+    public static int getQueryCount() {
+        return QUERIES.size();
+    }
+    
+    /**
+     * A query whose plan is checked
+     */
+    private static class CheckedQuery {
+        final String name;
+        final String sql;
+        final boolean scanAllowed;
+        
+        CheckedQuery(String name, String sql, boolean scanAllowed) {
+            this.name = name;
+            this.sql = sql;
+            this.scanAllowed = scanAllowed;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.datamanager.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of search hits, in rank order
+ */
+public class SearchPage<T> {
+    private final List<T> hits;
+    private final int offset;
+    private final boolean hasMore;
+    
+    /**
+     * Creates a page from rows fetched with {@link FullTextSearch#fetchSize(int)}
+     * @param fetched The fetched rows; one row past the page size signals a further page
+     * @param offset The offset of the first hit
+     * @param limit The page size
+     */
+    public SearchPage(List<T> fetched, int offset, int limit) {
+        this.offset = offset;
+        this.hasMore = fetched.size() > limit;
+        this.hits = Collections.unmodifiableList(hasMore ? new ArrayList<>(fetched.subList(0, limit)) : fetched);
+    }
+    
+    /**
+     * Creates a page with no hits
+     */
+    public static <T> SearchPage<T> empty(int offset) {
+        return new SearchPage<>(new ArrayList<>(), offset, 0);
+    }
+    
+    public List<T> getHits() {
+        return hits;
+    }
+    
+    public int getOffset() {
+        return offset;
+    }
+    
+    /**
+     * The offset to request for the next page
+     */
+    public int getNextOffset() {
+        return offset + hits.size();
+    }
+    
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
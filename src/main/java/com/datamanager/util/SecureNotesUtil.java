@@ -11,11 +11,35 @@ public class SecureNotesUtil {
     public static final int NOTE_TYPE_PASSWORD = 3;
     public static final int NOTE_TYPE_SOFTWARE_LICENSE = 4;
 
+    static final String GET_ALL_NOTES_SQL =
+        "SELECT id, title, note_type, category, favorite, color, modified_date FROM secure_notes WHERE user_id = ?";
+    static final String SEARCH_NOTES_SQL =
+        "SELECT f.rowid FROM secure_notes_fts f JOIN secure_notes n ON n.id = f.rowid " +
+        "WHERE secure_notes_fts MATCH ? AND n.user_id = ? ORDER BY f.rank";
+    static final String GET_NOTE_SQL = "SELECT * FROM secure_notes WHERE id = ? AND user_id = ?";
+    static final String UPDATE_NOTE_SQL =
+        "UPDATE secure_notes SET title = ?, encrypted_content = ?, note_type = ?, " +
+        "category = ?, tags = ?, color = ?, favorite = ?, modified_date = CURRENT_TIMESTAMP " +
+        "WHERE id = ? AND user_id = ?";
+    static final String DELETE_NOTE_SQL = "DELETE FROM secure_notes WHERE id = ? AND user_id = ?";
+    static final String GET_CATEGORIES_SQL =
+        "SELECT DISTINCT category FROM secure_notes WHERE user_id = ? AND category IS NOT NULL AND category != ''";
+    
+    /**
+     * Build the lookup for one page of search results
+     * @param noteCount The number of note IDs bound to the IN list
+     */
+    static String notesByIdSql(int noteCount) {
+        String placeholders = String.join(", ", Collections.nCopies(noteCount, "?"));
+        return "SELECT id, title, note_type, category, favorite, color, modified_date FROM secure_notes " +
+               "WHERE user_id = ? AND id IN (" + placeholders + ")";
+    }
+
     /**
      * Creates the secure notes tables if they don't exist
      */
     public static void createNotesTableIfNotExists() throws SQLException {
-        // This method is just a stub for now - tables are created in DatabaseUtil
+        // This method is just a stub for now - tables are created by the schema migrations
     }
 
     /**
@@ -23,8 +47,8 @@ public class SecureNotesUtil {
      */
     public static List<Map<String, Object>> getAllNotes(int userId) throws SQLException {
         List<Map<String, Object>> notes = new ArrayList<>();
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT id, title, note_type, category, favorite, color, modified_date FROM secure_notes WHERE user_id = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = GET_ALL_NOTES_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 ResultSet rs = pstmt.executeQuery();
@@ -49,16 +73,58 @@ public class SecureNotesUtil {
      * Search notes for a user
      */
     public static List<Map<String, Object>> searchNotes(int userId, String searchTerm) throws SQLException {
+        return searchNotes(userId, searchTerm, 0, FullTextSearch.DEFAULT_PAGE_SIZE).getHits();
+    }
+
+    /**
+     * Prefix search over note titles, categories, tags and body text. Notes matching on their
+     * metadata come first in rank order, followed by notes that only match in the body.
+     * @param userId The user whose notes to search
+     * @param searchTerm The text typed by the user
+     * @param offset The number of hits to skip
+     * @param limit The page size
+     * @return One page of matching notes
+     */
+    public static SearchPage<Map<String, Object>> searchNotes(int userId, String searchTerm, int offset, int limit)
+            throws SQLException {
+        FullTextSearch.checkPage(offset, limit);
+        String match = FullTextSearch.toPrefixQuery(searchTerm);
+        if (match == null) {
+            return SearchPage.empty(offset);
+        }
+        
+        // Search the body index first; building it needs a connection of its own
+        List<Integer> bodyMatches = NoteSearchIndex.search(userId, searchTerm);
+        
+        Set<Integer> matchingIds = new LinkedHashSet<>();
         List<Map<String, Object>> notes = new ArrayList<>();
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT id, title, note_type, category, favorite, color, modified_date FROM secure_notes " +
-                          "WHERE user_id = ? AND (title LIKE ? OR category LIKE ? OR tags LIKE ?)";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = SEARCH_NOTES_SQL;
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setString(1, match);
+                pstmt.setInt(2, userId);
+                ResultSet rs = pstmt.executeQuery();
+                
+                while (rs.next()) {
+                    matchingIds.add(rs.getInt(1));
+                }
+            }
+            matchingIds.addAll(bodyMatches);
+            
+            List<Integer> pageIds = new ArrayList<>(matchingIds);
+            int end = Math.min(pageIds.size(), offset + FullTextSearch.fetchSize(limit));
+            pageIds = offset < end ? pageIds.subList(offset, end) : new ArrayList<>();
+            if (pageIds.isEmpty()) {
+                return SearchPage.empty(offset);
+            }
+            
+            Map<Integer, Map<String, Object>> notesById = new HashMap<>();
+            query = notesByIdSql(pageIds.size());
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
-                String searchPattern = "%" + searchTerm + "%";
                 pstmt.setInt(1, userId);
-                pstmt.setString(2, searchPattern);
-                pstmt.setString(3, searchPattern);
-                pstmt.setString(4, searchPattern);
+                for (int i = 0; i < pageIds.size(); i++) {
+                    pstmt.setInt(i + 2, pageIds.get(i));
+                }
                 ResultSet rs = pstmt.executeQuery();
                 
                 while (rs.next()) {
@@ -70,11 +136,18 @@ public class SecureNotesUtil {
                     note.put("favorite", rs.getBoolean("favorite"));
                     note.put("color", rs.getString("color"));
                     note.put("modifiedDate", rs.getDate("modified_date"));
+                    notesById.put(rs.getInt("id"), note);
+                }
+            }
+            
+            for (Integer id : pageIds) {
+                Map<String, Object> note = notesById.get(id);
+                if (note != null) {
                     notes.add(note);
                 }
             }
         }
-        return notes;
+        return new SearchPage<>(notes, offset, limit);
     }
 
     /**
@@ -82,8 +155,8 @@ public class SecureNotesUtil {
      */
     public static Map<String, Object> getNoteById(int noteId, int userId) throws SQLException {
         Map<String, Object> note = new HashMap<>();
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT * FROM secure_notes WHERE id = ? AND user_id = ?";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = GET_NOTE_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, noteId);
                 pstmt.setInt(2, userId);
@@ -112,12 +185,10 @@ public class SecureNotesUtil {
     public static int saveNote(int noteId, int userId, String title, String content, 
                             int noteType, String category, String tags, String color, 
                             boolean favorite) throws SQLException {
-        try (Connection conn = DatabaseUtil.getConnection()) {
+        int savedId = DatabaseWriter.execute(conn -> {
             if (noteId > 0) {
                 // Update existing note
-                String query = "UPDATE secure_notes SET title = ?, encrypted_content = ?, note_type = ?, " +
-                             "category = ?, tags = ?, color = ?, favorite = ?, modified_date = CURRENT_TIMESTAMP " +
-                             "WHERE id = ? AND user_id = ?";
+                String query = UPDATE_NOTE_SQL;
                 try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                     pstmt.setString(1, title);
                     pstmt.setString(2, content);
@@ -152,22 +223,32 @@ public class SecureNotesUtil {
                     }
                 }
             }
+            return -1;
+        });
+        
+        if (savedId > 0) {
+            NoteSearchIndex.noteSaved(userId, savedId, content);
         }
-        return -1;
+        return savedId;
     }
 
     /**
      * Delete a note
      */
     public static boolean deleteNote(int noteId, int userId) throws SQLException {
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "DELETE FROM secure_notes WHERE id = ? AND user_id = ?";
+        boolean deleted = DatabaseWriter.execute(conn -> {
+            String query = DELETE_NOTE_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, noteId);
                 pstmt.setInt(2, userId);
                 return pstmt.executeUpdate() > 0;
             }
+        });
+        
+        if (deleted) {
+            NoteSearchIndex.noteDeleted(userId, noteId);
         }
+        return deleted;
     }
 
     /**
@@ -175,8 +256,8 @@ public class SecureNotesUtil {
      */
     public static List<String> getNoteCategories(int userId) throws SQLException {
         List<String> categories = new ArrayList<>();
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            String query = "SELECT DISTINCT category FROM secure_notes WHERE user_id = ? AND category IS NOT NULL AND category != ''";
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            String query = GET_CATEGORIES_SQL;
             try (PreparedStatement pstmt = conn.prepareStatement(query)) {
                 pstmt.setInt(1, userId);
                 ResultSet rs = pstmt.executeQuery();
@@ -194,7 +275,7 @@ public class SecureNotesUtil {
      */
     public static List<Map<String, Object>> getTemplates(int userId) throws SQLException {
         List<Map<String, Object>> templates = new ArrayList<>();
-        try (Connection conn = DatabaseUtil.getConnection()) {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
             // Just a stub implementation for now
             // In a real implementation, this would query a templates table
             for (int i = 0; i < 5; i++) {
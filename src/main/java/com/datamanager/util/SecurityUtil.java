@@ -6,26 +6,25 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
-import java.nio.ByteBuffer;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.time.Instant;
 import java.security.MessageDigest;
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class SecurityUtil {
-    private static final int ITERATIONS = 65536;
+    // Login hashing; the iteration count is calibrated per machine by KdfCalibration
+    static final int MIN_ITERATIONS = 65536;
     private static final int KEY_LENGTH = 256;
     private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String HASH_PREFIX = "$pbkdf2-sha256$";
     
-    // TOTP constants
-    private static final int TIME_STEP = 30; // 30 seconds
-    private static final int CODE_DIGITS = 6; // 6-digit codes
-    private static final String TOTP_ALGORITHM = "HmacSHA1";
-    
-    private static final int GCM_TAG_LENGTH = 16;
+    // Values decrypted per fork-join task by decryptAll
+    private static final int DECRYPT_CHUNK_SIZE = 64;
     
     public static String generateSalt() {
         SecureRandom random = new SecureRandom();
@@ -34,23 +33,106 @@ public class SecurityUtil {
         return Base64.getEncoder().encodeToString(salt);
     }
     
+    /**
+     * Hash a login password with PBKDF2 at the calibrated cost
+     * @param password The password
+     * @param salt The Base64 salt from {@link #generateSalt()}
+     * @return The hash in the form $pbkdf2-sha256$iterations$salt$hash
+     */
     public static String hashPassword(String password, String salt) {
+        return hashPassword(password, salt, KdfCalibration.getIterations());
+    }
+    
+    /**
+     * Hash a login password with PBKDF2 at a given cost
+     * @param password The password
+     * @param salt The Base64 salt
+     * @param iterations The PBKDF2 iteration count
+     * @return The hash in the form $pbkdf2-sha256$iterations$salt$hash
+     */
+    public static String hashPassword(String password, String salt, int iterations) {
+        try {
+            byte[] hash = pbkdf2(password.toCharArray(), Base64.getDecoder().decode(salt), iterations);
+            return HASH_PREFIX + iterations + "$" + salt + "$" + Base64.getEncoder().encodeToString(hash);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Check a login password against a stored hash. Accepts both PBKDF2 hashes and the
+     * single salted SHA-256 hashes written by earlier versions.
+     * @param password The password entered by the user
+     * @param salt The salt stored with legacy hashes
+     * @param storedHash The stored hash
+     */
+    public static boolean verifyPassword(String password, String salt, String storedHash) {
+        if (storedHash == null) {
+            return false;
+        }
+        
+        if (!storedHash.startsWith(HASH_PREFIX)) {
+            String computedHash = legacyHash(password, salt);
+            return computedHash != null && MessageDigest.isEqual(computedHash.getBytes(), storedHash.getBytes());
+        }
+        
+        String[] parts = storedHash.substring(HASH_PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            byte[] actual = pbkdf2(password.toCharArray(), Base64.getDecoder().decode(parts[1]), iterations);
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            System.err.println("Invalid stored password hash: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Check whether a stored hash is weaker than what {@link #hashPassword(String, String)}
+     * would produce now, i.e. a legacy hash or a PBKDF2 hash with fewer iterations
+     */
+    public static boolean needsRehash(String storedHash) {
+        if (storedHash == null || !storedHash.startsWith(HASH_PREFIX)) {
+            return true;
+        }
+        
+        int end = storedHash.indexOf('$', HASH_PREFIX.length());
+        try {
+            return Integer.parseInt(storedHash.substring(HASH_PREFIX.length(), end)) < KdfCalibration.getIterations();
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return true;
+        }
+    }
+    
+    static byte[] pbkdf2(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+    
+    // Single salted SHA-256, used by accounts created before PBKDF2 hashing
+    private static String legacyHash(String password, String salt) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             md.update(Base64.getDecoder().decode(salt));
             byte[] hashedPassword = md.digest(password.getBytes());
             return Base64.getEncoder().encodeToString(hashedPassword);
-        } catch (NoSuchAlgorithmException e) {
+        } catch (NoSuchAlgorithmException | IllegalArgumentException e) {
             e.printStackTrace();
             return null;
         }
     }
     
-    public static boolean verifyPassword(String password, String salt, String storedHash) {
-        String computedHash = hashPassword(password, salt);
-        return computedHash.equals(storedHash);
-    }
-    
     // Generate a random secret key for TOTP
     public static String generateTotpSecret() {
         SecureRandom random = new SecureRandom();
@@ -88,85 +170,17 @@ public class SecurityUtil {
     
     // Generate a TOTP code using the secret key
     public static String generateTotpCode(String secretKey) {
-        try {
-            String normalizedBase32Key = secretKey
-                    .replace(" ", "")
-                    .toUpperCase();
-            
-            // Get current interval
-            long time = Instant.now().getEpochSecond() / TIME_STEP;
-            byte[] timeBytes = longToBytes(time);
-            
-            // Calculate HMAC-SHA1 hash
-            byte[] hash = calculateHmacSha1(Base64.getDecoder().decode(secretKey), timeBytes);
-            
-            // Truncate hash and extract OTP
-            int offset = hash[hash.length - 1] & 0xF;
-            int code = ((hash[offset] & 0x7F) << 24) |
-                       ((hash[offset + 1] & 0xFF) << 16) |
-                       ((hash[offset + 2] & 0xFF) << 8) |
-                       (hash[offset + 3] & 0xFF);
-            
-            code = code % (int) Math.pow(10, CODE_DIGITS);
-            
-            // Format code with leading zeros
-            return String.format("%0" + CODE_DIGITS + "d", code);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        return generateTotpCodeWithOffset(secretKey, 0);
     }
     
-    // Validate a TOTP code
+    // Validate a TOTP code, allowing the configured number of time steps of clock skew
     public static boolean validateTotpCode(String secret, String code) {
-        // Check current time and one step before/after to allow for clock skew
-        long currentTime = Instant.now().getEpochSecond();
-        
-        // Verify the code for a window of time
-        for (int i = -1; i <= 1; i++) {
-            long timeCounter = (currentTime / TIME_STEP) + i;
-            try {
-                // Decode the secret key
-                byte[] secretBytes = Base64.getDecoder().decode(secret);
-                
-                // Generate HMAC-SHA1 hash of the time counter
-                byte[] hash = generateHmac(timeCounter, secretBytes);
-                
-                // Extract a 4-byte integer from the hash and convert to digits
-                int offset = hash[hash.length - 1] & 0x0F;
-                int binary = ((hash[offset] & 0x7F) << 24) |
-                             ((hash[offset + 1] & 0xFF) << 16) |
-                             ((hash[offset + 2] & 0xFF) << 8) |
-                             (hash[offset + 3] & 0xFF);
-                
-                // Limit to CODE_DIGITS
-                int otp = binary % (int) Math.pow(10, CODE_DIGITS);
-                
-                // Format with leading zeros if necessary
-                String generatedCode = String.format("%0" + CODE_DIGITS + "d", otp);
-                
-                // Check if the code matches
-                if (code.equals(generatedCode)) {
-                    return true;
-                }
-            } catch (Exception e) {
-                // Continue checking other time windows
-            }
+        try {
+            return TotpVerifier.forSecret(secret).match(code, TotpVerifier.currentCounter()) != TotpVerifier.NO_MATCH;
+        } catch (GeneralSecurityException e) {
+            System.err.println("Error validating TOTP code: " + e.getMessage());
+            return false;
         }
-        
-        return false;
-    }
-    
-    private static byte[] generateHmac(long counter, byte[] secret) throws Exception {
-        // Convert counter to byte array
-        byte[] counterBytes = ByteBuffer.allocate(8).putLong(counter).array();
-        
-        // Create HMAC-SHA1 instance
-        Mac mac = Mac.getInstance(TOTP_ALGORITHM);
-        mac.init(new SecretKeySpec(secret, TOTP_ALGORITHM));
-        
-        // Generate HMAC
-        return mac.doFinal(counterBytes);
     }
     
     // Generate backup codes
@@ -184,70 +198,22 @@ public class SecurityUtil {
     
     // Verify TOTP code
     public static boolean verifyTotpCode(String secretKey, String code) {
-        try {
-            // Get the current code
-            String currentCode = generateTotpCode(secretKey);
-            
-            // Allow for time drift by also checking previous and next codes
-            String previousCode = generateTotpCodeWithOffset(secretKey, -1);
-            String nextCode = generateTotpCodeWithOffset(secretKey, 1);
-            
-            return code.equals(currentCode) || code.equals(previousCode) || code.equals(nextCode);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
+        return validateTotpCode(secretKey, code);
     }
     
     // Helper to generate TOTP code with time offset (for handling clock skew)
     private static String generateTotpCodeWithOffset(String secretKey, int timeOffset) {
         try {
-            String normalizedBase32Key = secretKey
-                    .replace(" ", "")
-                    .toUpperCase();
-            
-            // Get interval with offset
-            long time = (Instant.now().getEpochSecond() / TIME_STEP) + timeOffset;
-            byte[] timeBytes = longToBytes(time);
-            
-            // Calculate HMAC-SHA1 hash
-            byte[] hash = calculateHmacSha1(Base64.getDecoder().decode(secretKey), timeBytes);
-            
-            // Truncate hash and extract OTP
-            int offset = hash[hash.length - 1] & 0xF;
-            int truncatedHash = ((hash[offset] & 0x7F) << 24) |
-                              ((hash[offset + 1] & 0xFF) << 16) |
-                              ((hash[offset + 2] & 0xFF) << 8) |
-                              (hash[offset + 3] & 0xFF);
-            
-            int code = truncatedHash % (int) Math.pow(10, CODE_DIGITS);
+            int code = TotpVerifier.forSecret(secretKey).generate(TotpVerifier.currentCounter() + timeOffset);
             
             // Format code with leading zeros
-            return String.format("%0" + CODE_DIGITS + "d", code);
-        } catch (Exception e) {
+            return String.format("%0" + TotpVerifier.CODE_DIGITS + "d", code);
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
             return null;
         }
     }
     
-    // Convert long to byte array
-    private static byte[] longToBytes(long value) {
-        byte[] result = new byte[8];
-        for (int i = 7; i >= 0; i--) {
-            result[i] = (byte) (value & 0xFF);
-            value >>= 8;
-        }
-        return result;
-    }
-    
-    // Calculate HMAC-SHA1 hash
-    private static byte[] calculateHmacSha1(byte[] key, byte[] data) throws Exception {
-        javax.crypto.Mac mac = javax.crypto.Mac.getInstance(TOTP_ALGORITHM);
-        SecretKeySpec keySpec = new SecretKeySpec(key, TOTP_ALGORITHM);
-        mac.init(keySpec);
-        return mac.doFinal(data);
-    }
-    
     /**
      * Encrypt a password for storage in the database
      * @param plainTextPassword The password to encrypt
@@ -277,33 +243,7 @@ public class SecurityUtil {
      */
     public static String encryptData(String data, String encryptionKey) {
         try {
-            // Generate a random IV
-            SecureRandom random = new SecureRandom();
-            byte[] iv = new byte[12]; // 96 bits IV for GCM
-            random.nextBytes(iv);
-            
-            // Create a secret key from the encryption key
-            byte[] keyBytes = encryptionKey.getBytes();
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
-            keyBytes = sha.digest(keyBytes);
-            keyBytes = java.util.Arrays.copyOf(keyBytes, 16); // AES key length: 16 bytes
-            SecretKey secretKey = new SecretKeySpec(keyBytes, "AES");
-            
-            // Create cipher instance and initialize
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
-            
-            // Encrypt
-            byte[] encryptedText = cipher.doFinal(data.getBytes());
-            
-            // Combine IV and encrypted text
-            byte[] combined = new byte[iv.length + encryptedText.length];
-            System.arraycopy(iv, 0, combined, 0, iv.length);
-            System.arraycopy(encryptedText, 0, combined, iv.length, encryptedText.length);
-            
-            // Encode to Base64
-            return Base64.getEncoder().encodeToString(combined);
+            return CryptoContext.forKey(encryptionKey).encryptToBase64(data);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -319,36 +259,126 @@ public class SecurityUtil {
      */
     public static String decryptData(String encryptedData, String encryptionKey) {
         try {
-            // Decode from Base64
-            byte[] combined = Base64.getDecoder().decode(encryptedData);
-            
-            // Extract IV
-            byte[] iv = new byte[12];
-            System.arraycopy(combined, 0, iv, 0, iv.length);
-            
-            // Extract encrypted text
-            byte[] encryptedText = new byte[combined.length - iv.length];
-            System.arraycopy(combined, iv.length, encryptedText, 0, encryptedText.length);
-            
-            // Create a secret key from the encryption key
-            byte[] keyBytes = encryptionKey.getBytes();
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
-            keyBytes = sha.digest(keyBytes);
-            keyBytes = java.util.Arrays.copyOf(keyBytes, 16); // AES key length: 16 bytes
-            SecretKey secretKey = new SecretKeySpec(keyBytes, "AES");
-            
-            // Create cipher instance and initialize
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, parameterSpec);
-            
-            // Decrypt
-            byte[] decryptedText = cipher.doFinal(encryptedText);
-            
-            return new String(decryptedText);
+            return CryptoContext.forKey(encryptionKey).decryptFromBase64(encryptedData);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
+    
+    /**
+     * Receives decrypted values from {@link #decryptAll}
+     */
+    public interface DecryptedValueConsumer {
+        /**
+         * @param index The position of the value in the input list
+         * @param plaintext The decrypted bytes, or null if the value could not be decrypted.
+         *                  The array is zeroed as soon as this method returns.
+         */
+        void accept(int index, byte[] plaintext) throws IOException;
+    }
+    
+    /**
+     * Decrypt a list of values on the common fork-join pool
+     * @see #decryptAll(List, String, ForkJoinPool, DecryptedValueConsumer)
+     */
+    public static void decryptAll(List<String> encryptedValues, String encryptionKey,
+                                  DecryptedValueConsumer consumer) throws IOException {
+        decryptAll(encryptedValues, encryptionKey, ForkJoinPool.commonPool(), consumer);
+    }
+    
+    /**
+     * Decrypt a list of Base64 values in parallel and hand the results to the consumer in input
+     * order. Values are decrypted in chunks spread across the pool while the calling thread
+     * consumes finished chunks; only a bounded number of chunks is in flight at a time, and every
+     * plaintext buffer is zeroed after the consumer has seen it.
+     * @param encryptedValues The values as stored by {@link #encryptData}
+     * @param encryptionKey The encryption key used for encryption
+     * @param pool The pool to decrypt on
+     * @param consumer Receives each plaintext on the calling thread
+     */
+    public static void decryptAll(List<String> encryptedValues, String encryptionKey, ForkJoinPool pool,
+                                  DecryptedValueConsumer consumer) throws IOException {
+        CryptoContext context;
+        try {
+            context = CryptoContext.forKey(encryptionKey);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot derive encryption key", e);
+        }
+        
+        int total = encryptedValues.size();
+        if (total <= DECRYPT_CHUNK_SIZE) {
+            deliverChunk(decryptChunk(context, encryptedValues, 0, total), 0, consumer);
+            return;
+        }
+        
+        int maxInFlight = Math.max(2, pool.getParallelism() * 2);
+        Deque<ForkJoinTask<byte[][]>> inFlight = new ArrayDeque<>();
+        int nextChunk = 0;
+        int delivered = 0;
+        
+        try {
+            while (delivered < total) {
+                while (inFlight.size() < maxInFlight && nextChunk < total) {
+                    int from = nextChunk;
+                    int to = Math.min(total, from + DECRYPT_CHUNK_SIZE);
+                    inFlight.addLast(pool.submit(() -> decryptChunk(context, encryptedValues, from, to)));
+                    nextChunk = to;
+                }
+                
+                byte[][] chunk = inFlight.removeFirst().join();
+                deliverChunk(chunk, delivered, consumer);
+                delivered += chunk.length;
+            }
+        } finally {
+            // The consumer failed part-way: wipe whatever is still being decrypted
+            for (ForkJoinTask<byte[][]> task : inFlight) {
+                zeroChunk(task.join(), 0);
+            }
+        }
+    }
+    
+    private static byte[][] decryptChunk(CryptoContext context, List<String> encryptedValues, int from, int to) {
+        byte[][] chunk = new byte[to - from][];
+        Base64.Decoder decoder = Base64.getDecoder();
+        
+        for (int i = from; i < to; i++) {
+            String encrypted = encryptedValues.get(i);
+            if (encrypted == null) {
+                continue;
+            }
+            try {
+                chunk[i - from] = context.decrypt(decoder.decode(encrypted));
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                System.err.println("Error decrypting value " + i + ": " + e.getMessage());
+            }
+        }
+        return chunk;
+    }
+    
+    private static void deliverChunk(byte[][] chunk, int firstIndex, DecryptedValueConsumer consumer)
+            throws IOException {
+        int i = 0;
+        try {
+            for (; i < chunk.length; i++) {
+                try {
+                    consumer.accept(firstIndex + i, chunk[i]);
+                } finally {
+                    if (chunk[i] != null) {
+                        Arrays.fill(chunk[i], (byte) 0);
+                    }
+                }
+            }
+        } finally {
+            zeroChunk(chunk, i);
+        }
+    }
+    
+    private static void zeroChunk(byte[][] chunk, int from) {
+        for (int i = from; i < chunk.length; i++) {
+            if (chunk[i] != null) {
+                Arrays.fill(chunk[i], (byte) 0);
+            }
+        }
+    }
 } 
\ No newline at end of file
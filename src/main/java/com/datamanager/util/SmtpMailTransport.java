@@ -0,0 +1,130 @@
+package com.datamanager.util;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends mail through an SMTP server, reusing one connection for consecutive messages.
+ *
+ * The connection is opened by the first message and kept until {@link #close()} or a failure.
+ * The server may drop a connection that sat idle, so a send on a reused connection that fails
+ * is tried once more on a fresh one.
+ */
+public class SmtpMailTransport implements MailTransport {
+    private static final String DEFAULT_HOST = "smtp.example.com";
+    private static final int DEFAULT_PORT = 587;
+    private static final String DEFAULT_USERNAME = "reports@nhce.example.com";
+    private static final String DEFAULT_PASSWORD = "your-email-password";
+    private static final String DEFAULT_FROM = "reports@nhce.example.com";
+    private static final int TIMEOUT_MILLIS = 30000;
+    
+    private final Session session;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final String from;
+    private Transport transport;
+    private volatile int connectionCount = 0;
+    
+    /**
+     * @param host The SMTP server
+     * @param port The SMTP port
+     * @param username The login, or null if the server needs no authentication
+     * @param password The password for the login
+     * @param from The sender address
+     */
+    public SmtpMailTransport(String host, int port, String username, String password, String from) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.from = from;
+        
+        Properties properties = new Properties();
+        properties.put("mail.smtp.auth", String.valueOf(username != null));
+        // Upgrades to TLS whenever the server offers it
+        properties.put("mail.smtp.starttls.enable", "true");
+        
+        // A server that stops responding must not hold the outbox worker forever
+        properties.put("mail.smtp.connectiontimeout", String.valueOf(TIMEOUT_MILLIS));
+        properties.put("mail.smtp.timeout", String.valueOf(TIMEOUT_MILLIS));
+        properties.put("mail.smtp.writetimeout", String.valueOf(TIMEOUT_MILLIS));
+        session = Session.getInstance(properties);
+    }
+    
+    /**
+     * Create a transport for the server configured in app settings (smtp_host, smtp_port,
+     * smtp_username, smtp_password and mail_from)
+     */
+    public static SmtpMailTransport fromSettings() throws SQLException {
+        String host = AppSettings.get("smtp_host");
+        String username = AppSettings.get("smtp_username");
+        String password = AppSettings.get("smtp_password");
+        String from = AppSettings.get("mail_from");
+        return new SmtpMailTransport(host != null ? host : DEFAULT_HOST,
+                                     AppSettings.getInt("smtp_port", DEFAULT_PORT),
+                                     username != null ? username : DEFAULT_USERNAME,
+                                     password != null ? password : DEFAULT_PASSWORD,
+                                     from != null ? from : DEFAULT_FROM);
+    }
+    
+    @Override
+    public void send(String to, String subject, String htmlContent) throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(from));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to));
+        message.setSubject(subject);
+        message.setContent(htmlContent, "text/html");
+        message.saveChanges();
+        
+        if (transport != null) {
+            try {
+                transport.sendMessage(message, message.getAllRecipients());
+                return;
+            } catch (SendFailedException e) {
+                // Rejected by the server; a new connection would not help
+                close();
+                throw e;
+            } catch (MessagingException e) {
+                close();
+            }
+        }
+        
+        try {
+            transport = session.getTransport("smtp");
+            transport.connect(host, port, username, password);
+            connectionCount++;
+            transport.sendMessage(message, message.getAllRecipients());
+        } catch (MessagingException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                // Already unusable
+            }
+            transport = null;
+        }
+    }
+    
+    /**
+     * The number of connections opened so far
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+}
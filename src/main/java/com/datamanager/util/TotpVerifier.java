@@ -0,0 +1,327 @@
+package com.datamanager.util;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TOTP (RFC 6238) verification for one secret.
+ *
+ * The secret is decoded and the HMAC-SHA1 key pads are prepared once, and every buffer is
+ * allocated up front, so checking a code after warm-up allocates nothing: the code is parsed
+ * to an int and compared with the truncated HMAC directly. HMAC is computed over a SHA-1
+ * MessageDigest because Mac.doFinal copies its result into a new array on every call.
+ *
+ * A verifier remembers the last time step it accepted and never accepts that step or an
+ * earlier one again, so a code cannot be replayed within its validity window.
+ */
+public class TotpVerifier {
+    public static final int TIME_STEP = 30; // 30 seconds
+    public static final int CODE_DIGITS = 6;
+    public static final int DEFAULT_WINDOW = 1;
+    public static final long NO_MATCH = -1;
+    
+    private static final String WINDOW_SETTING_KEY = "totp_window";
+    private static final int MAX_WINDOW = 10;
+    private static final int BLOCK_SIZE = 64;
+    private static final int DIGEST_LENGTH = 20;
+    private static final int[] POWERS_OF_TEN = {
+        1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+    
+    static final String ADVANCE_COUNTER_SQL =
+        "UPDATE users SET totp_last_counter = ? WHERE id = ? AND totp_last_counter < ?";
+    static final String LOAD_SECRET_SQL =
+        "SELECT totp_secret, totp_last_counter FROM users WHERE id = ? AND totp_enabled = 1";
+    
+    private static final Map<String, TotpVerifier> verifiersBySecret = new ConcurrentHashMap<>();
+    private static final Map<Integer, TotpVerifier> verifiersByUser = new ConcurrentHashMap<>();
+    private static volatile int configuredWindow = -1;
+    
+    private final MessageDigest sha1;
+    private final byte[] innerPad = new byte[BLOCK_SIZE];
+    private final byte[] outerPad = new byte[BLOCK_SIZE];
+    private final byte[] counterBytes = new byte[8];
+    private final byte[] hash = new byte[DIGEST_LENGTH];
+    private final int window;
+    private long lastAcceptedCounter;
+    
+    /**
+     * Create a verifier with the configured window and no accepted code yet
+     * @param base64Secret The shared secret as generated by SecurityUtil.generateTotpSecret
+     */
+    public TotpVerifier(String base64Secret) throws GeneralSecurityException {
+        this(base64Secret, getConfiguredWindow(), NO_MATCH);
+    }
+    
+    /**
+     * Create a verifier
+     * @param base64Secret The shared secret as generated by SecurityUtil.generateTotpSecret
+     * @param window The number of time steps accepted before and after the current one
+     * @param lastAcceptedCounter The last time step accepted for this secret, or NO_MATCH
+     */
+    public TotpVerifier(String base64Secret, int window, long lastAcceptedCounter)
+            throws GeneralSecurityException {
+        if (window < 0 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("TOTP window must be between 0 and " + MAX_WINDOW);
+        }
+        
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(base64Secret);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("TOTP secret is not valid Base64", e);
+        }
+        
+        this.sha1 = MessageDigest.getInstance("SHA-1");
+        if (key.length > BLOCK_SIZE) {
+            byte[] hashedKey = sha1.digest(key);
+            Arrays.fill(key, (byte) 0);
+            key = hashedKey;
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            byte b = i < key.length ? key[i] : 0;
+            innerPad[i] = (byte) (b ^ 0x36);
+            outerPad[i] = (byte) (b ^ 0x5c);
+        }
+        Arrays.fill(key, (byte) 0);
+        
+        this.window = window;
+        this.lastAcceptedCounter = lastAcceptedCounter;
+    }
+    
+    /**
+     * Get a shared verifier for a secret; it checks codes but does not track replays
+     * @param base64Secret The shared secret
+     */
+    public static TotpVerifier forSecret(String base64Secret) throws GeneralSecurityException {
+        TotpVerifier verifier = verifiersBySecret.get(base64Secret);
+        if (verifier == null) {
+            verifier = new TotpVerifier(base64Secret);
+            TotpVerifier existing = verifiersBySecret.putIfAbsent(base64Secret, verifier);
+            if (existing != null) {
+                verifier = existing;
+            }
+        }
+        return verifier;
+    }
+    
+    /**
+     * Verify a user's code and record its time step so it cannot be used again
+     * @param userId The user whose stored TOTP secret to check against
+     * @param code The code typed by the user
+     * @return true if the code is valid and has not been used before
+     */
+    public static boolean verifyForUser(int userId, CharSequence code) throws SQLException {
+        TotpVerifier verifier = verifiersByUser.get(userId);
+        if (verifier == null) {
+            verifier = loadUserVerifier(userId);
+            if (verifier == null) {
+                return false;
+            }
+            TotpVerifier existing = verifiersByUser.putIfAbsent(userId, verifier);
+            if (existing != null) {
+                verifier = existing;
+            }
+        }
+        
+        long counter = verifier.accept(code, currentCounter());
+        if (counter == NO_MATCH) {
+            return false;
+        }
+        
+        // Another process may have accepted the same step; the conditional update decides
+        final long accepted = counter;
+        int updated = DatabaseWriter.execute(conn -> {
+            String query = ADVANCE_COUNTER_SQL;
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setLong(1, accepted);
+                pstmt.setInt(2, userId);
+                pstmt.setLong(3, accepted);
+                return pstmt.executeUpdate();
+            }
+        });
+        return updated == 1;
+    }
+    
+    /**
+     * Forget all cached secrets and replay state, e.g. on logout
+     */
+    public static void clear() {
+        for (TotpVerifier verifier : verifiersBySecret.values()) {
+            verifier.destroy();
+        }
+        for (TotpVerifier verifier : verifiersByUser.values()) {
+            verifier.destroy();
+        }
+        verifiersBySecret.clear();
+        verifiersByUser.clear();
+        configuredWindow = -1;
+    }
+    
+    /**
+     * The time step for the current time
+     */
+    public static long currentCounter() {
+        return System.currentTimeMillis() / 1000 / TIME_STEP;
+    }
+    
+    /**
+     * The number of time steps of clock skew to accept, from the totp_window setting
+     */
+    public static int getConfiguredWindow() {
+        int current = configuredWindow;
+        if (current < 0) {
+            try {
+                current = AppSettings.getInt(WINDOW_SETTING_KEY, DEFAULT_WINDOW);
+            } catch (SQLException e) {
+                current = DEFAULT_WINDOW;
+            }
+            current = Math.max(0, Math.min(MAX_WINDOW, current));
+            configuredWindow = current;
+        }
+        return current;
+    }
+    
+    /**
+     * Find the time step within the window that produces a code, ignoring replay state
+     * @param code The code typed by the user
+     * @param counter The current time step
+     * @return The matching time step, or NO_MATCH
+     */
+    public synchronized long match(CharSequence code, long counter) {
+        int value = parseCode(code);
+        if (value < 0) {
+            return NO_MATCH;
+        }
+        return findCounter(value, counter, Long.MIN_VALUE);
+    }
+    
+    /**
+     * Check a code and, if it matches a time step newer than the last accepted one, accept it
+     * @param code The code typed by the user
+     * @param counter The current time step
+     * @return The accepted time step, or NO_MATCH
+     */
+    public synchronized long accept(CharSequence code, long counter) {
+        int value = parseCode(code);
+        if (value < 0) {
+            return NO_MATCH;
+        }
+        
+        long matched = findCounter(value, counter, lastAcceptedCounter);
+        if (matched != NO_MATCH) {
+            lastAcceptedCounter = matched;
+        }
+        return matched;
+    }
+    
+    /**
+     * Compute the code for a time step
+     * @param counter The time step
+     * @return The code as an int; format it with leading zeros to CODE_DIGITS
+     */
+    public synchronized int generate(long counter) {
+        return truncate(counter);
+    }
+    
+    /**
+     * The last time step accepted by {@link #accept}, or NO_MATCH
+     */
+    public synchronized long getLastAcceptedCounter() {
+        return lastAcceptedCounter;
+    }
+    
+    private long findCounter(int value, long counter, long notAfter) {
+        // Check every step in the window so the time taken does not reveal which one matched
+        long matched = NO_MATCH;
+        for (long step = counter - window; step <= counter + window; step++) {
+            if (truncate(step) == value && step > notAfter && matched == NO_MATCH) {
+                matched = step;
+            }
+        }
+        return matched;
+    }
+    
+    /**
+     * HMAC-SHA1 of the counter, truncated to CODE_DIGITS as described in RFC 4226
+     */
+    private int truncate(long counter) {
+        for (int i = 7; i >= 0; i--) {
+            counterBytes[i] = (byte) (counter & 0xFF);
+            counter >>= 8;
+        }
+        
+        try {
+            sha1.update(innerPad);
+            sha1.update(counterBytes);
+            sha1.digest(hash, 0, DIGEST_LENGTH);
+            sha1.update(outerPad);
+            sha1.update(hash, 0, DIGEST_LENGTH);
+            sha1.digest(hash, 0, DIGEST_LENGTH);
+        } catch (GeneralSecurityException e) {
+            // The buffer always has room for a SHA-1 digest
+            throw new IllegalStateException(e);
+        }
+        
+        int offset = hash[DIGEST_LENGTH - 1] & 0x0F;
+        int binary = ((hash[offset] & 0x7F) << 24) |
+                     ((hash[offset + 1] & 0xFF) << 16) |
+                     ((hash[offset + 2] & 0xFF) << 8) |
+                     (hash[offset + 3] & 0xFF);
+        return binary % POWERS_OF_TEN[CODE_DIGITS];
+    }
+    
+    /**
+     * Parse a code of exactly CODE_DIGITS digits
+     * @return The code as an int, or -1 if it is not a valid code
+     */
+    private static int parseCode(CharSequence code) {
+        if (code == null || code.length() != CODE_DIGITS) {
+            return -1;
+        }
+        
+        int value = 0;
+        for (int i = 0; i < CODE_DIGITS; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+    
+    private synchronized void destroy() {
+        Arrays.fill(innerPad, (byte) 0);
+        Arrays.fill(outerPad, (byte) 0);
+        Arrays.fill(hash, (byte) 0);
+    }
+    
+    private static TotpVerifier loadUserVerifier(int userId) throws SQLException {
+        String query = LOAD_SECRET_SQL;
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, userId);
+            ResultSet rs = pstmt.executeQuery();
+            if (!rs.next() || rs.getString("totp_secret") == null) {
+                return null;
+            }
+            
+            try {
+                return new TotpVerifier(rs.getString("totp_secret"), getConfiguredWindow(),
+                                        rs.getLong("totp_last_counter"));
+            } catch (GeneralSecurityException e) {
+                System.err.println("Invalid TOTP secret for user " + userId + ": " + e.getMessage());
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A single, ordered schema change. Migrations run once, inside the migrator's transaction,
+ * and must not commit or change the connection's autocommit mode themselves.
+ */
+public interface Migration {
+    
+    /**
+     * The schema version this migration brings the database to
+     */
+    int getVersion();
+    
+    /**
+     * Short description recorded in the schema_version table
+     */
+    String getDescription();
+    
+    /**
+     * Apply the schema change
+     * @param conn The writer connection, already inside a transaction
+     */
+    void apply(Connection conn) throws SQLException;
+}
@@ -0,0 +1,146 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Brings the database schema up to date by running pending migrations in version order.
+ *
+ * The applied version is recorded in the schema_version table. When the database is already
+ * current, checking it costs a single query; otherwise all pending migrations run in one
+ * transaction so a failed upgrade leaves the database at its previous version.
+ */
+public class SchemaMigrator {
+    
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+        new V1BaseSchema(),
+        new V2DefaultTaskCategories(),
+        new V3UserPreferences(),
+        new V4HotPathIndexes(),
+        new V5FullTextSearch(),
+        new V6AppSettings(),
+        new V7TotpReplayCounter(),
+        new V8BackupChangeLog(),
+        new V9HealthReportJobs(),
+        new V10MailOutbox(),
+        new V11PasswordHealthAggregates(),
+        new V12BreachedPasswordCount()
+    );
+    
+    /**
+     * The version the current code expects
+     */
+    public static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).getVersion();
+    }
+    
+    /**
+     * Get the schema version recorded in the database
+     * @return The version, or 0 for a new or pre-migration database
+     */
+    public static int getCurrentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            if (e.getMessage() != null && e.getMessage().contains("no such table")) {
+                return 0;
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Check whether any migrations are pending
+     */
+    public static boolean isMigrationPending(Connection conn) throws SQLException {
+        return getCurrentVersion(conn) < getLatestVersion();
+    }
+    
+    /**
+     * Run all pending migrations
+     * @param conn The writer connection
+     * @return The number of migrations applied
+     */
+    public static int migrate(Connection conn) throws SQLException {
+        int currentVersion = getCurrentVersion(conn);
+        if (currentVersion >= getLatestVersion()) {
+            return 0;
+        }
+        
+        int applied = 0;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(
+                    "CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "version INTEGER PRIMARY KEY, " +
+                    "description VARCHAR(255), " +
+                    "applied_at DATETIME NOT NULL" +
+                    ")"
+                );
+            }
+            
+            String insert = "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)";
+            try (PreparedStatement pstmt = conn.prepareStatement(insert)) {
+                for (Migration migration : MIGRATIONS) {
+                    if (migration.getVersion() <= currentVersion) {
+                        continue;
+                    }
+                    
+                    System.out.println("Applying schema migration " + migration.getVersion() +
+                                       ": " + migration.getDescription());
+                    migration.apply(conn);
+                    
+                    pstmt.setInt(1, migration.getVersion());
+                    pstmt.setString(2, migration.getDescription());
+                    pstmt.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                    pstmt.executeUpdate();
+                    applied++;
+                }
+            }
+            
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        
+        System.out.println("Database schema updated to version " + getLatestVersion());
+        return applied;
+    }
+    
+    /**
+     * Add a column to a table if it doesn't exist. Only used by migrations that upgrade
+     * databases created before versioning, so the probe runs once per database.
+     * @param conn The connection to use
+     * @param tableName The table to update
+     * @param columnName The column to add
+     * @param columnType The SQL type of the column
+     */
+    static void addColumnIfMissing(Connection conn, String tableName, String columnName, String columnType)
+            throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + tableName + ")")) {
+            while (rs.next()) {
+                if (columnName.equalsIgnoreCase(rs.getString("name"))) {
+                    return;
+                }
+            }
+        }
+        
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE " + tableName + " ADD COLUMN " + columnName + " " + columnType);
+            System.out.println("Added column " + columnName + " to table " + tableName);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * Persistent queue of outgoing mail.
+ *
+ * Health report emails used to be rendered onto their scheduler job and sent by the
+ * scheduler. They are now queued in mail_outbox and delivered by a background worker, so any
+ * job still waiting to send its email has the email moved into the outbox and becomes queued.
+ * The email columns of health_report_jobs are no longer used.
+ */
+class V10MailOutbox implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 10;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Outgoing mail queue";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS mail_outbox (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "recipient VARCHAR(255) NOT NULL, " +
+                "subject VARCHAR(255) NOT NULL, " +
+                "body TEXT NOT NULL, " +
+                "report_id INTEGER, " +
+                "status VARCHAR(20) NOT NULL DEFAULT 'pending', " +
+                "attempts INTEGER NOT NULL DEFAULT 0, " +
+                "next_attempt_at DATETIME NOT NULL, " +
+                "last_error TEXT, " +
+                "created_at DATETIME NOT NULL, " +
+                "sent_at DATETIME, " +
+                "FOREIGN KEY (report_id) REFERENCES password_health_reports(id)" +
+                ")"
+            );
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_mail_outbox_due ON mail_outbox(status, next_attempt_at)");
+        }
+        
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO mail_outbox (recipient, subject, body, report_id, next_attempt_at, created_at) " +
+                "SELECT email, email_subject, email_body, report_id, ?, ? FROM health_report_jobs " +
+                "WHERE status = 'generated'")) {
+            stmt.setTimestamp(1, now);
+            stmt.setTimestamp(2, now);
+            stmt.executeUpdate();
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(
+                "UPDATE health_report_jobs SET status = 'queued', email_subject = NULL, email_body = NULL " +
+                "WHERE status = 'generated'"
+            );
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Per-user password health aggregates maintained on write.
+ *
+ * A password counts towards the aggregates once it has a strength score and a reuse digest
+ * (a keyed hash of the plaintext). Triggers on passwords subtract the old row and add the new
+ * one on every insert, delete and change of those columns, last_used or owner:
+ * password_health_stats holds the totals and strength histogram, password_reuse_groups counts
+ * the entries per digest, and password_age_buckets counts entries per day of last use, with -1
+ * for never used. Existing rows have no digest yet and are scored when first analyzed.
+ */
+class V11PasswordHealthAggregates implements Migration {
+    
+    // Must match PasswordHealthReport.StrengthBand
+    private static final String[] BAND_COLUMNS = {"very_weak_count", "weak_count", "medium_count",
+                                                  "strong_count", "very_strong_count"};
+    private static final int[] BAND_MIN_SCORES = {0, 25, 50, 70, 90};
+    
+    @Override
+    public int getVersion() {
+        return 11;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Password health aggregates";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        SchemaMigrator.addColumnIfMissing(conn, "passwords", "reuse_digest", "VARCHAR(64)");
+        
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS password_health_stats (" +
+                "user_id INTEGER PRIMARY KEY, " +
+                "total_passwords INTEGER NOT NULL DEFAULT 0, " +
+                "total_strength INTEGER NOT NULL DEFAULT 0, " +
+                "very_weak_count INTEGER NOT NULL DEFAULT 0, " +
+                "weak_count INTEGER NOT NULL DEFAULT 0, " +
+                "medium_count INTEGER NOT NULL DEFAULT 0, " +
+                "strong_count INTEGER NOT NULL DEFAULT 0, " +
+                "very_strong_count INTEGER NOT NULL DEFAULT 0, " +
+                "reused_passwords INTEGER NOT NULL DEFAULT 0, " +
+                "FOREIGN KEY (user_id) REFERENCES users(id)" +
+                ")"
+            );
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS password_reuse_groups (" +
+                "user_id INTEGER NOT NULL, " +
+                "digest VARCHAR(64) NOT NULL, " +
+                "entries INTEGER NOT NULL DEFAULT 0, " +
+                "PRIMARY KEY (user_id, digest)" +
+                ")"
+            );
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS password_age_buckets (" +
+                "user_id INTEGER NOT NULL, " +
+                "day INTEGER NOT NULL, " +
+                "entries INTEGER NOT NULL DEFAULT 0, " +
+                "PRIMARY KEY (user_id, day)" +
+                ")"
+            );
+            
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS passwords_health_insert AFTER INSERT ON passwords " +
+                "WHEN new.reuse_digest IS NOT NULL BEGIN " + add("new") + "END"
+            );
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS passwords_health_delete AFTER DELETE ON passwords " +
+                "WHEN old.reuse_digest IS NOT NULL BEGIN " + remove("old") + "END"
+            );
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS passwords_health_update_old " +
+                "AFTER UPDATE OF user_id, strength_score, reuse_digest, last_used ON passwords " +
+                "WHEN old.reuse_digest IS NOT NULL BEGIN " + remove("old") + "END"
+            );
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS passwords_health_update_new " +
+                "AFTER UPDATE OF user_id, strength_score, reuse_digest, last_used ON passwords " +
+                "WHEN new.reuse_digest IS NOT NULL BEGIN " + add("new") + "END"
+            );
+            // A changed password keeps a stale score until it is analyzed again
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS passwords_health_rescore " +
+                "AFTER UPDATE OF encrypted_password ON passwords " +
+                "WHEN new.encrypted_password IS NOT old.encrypted_password " +
+                "AND new.reuse_digest IS NOT NULL AND new.reuse_digest IS old.reuse_digest BEGIN " +
+                "UPDATE passwords SET reuse_digest = NULL WHERE id = new.id; " +
+                "END"
+            );
+        }
+    }
+    
+    /**
+     * The day of last use, as days since 1970, for a last_used value stored either as
+     * milliseconds or as text
+     */
+    private static String dayOf(String column) {
+        return "COALESCE(CASE WHEN " + column + " IS NULL THEN -1 " +
+               "WHEN typeof(" + column + ") IN ('integer', 'real') THEN CAST(" + column + " / 86400000 AS INTEGER) " +
+               "ELSE CAST(julianday(" + column + ") - 2440587.5 AS INTEGER) END, -1)";
+    }
+    
+    private static String bandIncrements(String row, String sign) {
+        StringBuilder sql = new StringBuilder();
+        String score = "COALESCE(" + row + ".strength_score, 0)";
+        for (int i = 0; i < BAND_COLUMNS.length; i++) {
+            String inBand = i == 0 ? score + " < " + BAND_MIN_SCORES[1]
+                    : i == BAND_COLUMNS.length - 1 ? score + " >= " + BAND_MIN_SCORES[i]
+                    : "(" + score + " >= " + BAND_MIN_SCORES[i] + " AND " + score + " < " + BAND_MIN_SCORES[i + 1] + ")";
+            sql.append(", ").append(BAND_COLUMNS[i]).append(" = ").append(BAND_COLUMNS[i])
+               .append(" ").append(sign).append(" (").append(inBand).append(")");
+        }
+        return sql.toString();
+    }
+    
+    // How many reused passwords one entry of a group of the given size accounts for: the second
+    // entry makes both reused, each later one only itself
+    private static String reuseWeight(String row) {
+        return "(SELECT CASE entries WHEN 1 THEN 0 WHEN 2 THEN 2 ELSE 1 END FROM password_reuse_groups " +
+               "WHERE user_id = " + row + ".user_id AND digest = " + row + ".reuse_digest)";
+    }
+    
+    private static String add(String row) {
+        return "INSERT OR IGNORE INTO password_health_stats (user_id) VALUES (" + row + ".user_id); " +
+               "UPDATE password_health_stats SET total_passwords = total_passwords + 1, " +
+               "total_strength = total_strength + COALESCE(" + row + ".strength_score, 0)" +
+               bandIncrements(row, "+") + " WHERE user_id = " + row + ".user_id; " +
+               "INSERT OR IGNORE INTO password_reuse_groups (user_id, digest) " +
+               "VALUES (" + row + ".user_id, " + row + ".reuse_digest); " +
+               "UPDATE password_reuse_groups SET entries = entries + 1 " +
+               "WHERE user_id = " + row + ".user_id AND digest = " + row + ".reuse_digest; " +
+               "UPDATE password_health_stats SET reused_passwords = reused_passwords + " + reuseWeight(row) +
+               " WHERE user_id = " + row + ".user_id; " +
+               "INSERT OR IGNORE INTO password_age_buckets (user_id, day) " +
+               "VALUES (" + row + ".user_id, " + dayOf(row + ".last_used") + "); " +
+               "UPDATE password_age_buckets SET entries = entries + 1 " +
+               "WHERE user_id = " + row + ".user_id AND day = " + dayOf(row + ".last_used") + "; ";
+    }
+    
+    private static String remove(String row) {
+        return "UPDATE password_health_stats SET total_passwords = total_passwords - 1, " +
+               "total_strength = total_strength - COALESCE(" + row + ".strength_score, 0)" +
+               bandIncrements(row, "-") + " WHERE user_id = " + row + ".user_id; " +
+               "UPDATE password_health_stats SET reused_passwords = reused_passwords - " + reuseWeight(row) +
+               " WHERE user_id = " + row + ".user_id; " +
+               "UPDATE password_reuse_groups SET entries = entries - 1 " +
+               "WHERE user_id = " + row + ".user_id AND digest = " + row + ".reuse_digest; " +
+               "DELETE FROM password_reuse_groups " +
+               "WHERE user_id = " + row + ".user_id AND digest = " + row + ".reuse_digest AND entries <= 0; " +
+               "UPDATE password_age_buckets SET entries = entries - 1 " +
+               "WHERE user_id = " + row + ".user_id AND day = " + dayOf(row + ".last_used") + "; " +
+               "DELETE FROM password_age_buckets " +
+               "WHERE user_id = " + row + ".user_id AND day = " + dayOf(row + ".last_used") + " AND entries <= 0; ";
+    }
+}
@@ -0,0 +1,26 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Stores the number of breached passwords with each health report. NULL means the report was
+ * made without a breach corpus.
+ */
+class V12BreachedPasswordCount implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 12;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Breached password count in health reports";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        SchemaMigrator.addColumnIfMissing(conn, "password_health_reports", "breached_passwords", "INTEGER");
+    }
+}
@@ -0,0 +1,39 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Gives newly registered users the default task categories. These used to be seeded for all
+ * users at every startup; a trigger does it once, at registration.
+ */
+class V2DefaultTaskCategories implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 2;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Default task categories for new users";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS users_default_categories AFTER INSERT ON users " +
+                "BEGIN " +
+                "INSERT OR IGNORE INTO task_categories (user_id, name, color) VALUES " +
+                "(NEW.id, 'Work', '#FF0000'), " +
+                "(NEW.id, 'Personal', '#00FF00'), " +
+                "(NEW.id, 'Shopping', '#0000FF'), " +
+                "(NEW.id, 'Health', '#FF00FF'), " +
+                "(NEW.id, 'Education', '#FFFF00'); " +
+                "END"
+            );
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * User preferences table, previously created on demand when the theme was first saved.
+ */
+class V3UserPreferences implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 3;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "User preferences";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS user_preferences (" +
+                "user_id INTEGER PRIMARY KEY, " +
+                "dark_mode INTEGER, " +
+                "FOREIGN KEY (user_id) REFERENCES users(id)" +
+                ")"
+            );
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Secondary indexes for the per-user lookups issued by the DAOs and the dashboard.
+ *
+ * Every list view filters by user_id (and most sort by a date column), so each index leads
+ * with user_id and carries the sort or lookup columns after it. The password index also covers
+ * the columns of the password list so that query never touches the table.
+ */
+class V4HotPathIndexes implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 4;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Indexes for per-user lookups";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            // TaskDAO stores tag links in task_to_tag; only older databases created it
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS task_to_tag (" +
+                "task_id INTEGER NOT NULL, " +
+                "tag_id INTEGER NOT NULL, " +
+                "PRIMARY KEY (task_id, tag_id), " +
+                "FOREIGN KEY (task_id) REFERENCES tasks(id), " +
+                "FOREIGN KEY (tag_id) REFERENCES task_tags(id)" +
+                ")"
+            );
+        }
+        
+        // The contacts screen reads is_favorite, which the base schema named favorite
+        SchemaMigrator.addColumnIfMissing(conn, "contacts", "is_favorite", "INTEGER DEFAULT 0");
+        
+        try (Statement stmt = conn.createStatement()) {
+            // Password list, lookups by (website, username) and the auto-fill count
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_passwords_user_site " +
+                         "ON passwords (user_id, website, username, auto_fill_enabled)");
+            
+            // Task list sorted by due date, subtask lookups and tag/reminder cleanup
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_tasks_user_due ON tasks (user_id, due_date)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_tasks_parent ON tasks (parent_task_id)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_task_to_tag_tag ON task_to_tag (tag_id)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_task_reminders_task ON task_reminders (task_id)");
+            
+            // Contacts are listed per user and addressed by name
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_contacts_user_name ON contacts (user_id, name)");
+            
+            // Notes list and the category drop-down
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_secure_notes_user_category " +
+                         "ON secure_notes (user_id, category)");
+            
+            // Report history, newest first
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_health_reports_user_date " +
+                         "ON password_health_reports (user_id, report_date)");
+            
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_note_templates_user ON note_templates (user_id)");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * FTS5 indexes for task, contact and secure-note search.
+ *
+ * Each index uses the row id of its base table as its own rowid and is kept in sync by
+ * triggers, so the application only writes to the base tables. Task tags are stored in
+ * task_to_tag and are folded into the task index as one space-separated column. Note bodies are
+ * encrypted and are not indexed here.
+ */
+class V5FullTextSearch implements Migration {
+    
+    private static final String TOKENIZE = "tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3'";
+    
+    private static final String TASK_TAGS =
+        "(SELECT group_concat(tg.name, ' ') FROM task_to_tag tt " +
+        "JOIN task_tags tg ON tt.tag_id = tg.id WHERE tt.task_id = %s)";
+    
+    @Override
+    public int getVersion() {
+        return 5;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Full-text search indexes";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            createTaskIndex(stmt);
+            createContactIndex(stmt);
+            createNoteIndex(stmt);
+        }
+    }
+    
+    private void createTaskIndex(Statement stmt) throws SQLException {
+        stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS tasks_fts USING fts5(title, description, tags, " + TOKENIZE + ")");
+        
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS tasks_fts_insert AFTER INSERT ON tasks BEGIN " +
+            "INSERT INTO tasks_fts (rowid, title, description, tags) VALUES (new.id, new.title, new.description, ''); " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS tasks_fts_update AFTER UPDATE OF title, description ON tasks BEGIN " +
+            "UPDATE tasks_fts SET title = new.title, description = new.description WHERE rowid = new.id; " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS tasks_fts_delete AFTER DELETE ON tasks BEGIN " +
+            "DELETE FROM tasks_fts WHERE rowid = old.id; " +
+            "END"
+        );
+        
+        // Tag links change independently of the task row
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS tasks_fts_tag_insert AFTER INSERT ON task_to_tag BEGIN " +
+            "UPDATE tasks_fts SET tags = coalesce(" + String.format(TASK_TAGS, "new.task_id") + ", '') " +
+            "WHERE rowid = new.task_id; " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS tasks_fts_tag_delete AFTER DELETE ON task_to_tag BEGIN " +
+            "UPDATE tasks_fts SET tags = coalesce(" + String.format(TASK_TAGS, "old.task_id") + ", '') " +
+            "WHERE rowid = old.task_id; " +
+            "END"
+        );
+        
+        stmt.execute("DELETE FROM tasks_fts");
+        stmt.execute(
+            "INSERT INTO tasks_fts (rowid, title, description, tags) " +
+            "SELECT t.id, t.title, t.description, coalesce(" + String.format(TASK_TAGS, "t.id") + ", '') FROM tasks t"
+        );
+    }
+    
+    private void createContactIndex(Statement stmt) throws SQLException {
+        stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS contacts_fts USING fts5(" +
+                     "name, phone, email, company, category, notes, " + TOKENIZE + ")");
+        
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS contacts_fts_insert AFTER INSERT ON contacts BEGIN " +
+            "INSERT INTO contacts_fts (rowid, name, phone, email, company, category, notes) " +
+            "VALUES (new.id, new.name, new.phone, new.email, new.company, new.category, new.notes); " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS contacts_fts_update AFTER UPDATE ON contacts BEGIN " +
+            "UPDATE contacts_fts SET name = new.name, phone = new.phone, email = new.email, " +
+            "company = new.company, category = new.category, notes = new.notes WHERE rowid = new.id; " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS contacts_fts_delete AFTER DELETE ON contacts BEGIN " +
+            "DELETE FROM contacts_fts WHERE rowid = old.id; " +
+            "END"
+        );
+        
+        stmt.execute("DELETE FROM contacts_fts");
+        stmt.execute(
+            "INSERT INTO contacts_fts (rowid, name, phone, email, company, category, notes) " +
+            "SELECT id, name, phone, email, company, category, notes FROM contacts"
+        );
+    }
+    
+    private void createNoteIndex(Statement stmt) throws SQLException {
+        stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS secure_notes_fts USING fts5(title, category, tags, " + TOKENIZE + ")");
+        
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS secure_notes_fts_insert AFTER INSERT ON secure_notes BEGIN " +
+            "INSERT INTO secure_notes_fts (rowid, title, category, tags) " +
+            "VALUES (new.id, new.title, new.category, new.tags); " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS secure_notes_fts_update AFTER UPDATE OF title, category, tags ON secure_notes BEGIN " +
+            "UPDATE secure_notes_fts SET title = new.title, category = new.category, tags = new.tags " +
+            "WHERE rowid = new.id; " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS secure_notes_fts_delete AFTER DELETE ON secure_notes BEGIN " +
+            "DELETE FROM secure_notes_fts WHERE rowid = old.id; " +
+            "END"
+        );
+        
+        stmt.execute("DELETE FROM secure_notes_fts");
+        stmt.execute(
+            "INSERT INTO secure_notes_fts (rowid, title, category, tags) " +
+            "SELECT id, title, category, tags FROM secure_notes"
+        );
+    }
+}
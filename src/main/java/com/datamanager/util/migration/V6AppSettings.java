@@ -0,0 +1,33 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Key/value table for machine-level settings such as the calibrated login hashing cost.
+ */
+class V6AppSettings implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 6;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Application settings";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS app_settings (" +
+                "setting_key VARCHAR(100) PRIMARY KEY, " +
+                "setting_value TEXT NOT NULL" +
+                ")"
+            );
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Remembers the last accepted TOTP time step per user so a code cannot be used twice.
+ */
+class V7TotpReplayCounter implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 7;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "TOTP replay protection";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        SchemaMigrator.addColumnIfMissing(conn, "users", "totp_last_counter", "INTEGER DEFAULT 0");
+    }
+}
@@ -0,0 +1,67 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Change tracking for incremental backups.
+ *
+ * Triggers append the id of every inserted, updated or deleted row of the backed-up tables to
+ * change_log. The sequence number only grows, so a backup records the highest sequence it
+ * includes and the next delta reads the rows logged after it.
+ */
+class V8BackupChangeLog implements Migration {
+    
+    private static final String[] TRACKED_TABLES = {"passwords", "tasks", "contacts"};
+    
+    @Override
+    public int getVersion() {
+        return 8;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Change log for incremental backups";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS change_log (" +
+                "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "table_name VARCHAR(50) NOT NULL, " +
+                "row_id INTEGER NOT NULL, " +
+                "user_id INTEGER NOT NULL" +
+                ")"
+            );
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_change_log_user_table ON change_log(user_id, table_name, seq, row_id)");
+            
+            for (String table : TRACKED_TABLES) {
+                createTriggers(stmt, table);
+            }
+        }
+    }
+    
+    private void createTriggers(Statement stmt, String table) throws SQLException {
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS " + table + "_change_insert AFTER INSERT ON " + table + " BEGIN " +
+            "INSERT INTO change_log (table_name, row_id, user_id) VALUES ('" + table + "', new.id, new.user_id); " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS " + table + "_change_update AFTER UPDATE ON " + table + " BEGIN " +
+            "INSERT INTO change_log (table_name, row_id, user_id) VALUES ('" + table + "', new.id, new.user_id); " +
+            // A row moved to another user disappears from the old owner's backups
+            "INSERT INTO change_log (table_name, row_id, user_id) " +
+            "SELECT '" + table + "', old.id, old.user_id WHERE old.user_id IS NOT new.user_id; " +
+            "END"
+        );
+        stmt.execute(
+            "CREATE TRIGGER IF NOT EXISTS " + table + "_change_delete AFTER DELETE ON " + table + " BEGIN " +
+            "INSERT INTO change_log (table_name, row_id, user_id) VALUES ('" + table + "', old.id, old.user_id); " +
+            "END"
+        );
+    }
+}
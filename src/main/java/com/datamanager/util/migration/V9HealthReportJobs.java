@@ -0,0 +1,58 @@
+package com.datamanager.util.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Progress of the health report scheduler.
+ *
+ * Each scheduled run records one job per due user. A job moves from pending to generated once
+ * its report is saved, with the rendered email kept on the job, and then to sent, skipped or
+ * failed. A run without a finish time was interrupted and is resumed from its open jobs.
+ *
+ * V10 replaced the generated and sent states and the email_subject and email_body columns: a
+ * job's email now goes to the mail outbox and the job becomes queued.
+ */
+class V9HealthReportJobs implements Migration {
+    
+    @Override
+    public int getVersion() {
+        return 9;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Health report scheduler progress";
+    }
+    
+    @Override
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS health_report_runs (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "started_at DATETIME NOT NULL, " +
+                "finished_at DATETIME" +
+                ")"
+            );
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS health_report_jobs (" +
+                "run_id INTEGER NOT NULL, " +
+                "user_id INTEGER NOT NULL, " +
+                "email VARCHAR(255) NOT NULL, " +
+                "status VARCHAR(20) NOT NULL DEFAULT 'pending', " +
+                "attempts INTEGER NOT NULL DEFAULT 0, " +
+                "report_id INTEGER, " +
+                "email_subject TEXT, " +
+                "email_body TEXT, " +
+                "last_error TEXT, " +
+                "updated_at DATETIME, " +
+                "PRIMARY KEY (run_id, user_id), " +
+                "FOREIGN KEY (run_id) REFERENCES health_report_runs(id), " +
+                "FOREIGN KEY (user_id) REFERENCES users(id)" +
+                ")"
+            );
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.datamanager.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Builds small corpora with {@link BreachCorpus#importHashes} and looks passwords up in them.
+ */
+class BreachCorpusTest {
+    
+    @TempDir
+    File workDir;
+    
+    @Test
+    void findsImportedPasswords() throws Exception {
+        File corpusDir = new File(workDir, "corpus");
+        assertEquals(2, BreachCorpus.importHashes(hashList("list.txt", "password", 100, "letmein", 7), corpusDir));
+        
+        BreachCorpus corpus = new BreachCorpus(corpusDir);
+        assertEquals(2, corpus.refresh());
+        assertEquals(100, corpus.getBreachCount("password"));
+        assertEquals(7, corpus.getBreachCount("letmein"));
+        assertEquals(0, corpus.getBreachCount("not breached"));
+    }
+    
+    @Test
+    void replacesALoadedShard() throws Exception {
+        File corpusDir = new File(workDir, "corpus");
+        BreachCorpus.importHashes(hashList("old.txt", "password", 100), corpusDir);
+        BreachCorpus corpus = new BreachCorpus(corpusDir);
+        corpus.refresh();
+        assertEquals(100, corpus.getBreachCount("password"));
+        
+        // The loaded shard must not keep its file from being replaced
+        BreachCorpus.importHashes(hashList("new.txt", "password", 250), corpusDir);
+        File shard = new File(corpusDir, hex(sha1("password")).substring(0, 2) + ".shard");
+        shard.setLastModified(shard.lastModified() + 2000);
+        corpus.refresh();
+        assertEquals(250, corpus.getBreachCount("password"));
+    }
+    
+    @Test
+    void refreshLeavesTheRecordsOnDisk() throws Exception {
+        File corpusDir = new File(workDir, "corpus");
+        BreachCorpus.importHashes(hashList("list.txt", "password", 100), corpusDir);
+        BreachCorpus corpus = new BreachCorpus(corpusDir);
+        corpus.refresh();
+        
+        // Rewrite the count of the only record in place: a lookup only sees it if the refresh
+        // kept nothing but the fan-out table
+        File shard = new File(corpusDir, hex(sha1("password")).substring(0, 2) + ".shard");
+        try (RandomAccessFile raf = new RandomAccessFile(shard, "rw")) {
+            raf.seek(BreachCorpus.HEADER_LENGTH + 18);
+            raf.writeInt(42);
+        }
+        assertEquals(42, corpus.getBreachCount("password"));
+    }
+    
+    @Test
+    void mergesRangeFilesIntoTheirShard() throws Exception {
+        String before = "5B00000000000000000000000000000000000001";
+        String after = "5BFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF";
+        String password = hex(sha1("password"));
+        String added = "5BAA600000000000000000000000000000000001";
+        TreeMap<String, Integer> full = new TreeMap<>();
+        full.put(before, 3);
+        full.put(password, 100);
+        full.put(after, 4);
+        File corpusDir = new File(workDir, "corpus");
+        BreachCorpus.importHashes(write("full.txt", full), corpusDir);
+        
+        // A range file holds the hashes of one 5-character prefix without the prefix
+        TreeMap<String, Integer> range = new TreeMap<>();
+        range.put(added.substring(5), 9);
+        range.put(password.substring(5), 500);
+        assertEquals(2, BreachCorpus.importHashes(write("ranges/5BAA6.txt", range).getParentFile(), corpusDir));
+        
+        BreachCorpus corpus = new BreachCorpus(corpusDir);
+        assertEquals(1, corpus.refresh());
+        assertEquals(3, corpus.getHashCount(bytes(before)));
+        assertEquals(500, corpus.getBreachCount("password"));
+        assertEquals(9, corpus.getHashCount(bytes(added)));
+        assertEquals(4, corpus.getHashCount(bytes(after)));
+    }
+    
+    /**
+     * Write a "HASH:COUNT" list of passwords and their counts, sorted as the corpus is distributed
+     */
+    File hashList(String name, Object... passwordsAndCounts) throws Exception {
+        TreeMap<String, Integer> hashes = new TreeMap<>();
+        for (int i = 0; i < passwordsAndCounts.length; i += 2) {
+            hashes.put(hex(sha1((String) passwordsAndCounts[i])), (Integer) passwordsAndCounts[i + 1]);
+        }
+        return write(name, hashes);
+    }
+    
+    File write(String name, Map<String, Integer> lines) throws IOException {
+        File file = new File(workDir, name);
+        file.getParentFile().mkdirs();
+        try (PrintWriter writer = new PrintWriter(file, "US-ASCII")) {
+            for (Map.Entry<String, Integer> line : lines.entrySet()) {
+                writer.println(line.getKey() + ":" + line.getValue());
+            }
+        }
+        return file;
+    }
+    
+    static byte[] sha1(String password) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02X", b));
+        }
+        return hex.toString();
+    }
+    
+    static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.datamanager.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reads the browser profiles under src/test/resources/com/datamanager/util/browser:
+ * <ul>
+ * <li>chrome: a Login Data file with two v10 logins, one v11 login and one never-save entry</li>
+ * <li>firefox: a key4.db with an empty primary password, holding a 3DES and an AES-256 login key
+ *     wrapped with PBES2 and a 14-byte IV, and a logins.json with a 3DES login, an AES-256 login
+ *     and a login under an unknown key</li>
+ * <li>firefox-primary-password: the same profile with the primary password "secret"</li>
+ * <li>firefox-legacy-key4: a key4.db whose check value uses PBE-SHA1-3DES</li>
+ * </ul>
+ */
+class BrowserCredentialSourceTest {
+    
+    @Test
+    void chromeDecryptsV10AndSkipsV11() throws Exception {
+        List<String> logins = new ArrayList<>();
+        int skipped = new ChromeCredentialSource(profile("chrome")).read(
+            (url, username, password) -> logins.add(url + " " + username + " " + password));
+        
+        assertEquals(List.of("https://example.com/login alice correct horse",
+                             "https://example.net/ bob p\u00e4ss w0rd!"), logins);
+        assertEquals(1, skipped);
+    }
+    
+    @Test
+    void firefoxDecrypts3desAndAesLogins() throws Exception {
+        List<String> logins = new ArrayList<>();
+        int skipped = new FirefoxCredentialSource(profile("firefox")).read(
+            (url, username, password) -> logins.add(url + " " + username + " " + password));
+        
+        assertEquals(List.of("https://old.example.org carol 3des-password",
+                             "https://new.example.org dave aes p\u00e4ssword"), logins);
+        assertEquals(1, skipped);
+    }
+    
+    @Test
+    void firefoxReportsPrimaryPassword() throws Exception {
+        FirefoxCredentialSource source = new FirefoxCredentialSource(profile("firefox-primary-password"));
+        GeneralSecurityException e = assertThrows(GeneralSecurityException.class,
+            () -> source.read((url, username, password) -> { }));
+        assertTrue(e.getMessage().contains("primary password"), e.getMessage());
+    }
+    
+    @Test
+    void firefoxReportsUnsupportedKeyDatabase() throws Exception {
+        FirefoxCredentialSource source = new FirefoxCredentialSource(profile("firefox-legacy-key4"));
+        IOException e = assertThrows(IOException.class, () -> source.read((url, username, password) -> { }));
+        assertTrue(e.getMessage().contains("Unsupported key4.db format"), e.getMessage());
+    }
+    
+    private File profile(String name) throws URISyntaxException {
+        return new File(getClass().getResource("browser/" + name).toURI());
+    }
+}
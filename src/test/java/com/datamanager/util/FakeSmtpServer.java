@@ -0,0 +1,253 @@
+package com.datamanager.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal SMTP server on the loopback interface that keeps the messages it receives in memory.
+ *
+ * Point an {@link SmtpMailTransport} at {@link #getPort()} to exercise mail delivery without a
+ * real server. It speaks just enough SMTP for JavaMail and offers no authentication or TLS.
+ * Every message is accepted unless temporary failures were requested with {@link #failNext}.
+ */
+class FakeSmtpServer implements Closeable {
+    
+    /**
+     * A message as received, headers and body unparsed
+     */
+    public static class ReceivedMessage {
+        private final String from;
+        private final List<String> recipients;
+        private final String data;
+        
+        ReceivedMessage(String from, List<String> recipients, String data) {
+            this.from = from;
+            this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+            this.data = data;
+        }
+        
+        public String getFrom() {
+            return from;
+        }
+        
+        public List<String> getRecipients() {
+            return recipients;
+        }
+        
+        /**
+         * The message as sent after DATA, with dot-stuffing removed
+         */
+        public String getData() {
+            return data;
+        }
+        
+        /**
+         * The Subject header, or null if there is none
+         */
+        public String getSubject() {
+            for (String line : data.split("\r\n")) {
+                if (line.isEmpty()) {
+                    break;
+                }
+                if (line.regionMatches(true, 0, "Subject:", 0, 8)) {
+                    return line.substring(8).trim();
+                }
+            }
+            return null;
+        }
+    }
+    
+    private final ServerSocket serverSocket;
+    private final List<ReceivedMessage> messages = new ArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger failuresRequested = new AtomicInteger();
+    private volatile boolean running = true;
+    
+    /**
+     * Start listening on a free port
+     */
+    public FakeSmtpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::acceptConnections, "FakeSmtpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+    
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+    
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    /**
+     * The number of connections accepted so far
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+    
+    /**
+     * Reject the next messages with a temporary failure
+     * @param count The number of messages to reject
+     */
+    public void failNext(int count) {
+        failuresRequested.set(count);
+    }
+    
+    /**
+     * The messages accepted so far, in the order they arrived
+     */
+    public List<ReceivedMessage> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<>(messages);
+        }
+    }
+    
+    /**
+     * Wait until at least a number of messages have been accepted
+     * @param count The number of messages to wait for
+     * @param timeoutMillis How long to wait
+     * @return Whether that many messages arrived in time
+     */
+    public boolean awaitMessages(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (messages) {
+            while (messages.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                messages.wait(remaining);
+            }
+            return true;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+    
+    private void acceptConnections() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connectionCount.incrementAndGet();
+                Thread session = new Thread(() -> serve(socket), "FakeSmtpServer-session");
+                session.setDaemon(true);
+                session.start();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+        }
+    }
+    
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.ISO_8859_1)) {
+            reply(out, "220 localhost Fake SMTP ready");
+            
+            String from = null;
+            List<String> recipients = new ArrayList<>();
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                String command = line.length() > 4 ? line.substring(0, 4) : line;
+                switch (command.toUpperCase(Locale.ROOT)) {
+                    case "EHLO":
+                    case "HELO":
+                        reply(out, "250 localhost");
+                        break;
+                    case "MAIL":
+                        from = address(line);
+                        recipients.clear();
+                        reply(out, "250 OK");
+                        break;
+                    case "RCPT":
+                        recipients.add(address(line));
+                        reply(out, "250 OK");
+                        break;
+                    case "DATA":
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        String data = readData(in);
+                        if (data == null) {
+                            return;
+                        }
+                        if (failuresRequested.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                            reply(out, "451 Requested action aborted: try again later");
+                        } else {
+                            synchronized (messages) {
+                                messages.add(new ReceivedMessage(from, recipients, data));
+                                messages.notifyAll();
+                            }
+                            reply(out, "250 OK");
+                        }
+                        from = null;
+                        recipients.clear();
+                        break;
+                    case "RSET":
+                        from = null;
+                        recipients.clear();
+                        reply(out, "250 OK");
+                        break;
+                    case "NOOP":
+                        reply(out, "250 OK");
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Bye");
+                        return;
+                    default:
+                        reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+    
+    /**
+     * Read message data up to the terminating dot line
+     * @return The data, or null if the connection closed first
+     */
+    private static String readData(BufferedReader in) throws IOException {
+        StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(".")) {
+                return data.toString();
+            }
+            // Undo dot-stuffing
+            data.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+        }
+        return null;
+    }
+    
+    private static String address(String line) {
+        int start = line.indexOf('<');
+        int end = line.indexOf('>', start + 1);
+        return start >= 0 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1).trim();
+    }
+    
+    private static void reply(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write("\r\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,134 @@
+package com.datamanager.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Delivers queued mail through a {@link FakeSmtpServer}. The test task runs against its own
+ * database file, so the messages queued here never reach the user's outbox.
+ */
+class MailOutboxTest {
+    private static final long TIMEOUT_MILLIS = 30000;
+    
+    private FakeSmtpServer server;
+    private String subject;
+    
+    @BeforeEach
+    void startServer() throws Exception {
+        server = new FakeSmtpServer();
+        subject = "Outbox test " + System.nanoTime();
+    }
+    
+    @AfterEach
+    void stopServer() throws Exception {
+        MailOutbox.stop();
+        server.close();
+    }
+    
+    @Test
+    void deliversQueuedMailOverOneConnection() throws Exception {
+        List<Long> ids = enqueue(200);
+        MailOutbox.start(transport());
+        
+        assertTrue(server.awaitMessages(200, TIMEOUT_MILLIS), "Timed out waiting for the messages");
+        assertEquals(200, received().size());
+        assertEquals(1, server.getConnectionCount());
+        
+        for (long id : ids) {
+            awaitRow(id, "sent", 1);
+        }
+    }
+    
+    @Test
+    void retriesARejectedMessageLater() throws Exception {
+        server.failNext(1);
+        List<Long> ids = enqueue(3);
+        long queuedAt = System.currentTimeMillis();
+        MailOutbox.start(transport());
+        
+        assertTrue(server.awaitMessages(2, TIMEOUT_MILLIS), "Timed out waiting for the messages");
+        awaitRow(ids.get(0), "pending", 1);
+        awaitRow(ids.get(1), "sent", 1);
+        awaitRow(ids.get(2), "sent", 1);
+        assertEquals(2, received().size());
+        
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                 "SELECT last_error, next_attempt_at FROM mail_outbox WHERE id = ?")) {
+            stmt.setLong(1, ids.get(0));
+            ResultSet rs = stmt.executeQuery();
+            assertTrue(rs.next());
+            assertNotNull(rs.getString("last_error"));
+            assertTrue(rs.getTimestamp("next_attempt_at").getTime() >= queuedAt + MailOutbox.retryDelay(1));
+        }
+    }
+    
+    @Test
+    void retryDelayDoublesUpToAnHour() {
+        assertEquals(30000, MailOutbox.retryDelay(1));
+        assertEquals(60000, MailOutbox.retryDelay(2));
+        assertEquals(120000, MailOutbox.retryDelay(3));
+        assertEquals(3600000, MailOutbox.retryDelay(MailOutbox.MAX_ATTEMPTS));
+    }
+    
+    private SmtpMailTransport transport() {
+        return new SmtpMailTransport(server.getHost(), server.getPort(), null, null, "reports@nhce.example.com");
+    }
+    
+    private List<Long> enqueue(int count) throws SQLException {
+        return DatabaseWriter.execute(conn -> {
+            List<Long> ids = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                ids.add(MailOutbox.enqueue(conn, "user" + i + "@example.com", subject,
+                                           "<html><body><p>Message " + i + "</p></body></html>", null));
+            }
+            return ids;
+        });
+    }
+    
+    private List<FakeSmtpServer.ReceivedMessage> received() {
+        List<FakeSmtpServer.ReceivedMessage> messages = new ArrayList<>();
+        for (FakeSmtpServer.ReceivedMessage message : server.getMessages()) {
+            if (subject.equals(message.getSubject())) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+    
+    /**
+     * Wait until the worker has recorded the outcome of a message
+     */
+    private void awaitRow(long id, String status, int attempts) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        String actual = null;
+        while (System.currentTimeMillis() < deadline) {
+            try (Connection conn = DatabaseUtil.getReadConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT status, attempts FROM mail_outbox WHERE id = ?")) {
+                stmt.setLong(1, id);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    actual = rs.getString("status") + " after " + rs.getInt("attempts");
+                    if (status.equals(rs.getString("status")) && rs.getInt("attempts") == attempts) {
+                        return;
+                    }
+                }
+            }
+            Thread.sleep(20);
+        }
+        assertEquals(status + " after " + attempts, actual, "Message " + id);
+    }
+}
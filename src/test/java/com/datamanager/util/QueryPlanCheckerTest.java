@@ -0,0 +1,28 @@
+package com.datamanager.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class QueryPlanCheckerTest {
+    
+    @Test
+    void everyCheckedQueryUsesAnIndex() throws Exception {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            List<String> problems = QueryPlanChecker.findFullScans(conn);
+            assertEquals(List.of(), problems, "Queries that scan a full table");
+        }
+    }
+    
+    @Test
+    void explainReportsAScanOfAnUnindexedColumn() throws Exception {
+        try (Connection conn = DatabaseUtil.getReadConnection()) {
+            List<String> plan = QueryPlanChecker.explain(conn, "SELECT id FROM passwords WHERE url_pattern = ?");
+            assertTrue(plan.stream().anyMatch(step -> step.startsWith("SCAN")), plan.toString());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.datamanager.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Window and replay handling of {@link TotpVerifier}. The user-level check runs against the test
+ * task's own database.
+ */
+class TotpVerifierTest {
+    // The RFC 6238 SHA-1 test secret, "12345678901234567890"
+    private static final String SECRET = "MTIzNDU2Nzg5MDEyMzQ1Njc4OTA=";
+    private static final long COUNTER = 1000;
+    
+    @AfterEach
+    void clearVerifiers() {
+        TotpVerifier.clear();
+    }
+    
+    @Test
+    void generatesTheRfcTestVectors() throws Exception {
+        TotpVerifier verifier = new TotpVerifier(SECRET, 1, TotpVerifier.NO_MATCH);
+        // The RFC lists 8 digits; the last 6 are the 6-digit code
+        assertEquals(287082, verifier.generate(59 / TotpVerifier.TIME_STEP));
+        assertEquals(81804, verifier.generate(1111111109L / TotpVerifier.TIME_STEP));
+    }
+    
+    @Test
+    void acceptsCodesWithinTheWindow() throws Exception {
+        for (long step = COUNTER - 1; step <= COUNTER + 1; step++) {
+            TotpVerifier verifier = new TotpVerifier(SECRET, 1, TotpVerifier.NO_MATCH);
+            assertEquals(step, verifier.accept(code(step), COUNTER));
+        }
+    }
+    
+    @Test
+    void rejectsCodesOutsideTheWindow() throws Exception {
+        TotpVerifier verifier = new TotpVerifier(SECRET, 1, TotpVerifier.NO_MATCH);
+        assertEquals(TotpVerifier.NO_MATCH, verifier.accept(code(COUNTER - 2), COUNTER));
+        assertEquals(TotpVerifier.NO_MATCH, verifier.accept(code(COUNTER + 2), COUNTER));
+        assertEquals(TotpVerifier.NO_MATCH, verifier.getLastAcceptedCounter());
+    }
+    
+    @Test
+    void rejectsAReplayedCode() throws Exception {
+        TotpVerifier verifier = new TotpVerifier(SECRET, 1, TotpVerifier.NO_MATCH);
+        assertEquals(COUNTER, verifier.accept(code(COUNTER), COUNTER));
+        assertEquals(TotpVerifier.NO_MATCH, verifier.accept(code(COUNTER), COUNTER));
+    }
+    
+    @Test
+    void rejectsAnOlderCodeAfterANewerOne() throws Exception {
+        TotpVerifier verifier = new TotpVerifier(SECRET, 1, TotpVerifier.NO_MATCH);
+        assertEquals(COUNTER + 1, verifier.accept(code(COUNTER + 1), COUNTER));
+        assertEquals(TotpVerifier.NO_MATCH, verifier.accept(code(COUNTER), COUNTER));
+        assertEquals(COUNTER + 1, verifier.getLastAcceptedCounter());
+    }
+    
+    @Test
+    void verifyForUserPersistsTheAcceptedStep() throws Exception {
+        int userId = DatabaseWriter.execute(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO users (username, password_hash, salt, totp_secret, totp_enabled, totp_last_counter) " +
+                    "VALUES (?, 'hash', 'salt', ?, 1, 0)", Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setString(1, "totp-test-" + System.nanoTime());
+                stmt.setString(2, SECRET);
+                stmt.executeUpdate();
+                ResultSet keys = stmt.getGeneratedKeys();
+                keys.next();
+                return keys.getInt(1);
+            }
+        });
+        
+        // The default window accepts the code even if the time step ends before it is checked
+        long step = TotpVerifier.currentCounter();
+        String code = code(step);
+        assertTrue(TotpVerifier.verifyForUser(userId, code));
+        assertTrue(storedCounter(userId) >= step);
+        assertFalse(TotpVerifier.verifyForUser(userId, code));
+        
+        // A fresh verifier starts from the stored step, so the code stays used
+        TotpVerifier.clear();
+        assertFalse(TotpVerifier.verifyForUser(userId, code));
+    }
+    
+    private static String code(long step) throws Exception {
+        int code = new TotpVerifier(SECRET, 0, TotpVerifier.NO_MATCH).generate(step);
+        return String.format("%0" + TotpVerifier.CODE_DIGITS + "d", code);
+    }
+    
+    private static long storedCounter(int userId) throws Exception {
+        try (Connection conn = DatabaseUtil.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT totp_last_counter FROM users WHERE id = ?")) {
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            assertTrue(rs.next());
+            return rs.getLong(1);
+        }
+    }
+}